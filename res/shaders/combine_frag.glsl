@@ -1,17 +1,62 @@
-#version 420 core
+#version 430 core
 
 #define PI 3.1415926
 
 in vec2 uv_frag;
 in vec3 camera_position;
 
-layout (binding = 0) uniform sampler2D position;
+layout (binding = 0) uniform sampler2D depth;
 layout (binding = 1) uniform sampler2D albedo_metalness;
-layout (binding = 2) uniform sampler2D normal_roughness;
+layout (binding = 2) uniform sampler2D normal;
 layout (binding = 3) uniform sampler2D environment_emission;
+layout (binding = 4) uniform sampler2D roughness;
+
+// Viewport to render target size ratio (targets can be larger than viewport) and the last texel center inside it
+layout (std140, binding = 14) uniform target_block
+{
+    vec2 target_scale;
+    vec2 target_limit;
+};
+
+layout (std140, binding = 1) uniform camera_block
+{
+    mat4 view_matrix;
+    mat4 projection_matrix;
+    mat4 inverse_view_projection;
+};
 
 layout (binding = 9) uniform sampler2D BRDFlookUp;
 
+struct Light
+{
+    vec4 position;      // w - range
+    vec4 color;         // w - cosine of inner cone angle
+    vec4 direction;     // w - cosine of outer cone angle (point lights are never outside of their cone)
+};
+
+layout (std430, binding = 10) readonly buffer light_block
+{
+    Light lights[];
+};
+
+// First light index and lights count of every cluster
+layout (std430, binding = 11) readonly buffer cluster_block
+{
+    uvec2 clusters[];
+};
+
+layout (std430, binding = 12) readonly buffer light_index_block
+{
+    uint light_indices[];
+};
+
+layout (std140, binding = 13) uniform cluster_grid_block
+{
+    uvec4 cluster_grid;     // x, y - screen tiles, z - depth slices, w - tile size in pixels
+    vec4 cluster_depth;     // x - slice scale, y - slice bias (slice = log(depth) * scale + bias)
+    mat4 cluster_view;
+};
+
 layout (location = 0) out vec4 fragment;
 
 vec3 fresnelSchlick(float cosTheta, vec3 F0)
@@ -59,33 +104,64 @@ float DistributionGGX(vec3 N, vec3 H, float rough)
      return ggx1 * ggx2;
  }
 
+// World position of the fragment from its depth
+vec3 getPosition(float depth_value)
+{
+    vec4 position = inverse_view_projection * vec4(vec3(uv_frag, depth_value) * 2.0 - 1.0, 1.0);
+    return position.xyz / position.w;
+}
+
+// Inverse of octahedral encoding done by the deferred pass
+vec3 decodeNormal(vec2 encoded)
+{
+    encoded = encoded * 2.0 - 1.0;
+    vec3 N = vec3(encoded, 1.0 - abs(encoded.x) - abs(encoded.y));
+    float fold = max(-N.z, 0.0);
+    N.xy += vec2(N.x >= 0.0 ? -fold : fold, N.y >= 0.0 ? -fold : fold);
+    return normalize(N);
+}
+
+// Cluster of the fragment
+uvec2 getCluster(vec3 world_position)
+{
+    float depth = max(-(cluster_view * vec4(world_position, 1.0)).z, 1.0e-6);
+    uint slice = uint(clamp(log(depth) * cluster_depth.x + cluster_depth.y, 0.0, float(cluster_grid.z - 1)));
+    uvec2 tile = min(uvec2(gl_FragCoord.xy) / cluster_grid.w, cluster_grid.xy - 1);
+
+    return clusters[(slice * cluster_grid.y + tile.y) * cluster_grid.x + tile.x];
+}
+
 void main()
 {
-    // Real scene lights are not implemented yet so I am using these "built-it" for testing
-    vec3 light_positions[] = { vec3( -5, -5, -5), vec3( 5, -5, -5), vec3( 5, 5, -5), vec3( -5, 5, -5),
-                               vec3( -5, -5,  5), vec3( 5, -5,  5), vec3( 5, 5, -5), vec3( -5, 5,  5)};
-    vec3 light_color = vec3(10.0, 10.0, 10.0);
+    vec2 target_uv = min(uv_frag * target_scale, target_limit);
 
-    float metalness_value = texture(albedo_metalness, uv_frag).a;
-    float roughness_value = texture(normal_roughness, uv_frag).a;
+    vec4 albedo_metalness_value = texture(albedo_metalness, target_uv);
+    float metalness_value = albedo_metalness_value.a;
+    float roughness_value = texture(roughness, target_uv).r;
 
-    vec3 position_value = texture(position, uv_frag).rgb;
-    vec3 albedo_value = texture(albedo_metalness, uv_frag).rgb;
-    vec3 environment_emission_value = texture(environment_emission, uv_frag).rgb;
+    vec3 position_value = getPosition(texture(depth, target_uv).r);
+    vec3 albedo_value = albedo_metalness_value.rgb;
+    vec3 environment_emission_value = texture(environment_emission, target_uv).rgb;
 
-    vec3 N = normalize(texture(normal_roughness, uv_frag).rgb);
+    vec3 N = decodeNormal(texture(normal, target_uv).rg);
     vec3 V = normalize(camera_position - position_value);
 
     vec3 Lo = vec3(0.0);
+    uvec2 cluster = getCluster(position_value);
 
-    for(int i = 0; i < 8; i++)
+    for(uint i = cluster.x; i < cluster.x + cluster.y; i++)
     {
-        vec3 L = normalize(light_positions[i] - position_value);
+        Light light = lights[light_indices[i]];
+
+        vec3 L = normalize(light.position.xyz - position_value);
         vec3 H = normalize(V + L);
 
-        float distance = length(light_positions[i] - position_value);
-        float attenuation = 1.0 / (distance * distance);
-        vec3 radiance = light_color * attenuation;
+        // Inverse square falloff smoothly windowed to zero at light range
+        float distance = length(light.position.xyz - position_value);
+        float window = clamp(1.0 - pow(distance / light.position.w, 4.0), 0.0, 1.0);
+        float attenuation = window * window / max(distance * distance, 0.0001);
+        attenuation *= smoothstep(light.direction.w, light.color.w, dot(-L, light.direction.xyz));
+        vec3 radiance = light.color.rgb * attenuation;
 
         vec3 F0 = vec3(0.04);
         vec3 F = fresnelSchlick(max(dot(H, V), 0.0), F0);
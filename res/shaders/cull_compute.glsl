@@ -0,0 +1,190 @@
+#version 430 core
+
+layout (local_size_x = 64) in;
+
+struct Object
+{
+    vec4 bounds_min;
+    vec4 bounds_max;
+    vec4 lod_thresholds;    // xyz - thresholds, w - hysteresis
+    uvec4 lod_first;
+    uvec4 lod_count;
+    uint base_vertex;
+    uint transform;
+    uint material;
+    uint pool;
+    uint region;            // first command of the pool
+    uint lod_levels;
+    uint lod;               // selected level of detail (kept for hysteresis)
+    uint padding;
+};
+
+struct Instance
+{
+    mat4 model_matrix;
+    uint material;
+};
+
+struct Command
+{
+    uint count;
+    uint instance_count;
+    uint first_index;
+    uint base_vertex;
+    uint base_instance;
+};
+
+layout (std430, binding = 0) writeonly buffer instance_block
+{
+    Instance instances[];
+};
+
+layout (std430, binding = 3) buffer object_block
+{
+    Object objects[];
+};
+
+layout (std430, binding = 4) readonly buffer transform_block
+{
+    mat4 transforms[];
+};
+
+layout (std430, binding = 5) writeonly buffer command_block
+{
+    Command commands[];
+};
+
+// Draw count of every geometry pool in both phases (MAX_POOLS is defined by GpuCulling), number of objects rejected
+// by the first phase and maximal projected size (float bits) of every material
+layout (std430, binding = 6) buffer counter_block
+{
+    uint draw_counts[2 * MAX_POOLS];
+    uint rejected_count;
+    uint material_pixels[];
+};
+
+// Objects rejected by occlusion test of the first phase
+layout (std430, binding = 8) buffer rejected_block
+{
+    uint rejected[];
+};
+
+layout (std140, binding = 7) uniform culling_block
+{
+    vec4 planes[6];
+    vec4 camera_position;   // w - projection scale
+    mat4 pyramid_view_projection;
+    vec2 pyramid_size;
+    uint object_count;
+    float viewport_height;
+    uint phase;             // 0 - all objects against previous frame pyramid, 1 - rejected ones against current
+    uint occlusion;         // whether pyramid is valid
+    int pyramid_levels;
+};
+
+layout (binding = 13) uniform sampler2D depth_pyramid;
+
+// Whether bounding box is behind the farthest depth of pyramid texels covering its screen rectangle
+bool is_occluded(vec3 center, vec3 extent)
+{
+    vec3 rect_min = vec3(1.0);
+    vec3 rect_max = vec3(0.0);
+
+    for (int i = 0; i < 8; i++) {
+        vec3 corner = center + extent * vec3((i & 1) != 0 ? 1.0 : -1.0, (i & 2) != 0 ? 1.0 : -1.0,
+                (i & 4) != 0 ? 1.0 : -1.0);
+        vec4 clip = pyramid_view_projection * vec4(corner, 1.0);
+
+        // Boxes crossing near plane are always visible
+        if (clip.w <= 0.0)
+            return false;
+
+        vec3 window = clip.xyz / clip.w * 0.5 + 0.5;
+        rect_min = min(rect_min, window);
+        rect_max = max(rect_max, window);
+    }
+
+    if (rect_min.z <= 0.0)
+        return false;
+
+    rect_min.xy = clamp(rect_min.xy, 0.0, 1.0);
+    rect_max.xy = clamp(rect_max.xy, 0.0, 1.0);
+
+    // Level where rectangle covers at most 2x2 texels
+    vec2 size = (rect_max.xy - rect_min.xy) * pyramid_size;
+    int level = clamp(int(ceil(log2(max(max(size.x, size.y), 1.0)))), 0, pyramid_levels - 1);
+    // Texture can be larger than the pyramid, level size is derived from the used part
+    ivec2 level_size = max(ivec2(pyramid_size) >> level, ivec2(1));
+    ivec2 first = clamp(ivec2(rect_min.xy * vec2(level_size)), ivec2(0), level_size - 1);
+    ivec2 last = clamp(ivec2(rect_max.xy * vec2(level_size)), ivec2(0), level_size - 1);
+
+    float depth = max(max(texelFetch(depth_pyramid, first, level).r,
+            texelFetch(depth_pyramid, ivec2(last.x, first.y), level).r),
+            max(texelFetch(depth_pyramid, ivec2(first.x, last.y), level).r,
+            texelFetch(depth_pyramid, last, level).r));
+
+    return rect_min.z > depth;
+}
+
+void main()
+{
+    uint index = gl_GlobalInvocationID.x;
+
+    if (phase == 1) {
+        if (index >= rejected_count)
+            return;
+        index = rejected[index];
+    } else if (index >= object_count) {
+        return;
+    }
+
+    Object object = objects[index];
+    mat4 model_matrix = transforms[object.transform];
+
+    // World space bounding box as center and half extent
+    vec3 center = (model_matrix * vec4((object.bounds_min.xyz + object.bounds_max.xyz) * 0.5, 1.0)).xyz;
+    vec3 half_extent = (object.bounds_max.xyz - object.bounds_min.xyz) * 0.5;
+    vec3 extent = abs(model_matrix[0].xyz) * half_extent.x + abs(model_matrix[1].xyz) * half_extent.y
+            + abs(model_matrix[2].xyz) * half_extent.z;
+
+    // Rejected objects already passed frustum test
+    if (phase == 0)
+        for (int i = 0; i < 6; i++)
+            if (dot(planes[i].xyz, center) + planes[i].w + dot(abs(planes[i].xyz), extent) < 0.0)
+                return;
+
+    if (occlusion != 0 && is_occluded(center, extent)) {
+        if (phase == 0)
+            rejected[atomicAdd(rejected_count, 1)] = index;
+        return;
+    }
+
+    // Same level of detail selection as Mesh.selectLod
+    float radius = length(extent);
+    float distance = length(camera_position.xyz - center);
+    uint lod = 0;
+    float pixels = 1.0e30;
+
+    if (distance > radius) {
+        float size = radius * camera_position.w / distance;
+        float hysteresis = object.lod_thresholds.w;
+        lod = min(object.lod, object.lod_levels - 1);
+
+        while (lod < object.lod_levels - 1 && size < object.lod_thresholds[lod] * (1.0 - hysteresis))
+            lod++;
+        while (lod > 0 && size > object.lod_thresholds[lod - 1] * (1.0 + hysteresis))
+            lod--;
+
+        pixels = size * viewport_height;
+    }
+
+    objects[index].lod = lod;
+
+    // Every phase has its own range of commands and draw counts
+    uint slot = phase * object_count + object.region + atomicAdd(draw_counts[phase * MAX_POOLS + object.pool], 1);
+    commands[slot] = Command(object.lod_count[lod], 1, object.lod_first[lod], object.base_vertex, slot);
+    instances[slot] = Instance(model_matrix, object.material);
+
+    // Positive floats keep their order as unsigned integers
+    atomicMax(material_pixels[object.material], floatBitsToUint(pixels));
+}
@@ -1,4 +1,8 @@
-#version 420 core
+#version 430 core
+
+#ifdef BINDLESS_TEXTURES
+#extension GL_ARB_bindless_texture : require
+#endif
 
 #define PI 3.1415926
 
@@ -9,38 +13,171 @@ in VS_OUT
     vec3 bitangent;
     vec2 uv;
     vec3 camera_position;
+    flat uint material;
 } vs_in;
 
+#if !defined(BINDLESS_TEXTURES) && !defined(TEXTURE_ARRAYS)
 layout (binding = 4) uniform sampler2D albedo_map;
 layout (binding = 5) uniform sampler2D metalness_map;
 layout (binding = 6) uniform sampler2D roughness_map;
 layout (binding = 7) uniform sampler2D normal_map;
 layout (binding = 8) uniform sampler2D emission_map;
 layout (binding = 9) uniform sampler2D ambient_occlusion_map;
+#elif defined(TEXTURE_ARRAYS)
+// Number of arrays is limited by texture units (TextureArrays.init)
+layout (binding = 16) uniform sampler2DArray texture_arrays[TEXTURE_ARRAY_COUNT];
+#endif
 
 layout (binding = 10) uniform samplerCube radiance;
 layout (binding = 11) uniform samplerCube irradiance;
 layout (binding = 12) uniform sampler2D BRDFlookUp;
 
-layout (std140, binding = 2) uniform material_block
+// Order of maps and their flag bits
+#define ALBEDO                0
+#define METALNESS             1
+#define ROUGHNESS             2
+#define NORMAL                3
+#define EMISSION              4
+#define AMBIENT_OCCLUSION     5
+
+#define HAS_MAP(map) ((material.map_flags & (1u << map)) != 0u)
+
+struct Material
+{
+    vec4  albedo;
+    vec4  emission;
+    float metalness;
+    float roughness;
+    uint  map_flags;
+    uint  padding;
+
+    // Bindless handles or texture array locations (array index, layer)
+    uvec2 maps[6];
+};
+
+layout (std430, binding = 2) readonly buffer material_table
 {
-    vec4  material_albedo;
-    bool  material_has_albedo_map;
-    bool  material_has_normal_map;
-    float material_metalness;
-    bool  material_has_metalness_map;
-    float material_roughness;
-    bool  material_has_roughness_map;
-    bool  material_has_ambient_occlusion_map;
-    bool  material_has_emission_map;
-    vec3  material_emission;
+    Material materials[];
 };
 
-layout (location = 0) out vec3 position;
-layout (location = 1) out vec4 albedo_metalness;
-layout (location = 2) out vec4 normal_roughness;
+#if defined(BINDLESS_TEXTURES)
+#define ALBEDO_MAP            material.maps[ALBEDO]
+#define METALNESS_MAP         material.maps[METALNESS]
+#define ROUGHNESS_MAP         material.maps[ROUGHNESS]
+#define NORMAL_MAP            material.maps[NORMAL]
+#define EMISSION_MAP          material.maps[EMISSION]
+#define AMBIENT_OCCLUSION_MAP material.maps[AMBIENT_OCCLUSION]
+
+vec4 sample_map(uvec2 map, vec2 uv)
+{
+    return texture(sampler2D(map), uv);
+}
+#elif defined(TEXTURE_ARRAYS)
+#define ALBEDO_MAP            material.maps[ALBEDO]
+#define METALNESS_MAP         material.maps[METALNESS]
+#define ROUGHNESS_MAP         material.maps[ROUGHNESS]
+#define NORMAL_MAP            material.maps[NORMAL]
+#define EMISSION_MAP          material.maps[EMISSION]
+#define AMBIENT_OCCLUSION_MAP material.maps[AMBIENT_OCCLUSION]
+
+// Layer may hold only some of the array levels (maps of other size), level of detail is clamped to them then
+vec4 sample_layer(sampler2DArray array, uint location, vec3 coordinates, vec2 dx, vec2 dy)
+{
+    if ((location & 0x1000000u) == 0u)
+        return textureGrad(array, coordinates, dx, dy);
+
+    vec2 size = vec2(textureSize(array, 0).xy);
+    float lod = 0.5 * log2(max(dot(dx * size, dx * size), dot(dy * size, dy * size)));
+    float base = float((location >> 8) & 0xFFu);
+    float top = float((location >> 16) & 0xFFu);
+    return textureLod(array, coordinates, clamp(lod, base, top));
+}
+
+// Sampler arrays can only be indexed by constants here, gradients are taken outside of the branches
+vec4 sample_map(uvec2 map, vec2 uv)
+{
+    vec3 coordinates = vec3(uv, float(map.y));
+    vec2 dx = dFdx(uv);
+    vec2 dy = dFdy(uv);
+
+    switch (map.x & 0xFFu)
+    {
+        default: return sample_layer(texture_arrays[0], map.x, coordinates, dx, dy);
+#if TEXTURE_ARRAY_COUNT > 1
+        case 1u: return sample_layer(texture_arrays[1], map.x, coordinates, dx, dy);
+#endif
+#if TEXTURE_ARRAY_COUNT > 2
+        case 2u: return sample_layer(texture_arrays[2], map.x, coordinates, dx, dy);
+#endif
+#if TEXTURE_ARRAY_COUNT > 3
+        case 3u: return sample_layer(texture_arrays[3], map.x, coordinates, dx, dy);
+#endif
+#if TEXTURE_ARRAY_COUNT > 4
+        case 4u: return sample_layer(texture_arrays[4], map.x, coordinates, dx, dy);
+#endif
+#if TEXTURE_ARRAY_COUNT > 5
+        case 5u: return sample_layer(texture_arrays[5], map.x, coordinates, dx, dy);
+#endif
+#if TEXTURE_ARRAY_COUNT > 6
+        case 6u: return sample_layer(texture_arrays[6], map.x, coordinates, dx, dy);
+#endif
+#if TEXTURE_ARRAY_COUNT > 7
+        case 7u: return sample_layer(texture_arrays[7], map.x, coordinates, dx, dy);
+#endif
+#if TEXTURE_ARRAY_COUNT > 8
+        case 8u: return sample_layer(texture_arrays[8], map.x, coordinates, dx, dy);
+#endif
+#if TEXTURE_ARRAY_COUNT > 9
+        case 9u: return sample_layer(texture_arrays[9], map.x, coordinates, dx, dy);
+#endif
+#if TEXTURE_ARRAY_COUNT > 10
+        case 10u: return sample_layer(texture_arrays[10], map.x, coordinates, dx, dy);
+#endif
+#if TEXTURE_ARRAY_COUNT > 11
+        case 11u: return sample_layer(texture_arrays[11], map.x, coordinates, dx, dy);
+#endif
+#if TEXTURE_ARRAY_COUNT > 12
+        case 12u: return sample_layer(texture_arrays[12], map.x, coordinates, dx, dy);
+#endif
+#if TEXTURE_ARRAY_COUNT > 13
+        case 13u: return sample_layer(texture_arrays[13], map.x, coordinates, dx, dy);
+#endif
+#if TEXTURE_ARRAY_COUNT > 14
+        case 14u: return sample_layer(texture_arrays[14], map.x, coordinates, dx, dy);
+#endif
+#if TEXTURE_ARRAY_COUNT > 15
+        case 15u: return sample_layer(texture_arrays[15], map.x, coordinates, dx, dy);
+#endif
+    }
+}
+#else
+#define ALBEDO_MAP            albedo_map
+#define METALNESS_MAP         metalness_map
+#define ROUGHNESS_MAP         roughness_map
+#define NORMAL_MAP            normal_map
+#define EMISSION_MAP          emission_map
+#define AMBIENT_OCCLUSION_MAP ambient_occlusion_map
+
+vec4 sample_map(sampler2D map, vec2 uv)
+{
+    return texture(map, uv);
+}
+#endif
+
+// Position is reconstructed from depth, normal is octahedral encoded
+layout (location = 0) out vec4 albedo_metalness;
+layout (location = 1) out vec2 normal;
+layout (location = 2) out float roughness;
 layout (location = 3) out vec3 environment_emission;
 
+// Maps unit vector onto octahedron unfolded into [0, 1] square
+vec2 encodeNormal(vec3 N)
+{
+    N /= abs(N.x) + abs(N.y) + abs(N.z);
+    vec2 folded = (1.0 - abs(N.yx)) * vec2(N.x >= 0.0 ? 1.0 : -1.0, N.y >= 0.0 ? 1.0 : -1.0);
+    return (N.z >= 0.0 ? N.xy : folded) * 0.5 + 0.5;
+}
+
 float DistributionGGX(vec3 N, vec3 H, float rough)
  {
      float a      = rough*rough;
@@ -83,42 +220,45 @@ float DistributionGGX(vec3 N, vec3 H, float rough)
 
 void main()
 {
+    Material material = materials[vs_in.material];
+
     // "Hard" blending (like tree leaves) still can be used
-    if(material_albedo.a == 0 || material_has_albedo_map && texture(albedo_map, vs_in.uv).a == 0)
+    if(material.albedo.a == 0 || HAS_MAP(ALBEDO) && sample_map(ALBEDO_MAP, vs_in.uv).a == 0)
         discard;
 
-    position = vs_in.position;
-
-    albedo_metalness.rgb = material_albedo.rgb;
-    if(material_has_albedo_map)
-        albedo_metalness.rgb *= texture(albedo_map, vs_in.uv).rgb;
+    albedo_metalness.rgb = material.albedo.rgb;
+    if(HAS_MAP(ALBEDO))
+        albedo_metalness.rgb *= sample_map(ALBEDO_MAP, vs_in.uv).rgb;
 
-    if(material_has_normal_map)
+    vec3 N;
+    if(HAS_MAP(NORMAL))
     {
         mat3 texture_space_matrix = mat3(normalize(cross(vs_in.bitangent, vs_in.normal)), vs_in.bitangent, vs_in.normal);
-        normal_roughness.rgb = texture_space_matrix * normalize(texture(normal_map, vs_in.uv).rgb * 2.0 - 1.0);
+        // Only XY are used, so two channel (BC5) normal maps work the same way as RGB ones
+        vec3 texture_normal;
+        texture_normal.xy = sample_map(NORMAL_MAP, vs_in.uv).rg * 2.0 - 1.0;
+        texture_normal.z = sqrt(max(1.0 - dot(texture_normal.xy, texture_normal.xy), 0.0));
+        N = texture_space_matrix * texture_normal;
     }
     else
-        normal_roughness.rgb = vs_in.normal.xyz;
+        N = vs_in.normal.xyz;
 
-    albedo_metalness.a = material_metalness;
-    if(material_has_metalness_map)
-        albedo_metalness.a *= texture(metalness_map, vs_in.uv).r;
+    N = normalize(N);
+    normal = encodeNormal(N);
 
-    normal_roughness.a = material_roughness;
-    if(material_has_roughness_map)
-        normal_roughness.a *= texture(roughness_map, vs_in.uv).r;
+    albedo_metalness.a = material.metalness;
+    if(HAS_MAP(METALNESS))
+        albedo_metalness.a *= sample_map(METALNESS_MAP, vs_in.uv).r;
 
-    environment_emission = material_emission;
-    if(material_has_emission_map)
-        environment_emission *= texture(emission_map, vs_in.uv).rgb;
+    roughness = material.roughness;
+    if(HAS_MAP(ROUGHNESS))
+        roughness *= sample_map(ROUGHNESS_MAP, vs_in.uv).r;
 
-    vec3 N = normalize(normal_roughness.rgb);
-    vec3 V = normalize(vs_in.camera_position - position);
+    vec3 V = normalize(vs_in.camera_position - vs_in.position);
 
     vec3 F0 = vec3(0.04);
     F0 = mix(F0, albedo_metalness.rgb, albedo_metalness.a);
-    vec3 F = FresnelSchlickRoughness(max(dot(N, V), 0.0), F0, normal_roughness.a);
+    vec3 F = FresnelSchlickRoughness(max(dot(N, V), 0.0), F0, roughness);
     vec3 kD = 1.0 - F;
     kD *= 1.0 - albedo_metalness.a;
     vec3 diffuse = texture(irradiance, N).rgb * albedo_metalness.rgb;
@@ -126,16 +266,16 @@ void main()
     vec3 R = reflect(-V, N);
 
     const float MAX_REFLECTION_LOD = 4.0;
-    vec3 prefiltered_radiance = textureCubeLod(radiance, R, normal_roughness.a * MAX_REFLECTION_LOD).rgb;
-    vec2 radianceBRDF = texture(BRDFlookUp, vec2(max(dot(N, V), 0.0), normal_roughness.a)).rg;
+    vec3 prefiltered_radiance = textureCubeLod(radiance, R, roughness * MAX_REFLECTION_LOD).rgb;
+    vec2 radianceBRDF = texture(BRDFlookUp, vec2(max(dot(N, V), 0.0), roughness)).rg;
     vec3 specular = prefiltered_radiance * (F * radianceBRDF.x + radianceBRDF.y);
 
     vec3 environment = kD * diffuse + specular;
 
-    if(material_has_ambient_occlusion_map)
-        environment *= texture(ambient_occlusion_map, vs_in.uv).r;
+    if(HAS_MAP(AMBIENT_OCCLUSION))
+        environment *= sample_map(AMBIENT_OCCLUSION_MAP, vs_in.uv).r;
 
     environment_emission = environment;
-    if(material_has_emission_map)
-        environment_emission += texture(emission_map, vs_in.uv).rgb;
+    if(HAS_MAP(EMISSION))
+        environment_emission += sample_map(EMISSION_MAP, vs_in.uv).rgb;
 }
\ No newline at end of file
@@ -1,13 +1,21 @@
-#version 420 core
+#version 430 core
 
 layout (location = 0) in vec3 position;
-layout (location = 1) in vec3 normal;
-layout (location = 2) in vec3 bitangent;
+layout (location = 1) in vec2 normal;     // octahedral encoded
+layout (location = 2) in vec2 bitangent;  // octahedral encoded
 layout (location = 3) in vec2 uv;
+layout (location = 4) in uint instance;   // draw base instance + instance index
 
-layout (std140, binding = 0) uniform model_block
+struct Instance
 {
     mat4 model_matrix;
+    uint material;
+};
+
+// Instances of all draws submitted by the current call
+layout (std430, binding = 0) readonly buffer instance_block
+{
+    Instance instances[];
 };
 
 layout (std140, binding = 1) uniform camera_block
@@ -23,13 +31,25 @@ out VS_OUT
     vec3 bitangent;
     vec2 uv;
     vec3 camera_position;
+    flat uint material;
 } vs_out;
 
+vec3 decode_octahedral(vec2 e)
+{
+    vec3 v = vec3(e, 1.0 - abs(e.x) - abs(e.y));
+    float t = max(-v.z, 0.0);
+    v.xy += vec2(v.x >= 0.0 ? -t : t, v.y >= 0.0 ? -t : t);
+    return normalize(v);
+}
+
 void main()
 {
+    mat4 model_matrix = instances[instance].model_matrix;
+    vs_out.material = instances[instance].material;
+
     vs_out.position = (model_matrix * vec4(position, 1.0)).xyz;
-    vs_out.normal = (model_matrix * vec4(normal, 0.0)).xyz;
-    vs_out.bitangent = (model_matrix * vec4(bitangent, 0.0)).xyz;
+    vs_out.normal = (model_matrix * vec4(decode_octahedral(normal), 0.0)).xyz;
+    vs_out.bitangent = (model_matrix * vec4(decode_octahedral(bitangent), 0.0)).xyz;
     vs_out.uv = uv;
 
     mat4 camera_direction = inverse(view_matrix);
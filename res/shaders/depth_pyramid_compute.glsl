@@ -0,0 +1,52 @@
+#version 430 core
+
+layout (local_size_x = 8, local_size_y = 8) in;
+
+// Depth buffer (read by the first level)
+layout (binding = 13) uniform sampler2D depth_texture;
+
+// Previous and built level of the pyramid
+layout (binding = 0, r32f) uniform readonly image2D source_level;
+layout (binding = 1, r32f) uniform writeonly image2D target_level;
+
+layout (std140, binding = 9) uniform pyramid_block
+{
+    ivec2 source_size;
+    ivec2 target_size;
+    int level;
+};
+
+float load(ivec2 position)
+{
+    position = min(position, source_size - 1);
+    return level == 0 ? texelFetch(depth_texture, position, 0).r : imageLoad(source_level, position).r;
+}
+
+void main()
+{
+    ivec2 position = ivec2(gl_GlobalInvocationID.xy);
+    if (any(greaterThanEqual(position, target_size)))
+        return;
+
+    if (level == 0) {
+        imageStore(target_level, position, vec4(load(position)));
+        return;
+    }
+
+    // Farthest depth of the covered texels, odd source sizes make the last texel cover three of them
+    ivec2 source = position * 2;
+    float depth = max(max(load(source), load(source + ivec2(1, 0))),
+            max(load(source + ivec2(0, 1)), load(source + ivec2(1, 1))));
+
+    bool extraColumn = (source_size.x & 1) != 0 && position.x == target_size.x - 1;
+    bool extraRow = (source_size.y & 1) != 0 && position.y == target_size.y - 1;
+
+    if (extraColumn)
+        depth = max(depth, max(load(source + ivec2(2, 0)), load(source + ivec2(2, 1))));
+    if (extraRow)
+        depth = max(depth, max(load(source + ivec2(0, 2)), load(source + ivec2(1, 2))));
+    if (extraColumn && extraRow)
+        depth = max(depth, load(source + ivec2(2, 2)));
+
+    imageStore(target_level, position, vec4(depth));
+}
@@ -4,6 +4,13 @@ in vec2 uv_frag;
 
 layout (binding = 0) uniform sampler2D color;
 
+// Viewport to render target size ratio (targets can be larger than viewport) and the last texel center inside it
+layout (std140, binding = 14) uniform target_block
+{
+    vec2 target_scale;
+    vec2 target_limit;
+};
+
 layout (location = 0) out vec4 fragment;
 
 void main()
@@ -13,5 +20,5 @@ void main()
     // Exposure is something else rather then real exposure
     float exposure = 1.0;
 
-    fragment = vec4(pow(texture(color, uv_frag).rgb * exposure, vec3(1.0 / gamma)), 1.0);
+    fragment = vec4(pow(texture(color, min(uv_frag * target_scale, target_limit)).rgb * exposure, vec3(1.0 / gamma)), 1.0);
 }
\ No newline at end of file
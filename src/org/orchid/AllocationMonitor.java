@@ -0,0 +1,108 @@
+package org.orchid;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Allocation regression harness - measures heap bytes allocated by the render loop thread per frame
+ * <p>
+ * Enabled by "allocation_check_frames" configuration property (number of measured frames, 0 disables it).
+ * After "allocation_warmup_frames" frames (at least one) the monitor measures given number of frames, reports average
+ * allocation per frame and fails if it exceeds "allocation_budget" bytes. Orchid exits with non-zero status
+ * on failure, so the check can be run by build scripts.
+ */
+public class AllocationMonitor
+{
+    private static com.sun.management.ThreadMXBean threadBean;
+    private static long threadId;
+
+    private static int warmupFrames = 0;
+    private static int checkFrames = 0;
+    private static long budget = 0;
+
+    private static int frame = 0;
+    private static long startBytes = 0;
+    private static boolean finished = false;
+    private static boolean passed = true;
+
+    /**
+     * Reads harness configuration (should be called from the render loop thread)
+     */
+    static void init()
+    {
+        checkFrames = getIntProperty("allocation_check_frames", 0);
+        // Baseline is sampled at the end of the last warmup frame, so at least one frame has to be skipped
+        warmupFrames = Math.max(getIntProperty("allocation_warmup_frames", 100), 1);
+        budget = getIntProperty("allocation_budget", 0);
+
+        if (checkFrames <= 0)
+            return;
+
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            System.err.println("Thread allocation measurement is not supported by this JVM");
+            checkFrames = 0;
+            return;
+        }
+
+        threadBean = (com.sun.management.ThreadMXBean) bean;
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+        threadId = Thread.currentThread().getId();
+    }
+
+    /**
+     * Whether harness is enabled
+     *
+     * @return true if allocations are measured
+     */
+    public static boolean isEnabled()
+    {
+        return checkFrames > 0;
+    }
+
+    /**
+     * Should be called once at the end of every frame
+     *
+     * @return true when measurement is finished
+     */
+    static boolean update()
+    {
+        if (!isEnabled() || finished)
+            return finished;
+
+        frame++;
+
+        if (frame == warmupFrames)
+            startBytes = threadBean.getThreadAllocatedBytes(threadId);
+
+        if (frame == warmupFrames + checkFrames) {
+            long bytesPerFrame = (threadBean.getThreadAllocatedBytes(threadId) - startBytes) / checkFrames;
+            passed = bytesPerFrame <= budget;
+            finished = true;
+
+            if (passed)
+                System.out.println("Allocation check passed: " + bytesPerFrame + " bytes per frame (budget "
+                        + budget + ")");
+            else
+                System.err.println("Allocation check failed: " + bytesPerFrame + " bytes per frame (budget "
+                        + budget + ")");
+        }
+
+        return finished;
+    }
+
+    /**
+     * Whether measured allocations fit the budget
+     *
+     * @return false if the budget was exceeded
+     */
+    public static boolean isPassed()
+    {
+        return passed;
+    }
+
+    private static int getIntProperty(String name, int defaultValue)
+    {
+        String value = Configuration.getProperty(name);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+}
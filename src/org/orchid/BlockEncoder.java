@@ -0,0 +1,206 @@
+package org.orchid;
+
+/**
+ * CPU block compression encoder - BC1, BC3, BC4 and BC5 formats
+ * <p>
+ * Images are RGBA, 8 bits per channel. Color endpoints are fitted along the principal axis of the block colors,
+ * single channel endpoints are the block minimum and maximum.
+ */
+public class BlockEncoder
+{
+    /**
+     * Encodes image into blocks of given format
+     *
+     * @param format compression format (BC1, BC3, BC4 or BC5)
+     * @param rgba   image pixels (4 bytes per pixel)
+     * @param width  image width
+     * @param height image height
+     * @return compressed image
+     */
+    public static byte[] encode(DdsImage.Format format, byte[] rgba, int width, int height)
+    {
+        int blocksX = (width + 3) / 4;
+        int blocksY = (height + 3) / 4;
+        byte[] result = new byte[blocksX * blocksY * format.blockSize];
+        int[] block = new int[16 * 4];
+
+        for (int by = 0; by < blocksY; by++)
+            for (int bx = 0; bx < blocksX; bx++) {
+                fetchBlock(rgba, width, height, bx, by, block);
+                int offset = (by * blocksX + bx) * format.blockSize;
+
+                switch (format) {
+                    case BC1:
+                        encodeColor(block, result, offset);
+                        break;
+                    case BC3:
+                        encodeChannel(block, 3, result, offset);
+                        encodeColor(block, result, offset + 8);
+                        break;
+                    case BC4:
+                        encodeChannel(block, 0, result, offset);
+                        break;
+                    case BC5:
+                        encodeChannel(block, 0, result, offset);
+                        encodeChannel(block, 1, result, offset + 8);
+                        break;
+                    default:
+                        throw new RuntimeException("Encoding to " + format + " is not supported");
+                }
+            }
+
+        return result;
+    }
+
+    // Copies 4x4 block, pixels outside of the image are clamped to the edge
+    private static void fetchBlock(byte[] rgba, int width, int height, int bx, int by, int[] block)
+    {
+        for (int y = 0; y < 4; y++)
+            for (int x = 0; x < 4; x++) {
+                int source = (Math.min(by * 4 + y, height - 1) * width + Math.min(bx * 4 + x, width - 1)) * 4;
+                for (int c = 0; c < 4; c++)
+                    block[(y * 4 + x) * 4 + c] = rgba[source + c] & 0xFF;
+            }
+    }
+
+    // BC1 color block - two RGB565 endpoints and 2 bit indices, always in four color mode
+    private static void encodeColor(int[] block, byte[] result, int offset)
+    {
+        float[] mean = new float[3];
+        for (int i = 0; i < 16; i++)
+            for (int c = 0; c < 3; c++)
+                mean[c] += block[i * 4 + c] / 16.0f;
+
+        // Covariance matrix (xx, xy, xz, yy, yz, zz)
+        float[] covariance = new float[6];
+        for (int i = 0; i < 16; i++) {
+            float r = block[i * 4] - mean[0], g = block[i * 4 + 1] - mean[1], b = block[i * 4 + 2] - mean[2];
+            covariance[0] += r * r;
+            covariance[1] += r * g;
+            covariance[2] += r * b;
+            covariance[3] += g * g;
+            covariance[4] += g * b;
+            covariance[5] += b * b;
+        }
+
+        // Principal axis by power iteration
+        float[] axis = {1.0f, 1.0f, 1.0f};
+        for (int iteration = 0; iteration < 8; iteration++) {
+            float x = covariance[0] * axis[0] + covariance[1] * axis[1] + covariance[2] * axis[2];
+            float y = covariance[1] * axis[0] + covariance[3] * axis[1] + covariance[4] * axis[2];
+            float z = covariance[2] * axis[0] + covariance[4] * axis[1] + covariance[5] * axis[2];
+            float length = Math.max(Math.abs(x), Math.max(Math.abs(y), Math.abs(z)));
+            if (length == 0.0f)
+                break;
+            axis[0] = x / length;
+            axis[1] = y / length;
+            axis[2] = z / length;
+        }
+
+        // Block extremes along the axis become endpoints
+        float minProjection = Float.MAX_VALUE, maxProjection = -Float.MAX_VALUE;
+        int minPixel = 0, maxPixel = 0;
+        for (int i = 0; i < 16; i++) {
+            float projection = block[i * 4] * axis[0] + block[i * 4 + 1] * axis[1] + block[i * 4 + 2] * axis[2];
+            if (projection < minProjection) {
+                minProjection = projection;
+                minPixel = i;
+            }
+            if (projection > maxProjection) {
+                maxProjection = projection;
+                maxPixel = i;
+            }
+        }
+
+        int color0 = toRgb565(block, maxPixel);
+        int color1 = toRgb565(block, minPixel);
+
+        // Four color mode requires color0 > color1
+        if (color0 < color1) {
+            int swap = color0;
+            color0 = color1;
+            color1 = swap;
+        }
+
+        int indices = 0;
+        if (color0 != color1) {
+            int[][] palette = new int[4][3];
+            fromRgb565(color0, palette[0]);
+            fromRgb565(color1, palette[1]);
+            for (int c = 0; c < 3; c++) {
+                palette[2][c] = (2 * palette[0][c] + palette[1][c]) / 3;
+                palette[3][c] = (palette[0][c] + 2 * palette[1][c]) / 3;
+            }
+
+            for (int i = 0; i < 16; i++) {
+                int best = 0, bestError = Integer.MAX_VALUE;
+                for (int p = 0; p < 4; p++) {
+                    int error = 0;
+                    for (int c = 0; c < 3; c++) {
+                        int difference = block[i * 4 + c] - palette[p][c];
+                        error += difference * difference;
+                    }
+                    if (error < bestError) {
+                        bestError = error;
+                        best = p;
+                    }
+                }
+                indices |= best << (i * 2);
+            }
+        }
+
+        putShort(result, offset, color0);
+        putShort(result, offset + 2, color1);
+        for (int i = 0; i < 4; i++)
+            result[offset + 4 + i] = (byte) (indices >>> (i * 8));
+    }
+
+    // BC4 channel block - two 8 bit endpoints and 3 bit indices, always in eight value mode
+    private static void encodeChannel(int[] block, int channel, byte[] result, int offset)
+    {
+        int min = 255, max = 0;
+        for (int i = 0; i < 16; i++) {
+            min = Math.min(min, block[i * 4 + channel]);
+            max = Math.max(max, block[i * 4 + channel]);
+        }
+
+        result[offset] = (byte) max;
+        result[offset + 1] = (byte) min;
+
+        // Index 0 is the maximum, 1 is the minimum, 2-7 are interpolated from maximum to minimum
+        long indices = 0;
+        if (max != min) {
+            for (int i = 0; i < 16; i++) {
+                int value = block[i * 4 + channel];
+                int step = Math.round((max - value) * 7.0f / (max - min));
+                int index = step == 0 ? 0 : step == 7 ? 1 : step + 1;
+                indices |= (long) index << (i * 3);
+            }
+        }
+
+        for (int i = 0; i < 6; i++)
+            result[offset + 2 + i] = (byte) (indices >>> (i * 8));
+    }
+
+    private static int toRgb565(int[] block, int pixel)
+    {
+        int r = (block[pixel * 4] * 31 + 127) / 255;
+        int g = (block[pixel * 4 + 1] * 63 + 127) / 255;
+        int b = (block[pixel * 4 + 2] * 31 + 127) / 255;
+        return r << 11 | g << 5 | b;
+    }
+
+    private static void fromRgb565(int color, int[] dest)
+    {
+        int r = color >> 11 & 31, g = color >> 5 & 63, b = color & 31;
+        dest[0] = r << 3 | r >> 2;
+        dest[1] = g << 2 | g >> 4;
+        dest[2] = b << 3 | b >> 2;
+    }
+
+    private static void putShort(byte[] result, int offset, int value)
+    {
+        result[offset] = (byte) value;
+        result[offset + 1] = (byte) (value >>> 8);
+    }
+}
@@ -0,0 +1,669 @@
+package org.orchid;
+
+import org.joml.FrustumIntersection;
+import org.joml.Intersectionf;
+import org.joml.Vector2f;
+import org.joml.Vector3f;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Dynamic bounding volume hierarchy - incrementally updated AABB tree of scene nodes (similar to Box2D dynamic tree)
+ */
+public class BoundingVolumeHierarchy
+{
+    private static final int NULL_NODE = -1;
+
+    // Leaves bounding boxes are enlarged by this margin so small movements don't require reinsertion
+    private static final float FAT_MARGIN = 0.1f;
+
+    // Nodes are stored in flat arrays, free nodes are linked through parent indices
+    private float[] bounds;
+    private int[] parent;
+    private int[] child1;
+    private int[] child2;
+    private int[] height;
+    private Node[] userData;
+    private boolean[] moved;
+
+    private int root = NULL_NODE;
+    private int freeList = NULL_NODE;
+    private int capacity = 0;
+    private int proxyCount = 0;
+
+    // Proxies touched since the last refit
+    private int[] movedProxies = new int[64];
+    private int movedCount = 0;
+
+    private int[] stack = new int[64];
+    private int[] subtreeStack = new int[64];
+    private Vector3f minMediator = new Vector3f();
+    private Vector3f maxMediator = new Vector3f();
+    private Vector2f rayMediator = new Vector2f();
+
+    /**
+     * Constructor
+     */
+    public BoundingVolumeHierarchy()
+    {
+        grow(16);
+    }
+
+    /**
+     * Number of nodes stored in the tree
+     *
+     * @return proxies count
+     */
+    public int getProxyCount()
+    {
+        return proxyCount;
+    }
+
+    /**
+     * Height of the tree
+     *
+     * @return height of the root node
+     */
+    public int getHeight()
+    {
+        return root == NULL_NODE ? 0 : height[root];
+    }
+
+    /**
+     * Removes all proxies from the tree
+     */
+    public void clear()
+    {
+        for (int i = 0; i < capacity; i++)
+            if (userData[i] != null) {
+                userData[i].spatialIndex = null;
+                userData[i].proxy = NULL_NODE;
+            }
+
+        root = NULL_NODE;
+        freeList = NULL_NODE;
+        proxyCount = 0;
+        movedCount = 0;
+
+        int oldCapacity = capacity;
+        capacity = 0;
+        grow(oldCapacity);
+    }
+
+    /**
+     * Inserts node into the tree using its current world bounds
+     *
+     * @param node scene node
+     */
+    public void insert(Node node)
+    {
+        if (node.spatialIndex != null)
+            return;
+
+        node.getWorldBounds(minMediator, maxMediator);
+
+        int proxy = allocateNode();
+        setFatBounds(proxy, minMediator, maxMediator);
+        userData[proxy] = node;
+        height[proxy] = 0;
+        insertLeaf(proxy);
+
+        node.spatialIndex = this;
+        node.proxy = proxy;
+        proxyCount++;
+    }
+
+    /**
+     * Removes node from the tree
+     *
+     * @param node scene node
+     */
+    public void remove(Node node)
+    {
+        if (node.spatialIndex != this)
+            return;
+
+        int proxy = node.proxy;
+        if (moved[proxy]) {
+            for (int i = 0; i < movedCount; i++)
+                if (movedProxies[i] == proxy) {
+                    movedProxies[i] = movedProxies[--movedCount];
+                    break;
+                }
+        }
+
+        removeLeaf(proxy);
+        freeNode(proxy);
+
+        node.spatialIndex = null;
+        node.proxy = NULL_NODE;
+        proxyCount--;
+    }
+
+    /**
+     * Marks node bounds outdated, they will be refitted during next update
+     *
+     * @param node scene node
+     */
+    public void touch(Node node)
+    {
+        int proxy = node.proxy;
+        if (node.spatialIndex != this || moved[proxy])
+            return;
+
+        if (movedCount == movedProxies.length)
+            movedProxies = Arrays.copyOf(movedProxies, movedCount * 2);
+
+        movedProxies[movedCount++] = proxy;
+        moved[proxy] = true;
+    }
+
+    /**
+     * Refits all touched nodes, only nodes which left their enlarged bounds are reinserted
+     */
+    public void update()
+    {
+        for (int i = 0; i < movedCount; i++) {
+            int proxy = movedProxies[i];
+            moved[proxy] = false;
+
+            userData[proxy].getWorldBounds(minMediator, maxMediator);
+            if (contains(proxy, minMediator, maxMediator))
+                continue;
+
+            removeLeaf(proxy);
+            setFatBounds(proxy, minMediator, maxMediator);
+            insertLeaf(proxy);
+        }
+
+        movedCount = 0;
+    }
+
+    /**
+     * Collects nodes which bounds intersect view frustum
+     *
+     * @param frustum view frustum
+     * @param result  list to put found nodes into
+     */
+    public void query(FrustumIntersection frustum, List<Node> result)
+    {
+        if (root == NULL_NODE)
+            return;
+
+        int top = 0;
+        stack[top++] = root;
+
+        while (top > 0) {
+            int node = stack[--top];
+            int offset = node * 6;
+
+            int intersection = frustum.intersectAab(bounds[offset], bounds[offset + 1], bounds[offset + 2],
+                    bounds[offset + 3], bounds[offset + 4], bounds[offset + 5]);
+
+            if (intersection == FrustumIntersection.INSIDE)
+                collectLeaves(node, result);
+            else if (intersection == FrustumIntersection.INTERSECT) {
+                if (child1[node] == NULL_NODE)
+                    result.add(userData[node]);
+                else
+                    top = push(top, node);
+            }
+        }
+    }
+
+    /**
+     * Collects nodes which bounds intersect sphere
+     *
+     * @param center sphere center
+     * @param radius sphere radius
+     * @param result list to put found nodes into
+     */
+    public void query(Vector3f center, float radius, List<Node> result)
+    {
+        if (root == NULL_NODE)
+            return;
+
+        float radiusSquared = radius * radius;
+
+        int top = 0;
+        stack[top++] = root;
+
+        while (top > 0) {
+            int node = stack[--top];
+            int offset = node * 6;
+
+            // Squared distance from sphere center to the closest box point
+            float dx = Math.max(Math.max(bounds[offset] - center.x, 0.0f), center.x - bounds[offset + 3]);
+            float dy = Math.max(Math.max(bounds[offset + 1] - center.y, 0.0f), center.y - bounds[offset + 4]);
+            float dz = Math.max(Math.max(bounds[offset + 2] - center.z, 0.0f), center.z - bounds[offset + 5]);
+
+            if (dx * dx + dy * dy + dz * dz > radiusSquared)
+                continue;
+
+            if (child1[node] == NULL_NODE) {
+                // Leaves are tested against their tight bounds
+                userData[node].getWorldBounds(minMediator, maxMediator);
+                dx = Math.max(Math.max(minMediator.x - center.x, 0.0f), center.x - maxMediator.x);
+                dy = Math.max(Math.max(minMediator.y - center.y, 0.0f), center.y - maxMediator.y);
+                dz = Math.max(Math.max(minMediator.z - center.z, 0.0f), center.z - maxMediator.z);
+
+                if (dx * dx + dy * dy + dz * dz <= radiusSquared)
+                    result.add(userData[node]);
+            } else
+                top = push(top, node);
+        }
+    }
+
+    /**
+     * Collects nodes which bounds are hit by ray
+     *
+     * @param origin      ray origin
+     * @param direction   ray direction
+     * @param maxDistance maximum hit distance (in direction vector lengths)
+     * @param result      list to put found nodes into
+     */
+    public void raycast(Vector3f origin, Vector3f direction, float maxDistance, List<Node> result)
+    {
+        if (root == NULL_NODE)
+            return;
+
+        int top = 0;
+        stack[top++] = root;
+
+        while (top > 0) {
+            int node = stack[--top];
+
+            if (!intersectRay(node, origin, direction, maxDistance))
+                continue;
+
+            if (child1[node] == NULL_NODE) {
+                userData[node].getWorldBounds(minMediator, maxMediator);
+                if (Intersectionf.intersectRayAab(origin, direction, minMediator, maxMediator, rayMediator)
+                        && rayMediator.y >= 0.0f && rayMediator.x <= maxDistance)
+                    result.add(userData[node]);
+            } else
+                top = push(top, node);
+        }
+    }
+
+    /**
+     * Finds the closest node which bounds are hit by ray
+     *
+     * @param origin      ray origin
+     * @param direction   ray direction
+     * @param maxDistance maximum hit distance (in direction vector lengths)
+     * @return closest node or null if nothing is hit
+     */
+    public Node raycast(Vector3f origin, Vector3f direction, float maxDistance)
+    {
+        if (root == NULL_NODE)
+            return null;
+
+        Node closest = null;
+        float closestDistance = maxDistance;
+
+        int top = 0;
+        stack[top++] = root;
+
+        while (top > 0) {
+            int node = stack[--top];
+
+            if (!intersectRay(node, origin, direction, closestDistance))
+                continue;
+
+            if (child1[node] == NULL_NODE) {
+                // Leaves are tested against their tight bounds to get precise hit distance
+                userData[node].getWorldBounds(minMediator, maxMediator);
+                if (Intersectionf.intersectRayAab(origin, direction, minMediator, maxMediator, rayMediator)
+                        && rayMediator.y >= 0.0f && rayMediator.x <= closestDistance) {
+                    closestDistance = Math.max(rayMediator.x, 0.0f);
+                    closest = userData[node];
+                }
+            } else
+                top = push(top, node);
+        }
+
+        return closest;
+    }
+
+    private boolean intersectRay(int node, Vector3f origin, Vector3f direction, float maxDistance)
+    {
+        int offset = node * 6;
+        return Intersectionf.intersectRayAab(origin.x, origin.y, origin.z, direction.x, direction.y, direction.z,
+                bounds[offset], bounds[offset + 1], bounds[offset + 2],
+                bounds[offset + 3], bounds[offset + 4], bounds[offset + 5], rayMediator)
+                && rayMediator.y >= 0.0f && rayMediator.x <= maxDistance;
+    }
+
+    // Adds all leaves of the subtree without any further tests
+    private void collectLeaves(int subtree, List<Node> result)
+    {
+        int top = 0;
+        subtreeStack[top++] = subtree;
+
+        while (top > 0) {
+            int node = subtreeStack[--top];
+
+            if (child1[node] == NULL_NODE)
+                result.add(userData[node]);
+            else {
+                if (top + 2 > subtreeStack.length)
+                    subtreeStack = Arrays.copyOf(subtreeStack, subtreeStack.length * 2);
+
+                subtreeStack[top++] = child1[node];
+                subtreeStack[top++] = child2[node];
+            }
+        }
+    }
+
+    private int push(int top, int node)
+    {
+        if (top + 2 > stack.length)
+            stack = Arrays.copyOf(stack, stack.length * 2);
+
+        stack[top++] = child1[node];
+        stack[top++] = child2[node];
+        return top;
+    }
+
+    private void grow(int newCapacity)
+    {
+        bounds = bounds == null ? new float[newCapacity * 6] : Arrays.copyOf(bounds, newCapacity * 6);
+        parent = parent == null ? new int[newCapacity] : Arrays.copyOf(parent, newCapacity);
+        child1 = child1 == null ? new int[newCapacity] : Arrays.copyOf(child1, newCapacity);
+        child2 = child2 == null ? new int[newCapacity] : Arrays.copyOf(child2, newCapacity);
+        height = height == null ? new int[newCapacity] : Arrays.copyOf(height, newCapacity);
+        userData = userData == null ? new Node[newCapacity] : Arrays.copyOf(userData, newCapacity);
+        moved = moved == null ? new boolean[newCapacity] : Arrays.copyOf(moved, newCapacity);
+
+        // Linking new nodes into free list
+        for (int i = newCapacity - 1; i >= capacity; i--) {
+            parent[i] = freeList;
+            height[i] = -1;
+            userData[i] = null;
+            moved[i] = false;
+            freeList = i;
+        }
+
+        capacity = newCapacity;
+    }
+
+    private int allocateNode()
+    {
+        if (freeList == NULL_NODE)
+            grow(capacity * 2);
+
+        int node = freeList;
+        freeList = parent[node];
+
+        parent[node] = NULL_NODE;
+        child1[node] = NULL_NODE;
+        child2[node] = NULL_NODE;
+        height[node] = 0;
+        userData[node] = null;
+        moved[node] = false;
+
+        return node;
+    }
+
+    private void freeNode(int node)
+    {
+        parent[node] = freeList;
+        height[node] = -1;
+        userData[node] = null;
+        moved[node] = false;
+        freeList = node;
+    }
+
+    private void insertLeaf(int leaf)
+    {
+        if (root == NULL_NODE) {
+            root = leaf;
+            parent[root] = NULL_NODE;
+            return;
+        }
+
+        // Searching for the best sibling using surface area heuristic
+        int index = root;
+        while (child1[index] != NULL_NODE) {
+            int c1 = child1[index];
+            int c2 = child2[index];
+
+            float area = area(index);
+            float combinedArea = combinedArea(index, leaf);
+
+            // Cost of creating a new parent for this node and the new leaf
+            float cost = 2.0f * combinedArea;
+
+            // Minimum cost of pushing the leaf further down the tree
+            float inheritanceCost = 2.0f * (combinedArea - area);
+
+            float cost1 = descendCost(c1, leaf) + inheritanceCost;
+            float cost2 = descendCost(c2, leaf) + inheritanceCost;
+
+            if (cost < cost1 && cost < cost2)
+                break;
+
+            index = cost1 < cost2 ? c1 : c2;
+        }
+
+        int sibling = index;
+
+        // Creating a new parent
+        int oldParent = parent[sibling];
+        int newParent = allocateNode();
+        parent[newParent] = oldParent;
+        union(newParent, sibling, leaf);
+        height[newParent] = height[sibling] + 1;
+
+        if (oldParent != NULL_NODE) {
+            if (child1[oldParent] == sibling)
+                child1[oldParent] = newParent;
+            else
+                child2[oldParent] = newParent;
+        } else
+            root = newParent;
+
+        child1[newParent] = sibling;
+        child2[newParent] = leaf;
+        parent[sibling] = newParent;
+        parent[leaf] = newParent;
+
+        refitAncestors(parent[leaf]);
+    }
+
+    private void removeLeaf(int leaf)
+    {
+        if (leaf == root) {
+            root = NULL_NODE;
+            return;
+        }
+
+        int leafParent = parent[leaf];
+        int grandParent = parent[leafParent];
+        int sibling = child1[leafParent] == leaf ? child2[leafParent] : child1[leafParent];
+
+        if (grandParent != NULL_NODE) {
+            // Destroying parent and connecting sibling to grand parent
+            if (child1[grandParent] == leafParent)
+                child1[grandParent] = sibling;
+            else
+                child2[grandParent] = sibling;
+
+            parent[sibling] = grandParent;
+            freeNode(leafParent);
+
+            refitAncestors(grandParent);
+        } else {
+            root = sibling;
+            parent[sibling] = NULL_NODE;
+            freeNode(leafParent);
+        }
+    }
+
+    // Walks back up the tree fixing heights and bounds
+    private void refitAncestors(int index)
+    {
+        while (index != NULL_NODE) {
+            index = balance(index);
+
+            int c1 = child1[index];
+            int c2 = child2[index];
+
+            height[index] = 1 + Math.max(height[c1], height[c2]);
+            union(index, c1, c2);
+
+            index = parent[index];
+        }
+    }
+
+    // Performs a left or right rotation if node A is imbalanced, returns the new subtree root
+    private int balance(int a)
+    {
+        if (child1[a] == NULL_NODE || height[a] < 2)
+            return a;
+
+        int b = child1[a];
+        int c = child2[a];
+
+        int balance = height[c] - height[b];
+
+        // Rotating C up
+        if (balance > 1) {
+            int f = child1[c];
+            int g = child2[c];
+
+            child1[c] = a;
+            parent[c] = parent[a];
+            parent[a] = c;
+
+            replaceChild(parent[c], a, c);
+
+            if (height[f] > height[g]) {
+                child2[c] = f;
+                child2[a] = g;
+                parent[g] = a;
+                union(a, b, g);
+                union(c, a, f);
+
+                height[a] = 1 + Math.max(height[b], height[g]);
+                height[c] = 1 + Math.max(height[a], height[f]);
+            } else {
+                child2[c] = g;
+                child2[a] = f;
+                parent[f] = a;
+                union(a, b, f);
+                union(c, a, g);
+
+                height[a] = 1 + Math.max(height[b], height[f]);
+                height[c] = 1 + Math.max(height[a], height[g]);
+            }
+
+            return c;
+        }
+
+        // Rotating B up
+        if (balance < -1) {
+            int d = child1[b];
+            int e = child2[b];
+
+            child1[b] = a;
+            parent[b] = parent[a];
+            parent[a] = b;
+
+            replaceChild(parent[b], a, b);
+
+            if (height[d] > height[e]) {
+                child2[b] = d;
+                child1[a] = e;
+                parent[e] = a;
+                union(a, c, e);
+                union(b, a, d);
+
+                height[a] = 1 + Math.max(height[c], height[e]);
+                height[b] = 1 + Math.max(height[a], height[d]);
+            } else {
+                child2[b] = e;
+                child1[a] = d;
+                parent[d] = a;
+                union(a, c, d);
+                union(b, a, e);
+
+                height[a] = 1 + Math.max(height[c], height[d]);
+                height[b] = 1 + Math.max(height[a], height[e]);
+            }
+
+            return b;
+        }
+
+        return a;
+    }
+
+    private void replaceChild(int node, int oldChild, int newChild)
+    {
+        if (node == NULL_NODE) {
+            root = newChild;
+            return;
+        }
+
+        if (child1[node] == oldChild)
+            child1[node] = newChild;
+        else
+            child2[node] = newChild;
+    }
+
+    private void setFatBounds(int node, Vector3f min, Vector3f max)
+    {
+        int offset = node * 6;
+        bounds[offset] = min.x - FAT_MARGIN;
+        bounds[offset + 1] = min.y - FAT_MARGIN;
+        bounds[offset + 2] = min.z - FAT_MARGIN;
+        bounds[offset + 3] = max.x + FAT_MARGIN;
+        bounds[offset + 4] = max.y + FAT_MARGIN;
+        bounds[offset + 5] = max.z + FAT_MARGIN;
+    }
+
+    private boolean contains(int node, Vector3f min, Vector3f max)
+    {
+        int offset = node * 6;
+        return bounds[offset] <= min.x && bounds[offset + 1] <= min.y && bounds[offset + 2] <= min.z
+                && bounds[offset + 3] >= max.x && bounds[offset + 4] >= max.y && bounds[offset + 5] >= max.z;
+    }
+
+    private void union(int target, int a, int b)
+    {
+        int t = target * 6, oa = a * 6, ob = b * 6;
+        for (int i = 0; i < 3; i++) {
+            bounds[t + i] = Math.min(bounds[oa + i], bounds[ob + i]);
+            bounds[t + i + 3] = Math.max(bounds[oa + i + 3], bounds[ob + i + 3]);
+        }
+    }
+
+    // Half of the box surface area
+    private float area(int node)
+    {
+        int offset = node * 6;
+        float dx = bounds[offset + 3] - bounds[offset];
+        float dy = bounds[offset + 4] - bounds[offset + 1];
+        float dz = bounds[offset + 5] - bounds[offset + 2];
+        return dx * dy + dy * dz + dz * dx;
+    }
+
+    private float combinedArea(int a, int b)
+    {
+        int oa = a * 6, ob = b * 6;
+        float dx = Math.max(bounds[oa + 3], bounds[ob + 3]) - Math.min(bounds[oa], bounds[ob]);
+        float dy = Math.max(bounds[oa + 4], bounds[ob + 4]) - Math.min(bounds[oa + 1], bounds[ob + 1]);
+        float dz = Math.max(bounds[oa + 5], bounds[ob + 5]) - Math.min(bounds[oa + 2], bounds[ob + 2]);
+        return dx * dy + dy * dz + dz * dx;
+    }
+
+    private float descendCost(int child, int leaf)
+    {
+        if (child1[child] == NULL_NODE)
+            return combinedArea(child, leaf);
+
+        return combinedArea(child, leaf) - area(child);
+    }
+}
@@ -0,0 +1,160 @@
+package org.orchid;
+
+import org.joml.FrustumIntersection;
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Bounding volume hierarchy benchmark - times sphere and frustum queries of the tree against linear scan of all nodes
+ * (no GL context is required)
+ * <p>
+ * Usage: "BoundingVolumeHierarchyBenchmark [queries] [sizes...]", default sizes are 10k, 100k and 1M nodes. Nodes are
+ * points spread with constant density, so result counts are similar for every size. Frustum query of the tree
+ * tests leaves by their enlarged bounds, so it can find a few more nodes than the scan, but never less.
+ */
+public class BoundingVolumeHierarchyBenchmark
+{
+    private static final float SPACING = 2.0f;
+    private static final float RADIUS = 10.0f;
+    private static final float FAR = 40.0f;
+
+    public static void main(String[] args)
+    {
+        int queries = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+
+        int[] sizes = {10000, 100000, 1000000};
+        if (args.length > 1) {
+            sizes = new int[args.length - 1];
+            for (int i = 1; i < args.length; i++)
+                sizes[i - 1] = Integer.parseInt(args[i]);
+        }
+
+        System.out.println("    nodes |   build ms | sphere tree ms | sphere scan ms | frustum tree ms "
+                + "| frustum scan ms | sphere results | frustum results (scan)");
+        for (int size : sizes)
+            run(size, queries);
+    }
+
+    private static void run(int size, int queries)
+    {
+        Random random = new Random(size);
+        float side = SPACING * (float) Math.cbrt(size);
+
+        List<Node> nodes = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            Node node = new Node("node");
+            node.setPosition(random.nextFloat() * side, random.nextFloat() * side, random.nextFloat() * side);
+            nodes.add(node);
+        }
+        TransformStore.update();
+
+        long start = System.nanoTime();
+        BoundingVolumeHierarchy tree = new BoundingVolumeHierarchy();
+        for (Node node : nodes)
+            tree.insert(node);
+        double build = (System.nanoTime() - start) / 1000000.0;
+
+        // Same query positions for the tree and the scan
+        Vector3f[] centers = new Vector3f[queries];
+        FrustumIntersection[] frustums = new FrustumIntersection[queries];
+        for (int i = 0; i < queries; i++) {
+            centers[i] = new Vector3f(random.nextFloat() * side, random.nextFloat() * side, random.nextFloat() * side);
+
+            Matrix4f viewProjection = new Matrix4f().perspective((float) Math.toRadians(60.0), 16.0f / 9.0f, 0.1f, FAR)
+                    .lookAt(centers[i].x, centers[i].y, centers[i].z, random.nextFloat() * side,
+                            random.nextFloat() * side, random.nextFloat() * side, 0.0f, 1.0f, 0.0f);
+            frustums[i] = new FrustumIntersection(viewProjection);
+        }
+
+        List<Node> result = new ArrayList<>();
+        long[] found = new long[4];
+
+        // Warm up run of every method, then measured run
+        double sphereTree = 0.0, sphereScan = 0.0, frustumTree = 0.0, frustumScan = 0.0;
+        for (int pass = 0; pass < 2; pass++) {
+            start = System.nanoTime();
+            found[0] = 0;
+            for (int i = 0; i < queries; i++) {
+                result.clear();
+                tree.query(centers[i], RADIUS, result);
+                found[0] += result.size();
+            }
+            sphereTree = (System.nanoTime() - start) / 1000000.0 / queries;
+
+            start = System.nanoTime();
+            found[1] = 0;
+            for (int i = 0; i < queries; i++) {
+                result.clear();
+                scan(nodes, centers[i], result);
+                found[1] += result.size();
+            }
+            sphereScan = (System.nanoTime() - start) / 1000000.0 / queries;
+
+            start = System.nanoTime();
+            found[2] = 0;
+            for (int i = 0; i < queries; i++) {
+                result.clear();
+                tree.query(frustums[i], result);
+                found[2] += result.size();
+            }
+            frustumTree = (System.nanoTime() - start) / 1000000.0 / queries;
+
+            start = System.nanoTime();
+            found[3] = 0;
+            for (int i = 0; i < queries; i++) {
+                result.clear();
+                scan(nodes, frustums[i], result);
+                found[3] += result.size();
+            }
+            frustumScan = (System.nanoTime() - start) / 1000000.0 / queries;
+        }
+
+        System.out.printf("%9d | %10.1f | %14.3f | %14.3f | %15.3f | %15.3f | %14d | %d (%d)%n", size, build,
+                sphereTree, sphereScan, frustumTree, frustumScan, found[0] / queries, found[2] / queries,
+                found[3] / queries);
+
+        if (found[0] != found[1] || found[2] < found[3])
+            System.err.println("Tree and scan results differ: " + found[0] + " / " + found[1] + " sphere, "
+                    + found[2] + " / " + found[3] + " frustum");
+
+        tree.clear();
+        for (Node node : nodes)
+            node.remove();
+        TransformStore.update();
+    }
+
+    private static void scan(List<Node> nodes, Vector3f center, List<Node> result)
+    {
+        Vector3f min = new Vector3f();
+        Vector3f max = new Vector3f();
+
+        for (int i = 0; i < nodes.size(); i++) {
+            Node node = nodes.get(i);
+            node.getWorldBounds(min, max);
+
+            float dx = Math.max(Math.max(min.x - center.x, 0.0f), center.x - max.x);
+            float dy = Math.max(Math.max(min.y - center.y, 0.0f), center.y - max.y);
+            float dz = Math.max(Math.max(min.z - center.z, 0.0f), center.z - max.z);
+            if (dx * dx + dy * dy + dz * dz <= RADIUS * RADIUS)
+                result.add(node);
+        }
+    }
+
+    private static void scan(List<Node> nodes, FrustumIntersection frustum, List<Node> result)
+    {
+        Vector3f min = new Vector3f();
+        Vector3f max = new Vector3f();
+
+        for (int i = 0; i < nodes.size(); i++) {
+            Node node = nodes.get(i);
+            node.getWorldBounds(min, max);
+
+            if (frustum.testAab(min, max))
+                result.add(node);
+        }
+    }
+}
@@ -1,25 +1,22 @@
 package org.orchid;
 
 import org.joml.Matrix4f;
-import org.lwjgl.BufferUtils;
 
-import java.nio.FloatBuffer;
+import java.nio.ByteBuffer;
 
-import static org.lwjgl.opengl.GL15.*;
-import static org.lwjgl.opengl.GL30.glBindBufferBase;
 import static org.lwjgl.opengl.GL31.GL_UNIFORM_BUFFER;
 
 public class Camera extends Node
 {
-    boolean matrixUpdated = false;
+    private int viewStamp = -1;
     private float near = 0.1f;
     private float far = 1000.0f;
     private float fov = 1.0f;
+    private float aspectRatio = Float.parseFloat(Configuration.getProperty("window_width")) /
+            Float.parseFloat(Configuration.getProperty("window_height"));
     private Matrix4f viewMatrix = new Matrix4f();
     private Matrix4f projectionMatrix = new Matrix4f();
-    private int vbo;
-    private FloatBuffer viewBuffer = BufferUtils.createFloatBuffer(16);
-    private FloatBuffer projectionBuffer = BufferUtils.createFloatBuffer(16);
+    private Matrix4f inverseViewProjection = new Matrix4f();
 
     /**
      * Constructor
@@ -29,11 +26,6 @@ public class Camera extends Node
     public Camera(String name)
     {
         super(name);
-
-        vbo = glGenBuffers();
-        glBindBuffer(GL_UNIFORM_BUFFER, vbo);
-        glBufferData(GL_UNIFORM_BUFFER, 128, GL_STATIC_DRAW);
-        glBindBuffer(GL_UNIFORM_BUFFER, 0);
     }
 
     /**
@@ -48,16 +40,6 @@ public class Camera extends Node
         setParent(parent);
     }
 
-    /**
-     * Removes camera from scene
-     */
-    @Override
-    public void remove()
-    {
-        glDeleteBuffers(vbo);
-        super.remove();
-    }
-
     /**
      * Near clipping plane getter
      *
@@ -76,7 +58,7 @@ public class Camera extends Node
     public void setNear(float near)
     {
         this.near = near;
-        matrixUpdated = false;
+        recalculateProjectionMatrix();
     }
 
     /**
@@ -97,7 +79,7 @@ public class Camera extends Node
     public void setFar(float far)
     {
         this.far = far;
-        matrixUpdated = false;
+        recalculateProjectionMatrix();
     }
 
     /**
@@ -121,6 +103,27 @@ public class Camera extends Node
         recalculateProjectionMatrix();
     }
 
+    /**
+     * Aspect ratio getter
+     *
+     * @return viewport width to height ratio
+     */
+    public float getAspectRatio()
+    {
+        return aspectRatio;
+    }
+
+    /**
+     * Aspect ratio setter
+     *
+     * @param aspectRatio new viewport width to height ratio
+     */
+    public void setAspectRatio(float aspectRatio)
+    {
+        this.aspectRatio = aspectRatio;
+        recalculateProjectionMatrix();
+    }
+
     /**
      * View matrix
      *
@@ -128,12 +131,26 @@ public class Camera extends Node
      */
     public Matrix4f getViewMatrix()
     {
-        if (!matrixUpdated)
+        if (viewStamp != getTransformStamp())
             recalculateViewMatrix();
 
         return new Matrix4f(viewMatrix);
     }
 
+    /**
+     * View matrix
+     *
+     * @param dest destination matrix
+     * @return view matrix (dest)
+     */
+    public Matrix4f getViewMatrix(Matrix4f dest)
+    {
+        if (viewStamp != getTransformStamp())
+            recalculateViewMatrix();
+
+        return dest.set(viewMatrix);
+    }
+
     /**
      * Projection matrix
      *
@@ -145,42 +162,44 @@ public class Camera extends Node
     }
 
     /**
-     * Bind view and projection matrices vbo to shader
+     * Projection matrix
+     *
+     * @param dest destination matrix
+     * @return projection matrix (dest)
+     */
+    public Matrix4f getProjectionMatrix(Matrix4f dest)
+    {
+        return dest.set(projectionMatrix);
+    }
+
+    /**
+     * Writes view, projection and inverse view projection (used to reconstruct positions from depth) matrices into
+     * the uniform ring and binds them to shader
      */
     public void use()
     {
-        if (!matrixUpdated)
+        if (viewStamp != getTransformStamp())
             recalculateViewMatrix();
-        glBindBufferBase(GL_UNIFORM_BUFFER, Shader.CAMERA_BLOCK, vbo);
-    }
 
-    @Override
-    protected void setOutdated()
-    {
-        matrixUpdated = false;
-        super.setOutdated();
+        projectionMatrix.mul(viewMatrix, inverseViewProjection).invert();
+
+        int offset = UniformRing.allocate(192);
+        ByteBuffer mapped = UniformRing.getMapped();
+        viewMatrix.get(offset, mapped);
+        projectionMatrix.get(offset + 64, mapped);
+        inverseViewProjection.get(offset + 128, mapped);
+
+        UniformRing.bind(GL_UNIFORM_BUFFER, Shader.CAMERA_BLOCK, offset, 192);
     }
 
     private void recalculateViewMatrix()
     {
-        viewBuffer.clear();
-        viewMatrix.set(getModelMatrix()).invert();
-        viewMatrix.get(viewBuffer);
-        glBindBuffer(GL_UNIFORM_BUFFER, vbo);
-        glBufferSubData(GL_UNIFORM_BUFFER, 0, viewBuffer);
-        glBindBuffer(GL_UNIFORM_BUFFER, 0);
-        matrixUpdated = true;
+        getModelMatrix(viewMatrix).invert();
+        viewStamp = getTransformStamp();
     }
 
     private void recalculateProjectionMatrix()
     {
-        projectionBuffer.clear();
-        projectionMatrix.identity().perspective(fov,
-                Float.parseFloat(Configuration.getProperty("window_width")) /
-                        Float.parseFloat(Configuration.getProperty("window_height")), near, far);
-        projectionMatrix.get(projectionBuffer);
-        glBindBuffer(GL_UNIFORM_BUFFER, vbo);
-        glBufferSubData(GL_UNIFORM_BUFFER, 64, projectionBuffer);
-        glBindBuffer(GL_UNIFORM_BUFFER, 0);
+        projectionMatrix.identity().perspective(fov, aspectRatio, near, far);
     }
 }
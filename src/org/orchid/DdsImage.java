@@ -0,0 +1,265 @@
+package org.orchid;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.lwjgl.opengl.EXTTextureCompressionS3TC.GL_COMPRESSED_RGBA_S3TC_DXT1_EXT;
+import static org.lwjgl.opengl.EXTTextureCompressionS3TC.GL_COMPRESSED_RGBA_S3TC_DXT5_EXT;
+import static org.lwjgl.opengl.GL30.GL_COMPRESSED_RED_RGTC1;
+import static org.lwjgl.opengl.GL30.GL_COMPRESSED_RG_RGTC2;
+import static org.lwjgl.opengl.GL42.GL_COMPRESSED_RGBA_BPTC_UNORM;
+
+/**
+ * Block compressed DDS image - BC1, BC3, BC4, BC5 and BC7 formats with mip chain
+ * <p>
+ * Both legacy (FourCC) and DX10 headers are supported.
+ */
+public class DdsImage
+{
+    /**
+     * Block compressed formats supported by the loader and the cooker
+     */
+    public enum Format
+    {
+        BC1(GL_COMPRESSED_RGBA_S3TC_DXT1_EXT, 8, "DXT1", 71, 72),
+        BC3(GL_COMPRESSED_RGBA_S3TC_DXT5_EXT, 16, "DXT5", 77, 78),
+        BC4(GL_COMPRESSED_RED_RGTC1, 8, "ATI1", 80, -1),
+        BC5(GL_COMPRESSED_RG_RGTC2, 16, "ATI2", 83, -1),
+        BC7(GL_COMPRESSED_RGBA_BPTC_UNORM, 16, null, 98, 99);
+
+        public final int internalFormat;
+        public final int blockSize;
+        public final String fourCC;
+        public final int dxgiFormat;
+        public final int srgbDxgiFormat;
+
+        Format(int internalFormat, int blockSize, String fourCC, int dxgiFormat, int srgbDxgiFormat)
+        {
+            this.internalFormat = internalFormat;
+            this.blockSize = blockSize;
+            this.fourCC = fourCC;
+            this.dxgiFormat = dxgiFormat;
+            this.srgbDxgiFormat = srgbDxgiFormat;
+        }
+
+        /**
+         * Compressed size of the image level
+         *
+         * @param width  level width
+         * @param height level height
+         * @return size in bytes
+         */
+        public int getLevelSize(int width, int height)
+        {
+            return Math.max(1, (width + 3) / 4) * Math.max(1, (height + 3) / 4) * blockSize;
+        }
+    }
+
+    /**
+     * DDS file magic ("DDS ")
+     */
+    public static final int MAGIC = 0x20534444;
+
+    /**
+     * Size of the DDS header (without magic)
+     */
+    public static final int HEADER_SIZE = 124;
+
+    private static final int DX10_HEADER_SIZE = 20;
+    private static final int FOURCC_FLAG = 0x4;
+
+    private Format format;
+    private int width;
+    private int height;
+    private int[] levelOffsets;
+    private int[] levelSizes;
+    private ByteBuffer data;
+
+    /**
+     * Parses DDS file
+     *
+     * @param file whole file contents
+     * @throws IOException if file is not a supported DDS image
+     */
+    public DdsImage(ByteBuffer file) throws IOException
+    {
+        file = file.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+
+        if (file.remaining() < 4 + HEADER_SIZE || file.getInt(0) != MAGIC || file.getInt(4) != HEADER_SIZE)
+            throw new IOException("Not a DDS file");
+
+        height = file.getInt(12);
+        width = file.getInt(16);
+        int levels = Math.max(file.getInt(28), 1);
+
+        if ((file.getInt(80) & FOURCC_FLAG) == 0)
+            throw new IOException("Uncompressed DDS files are not supported");
+
+        int dataOffset = 4 + HEADER_SIZE;
+        String fourCC = fourCCToString(file.getInt(84));
+
+        if (fourCC.equals("DX10")) {
+            int dxgiFormat = file.getInt(dataOffset);
+            dataOffset += DX10_HEADER_SIZE;
+
+            // Signed BC4 and BC5 (DXGI 81 and 84) would be decoded as unsigned, so they are rejected
+            for (Format f : Format.values())
+                if (f.dxgiFormat == dxgiFormat || f.srgbDxgiFormat == dxgiFormat)
+                    format = f;
+
+            if (format == null)
+                throw new IOException("Unsupported DDS DXGI format " + dxgiFormat);
+        } else {
+            for (Format f : Format.values())
+                if (fourCC.equals(f.fourCC))
+                    format = f;
+
+            if (fourCC.equals("BC4U"))
+                format = Format.BC4;
+            if (fourCC.equals("BC5U"))
+                format = Format.BC5;
+        }
+
+        if (format == null)
+            throw new IOException("Unsupported DDS format " + fourCC);
+
+        levelOffsets = new int[levels];
+        levelSizes = new int[levels];
+
+        int offset = 0;
+        for (int level = 0; level < levels; level++) {
+            levelOffsets[level] = offset;
+            levelSizes[level] = format.getLevelSize(getLevelWidth(level), getLevelHeight(level));
+            offset += levelSizes[level];
+        }
+
+        if (dataOffset + offset > file.limit())
+            throw new IOException("DDS file is truncated");
+
+        file.position(dataOffset).limit(dataOffset + offset);
+        data = file.slice();
+    }
+
+    /**
+     * Writes DDS file with legacy header (BC1, BC3, BC4 and BC5 formats)
+     *
+     * @param format compression format
+     * @param width  image width
+     * @param height image height
+     * @param levels compressed data of every mip level
+     * @return file contents
+     */
+    public static ByteBuffer write(Format format, int width, int height, byte[][] levels)
+    {
+        int size = 4 + HEADER_SIZE;
+        for (byte[] level : levels)
+            size += level.length;
+
+        ByteBuffer file = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+
+        file.putInt(0, MAGIC);
+        file.putInt(4, HEADER_SIZE);
+        file.putInt(8, 0x1 | 0x2 | 0x4 | 0x1000 | 0x20000 | 0x80000); // caps, size, format, mips, linear size
+        file.putInt(12, height);
+        file.putInt(16, width);
+        file.putInt(20, levels[0].length);
+        file.putInt(28, levels.length);
+        file.putInt(76, 32);
+        file.putInt(80, FOURCC_FLAG);
+        file.putInt(84, stringToFourCC(format.fourCC));
+        file.putInt(108, 0x1000 | (levels.length > 1 ? 0x400000 | 0x8 : 0)); // texture, mipmap, complex
+
+        file.position(4 + HEADER_SIZE);
+        for (byte[] level : levels)
+            file.put(level);
+
+        file.flip();
+        return file;
+    }
+
+    /**
+     * Compression format getter
+     *
+     * @return format
+     */
+    public Format getFormat()
+    {
+        return format;
+    }
+
+    /**
+     * Number of mip levels
+     *
+     * @return levels count
+     */
+    public int getLevelCount()
+    {
+        return levelOffsets.length;
+    }
+
+    /**
+     * Mip level width
+     *
+     * @param level mip level
+     * @return width in pixels
+     */
+    public int getLevelWidth(int level)
+    {
+        return Math.max(1, width >> level);
+    }
+
+    /**
+     * Mip level height
+     *
+     * @param level mip level
+     * @return height in pixels
+     */
+    public int getLevelHeight(int level)
+    {
+        return Math.max(1, height >> level);
+    }
+
+    /**
+     * Offset of the mip level in the data
+     *
+     * @param level mip level
+     * @return byte offset
+     */
+    public int getLevelOffset(int level)
+    {
+        return levelOffsets[level];
+    }
+
+    /**
+     * Compressed size of the mip level
+     *
+     * @param level mip level
+     * @return size in bytes
+     */
+    public int getLevelSize(int level)
+    {
+        return levelSizes[level];
+    }
+
+    /**
+     * Compressed data of all mip levels
+     *
+     * @return data (position and limit cover whole data)
+     */
+    public ByteBuffer getData()
+    {
+        return data.duplicate();
+    }
+
+    private static String fourCCToString(int fourCC)
+    {
+        return new String(new char[]{(char) (fourCC & 0xFF), (char) (fourCC >> 8 & 0xFF), (char) (fourCC >> 16 & 0xFF),
+                (char) (fourCC >> 24 & 0xFF)});
+    }
+
+    private static int stringToFourCC(String fourCC)
+    {
+        return fourCC.charAt(0) | fourCC.charAt(1) << 8 | fourCC.charAt(2) << 16 | fourCC.charAt(3) << 24;
+    }
+}
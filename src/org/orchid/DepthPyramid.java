@@ -0,0 +1,201 @@
+package org.orchid;
+
+import org.joml.Matrix4f;
+
+import java.nio.ByteBuffer;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL13.GL_TEXTURE0;
+import static org.lwjgl.opengl.GL13.glActiveTexture;
+import static org.lwjgl.opengl.GL15.GL_READ_ONLY;
+import static org.lwjgl.opengl.GL15.GL_WRITE_ONLY;
+import static org.lwjgl.opengl.GL30.GL_R32F;
+import static org.lwjgl.opengl.GL31.GL_UNIFORM_BUFFER;
+import static org.lwjgl.opengl.GL42.*;
+import static org.lwjgl.opengl.GL43.glDispatchCompute;
+
+/**
+ * Hierarchical depth buffer - mip chain of the depth buffer where every texel holds the farthest depth of the texels
+ * it covers
+ * <p>
+ * Used by {@link GpuCulling} for occlusion culling - bounding box which is nearer than the farthest depth of the
+ * pyramid texels covering its screen rectangle is (potentially) visible. Pyramid remembers view projection it was
+ * built with, so it can be used by the next frame. Texture is allocated in {@link RenderTargetPool} size buckets, so
+ * viewport changes within a bucket only change the used part of it.
+ */
+public class DepthPyramid
+{
+    private static final int GROUP_SIZE = 8;
+
+    // std140 pyramid block size
+    private static final int PYRAMID_SIZE = 32;
+
+    private static Shader pyramidShader;
+    private static int texture = 0;
+    private static int textureWidth = 0;
+    private static int textureHeight = 0;
+    private static int width = 0;
+    private static int height = 0;
+    private static int levels = 0;
+    private static boolean valid = false;
+    private static Matrix4f viewProjection = new Matrix4f();
+
+    /**
+     * Loads pyramid shader (should be called after context creation)
+     */
+    static void init()
+    {
+        pyramidShader = new Shader("./res/shaders/depth_pyramid_compute.glsl");
+    }
+
+    /**
+     * Builds pyramid from depth texture, storage is reallocated if its size changed
+     *
+     * @param depthTexture   sampleable depth texture
+     * @param depthWidth     depth texture width
+     * @param depthHeight    depth texture height
+     * @param viewProjection view projection matrix depth was rendered with
+     */
+    static void build(int depthTexture, int depthWidth, int depthHeight, Matrix4f viewProjection)
+    {
+        if (RenderTargetPool.getBucketSize(depthWidth) != textureWidth
+                || RenderTargetPool.getBucketSize(depthHeight) != textureHeight)
+            allocate(depthWidth, depthHeight);
+
+        width = depthWidth;
+        height = depthHeight;
+        levels = 32 - Integer.numberOfLeadingZeros(Math.max(width, height));
+
+        pyramidShader.use();
+        glActiveTexture(GL_TEXTURE0 + Shader.DEPTH_PYRAMID_BINDING);
+        glBindTexture(GL_TEXTURE_2D, depthTexture);
+        glActiveTexture(GL_TEXTURE0);
+
+        for (int level = 0; level < levels; level++) {
+            int sourceWidth = Math.max(1, width >> Math.max(level - 1, 0));
+            int sourceHeight = Math.max(1, height >> Math.max(level - 1, 0));
+            int targetWidth = Math.max(1, width >> level);
+            int targetHeight = Math.max(1, height >> level);
+
+            int offset = UniformRing.allocate(PYRAMID_SIZE);
+            ByteBuffer mapped = UniformRing.getMapped();
+            mapped.putInt(offset, sourceWidth).putInt(offset + 4, sourceHeight)
+                    .putInt(offset + 8, targetWidth).putInt(offset + 12, targetHeight)
+                    .putInt(offset + 16, level);
+            UniformRing.bind(GL_UNIFORM_BUFFER, Shader.PYRAMID_BLOCK, offset, PYRAMID_SIZE);
+
+            glBindImageTexture(0, texture, Math.max(level - 1, 0), false, 0, GL_READ_ONLY, GL_R32F);
+            glBindImageTexture(1, texture, level, false, 0, GL_WRITE_ONLY, GL_R32F);
+            glDispatchCompute((targetWidth + GROUP_SIZE - 1) / GROUP_SIZE,
+                    (targetHeight + GROUP_SIZE - 1) / GROUP_SIZE, 1);
+            glMemoryBarrier(GL_SHADER_IMAGE_ACCESS_BARRIER_BIT | GL_TEXTURE_FETCH_BARRIER_BIT);
+        }
+
+        DepthPyramid.viewProjection.set(viewProjection);
+        valid = true;
+    }
+
+    /**
+     * Marks pyramid as outdated (camera cut or depth buffer resize), occlusion is not tested until it is rebuilt
+     */
+    public static void invalidate()
+    {
+        valid = false;
+    }
+
+    /**
+     * Whether pyramid holds depth of some frame
+     *
+     * @return true if pyramid can be used for testing
+     */
+    public static boolean isValid()
+    {
+        return valid;
+    }
+
+    /**
+     * Binds pyramid to {@link Shader#DEPTH_PYRAMID_BINDING} texture unit
+     */
+    static void bind()
+    {
+        glActiveTexture(GL_TEXTURE0 + Shader.DEPTH_PYRAMID_BINDING);
+        glBindTexture(GL_TEXTURE_2D, texture);
+        glActiveTexture(GL_TEXTURE0);
+    }
+
+    /**
+     * View projection matrix of the depth pyramid was built from
+     *
+     * @param dest destination matrix
+     * @return view projection matrix (dest)
+     */
+    public static Matrix4f getViewProjection(Matrix4f dest)
+    {
+        return dest.set(viewProjection);
+    }
+
+    /**
+     * Pyramid base level width (used part of the texture)
+     *
+     * @return width in texels
+     */
+    public static int getWidth()
+    {
+        return width;
+    }
+
+    /**
+     * Pyramid base level height (used part of the texture)
+     *
+     * @return height in texels
+     */
+    public static int getHeight()
+    {
+        return height;
+    }
+
+    /**
+     * Number of pyramid levels
+     *
+     * @return levels count
+     */
+    public static int getLevels()
+    {
+        return levels;
+    }
+
+    /**
+     * Deletes pyramid texture and shader
+     */
+    static void remove()
+    {
+        if (texture != 0)
+            glDeleteTextures(texture);
+        texture = 0;
+        textureWidth = textureHeight = width = height = levels = 0;
+        valid = false;
+
+        if (pyramidShader != null)
+            pyramidShader.remove();
+        pyramidShader = null;
+    }
+
+    private static void allocate(int newWidth, int newHeight)
+    {
+        if (texture != 0)
+            glDeleteTextures(texture);
+
+        textureWidth = RenderTargetPool.getBucketSize(newWidth);
+        textureHeight = RenderTargetPool.getBucketSize(newHeight);
+
+        texture = glGenTextures();
+        glBindTexture(GL_TEXTURE_2D, texture);
+        glTexStorage2D(GL_TEXTURE_2D, 32 - Integer.numberOfLeadingZeros(Math.max(textureWidth, textureHeight)),
+                GL_R32F, textureWidth, textureHeight);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_NEAREST_MIPMAP_NEAREST);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
+        glBindTexture(GL_TEXTURE_2D, 0);
+
+        valid = false;
+    }
+}
@@ -0,0 +1,186 @@
+package org.orchid;
+
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL33.GL_TIMESTAMP;
+import static org.lwjgl.opengl.GL33.glGetQueryObjectui64;
+import static org.lwjgl.opengl.GL33.glQueryCounter;
+
+/**
+ * Dynamic resolution - scales resolution of the frame graph passes to keep GPU frame time near
+ * "target_frame_time" milliseconds ("dynamic_resolution" property)
+ * <p>
+ * GPU time of every frame is measured by timestamp queries which are read a few frames later without stalling.
+ * When average of the last measurements leaves the band around target, scale moves halfway toward the estimate
+ * (cost of scaled passes is proportional to the pixel count, so to the scale squared) in steps of 1/32 between
+ * "resolution_scale_min" and "resolution_scale_max". Render targets are allocated for the maximal scale, so scale
+ * changes only change the viewport.
+ */
+public class DynamicResolution
+{
+    private static final int FRAMES = 4;
+    private static final int HISTORY = 16;
+    private static final float STEP = 1.0f / 32.0f;
+
+    // Band of average frame time relative to target where scale is kept (raising needs more headroom than lowering)
+    private static final float LOWER_ABOVE = 1.05f;
+    private static final float RAISE_BELOW = 0.85f;
+
+    private static boolean enabled = false;
+    private static float targetFrameTime = 16.6f;
+    private static float minScale = 0.5f;
+    private static float maxScale = 1.0f;
+    private static float scale = 1.0f;
+
+    // Timestamp pairs of frames in flight
+    private static int[] queries = new int[FRAMES * 2];
+    private static boolean[] issued = new boolean[FRAMES];
+    private static int frame = 0;
+
+    private static float[] history = new float[HISTORY];
+    private static int historySize = 0;
+    private static int skippedSamples = 0;
+    private static float gpuFrameTime = 0.0f;
+
+    /**
+     * Reads controller configuration and creates timer queries (should be called after context creation)
+     */
+    static void init()
+    {
+        glGenQueries(queries);
+
+        enabled = "true".equals(Configuration.getProperty("dynamic_resolution"));
+        if (!enabled)
+            return;
+
+        if (Configuration.getProperty("target_frame_time") != null)
+            targetFrameTime = Float.parseFloat(Configuration.getProperty("target_frame_time"));
+        if (Configuration.getProperty("resolution_scale_min") != null)
+            minScale = Float.parseFloat(Configuration.getProperty("resolution_scale_min"));
+        if (Configuration.getProperty("resolution_scale_max") != null)
+            maxScale = Float.parseFloat(Configuration.getProperty("resolution_scale_max"));
+
+        minScale = Math.max(minScale, STEP);
+        maxScale = Math.max(maxScale, minScale);
+        scale = maxScale;
+    }
+
+    /**
+     * Marks start of the measured GPU work
+     */
+    static void begin()
+    {
+        glQueryCounter(queries[frame * 2], GL_TIMESTAMP);
+    }
+
+    /**
+     * Marks end of the measured GPU work, reads the oldest finished measurement and adjusts scale
+     */
+    static void end()
+    {
+        glQueryCounter(queries[frame * 2 + 1], GL_TIMESTAMP);
+        issued[frame] = true;
+        frame = (frame + 1) % FRAMES;
+
+        // Measurement which isn't ready when its queries are reused is dropped
+        if (!issued[frame] || glGetQueryObjecti(queries[frame * 2 + 1], GL_QUERY_RESULT_AVAILABLE) == GL_FALSE)
+            return;
+        issued[frame] = false;
+
+        float time = (glGetQueryObjectui64(queries[frame * 2 + 1], GL_QUERY_RESULT)
+                - glGetQueryObjectui64(queries[frame * 2], GL_QUERY_RESULT)) / 1000000.0f;
+        addSample(time);
+    }
+
+    /**
+     * Whether scale is controlled by measured frame time
+     *
+     * @return true if dynamic resolution is enabled
+     */
+    public static boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    /**
+     * Current resolution scale
+     *
+     * @return scale of both dimensions
+     */
+    public static float getScale()
+    {
+        return scale;
+    }
+
+    /**
+     * Latest measured GPU frame time
+     *
+     * @return time in milliseconds
+     */
+    public static float getGpuFrameTime()
+    {
+        return gpuFrameTime;
+    }
+
+    /**
+     * Rendered size for current scale
+     *
+     * @param size window width or height
+     * @return scaled size in pixels
+     */
+    public static int getRenderSize(int size)
+    {
+        return Math.max(Math.round(size * scale), 1);
+    }
+
+    /**
+     * Rendered size for maximal scale (size render targets should be allocated with)
+     *
+     * @param size window width or height
+     * @return scaled size in pixels
+     */
+    public static int getMaxRenderSize(int size)
+    {
+        return Math.max(Math.round(size * (enabled ? maxScale : 1.0f)), 1);
+    }
+
+    /**
+     * Deletes timer queries
+     */
+    static void remove()
+    {
+        glDeleteQueries(queries);
+    }
+
+    private static void addSample(float time)
+    {
+        gpuFrameTime = time;
+
+        // Frames in flight during scale change were rendered with the old scale
+        if (!enabled || skippedSamples-- > 0)
+            return;
+
+        history[historySize++] = time;
+        if (historySize < HISTORY)
+            return;
+        historySize = 0;
+
+        float average = 0.0f;
+        for (float sample : history)
+            average += sample;
+        average /= HISTORY;
+
+        if (average < targetFrameTime * LOWER_ABOVE && average > targetFrameTime * RAISE_BELOW)
+            return;
+
+        float estimate = scale * (float) Math.sqrt(targetFrameTime / average);
+        float next = Math.round((scale + (estimate - scale) * 0.5f) / STEP) * STEP;
+        if (next == scale)
+            next += estimate < scale ? -STEP : STEP;
+        next = Math.min(Math.max(next, minScale), maxScale);
+
+        if (next != scale) {
+            scale = next;
+            skippedSamples = FRAMES;
+        }
+    }
+}
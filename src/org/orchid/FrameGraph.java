@@ -0,0 +1,688 @@
+package org.orchid;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL20.glDrawBuffers;
+import static org.lwjgl.opengl.GL30.*;
+
+/**
+ * Frame graph - passes declare render targets they read and write, graph orders and culls them and allocates
+ * transient targets
+ * <p>
+ * Reading pass depends on writers of the resource declared before it (or on all writers if none is, so consumers can
+ * be declared first), writers of the same resource keep their declaration order and run after earlier readers of the
+ * previous write (targets are not cleared implicitly, so earlier writes are kept). Passes which don't contribute to
+ * any imported resource (backbuffer or external texture) are culled. Every transient target lives from the first to
+ * the last executed pass using it, targets with equal description and disjoint lifetimes share one texture taken from
+ * {@link RenderTargetPool} (so targets may be larger than the graph viewport). Written targets become framebuffer
+ * attachments of the pass (depth formats are attached as depth stencil), framebuffers are built by {@link #compile}
+ * so {@link #execute} only binds them.
+ */
+public class FrameGraph
+{
+    /**
+     * Render target - transient texture allocated by the graph or imported one
+     */
+    public static class Resource
+    {
+        private String name;
+        private int internalFormat;
+        private int format;
+        private int type;
+        private int filter;
+        private boolean imported;
+        private int texture;
+
+        // Lifetime in executed passes and allocated texture (set by compile)
+        private int first = -1;
+        private int last = -1;
+        private int physical = -1;
+
+        private List<Pass> writers = new ArrayList<>();
+        private List<Pass> readers = new ArrayList<>();
+
+        private Resource(String name, int internalFormat, int format, int type, int filter, boolean imported,
+                         int texture)
+        {
+            this.name = name;
+            this.internalFormat = internalFormat;
+            this.format = format;
+            this.type = type;
+            this.filter = filter;
+            this.imported = imported;
+            this.texture = texture;
+        }
+
+        /**
+         * Resource name getter
+         *
+         * @return name
+         */
+        public String getName()
+        {
+            return name;
+        }
+
+        /**
+         * Whether resource is imported (never culled, allocated or aliased by the graph)
+         *
+         * @return true for imported resources
+         */
+        public boolean isImported()
+        {
+            return imported;
+        }
+
+        // Whether target is attached as depth stencil
+        private boolean isDepth()
+        {
+            return format == GL_DEPTH_STENCIL || format == GL_DEPTH_COMPONENT;
+        }
+
+        // Whether both resources can share one texture
+        private boolean isCompatible(Resource other)
+        {
+            return internalFormat == other.internalFormat && format == other.format && type == other.type
+                    && filter == other.filter;
+        }
+    }
+
+    /**
+     * Render pass - callback executed with framebuffer of written targets bound
+     */
+    public static class Pass
+    {
+        private String name;
+        private Runnable callback;
+        private List<Resource> reads = new ArrayList<>();
+        private List<Resource> writes = new ArrayList<>();
+        private int index;
+
+        // Set by compile - passes producing content this pass uses and all passes which must be executed before it
+        private List<Pass> producers = new ArrayList<>();
+        private List<Pass> dependencies = new ArrayList<>();
+        private boolean culled = false;
+        private int framebuffer = 0;
+
+        private Pass(String name, Runnable callback, int index)
+        {
+            this.name = name;
+            this.callback = callback;
+            this.index = index;
+        }
+
+        /**
+         * Declares resource read by pass (sampled or tested against)
+         *
+         * @param resource read resource
+         * @return this pass
+         */
+        public Pass read(Resource resource)
+        {
+            reads.add(resource);
+            resource.readers.add(this);
+            return this;
+        }
+
+        /**
+         * Declares resource written by pass (attached to its framebuffer)
+         *
+         * @param resource written resource
+         * @return this pass
+         */
+        public Pass write(Resource resource)
+        {
+            writes.add(resource);
+            resource.writers.add(this);
+            return this;
+        }
+
+        /**
+         * Pass name getter
+         *
+         * @return name
+         */
+        public String getName()
+        {
+            return name;
+        }
+
+        /**
+         * Whether pass was culled by the last compilation
+         *
+         * @return true if pass is not executed
+         */
+        public boolean isCulled()
+        {
+            return culled;
+        }
+    }
+
+    // Allocated texture shared by resources with disjoint lifetimes
+    private static class Physical
+    {
+        Resource description;
+        int texture;
+        int last;
+    }
+
+    private List<Resource> resources = new ArrayList<>();
+    private List<Pass> passes = new ArrayList<>();
+    private List<Pass> order = new ArrayList<>();
+    private List<Physical> physicals = new ArrayList<>();
+    private int width = 0;
+    private int height = 0;
+    private int targetWidth = 0;
+    private int targetHeight = 0;
+    private int backbufferWidth = 0;
+    private int backbufferHeight = 0;
+
+    /**
+     * Declares transient texture sized as the graph
+     *
+     * @param name           resource name
+     * @param internalFormat texture internal format
+     * @param format         texture pixel format
+     * @param type           texture pixel type
+     * @param filter         minification and magnification filter
+     * @return declared resource
+     */
+    public Resource createTexture(String name, int internalFormat, int format, int type, int filter)
+    {
+        Resource resource = new Resource(name, internalFormat, format, type, filter, false, 0);
+        resources.add(resource);
+        return resource;
+    }
+
+    /**
+     * Declares texture owned outside of the graph
+     *
+     * @param name           resource name
+     * @param texture        GL texture name
+     * @param internalFormat texture internal format
+     * @param format         texture pixel format (depth formats are attached as depth stencil)
+     * @return declared resource
+     */
+    public Resource importTexture(String name, int texture, int internalFormat, int format)
+    {
+        Resource resource = new Resource(name, internalFormat, format, GL_NONE, GL_NONE, true, texture);
+        resources.add(resource);
+        return resource;
+    }
+
+    /**
+     * Declares default framebuffer, passes writing it are drawn on screen
+     *
+     * @param name resource name
+     * @return declared resource
+     */
+    public Resource importBackbuffer(String name)
+    {
+        return importTexture(name, 0, GL_NONE, GL_NONE);
+    }
+
+    /**
+     * Adds pass (passes are declared in their natural order, reads and writes are declared on returned pass)
+     *
+     * @param name     pass name
+     * @param callback pass commands
+     * @return added pass
+     */
+    public Pass addPass(String name, Runnable callback)
+    {
+        Pass pass = new Pass(name, callback, passes.size());
+        passes.add(pass);
+        return pass;
+    }
+
+    /**
+     * Orders and culls passes, allocates transient targets and builds pass framebuffers (previous allocation is
+     * released)
+     *
+     * @param width  width of transient targets
+     * @param height height of transient targets
+     */
+    public void compile(int width, int height)
+    {
+        release();
+        this.width = width;
+        this.height = height;
+        targetWidth = RenderTargetPool.getBucketSize(width);
+        targetHeight = RenderTargetPool.getBucketSize(height);
+
+        findDependencies();
+        cull();
+        sort();
+        allocate();
+
+        for (Pass pass : order)
+            buildFramebuffer(pass);
+    }
+
+    /**
+     * Changes graph viewport, targets are reallocated only if the new size doesn't fit into the same pool bucket
+     *
+     * @param width  new viewport width
+     * @param height new viewport height
+     * @return true if graph was recompiled
+     */
+    public boolean resize(int width, int height)
+    {
+        if (targetWidth != RenderTargetPool.getBucketSize(width)
+                || targetHeight != RenderTargetPool.getBucketSize(height)) {
+            compile(width, height);
+            return true;
+        }
+
+        this.width = width;
+        this.height = height;
+        return false;
+    }
+
+    /**
+     * Changes viewport of passes without touching targets (viewport is clamped to target size)
+     *
+     * @param width  new viewport width
+     * @param height new viewport height
+     */
+    public void setViewport(int width, int height)
+    {
+        this.width = Math.min(width, targetWidth);
+        this.height = Math.min(height, targetHeight);
+    }
+
+    /**
+     * Sets viewport of passes writing backbuffer (graph viewport is used until it is set)
+     *
+     * @param width  backbuffer width
+     * @param height backbuffer height
+     */
+    public void setBackbufferSize(int width, int height)
+    {
+        backbufferWidth = width;
+        backbufferHeight = height;
+    }
+
+    /**
+     * Executes passes in compiled order
+     */
+    public void execute()
+    {
+        for (int i = 0; i < order.size(); i++) {
+            Pass pass = order.get(i);
+            glBindFramebuffer(GL_FRAMEBUFFER, pass.framebuffer);
+
+            if (pass.framebuffer == 0 && backbufferWidth > 0)
+                glViewport(0, 0, backbufferWidth, backbufferHeight);
+            else
+                glViewport(0, 0, width, height);
+
+            pass.callback.run();
+        }
+    }
+
+    /**
+     * Texture of the resource
+     *
+     * @param resource graph resource
+     * @return GL texture name (0 for culled transient resources)
+     */
+    public int getTexture(Resource resource)
+    {
+        if (resource.imported)
+            return resource.texture;
+
+        return resource.physical == -1 ? 0 : physicals.get(resource.physical).texture;
+    }
+
+    /**
+     * Viewport width getter
+     *
+     * @return width passes render at
+     */
+    public int getWidth()
+    {
+        return width;
+    }
+
+    /**
+     * Viewport height getter
+     *
+     * @return height passes render at
+     */
+    public int getHeight()
+    {
+        return height;
+    }
+
+    /**
+     * Transient targets width getter
+     *
+     * @return allocated width (viewport width rounded up to pool bucket)
+     */
+    public int getTargetWidth()
+    {
+        return targetWidth;
+    }
+
+    /**
+     * Transient targets height getter
+     *
+     * @return allocated height (viewport height rounded up to pool bucket)
+     */
+    public int getTargetHeight()
+    {
+        return targetHeight;
+    }
+
+    /**
+     * Number of executed passes
+     *
+     * @return passes count
+     */
+    public int getExecutedPasses()
+    {
+        return order.size();
+    }
+
+    /**
+     * Number of culled passes
+     *
+     * @return passes count
+     */
+    public int getCulledPasses()
+    {
+        return passes.size() - order.size();
+    }
+
+    /**
+     * Memory transient targets would take without aliasing
+     *
+     * @return size in bytes
+     */
+    public long getTransientMemory()
+    {
+        long size = 0;
+        for (Resource resource : resources)
+            if (!resource.imported && resource.physical != -1)
+                size += getSize(resource);
+        return size;
+    }
+
+    /**
+     * Memory allocated for transient targets
+     *
+     * @return size in bytes
+     */
+    public long getAllocatedMemory()
+    {
+        long size = 0;
+        for (Physical physical : physicals)
+            size += getSize(physical.description);
+        return size;
+    }
+
+    /**
+     * Describes compiled graph - executed passes with their resources, culled passes, target lifetimes and
+     * allocated textures
+     *
+     * @return human readable description
+     */
+    public String dump()
+    {
+        StringBuilder builder = new StringBuilder();
+        builder.append("Frame graph ").append(width).append('x').append(height).append(" (targets ")
+                .append(targetWidth).append('x').append(targetHeight).append("), ")
+                .append(order.size()).append(" of ").append(passes.size()).append(" passes executed\n");
+
+        for (int i = 0; i < order.size(); i++) {
+            Pass pass = order.get(i);
+            builder.append("  ").append(i).append(' ').append(pass.name).append(" reads [");
+            appendNames(builder, pass.reads);
+            builder.append("] writes [");
+            appendNames(builder, pass.writes);
+            builder.append("]\n");
+        }
+
+        for (Pass pass : passes)
+            if (pass.culled)
+                builder.append("  culled ").append(pass.name).append('\n');
+
+        for (Resource resource : resources) {
+            builder.append("  ").append(resource.name);
+            if (resource.imported)
+                builder.append(" imported");
+            else if (resource.physical == -1)
+                builder.append(" unused");
+            else
+                builder.append(" passes ").append(resource.first).append('-').append(resource.last)
+                        .append(" texture ").append(resource.physical).append(' ')
+                        .append(getSize(resource) / 1024).append(" KB");
+            builder.append('\n');
+        }
+
+        builder.append("  transient memory ").append(getTransientMemory() / 1024).append(" KB, allocated ")
+                .append(getAllocatedMemory() / 1024).append(" KB\n");
+        return builder.toString();
+    }
+
+    /**
+     * Returns targets to the pool and deletes framebuffers
+     */
+    public void remove()
+    {
+        release();
+    }
+
+    // Links every pass to passes which must be executed before it
+    private void findDependencies()
+    {
+        for (Pass pass : passes) {
+            pass.producers.clear();
+            pass.dependencies.clear();
+
+            for (Resource resource : pass.reads) {
+                boolean earlier = hasEarlierWriter(resource, pass);
+                for (Pass writer : resource.writers)
+                    if (earlier ? writer.index < pass.index : writer != pass)
+                        pass.producers.add(writer);
+
+                if (resource.writers.isEmpty() && !resource.imported)
+                    System.err.println("Frame graph resource " + resource.name + " is read but never written");
+            }
+
+            for (Resource resource : pass.writes) {
+                for (Pass writer : resource.writers)
+                    if (writer.index < pass.index)
+                        pass.producers.add(writer);
+
+                // Readers of the previous write only order passes, they don't make this pass's output
+                for (Pass reader : resource.readers)
+                    if (reader.index < pass.index && reader != pass && hasEarlierWriter(resource, reader))
+                        pass.dependencies.add(reader);
+            }
+
+            pass.dependencies.addAll(pass.producers);
+        }
+    }
+
+    // Whether some writer of the resource is declared before the reader (readers without one consume the last write)
+    private static boolean hasEarlierWriter(Resource resource, Pass reader)
+    {
+        for (Pass writer : resource.writers)
+            if (writer.index < reader.index)
+                return true;
+        return false;
+    }
+
+    // Keeps passes which (transitively) contribute to imported resources
+    private void cull()
+    {
+        ArrayDeque<Pass> queue = new ArrayDeque<>();
+
+        for (Pass pass : passes) {
+            pass.culled = true;
+            for (Resource resource : pass.writes)
+                if (resource.imported)
+                    pass.culled = false;
+
+            if (!pass.culled)
+                queue.add(pass);
+        }
+
+        while (!queue.isEmpty())
+            for (Pass producer : queue.poll().producers)
+                if (producer.culled) {
+                    producer.culled = false;
+                    queue.add(producer);
+                }
+    }
+
+    // Topological order of kept passes, ties are broken by declaration order
+    private void sort()
+    {
+        order.clear();
+        int[] remaining = new int[passes.size()];
+
+        for (Pass pass : passes)
+            for (Pass dependency : pass.dependencies)
+                if (!dependency.culled)
+                    remaining[pass.index]++;
+
+        boolean[] done = new boolean[passes.size()];
+        int kept = 0;
+        for (Pass pass : passes)
+            if (!pass.culled)
+                kept++;
+
+        while (order.size() < kept) {
+            Pass next = null;
+            for (Pass pass : passes)
+                if (!pass.culled && !done[pass.index] && remaining[pass.index] == 0) {
+                    next = pass;
+                    break;
+                }
+
+            if (next == null)
+                throw new RuntimeException("Frame graph has a dependency cycle");
+
+            done[next.index] = true;
+            order.add(next);
+            for (Pass pass : passes)
+                for (Pass dependency : pass.dependencies)
+                    if (dependency == next)
+                        remaining[pass.index]--;
+        }
+    }
+
+    // Finds lifetimes of transient targets and assigns them textures, compatible targets reuse textures which are
+    // no longer used
+    private void allocate()
+    {
+        for (Resource resource : resources) {
+            resource.first = resource.last = resource.physical = -1;
+
+            for (int i = 0; i < order.size(); i++)
+                if (order.get(i).reads.contains(resource) || order.get(i).writes.contains(resource)) {
+                    if (resource.first == -1)
+                        resource.first = i;
+                    resource.last = i;
+                }
+        }
+
+        for (int i = 0; i < order.size(); i++)
+            for (Resource resource : resources) {
+                if (resource.imported || resource.first != i)
+                    continue;
+
+                for (int j = 0; j < physicals.size() && resource.physical == -1; j++) {
+                    Physical physical = physicals.get(j);
+                    if (physical.last < i && physical.description.isCompatible(resource)) {
+                        physical.last = resource.last;
+                        resource.physical = j;
+                    }
+                }
+
+                if (resource.physical == -1) {
+                    Physical physical = new Physical();
+                    physical.description = resource;
+                    physical.texture = RenderTargetPool.acquire(resource.internalFormat, resource.format,
+                            resource.type, resource.filter, width, height);
+                    physical.last = resource.last;
+                    resource.physical = physicals.size();
+                    physicals.add(physical);
+                }
+            }
+    }
+
+    // Creates framebuffer with written targets attached, passes writing backbuffer use the default one
+    private void buildFramebuffer(Pass pass)
+    {
+        pass.framebuffer = 0;
+        for (Resource resource : pass.writes)
+            if (resource.imported && resource.texture == 0)
+                return;
+
+        pass.framebuffer = glGenFramebuffers();
+        glBindFramebuffer(GL_FRAMEBUFFER, pass.framebuffer);
+
+        int[] attachments = new int[pass.writes.size()];
+        int colorCount = 0;
+        for (Resource resource : pass.writes) {
+            if (resource.isDepth()) {
+                glFramebufferTexture2D(GL_FRAMEBUFFER, GL_DEPTH_STENCIL_ATTACHMENT, GL_TEXTURE_2D,
+                        getTexture(resource), 0);
+            } else {
+                attachments[colorCount] = GL_COLOR_ATTACHMENT0 + colorCount;
+                glFramebufferTexture2D(GL_FRAMEBUFFER, attachments[colorCount], GL_TEXTURE_2D,
+                        getTexture(resource), 0);
+                colorCount++;
+            }
+        }
+
+        int[] drawBuffers = new int[colorCount];
+        System.arraycopy(attachments, 0, drawBuffers, 0, colorCount);
+        if (colorCount == 0)
+            glDrawBuffer(GL_NONE);
+        else
+            glDrawBuffers(drawBuffers);
+
+        if (glCheckFramebufferStatus(GL_FRAMEBUFFER) != GL_FRAMEBUFFER_COMPLETE)
+            System.err.println("Framebuffer of " + pass.name + " pass is not ready: "
+                    + glCheckFramebufferStatus(GL_FRAMEBUFFER));
+
+        glBindFramebuffer(GL_FRAMEBUFFER, 0);
+    }
+
+    private void release()
+    {
+        for (Pass pass : order)
+            if (pass.framebuffer != 0)
+                glDeleteFramebuffers(pass.framebuffer);
+        for (Pass pass : passes)
+            pass.framebuffer = 0;
+
+        for (Physical physical : physicals)
+            RenderTargetPool.release(physical.texture);
+        physicals.clear();
+
+        for (Resource resource : resources)
+            resource.physical = -1;
+        order.clear();
+    }
+
+    // Size of the target in bytes
+    private long getSize(Resource resource)
+    {
+        return (long) targetWidth * targetHeight * RenderTargetPool.getPixelSize(resource.internalFormat);
+    }
+
+    private static void appendNames(StringBuilder builder, List<Resource> resources)
+    {
+        for (int i = 0; i < resources.size(); i++)
+            builder.append(i == 0 ? "" : ", ").append(resources.get(i).name);
+    }
+}
@@ -0,0 +1,540 @@
+package org.orchid;
+
+import org.lwjgl.BufferUtils;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.lwjgl.opengl.GL11.GL_UNSIGNED_INT;
+import static org.lwjgl.opengl.GL11.GL_UNSIGNED_SHORT;
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL20.glEnableVertexAttribArray;
+import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL31.*;
+import static org.lwjgl.opengl.GL43.*;
+
+/**
+ * Geometry arena - vertices and indices of all meshes are sub-allocated from large shared buffers
+ * <p>
+ * Meshes with the same vertex layout and index type share one pool (vertex buffer, index buffer and vertex array),
+ * so whole pool can be drawn by one glMultiDrawElementsIndirect. Ranges are allocated from free lists (first fit),
+ * buffers grow by doubling and are compacted when freed holes take too much space.
+ * <p>
+ * Every vertex array also reads per-instance index from {@link Shader#INSTANCE_LOCATION}, its buffer holds
+ * consecutive numbers, so draw command base instance selects entry of the instance storage buffer.
+ */
+public class GeometryArena
+{
+    /**
+     * Maximum number of pools (different vertex layouts and index types)
+     */
+    public static final int MAX_POOLS = 16;
+
+    private static final int INITIAL_VERTICES = 64 * 1024;
+    private static final int INITIAL_INDICES = 256 * 1024;
+    private static final int INITIAL_INSTANCES = 1024;
+
+    private static final int VERTEX_BINDING = 0;
+    private static final int INSTANCE_BINDING = 1;
+
+    private static Pool[] pools = new Pool[MAX_POOLS];
+    private static int poolCount = 0;
+    private static int allocationCount = 0;
+
+    // Incremented whenever allocations are moved by compaction
+    private static int version = 0;
+
+    private static int instanceBuffer = 0;
+    private static int instanceCapacity = 0;
+
+    /**
+     * Range of pool buffers occupied by one mesh (offsets are updated when pool is compacted)
+     */
+    public static class Allocation
+    {
+        private final int id = allocationCount++;
+        private int pool;
+        private int baseVertex;
+        private int vertexCount;
+        private int firstIndex;
+        private int indexCount;
+
+        /**
+         * Unique allocation identifier
+         *
+         * @return identifier
+         */
+        public int getId()
+        {
+            return id;
+        }
+
+        /**
+         * Pool index getter
+         *
+         * @return pool index
+         */
+        public int getPool()
+        {
+            return pool;
+        }
+
+        /**
+         * Index of the first vertex in the pool vertex buffer
+         *
+         * @return base vertex
+         */
+        public int getBaseVertex()
+        {
+            return baseVertex;
+        }
+
+        /**
+         * Index of the first index in the pool index buffer
+         *
+         * @return first index
+         */
+        public int getFirstIndex()
+        {
+            return firstIndex;
+        }
+
+        /**
+         * Index type of the pool
+         *
+         * @return GL index type
+         */
+        public int getIndexType()
+        {
+            return pools[pool].indexType;
+        }
+    }
+
+    private static class Pool
+    {
+        String layout;
+        int stride;
+        int indexType;
+        int indexSize;
+
+        int vao;
+        int vertexBuffer;
+        int indexBuffer;
+        FreeList vertices;
+        FreeList indices;
+        List<Allocation> allocations = new ArrayList<>();
+    }
+
+    // First fit allocator of element ranges, neighbouring free ranges are merged
+    private static class FreeList
+    {
+        TreeMap<Integer, Integer> ranges = new TreeMap<>();
+        int capacity;
+        int free;
+
+        FreeList(int capacity)
+        {
+            this.capacity = capacity;
+            this.free = capacity;
+            ranges.put(0, capacity);
+        }
+
+        int allocate(int size)
+        {
+            if (size == 0)
+                return 0;
+
+            for (Map.Entry<Integer, Integer> range : ranges.entrySet()) {
+                int offset = range.getKey();
+                int rangeSize = range.getValue();
+                if (rangeSize < size)
+                    continue;
+
+                ranges.remove(offset);
+                if (rangeSize > size)
+                    ranges.put(offset + size, rangeSize - size);
+                free -= size;
+                return offset;
+            }
+            return -1;
+        }
+
+        void release(int offset, int size)
+        {
+            if (size == 0)
+                return;
+            free += size;
+
+            Map.Entry<Integer, Integer> previous = ranges.lowerEntry(offset);
+            Integer next = ranges.get(offset + size);
+
+            if (next != null) {
+                ranges.remove(offset + size);
+                size += next;
+            }
+            if (previous != null && previous.getKey() + previous.getValue() == offset) {
+                offset = previous.getKey();
+                size += previous.getValue();
+            }
+
+            ranges.put(offset, size);
+        }
+
+        void grow(int newCapacity)
+        {
+            release(capacity, newCapacity - capacity);
+            capacity = newCapacity;
+        }
+
+        // Free space at the end of the buffer (extended by growing)
+        int getTail()
+        {
+            Map.Entry<Integer, Integer> last = ranges.lastEntry();
+            return last != null && last.getKey() + last.getValue() == capacity ? last.getValue() : 0;
+        }
+
+        // Free space which is not at the end of the buffer
+        int getHoles()
+        {
+            return free - getTail();
+        }
+    }
+
+    /**
+     * Uploads mesh data into the pool matching its layout
+     *
+     * @param data cooked mesh data
+     * @return allocation of the mesh
+     */
+    static Allocation allocate(MeshData data)
+    {
+        Pool pool = getPool(data);
+
+        Allocation allocation = new Allocation();
+        allocation.pool = indexOf(pool);
+        allocation.vertexCount = data.getVertexCount();
+        allocation.indexCount = data.getIndexCount();
+
+        allocation.baseVertex = pool.vertices.allocate(allocation.vertexCount);
+        if (allocation.baseVertex == -1) {
+            growVertices(pool, allocation.vertexCount);
+            allocation.baseVertex = pool.vertices.allocate(allocation.vertexCount);
+        }
+
+        allocation.firstIndex = pool.indices.allocate(allocation.indexCount);
+        if (allocation.firstIndex == -1) {
+            growIndices(pool, allocation.indexCount);
+            allocation.firstIndex = pool.indices.allocate(allocation.indexCount);
+        }
+
+        glBindBuffer(GL_ARRAY_BUFFER, pool.vertexBuffer);
+        glBufferSubData(GL_ARRAY_BUFFER, (long) allocation.baseVertex * pool.stride, data.getVertices());
+        glBindBuffer(GL_ARRAY_BUFFER, 0);
+
+        // Element buffer binding is vertex array state, so it is uploaded through copy target
+        glBindBuffer(GL_COPY_WRITE_BUFFER, pool.indexBuffer);
+        glBufferSubData(GL_COPY_WRITE_BUFFER, (long) allocation.firstIndex * pool.indexSize, data.getIndices());
+        glBindBuffer(GL_COPY_WRITE_BUFFER, 0);
+
+        pool.allocations.add(allocation);
+        return allocation;
+    }
+
+    /**
+     * Frees mesh ranges, pool is compacted if freed holes exceed a quarter of its buffers
+     *
+     * @param allocation allocation returned by {@link #allocate}
+     */
+    static void free(Allocation allocation)
+    {
+        Pool pool = pools[allocation.pool];
+        pool.vertices.release(allocation.baseVertex, allocation.vertexCount);
+        pool.indices.release(allocation.firstIndex, allocation.indexCount);
+        pool.allocations.remove(allocation);
+
+        if (pool.vertices.getHoles() > pool.vertices.capacity / 4
+                || pool.indices.getHoles() > pool.indices.capacity / 4)
+            compact(pool);
+    }
+
+    /**
+     * Makes sure instance index buffer covers given number of instances
+     *
+     * @param count number of instances drawn by one submission
+     */
+    static void reserveInstances(int count)
+    {
+        if (count <= instanceCapacity)
+            return;
+
+        int capacity = Math.max(instanceCapacity * 2, INITIAL_INSTANCES);
+        while (capacity < count)
+            capacity *= 2;
+
+        ByteBuffer indices = BufferUtils.createByteBuffer(capacity * 4);
+        for (int i = 0; i < capacity; i++)
+            indices.putInt(i);
+        indices.flip();
+
+        if (instanceBuffer != 0)
+            glDeleteBuffers(instanceBuffer);
+
+        instanceBuffer = glGenBuffers();
+        glBindBuffer(GL_ARRAY_BUFFER, instanceBuffer);
+        glBufferData(GL_ARRAY_BUFFER, indices, GL_STATIC_DRAW);
+        glBindBuffer(GL_ARRAY_BUFFER, 0);
+        instanceCapacity = capacity;
+
+        for (int i = 0; i < poolCount; i++) {
+            glBindVertexArray(pools[i].vao);
+            glBindVertexBuffer(INSTANCE_BINDING, instanceBuffer, 0, 4);
+        }
+        glBindVertexArray(0);
+    }
+
+    /**
+     * Vertex array of the pool
+     *
+     * @param pool pool index
+     * @return vertex array object
+     */
+    public static int getVertexArray(int pool)
+    {
+        return pools[pool].vao;
+    }
+
+    /**
+     * Index type of the pool
+     *
+     * @param pool pool index
+     * @return GL index type
+     */
+    public static int getIndexType(int pool)
+    {
+        return pools[pool].indexType;
+    }
+
+    /**
+     * Compaction counter (allocation offsets are valid while it stays the same)
+     *
+     * @return arena version
+     */
+    public static int getVersion()
+    {
+        return version;
+    }
+
+    /**
+     * Number of pools
+     *
+     * @return pools count
+     */
+    public static int getPoolCount()
+    {
+        return poolCount;
+    }
+
+    /**
+     * Size of all pool buffers
+     *
+     * @return size in bytes
+     */
+    public static long getMemoryUsage()
+    {
+        long size = (long) instanceCapacity * 4;
+        for (int i = 0; i < poolCount; i++)
+            size += (long) pools[i].vertices.capacity * pools[i].stride
+                    + (long) pools[i].indices.capacity * pools[i].indexSize;
+        return size;
+    }
+
+    /**
+     * Deletes all pools
+     */
+    static void remove()
+    {
+        for (int i = 0; i < poolCount; i++) {
+            glDeleteVertexArrays(pools[i].vao);
+            glDeleteBuffers(pools[i].vertexBuffer);
+            glDeleteBuffers(pools[i].indexBuffer);
+            pools[i] = null;
+        }
+        poolCount = 0;
+
+        glDeleteBuffers(instanceBuffer);
+        instanceBuffer = 0;
+        instanceCapacity = 0;
+    }
+
+    // Finds pool of the same layout or creates a new one
+    private static Pool getPool(MeshData data)
+    {
+        StringBuilder layout = new StringBuilder().append(data.getIndexType()).append('/').append(data.getStride());
+        for (MeshData.Attribute attribute : data.getAttributes())
+            layout.append('/').append(attribute.location).append(',').append(attribute.size).append(',')
+                    .append(attribute.type).append(',').append(attribute.normalized).append(',')
+                    .append(attribute.offset);
+
+        for (int i = 0; i < poolCount; i++)
+            if (pools[i].layout.contentEquals(layout))
+                return pools[i];
+
+        if (poolCount == MAX_POOLS)
+            throw new RuntimeException("Too many geometry arena pools (vertex layouts)");
+
+        Pool pool = new Pool();
+        pool.layout = layout.toString();
+        pool.stride = data.getStride();
+        pool.indexType = data.getIndexType();
+        pool.indexSize = pool.indexType == GL_UNSIGNED_SHORT ? 2 : 4;
+        pool.vertices = new FreeList(INITIAL_VERTICES);
+        pool.indices = new FreeList(INITIAL_INDICES);
+        pool.vertexBuffer = createBuffer((long) INITIAL_VERTICES * pool.stride);
+        pool.indexBuffer = createBuffer((long) INITIAL_INDICES * pool.indexSize);
+
+        pool.vao = glGenVertexArrays();
+        glBindVertexArray(pool.vao);
+
+        for (MeshData.Attribute attribute : data.getAttributes()) {
+            glEnableVertexAttribArray(attribute.location);
+            glVertexAttribFormat(attribute.location, attribute.size, attribute.type, attribute.normalized,
+                    attribute.offset);
+            glVertexAttribBinding(attribute.location, VERTEX_BINDING);
+        }
+
+        glEnableVertexAttribArray(Shader.INSTANCE_LOCATION);
+        glVertexAttribIFormat(Shader.INSTANCE_LOCATION, 1, GL_UNSIGNED_INT, 0);
+        glVertexAttribBinding(Shader.INSTANCE_LOCATION, INSTANCE_BINDING);
+        glVertexBindingDivisor(INSTANCE_BINDING, 1);
+
+        glBindVertexBuffer(VERTEX_BINDING, pool.vertexBuffer, 0, pool.stride);
+        glBindVertexBuffer(INSTANCE_BINDING, instanceBuffer, 0, 4);
+        glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, pool.indexBuffer);
+        glBindVertexArray(0);
+
+        pools[poolCount++] = pool;
+        return pool;
+    }
+
+    private static int indexOf(Pool pool)
+    {
+        for (int i = 0; i < poolCount; i++)
+            if (pools[i] == pool)
+                return i;
+        return -1;
+    }
+
+    private static void growVertices(Pool pool, int required)
+    {
+        int capacity = pool.vertices.capacity * 2;
+        while (capacity - pool.vertices.capacity + pool.vertices.getTail() < required)
+            capacity *= 2;
+
+        pool.vertexBuffer = resize(pool.vertexBuffer, (long) pool.vertices.capacity * pool.stride,
+                (long) capacity * pool.stride);
+        pool.vertices.grow(capacity);
+        attachBuffers(pool);
+    }
+
+    private static void growIndices(Pool pool, int required)
+    {
+        int capacity = pool.indices.capacity * 2;
+        while (capacity - pool.indices.capacity + pool.indices.getTail() < required)
+            capacity *= 2;
+
+        pool.indexBuffer = resize(pool.indexBuffer, (long) pool.indices.capacity * pool.indexSize,
+                (long) capacity * pool.indexSize);
+        pool.indices.grow(capacity);
+        attachBuffers(pool);
+    }
+
+    // Copies buffer contents into a larger buffer
+    private static int resize(int buffer, long size, long newSize)
+    {
+        int resized = createBuffer(newSize);
+
+        glBindBuffer(GL_COPY_READ_BUFFER, buffer);
+        glBindBuffer(GL_COPY_WRITE_BUFFER, resized);
+        glCopyBufferSubData(GL_COPY_READ_BUFFER, GL_COPY_WRITE_BUFFER, 0, 0, size);
+        glBindBuffer(GL_COPY_READ_BUFFER, 0);
+        glBindBuffer(GL_COPY_WRITE_BUFFER, 0);
+
+        glDeleteBuffers(buffer);
+        return resized;
+    }
+
+    // Moves all allocations to the beginning of new buffers (in offset order), buffers shrink if mostly empty
+    private static void compact(Pool pool)
+    {
+        int usedVertices = pool.vertices.capacity - pool.vertices.free;
+        int vertexCapacity = pool.vertices.capacity;
+        while (vertexCapacity / 2 >= INITIAL_VERTICES && usedVertices * 4 < vertexCapacity / 2)
+            vertexCapacity /= 2;
+        int usedIndices = pool.indices.capacity - pool.indices.free;
+        int indexCapacity = pool.indices.capacity;
+        while (indexCapacity / 2 >= INITIAL_INDICES && usedIndices * 4 < indexCapacity / 2)
+            indexCapacity /= 2;
+        if (vertexCapacity < usedVertices || indexCapacity < usedIndices)
+            throw new RuntimeException("Geometry arena pool shrank below its contents");
+
+        int vertexBuffer = createBuffer((long) vertexCapacity * pool.stride);
+        int indexBuffer = createBuffer((long) indexCapacity * pool.indexSize);
+
+        glBindBuffer(GL_COPY_READ_BUFFER, pool.vertexBuffer);
+        glBindBuffer(GL_COPY_WRITE_BUFFER, vertexBuffer);
+        pool.allocations.sort(Comparator.comparingInt(Allocation::getBaseVertex));
+        int vertex = 0;
+        for (Allocation allocation : pool.allocations) {
+            glCopyBufferSubData(GL_COPY_READ_BUFFER, GL_COPY_WRITE_BUFFER, (long) allocation.baseVertex * pool.stride,
+                    (long) vertex * pool.stride, (long) allocation.vertexCount * pool.stride);
+            allocation.baseVertex = vertex;
+            vertex += allocation.vertexCount;
+        }
+
+        glBindBuffer(GL_COPY_READ_BUFFER, pool.indexBuffer);
+        glBindBuffer(GL_COPY_WRITE_BUFFER, indexBuffer);
+        pool.allocations.sort(Comparator.comparingInt(Allocation::getFirstIndex));
+        int index = 0;
+        for (Allocation allocation : pool.allocations) {
+            glCopyBufferSubData(GL_COPY_READ_BUFFER, GL_COPY_WRITE_BUFFER, (long) allocation.firstIndex * pool.indexSize,
+                    (long) index * pool.indexSize, (long) allocation.indexCount * pool.indexSize);
+            allocation.firstIndex = index;
+            index += allocation.indexCount;
+        }
+
+        glBindBuffer(GL_COPY_READ_BUFFER, 0);
+        glBindBuffer(GL_COPY_WRITE_BUFFER, 0);
+        glDeleteBuffers(pool.vertexBuffer);
+        glDeleteBuffers(pool.indexBuffer);
+
+        pool.vertexBuffer = vertexBuffer;
+        pool.indexBuffer = indexBuffer;
+        pool.vertices = new FreeList(vertexCapacity);
+        pool.vertices.allocate(vertex);
+        pool.indices = new FreeList(indexCapacity);
+        pool.indices.allocate(index);
+        attachBuffers(pool);
+        version++;
+    }
+
+    private static void attachBuffers(Pool pool)
+    {
+        glBindVertexArray(pool.vao);
+        glBindVertexBuffer(VERTEX_BINDING, pool.vertexBuffer, 0, pool.stride);
+        glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, pool.indexBuffer);
+        glBindVertexArray(0);
+    }
+
+    private static int createBuffer(long size)
+    {
+        int buffer = glGenBuffers();
+        glBindBuffer(GL_COPY_WRITE_BUFFER, buffer);
+        glBufferData(GL_COPY_WRITE_BUFFER, size, GL_STATIC_DRAW);
+        glBindBuffer(GL_COPY_WRITE_BUFFER, 0);
+        return buffer;
+    }
+}
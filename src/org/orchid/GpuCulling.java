@@ -0,0 +1,592 @@
+package org.orchid;
+
+import org.joml.Matrix4f;
+import org.joml.Matrix4fc;
+import org.joml.Vector3f;
+import org.joml.Vector4f;
+import org.lwjgl.BufferUtils;
+import org.lwjgl.opengl.GL;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.lwjgl.opengl.ARBIndirectParameters.GL_PARAMETER_BUFFER_ARB;
+import static org.lwjgl.opengl.ARBIndirectParameters.glMultiDrawElementsIndirectCountARB;
+import static org.lwjgl.opengl.GL11.GL_TRIANGLES;
+import static org.lwjgl.opengl.GL11.GL_UNSIGNED_INT;
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL31.*;
+import static org.lwjgl.opengl.GL32.*;
+import static org.lwjgl.opengl.GL33.*;
+import static org.lwjgl.opengl.GL40.GL_DRAW_INDIRECT_BUFFER;
+import static org.lwjgl.opengl.GL42.*;
+import static org.lwjgl.opengl.GL43.*;
+import static org.lwjgl.opengl.GL44.*;
+
+/**
+ * GPU driven culling of opaque meshes ("gpu_culling" property)
+ * <p>
+ * Object bounds, geometry ranges and materials are kept in a storage buffer (rebuilt only when scene, transform
+ * order or geometry arena changes), world matrices are uploaded straight from {@link TransformStore}. A compute
+ * shader frustum tests every object, selects its level of detail and appends visible objects to per pool ranges of
+ * an indirect command buffer, the opaque pass is then drawn by one glMultiDrawElementsIndirectCountARB per geometry
+ * pool without per-object CPU work.
+ * <p>
+ * With occlusion culling objects are also tested against {@link DepthPyramid} of the previous frame (reprojected by
+ * its view projection). Rejected objects are tested again against pyramid built from depth of the visible ones and
+ * drawn if they became visible, so camera motion doesn't cause missing objects.
+ * <p>
+ * Draw counts and projected size of every material are read back a few frames later (without stalling) for
+ * statistics and texture streaming requests. {@link #isVisible} is CPU reference of the frustum test.
+ */
+public class GpuCulling
+{
+    private static final int GROUP_SIZE = 64;
+    private static final int FRAMES = 3;
+
+    // std430 object entry, std430 instance entry, DrawElementsIndirectCommand and std140 culling block sizes
+    private static final int OBJECT_SIZE = 112;
+    private static final int INSTANCE_SIZE = 80;
+    private static final int COMMAND_SIZE = 20;
+    private static final int CULLING_SIZE = 208;
+
+    // Counter buffer starts with draw count of every pool in both phases and rejected objects count, material
+    // projected sizes follow
+    private static final int REJECTED_OFFSET = GeometryArena.MAX_POOLS * 2 * 4;
+    private static final int MATERIALS_OFFSET = REJECTED_OFFSET + 4;
+
+    private static boolean enabled = false;
+    private static boolean occlusion = false;
+    private static Shader cullShader;
+
+    private static List<Mesh> objects = new ArrayList<>();
+    private static boolean objectsDirty = true;
+    private static int objectCount = 0;
+    private static int[] poolCounts = new int[GeometryArena.MAX_POOLS];
+    private static int[] poolRegions = new int[GeometryArena.MAX_POOLS];
+    private static int builtOrderVersion = -1;
+    private static int builtArenaVersion = -1;
+    private static int uploadedPass = -1;
+
+    private static int objectBuffer;
+    private static int transformBuffer;
+    private static int instanceBuffer;
+    private static int commandBuffer;
+    private static int counterBuffer;
+    private static int rejectedBuffer;
+    private static int objectCapacity = 0;
+    private static int materialCapacity = 0;
+    private static ByteBuffer objectData = BufferUtils.createByteBuffer(0);
+    private static FloatBuffer transformData = BufferUtils.createFloatBuffer(0);
+
+    // Counters read back with delay of FRAMES frames
+    private static int[] readbackBuffers = new int[FRAMES];
+    private static ByteBuffer[] readbackMapped = new ByteBuffer[FRAMES];
+    private static long[] fences = new long[FRAMES];
+    private static int[] readbackMaterials = new int[FRAMES];
+    private static int frame = 0;
+    private static boolean[] occlusionTestedFrames = new boolean[FRAMES];
+    private static int[] timerQueries = new int[FRAMES * 4];
+    private static int drawnMeshes = 0;
+    private static int occludedMeshes = 0;
+    private static double gBufferTime = 0.0;
+
+    private static Vector4f[] planes = {new Vector4f(), new Vector4f(), new Vector4f(), new Vector4f(),
+            new Vector4f(), new Vector4f()};
+    private static Matrix4f pyramidViewProjection = new Matrix4f();
+    private static Vector3f boundsMin = new Vector3f();
+    private static Vector3f boundsMax = new Vector3f();
+
+    /**
+     * Enables GPU culling if "gpu_culling" property is true and it is supported - it needs ARB_indirect_parameters
+     * and material maps which are not bound per draw (should be called after {@link Texture#init()}), occlusion
+     * culling is enabled by "occlusion_culling" property
+     */
+    static void init()
+    {
+        if (!"true".equals(Configuration.getProperty("gpu_culling")))
+            return;
+
+        if (!GL.getCapabilities().GL_ARB_indirect_parameters) {
+            System.err.println("Indirect parameters are not supported, meshes are culled on CPU");
+            return;
+        }
+        if (Texture.getBinding() == Texture.Binding.SLOTS) {
+            System.err.println("GPU culling needs bindless textures or texture arrays, meshes are culled on CPU");
+            return;
+        }
+
+        Shader.define("MAX_POOLS " + GeometryArena.MAX_POOLS);
+        cullShader = new Shader("./res/shaders/cull_compute.glsl");
+        objectBuffer = glGenBuffers();
+        transformBuffer = glGenBuffers();
+        instanceBuffer = glGenBuffers();
+        commandBuffer = glGenBuffers();
+        counterBuffer = glGenBuffers();
+        rejectedBuffer = glGenBuffers();
+        glGenQueries(timerQueries);
+        enabled = true;
+
+        occlusion = "true".equals(Configuration.getProperty("occlusion_culling"));
+        if (occlusion)
+            DepthPyramid.init();
+    }
+
+    /**
+     * Whether opaque meshes are culled and drawn by GPU
+     *
+     * @return true if enabled
+     */
+    public static boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    /**
+     * Sets meshes culled by GPU
+     *
+     * @param meshes opaque meshes
+     */
+    static void setObjects(List<Mesh> meshes)
+    {
+        objects = meshes;
+        invalidate();
+    }
+
+    /**
+     * Schedules rebuild of object data (should be called when material or level of detail settings of some mesh
+     * change)
+     */
+    public static void invalidate()
+    {
+        objectsDirty = true;
+    }
+
+    /**
+     * Culls objects by main camera frustum and draws visible ones
+     *
+     * @param shader          shader to draw meshes with
+     * @param viewProjection  camera view projection matrix
+     * @param cameraPosition  camera world position
+     * @param projectionScale cotangent of the half of vertical field of view
+     */
+    static void draw(Shader shader, Matrix4f viewProjection, Vector3f cameraPosition, float projectionScale)
+    {
+        frame = (frame + 1) % FRAMES;
+        readCounters();
+
+        if (objectsDirty || builtOrderVersion != TransformStore.getOrderVersion()
+                || builtArenaVersion != GeometryArena.getVersion())
+            buildObjects();
+        if (MaterialTable.getCount() > materialCapacity || readbackBuffers[0] == 0)
+            allocateCounters();
+        if (uploadedPass != TransformStore.getPass())
+            uploadTransforms();
+
+        if (objectCount == 0)
+            return;
+
+        glBindBuffer(GL_SHADER_STORAGE_BUFFER, counterBuffer);
+        glClearBufferData(GL_SHADER_STORAGE_BUFFER, GL_R32UI, GL_RED_INTEGER, GL_UNSIGNED_INT, (ByteBuffer) null);
+        glBindBuffer(GL_SHADER_STORAGE_BUFFER, 0);
+
+        glBindBufferBase(GL_SHADER_STORAGE_BUFFER, Shader.INSTANCE_BLOCK, instanceBuffer);
+        glBindBufferBase(GL_SHADER_STORAGE_BUFFER, Shader.OBJECT_BLOCK, objectBuffer);
+        glBindBufferBase(GL_SHADER_STORAGE_BUFFER, Shader.TRANSFORM_BLOCK, transformBuffer);
+        glBindBufferBase(GL_SHADER_STORAGE_BUFFER, Shader.COMMAND_BLOCK, commandBuffer);
+        glBindBufferBase(GL_SHADER_STORAGE_BUFFER, Shader.COUNTER_BLOCK, counterBuffer);
+        glBindBufferBase(GL_SHADER_STORAGE_BUFFER, Shader.REJECTED_BLOCK, rejectedBuffer);
+
+        // Command base instance is the command index, so instance index buffer has to cover commands of both phases
+        GeometryArena.reserveInstances(objectCount * 2);
+        getPlanes(viewProjection, planes);
+
+        // First phase tests all objects against pyramid of the previous frame and draws the visible ones
+        boolean occlusionTested = occlusion && DepthPyramid.isValid();
+        if (occlusion)
+            DepthPyramid.bind();
+        cull(0, occlusionTested, cameraPosition, projectionScale);
+        glQueryCounter(timerQueries[frame * 4], GL_TIMESTAMP);
+        drawCommands(shader, 0);
+        glQueryCounter(timerQueries[frame * 4 + 1], GL_TIMESTAMP);
+
+        // Second phase builds pyramid from the new depth and draws rejected objects which became visible
+        if (occlusion) {
+            DepthPyramid.build(Orchid.getDepthTexture(), Orchid.getRenderWidth(), Orchid.getRenderHeight(),
+                    viewProjection);
+            DepthPyramid.bind();
+            cull(1, true, cameraPosition, projectionScale);
+        }
+        glQueryCounter(timerQueries[frame * 4 + 2], GL_TIMESTAMP);
+        if (occlusion)
+            drawCommands(shader, 1);
+        glQueryCounter(timerQueries[frame * 4 + 3], GL_TIMESTAMP);
+        occlusionTestedFrames[frame] = occlusionTested;
+
+        // Counters are copied for delayed readback
+        glBindBuffer(GL_COPY_READ_BUFFER, counterBuffer);
+        glBindBuffer(GL_COPY_WRITE_BUFFER, readbackBuffers[frame]);
+        glCopyBufferSubData(GL_COPY_READ_BUFFER, GL_COPY_WRITE_BUFFER, 0, 0,
+                MATERIALS_OFFSET + materialCapacity * 4L);
+        glBindBuffer(GL_COPY_READ_BUFFER, 0);
+        glBindBuffer(GL_COPY_WRITE_BUFFER, 0);
+        fences[frame] = glFenceSync(GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+        readbackMaterials[frame] = materialCapacity;
+    }
+
+    /**
+     * Number of meshes drawn by GPU (read back with a few frames delay)
+     *
+     * @return drawn meshes count
+     */
+    public static int getDrawnMeshes()
+    {
+        return drawnMeshes;
+    }
+
+    /**
+     * Number of meshes inside of view frustum which were skipped by occlusion test (read back with a few frames
+     * delay)
+     *
+     * @return occluded meshes count
+     */
+    public static int getOccludedMeshes()
+    {
+        return occludedMeshes;
+    }
+
+    /**
+     * Ratio of occluded meshes to all meshes inside of view frustum
+     *
+     * @return occluded ratio [0, 1]
+     */
+    public static float getOccludedRatio()
+    {
+        return occludedMeshes == 0 ? 0.0f : (float) occludedMeshes / (drawnMeshes + occludedMeshes);
+    }
+
+    /**
+     * GPU time of G-buffer draws (both phases, without culling and pyramid building)
+     *
+     * @return time in milliseconds
+     */
+    public static double getGBufferTime()
+    {
+        return gBufferTime;
+    }
+
+    /**
+     * Estimated G-buffer time saved by occlusion culling - occluded meshes are assumed to cost as much as the drawn
+     * ones on average
+     *
+     * @return time in milliseconds
+     */
+    public static double getGBufferTimeSaved()
+    {
+        return drawnMeshes == 0 ? 0.0 : gBufferTime / drawnMeshes * occludedMeshes;
+    }
+
+    /**
+     * Normalized frustum planes in the order used by culling shader
+     *
+     * @param viewProjection camera view projection matrix
+     * @param dest           destination array of six planes
+     * @return planes (dest)
+     */
+    public static Vector4f[] getPlanes(Matrix4f viewProjection, Vector4f[] dest)
+    {
+        for (int i = 0; i < 6; i++)
+            viewProjection.frustumPlane(Matrix4fc.PLANE_NX + i, dest[i]);
+        return dest;
+    }
+
+    /**
+     * CPU reference of the culling shader test - local bounding box is transformed as center and half extent and
+     * tested against all planes
+     *
+     * @param planes      frustum planes returned by {@link #getPlanes}
+     * @param model       model matrix
+     * @param boundsMin   local bounding box minimum corner
+     * @param boundsMax   local bounding box maximum corner
+     * @return true if bounding box is not completely outside of some plane
+     */
+    public static boolean isVisible(Vector4f[] planes, Matrix4f model, Vector3f boundsMin, Vector3f boundsMax)
+    {
+        float localX = (boundsMin.x + boundsMax.x) * 0.5f;
+        float localY = (boundsMin.y + boundsMax.y) * 0.5f;
+        float localZ = (boundsMin.z + boundsMax.z) * 0.5f;
+        float halfX = (boundsMax.x - boundsMin.x) * 0.5f;
+        float halfY = (boundsMax.y - boundsMin.y) * 0.5f;
+        float halfZ = (boundsMax.z - boundsMin.z) * 0.5f;
+
+        float centerX = model.m00() * localX + model.m10() * localY + model.m20() * localZ + model.m30();
+        float centerY = model.m01() * localX + model.m11() * localY + model.m21() * localZ + model.m31();
+        float centerZ = model.m02() * localX + model.m12() * localY + model.m22() * localZ + model.m32();
+        float extentX = Math.abs(model.m00()) * halfX + Math.abs(model.m10()) * halfY + Math.abs(model.m20()) * halfZ;
+        float extentY = Math.abs(model.m01()) * halfX + Math.abs(model.m11()) * halfY + Math.abs(model.m21()) * halfZ;
+        float extentZ = Math.abs(model.m02()) * halfX + Math.abs(model.m12()) * halfY + Math.abs(model.m22()) * halfZ;
+
+        for (Vector4f plane : planes)
+            if (plane.x * centerX + plane.y * centerY + plane.z * centerZ + plane.w
+                    + Math.abs(plane.x) * extentX + Math.abs(plane.y) * extentY + Math.abs(plane.z) * extentZ < 0.0f)
+                return false;
+
+        return true;
+    }
+
+    /**
+     * CPU reference of the whole culling pass
+     *
+     * @param meshes         meshes to test
+     * @param viewProjection camera view projection matrix
+     * @param visible        destination for indices of visible meshes (at least meshes count long)
+     * @return number of visible meshes
+     */
+    public static int cull(List<Mesh> meshes, Matrix4f viewProjection, int[] visible)
+    {
+        Vector4f[] frustumPlanes = getPlanes(viewProjection, new Vector4f[]{new Vector4f(), new Vector4f(),
+                new Vector4f(), new Vector4f(), new Vector4f(), new Vector4f()});
+        Matrix4f model = new Matrix4f();
+        Vector3f min = new Vector3f();
+        Vector3f max = new Vector3f();
+
+        int count = 0;
+        for (int i = 0; i < meshes.size(); i++) {
+            Mesh mesh = meshes.get(i);
+            if (isVisible(frustumPlanes, mesh.getModelMatrix(model), mesh.getBoundsMin(min), mesh.getBoundsMax(max)))
+                visible[count++] = i;
+        }
+        return count;
+    }
+
+    /**
+     * Deletes buffers and culling shader
+     */
+    static void remove()
+    {
+        if (!enabled)
+            return;
+
+        for (int i = 0; i < FRAMES; i++) {
+            if (fences[i] != 0)
+                glDeleteSync(fences[i]);
+            fences[i] = 0;
+            if (readbackBuffers[i] != 0)
+                glDeleteBuffers(readbackBuffers[i]);
+            readbackBuffers[i] = 0;
+            readbackMapped[i] = null;
+        }
+
+        glDeleteBuffers(objectBuffer);
+        glDeleteBuffers(transformBuffer);
+        glDeleteBuffers(instanceBuffer);
+        glDeleteBuffers(commandBuffer);
+        glDeleteBuffers(counterBuffer);
+        glDeleteBuffers(rejectedBuffer);
+        glDeleteQueries(timerQueries);
+        cullShader.remove();
+        DepthPyramid.remove();
+        enabled = false;
+    }
+
+    // Consumes counters copied FRAMES frames ago if GPU already finished them, never waits
+    private static void readCounters()
+    {
+        if (fences[frame] == 0)
+            return;
+
+        int status = glClientWaitSync(fences[frame], 0, 0);
+        glDeleteSync(fences[frame]);
+        fences[frame] = 0;
+        if (status != GL_ALREADY_SIGNALED && status != GL_CONDITION_SATISFIED)
+            return;
+
+        ByteBuffer counters = readbackMapped[frame];
+        drawnMeshes = 0;
+        int rejectedDrawn = 0;
+        for (int pool = 0; pool < GeometryArena.MAX_POOLS; pool++) {
+            drawnMeshes += counters.getInt(pool * 4);
+            rejectedDrawn += counters.getInt((GeometryArena.MAX_POOLS + pool) * 4);
+        }
+        drawnMeshes += rejectedDrawn;
+        occludedMeshes = occlusionTestedFrames[frame] ? counters.getInt(REJECTED_OFFSET) - rejectedDrawn : 0;
+
+        // Queries are older than the fence, so they are available too
+        gBufferTime = (glGetQueryObjectui64(timerQueries[frame * 4 + 1], GL_QUERY_RESULT)
+                - glGetQueryObjectui64(timerQueries[frame * 4], GL_QUERY_RESULT)
+                + glGetQueryObjectui64(timerQueries[frame * 4 + 3], GL_QUERY_RESULT)
+                - glGetQueryObjectui64(timerQueries[frame * 4 + 2], GL_QUERY_RESULT)) / 1000000.0;
+
+        if (!TextureStreamer.isEnabled())
+            return;
+
+        int materials = Math.min(readbackMaterials[frame], MaterialTable.getCount());
+        for (int i = 0; i < materials; i++) {
+            int bits = counters.getInt(MATERIALS_OFFSET + i * 4);
+            Material material = MaterialTable.get(i);
+            if (bits != 0 && material != null)
+                TextureStreamer.request(material, Float.intBitsToFloat(bits));
+        }
+    }
+
+    // Writes culling block of the phase and dispatches culling shader
+    private static void cull(int phase, boolean occlusionTested, Vector3f cameraPosition, float projectionScale)
+    {
+        int offset = UniformRing.allocate(CULLING_SIZE);
+        ByteBuffer mapped = UniformRing.getMapped();
+        for (int i = 0; i < 6; i++)
+            planes[i].get(offset + i * 16, mapped);
+        mapped.putFloat(offset + 96, cameraPosition.x).putFloat(offset + 100, cameraPosition.y)
+                .putFloat(offset + 104, cameraPosition.z).putFloat(offset + 108, projectionScale);
+        DepthPyramid.getViewProjection(pyramidViewProjection).get(offset + 112, mapped);
+        mapped.putFloat(offset + 176, DepthPyramid.getWidth()).putFloat(offset + 180, DepthPyramid.getHeight());
+        mapped.putInt(offset + 184, objectCount).putFloat(offset + 188, Orchid.getRenderHeight());
+        mapped.putInt(offset + 192, phase).putInt(offset + 196, occlusionTested ? 1 : 0)
+                .putInt(offset + 200, DepthPyramid.getLevels());
+        UniformRing.bind(GL_UNIFORM_BUFFER, Shader.CULLING_BLOCK, offset, CULLING_SIZE);
+
+        cullShader.use();
+        glDispatchCompute((objectCount + GROUP_SIZE - 1) / GROUP_SIZE, 1, 1);
+        glMemoryBarrier(GL_COMMAND_BARRIER_BIT | GL_SHADER_STORAGE_BARRIER_BIT | GL_BUFFER_UPDATE_BARRIER_BIT);
+    }
+
+    // Draws commands of the phase, one indirect count draw per geometry pool
+    private static void drawCommands(Shader shader, int phase)
+    {
+        shader.use();
+        glBindBuffer(GL_DRAW_INDIRECT_BUFFER, commandBuffer);
+        glBindBuffer(GL_PARAMETER_BUFFER_ARB, counterBuffer);
+
+        for (int pool = 0; pool < GeometryArena.getPoolCount(); pool++) {
+            if (poolCounts[pool] == 0)
+                continue;
+
+            glBindVertexArray(GeometryArena.getVertexArray(pool));
+            glMultiDrawElementsIndirectCountARB(GL_TRIANGLES, GeometryArena.getIndexType(pool),
+                    (long) (phase * objectCount + poolRegions[pool]) * COMMAND_SIZE,
+                    (long) (phase * GeometryArena.MAX_POOLS + pool) * 4, poolCounts[pool], 0);
+        }
+
+        glBindVertexArray(0);
+        glBindBuffer(GL_DRAW_INDIRECT_BUFFER, 0);
+        glBindBuffer(GL_PARAMETER_BUFFER_ARB, 0);
+    }
+
+    // Writes objects grouped by geometry pool, every pool gets command range of its objects count
+    private static void buildObjects()
+    {
+        objectCount = objects.size();
+        Arrays.fill(poolCounts, 0);
+        for (Mesh mesh : objects)
+            poolCounts[mesh.getGeometry().getPool()]++;
+
+        int[] cursors = new int[GeometryArena.MAX_POOLS];
+        for (int pool = 0, region = 0; pool < GeometryArena.MAX_POOLS; pool++) {
+            poolRegions[pool] = cursors[pool] = region;
+            region += poolCounts[pool];
+        }
+
+        if (objectCount > objectCapacity) {
+            objectCapacity = Math.max(objectCount, objectCapacity * 2);
+            objectData = BufferUtils.createByteBuffer(objectCapacity * OBJECT_SIZE);
+
+            // Both phases have their own commands
+            glBindBuffer(GL_SHADER_STORAGE_BUFFER, instanceBuffer);
+            glBufferData(GL_SHADER_STORAGE_BUFFER, (long) objectCapacity * 2 * INSTANCE_SIZE, GL_DYNAMIC_DRAW);
+            glBindBuffer(GL_SHADER_STORAGE_BUFFER, commandBuffer);
+            glBufferData(GL_SHADER_STORAGE_BUFFER, (long) objectCapacity * 2 * COMMAND_SIZE, GL_DYNAMIC_DRAW);
+            glBindBuffer(GL_SHADER_STORAGE_BUFFER, rejectedBuffer);
+            glBufferData(GL_SHADER_STORAGE_BUFFER, (long) objectCapacity * 4, GL_DYNAMIC_DRAW);
+        }
+
+        objectData.clear();
+        for (Mesh mesh : objects) {
+            int offset = cursors[mesh.getGeometry().getPool()]++ * OBJECT_SIZE;
+            writeObject(mesh, offset);
+        }
+
+        objectData.limit(objectCount * OBJECT_SIZE);
+        glBindBuffer(GL_SHADER_STORAGE_BUFFER, objectBuffer);
+        glBufferData(GL_SHADER_STORAGE_BUFFER, objectData, GL_STATIC_DRAW);
+        glBindBuffer(GL_SHADER_STORAGE_BUFFER, 0);
+        objectData.clear();
+
+        objectsDirty = false;
+        builtOrderVersion = TransformStore.getOrderVersion();
+        builtArenaVersion = GeometryArena.getVersion();
+    }
+
+    private static void writeObject(Mesh mesh, int offset)
+    {
+        GeometryArena.Allocation geometry = mesh.getGeometry();
+        float[] thresholds = mesh.getLodThresholds();
+
+        mesh.getBoundsMin(boundsMin).get(offset, objectData);
+        mesh.getBoundsMax(boundsMax).get(offset + 16, objectData);
+        for (int i = 0; i < 3; i++)
+            objectData.putFloat(offset + 32 + i * 4, i < thresholds.length ? thresholds[i] : 0.0f);
+        objectData.putFloat(offset + 44, mesh.getLodHysteresis());
+
+        for (int lod = 0; lod < Mesh.MAX_LODS; lod++) {
+            int level = Math.min(lod, mesh.getLodCount() - 1);
+            objectData.putInt(offset + 48 + lod * 4, mesh.getFirstIndex(level));
+            objectData.putInt(offset + 64 + lod * 4, mesh.getNumIndices(level));
+        }
+
+        objectData.putInt(offset + 80, geometry.getBaseVertex());
+        objectData.putInt(offset + 84, mesh.transform);
+        objectData.putInt(offset + 88, mesh.getMaterial() != null ? mesh.getMaterial().getId() : 0);
+        objectData.putInt(offset + 92, geometry.getPool());
+        objectData.putInt(offset + 96, poolRegions[geometry.getPool()]);
+        objectData.putInt(offset + 100, Math.min(mesh.getLodCount(), thresholds.length + 1));
+        objectData.putInt(offset + 104, 0);
+        objectData.putInt(offset + 108, 0);
+    }
+
+    // Uploads all world matrices (one copy, no per-object work)
+    private static void uploadTransforms()
+    {
+        int floats = TransformStore.getCount() * 16;
+        if (transformData.capacity() < floats)
+            transformData = BufferUtils.createFloatBuffer(Math.max(floats, transformData.capacity() * 2));
+
+        transformData.clear();
+        transformData.put(TransformStore.getWorldData(), 0, floats).flip();
+
+        glBindBuffer(GL_SHADER_STORAGE_BUFFER, transformBuffer);
+        glBufferData(GL_SHADER_STORAGE_BUFFER, transformData, GL_DYNAMIC_DRAW);
+        glBindBuffer(GL_SHADER_STORAGE_BUFFER, 0);
+        uploadedPass = TransformStore.getPass();
+    }
+
+    // Allocates counter buffer and readback buffers for all materials
+    private static void allocateCounters()
+    {
+        materialCapacity = Math.max(MaterialTable.getCount(), materialCapacity * 2);
+        long size = MATERIALS_OFFSET + materialCapacity * 4L;
+
+        glBindBuffer(GL_SHADER_STORAGE_BUFFER, counterBuffer);
+        glBufferData(GL_SHADER_STORAGE_BUFFER, size, GL_DYNAMIC_COPY);
+        glBindBuffer(GL_SHADER_STORAGE_BUFFER, 0);
+
+        int flags = GL_MAP_READ_BIT | GL_MAP_PERSISTENT_BIT | GL_MAP_COHERENT_BIT;
+        for (int i = 0; i < FRAMES; i++) {
+            if (fences[i] != 0) {
+                glDeleteSync(fences[i]);
+                fences[i] = 0;
+            }
+            if (readbackBuffers[i] != 0)
+                glDeleteBuffers(readbackBuffers[i]);
+
+            readbackBuffers[i] = glGenBuffers();
+            glBindBuffer(GL_COPY_WRITE_BUFFER, readbackBuffers[i]);
+            glBufferStorage(GL_COPY_WRITE_BUFFER, size, flags);
+            readbackMapped[i] = glMapBufferRange(GL_COPY_WRITE_BUFFER, 0, size, flags);
+        }
+        glBindBuffer(GL_COPY_WRITE_BUFFER, 0);
+    }
+}
@@ -0,0 +1,153 @@
+package org.orchid;
+
+import org.joml.FrustumIntersection;
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * GPU culling check - compares CPU reference of the culling pass ({@link GpuCulling#cull}) with JOML frustum test of
+ * mesh world bounds and with frustum query of the bounding volume hierarchy on random boxes (no GL context is
+ * required)
+ * <p>
+ * Usage: "GpuCullingCheck [meshes] [views]", exits with non-zero status if some check fails. Results of the culling
+ * shader can be compared with the same reference when it runs on a software GL implementation.
+ */
+public class GpuCullingCheck
+{
+    private static final float EXTENT = 100.0f;
+    private static final int POINT_SAMPLES = 8;
+
+    private static int failures = 0;
+
+    public static void main(String[] args)
+    {
+        int meshCount = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int views = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+        Random random = new Random(meshCount);
+
+        // Random boxes with random rotation and non-uniform scale under a few parents
+        Node root = new Node("root");
+        List<Mesh> meshes = new ArrayList<>(meshCount);
+        Map<Node, Integer> indices = new IdentityHashMap<>();
+        for (int i = 0; i < meshCount; i++) {
+            Mesh mesh = new Mesh("mesh_" + i, root);
+            mesh.setPosition(symmetric(random, EXTENT), symmetric(random, EXTENT), symmetric(random, EXTENT));
+            mesh.setRotation(symmetric(random, 3.2f), symmetric(random, 3.2f), symmetric(random, 3.2f));
+            mesh.setScale(0.2f + random.nextFloat() * 3.0f, 0.2f + random.nextFloat() * 3.0f,
+                    0.2f + random.nextFloat() * 3.0f);
+
+            Vector3f min = new Vector3f(symmetric(random, 2.0f), symmetric(random, 2.0f), symmetric(random, 2.0f));
+            mesh.setBounds(min, new Vector3f(min).add(random.nextFloat() * 4.0f, random.nextFloat() * 4.0f,
+                    random.nextFloat() * 4.0f));
+            indices.put(mesh, meshes.size());
+            meshes.add(mesh);
+        }
+        TransformStore.update();
+
+        BoundingVolumeHierarchy tree = new BoundingVolumeHierarchy();
+        for (Mesh mesh : meshes)
+            tree.insert(mesh);
+
+        int[] visible = new int[meshCount];
+        boolean[] culled = new boolean[meshCount];
+        boolean[] inTree = new boolean[meshCount];
+        List<Node> found = new ArrayList<>();
+        long visibleTotal = 0;
+
+        for (int view = 0; view < views; view++) {
+            Matrix4f viewProjection = new Matrix4f()
+                    .perspective(0.5f + random.nextFloat() * 1.5f, 0.5f + random.nextFloat() * 2.0f, 0.1f,
+                            20.0f + random.nextFloat() * EXTENT * 2.0f)
+                    .lookAt(symmetric(random, EXTENT), symmetric(random, EXTENT), symmetric(random, EXTENT),
+                            symmetric(random, EXTENT), symmetric(random, EXTENT), symmetric(random, EXTENT),
+                            0.0f, 1.0f, 0.0f);
+            FrustumIntersection frustum = new FrustumIntersection(viewProjection);
+
+            int count = GpuCulling.cull(meshes, viewProjection, visible);
+            visibleTotal += count;
+
+            Arrays.fill(culled, true);
+            for (int i = 0; i < count; i++)
+                culled[visible[i]] = false;
+
+            Arrays.fill(inTree, false);
+            found.clear();
+            tree.query(frustum, found);
+            for (Node node : found)
+                inTree[indices.get(node)] = true;
+
+            int mismatches = 0;
+            int missed = 0;
+            int outsideTree = 0;
+            for (int i = 0; i < meshCount; i++) {
+                Mesh mesh = meshes.get(i);
+
+                // Same world bounding box tested by JOML
+                if (mesh.isVisible(frustum) == culled[i])
+                    mismatches++;
+
+                // Box points inside the frustum should never be culled
+                if (culled[i] && hasPointInside(mesh, frustum, random))
+                    missed++;
+
+                // Tree tests enlarged bounds, so it finds every visible mesh
+                if (!culled[i] && !inTree[i])
+                    outsideTree++;
+            }
+
+            check(mismatches == 0, "view " + view + ": " + mismatches + " meshes differ from JOML test");
+            check(missed == 0, "view " + view + ": " + missed + " culled meshes have points inside frustum");
+            check(outsideTree == 0, "view " + view + ": " + outsideTree + " visible meshes not found by tree");
+        }
+
+        System.out.printf("%d meshes, %d views, %.1f visible meshes per view%n", meshCount, views,
+                (double) visibleTotal / views);
+        System.out.println(failures == 0 ? "GPU culling check passed" : failures + " checks failed");
+        if (failures != 0)
+            System.exit(1);
+    }
+
+    // Samples box corners and random interior points in world space
+    private static boolean hasPointInside(Mesh mesh, FrustumIntersection frustum, Random random)
+    {
+        Matrix4f model = mesh.getModelMatrix(new Matrix4f());
+        Vector3f min = mesh.getBoundsMin(new Vector3f());
+        Vector3f max = mesh.getBoundsMax(new Vector3f());
+        Vector3f point = new Vector3f();
+
+        for (int i = 0; i < 8 + POINT_SAMPLES; i++) {
+            if (i < 8)
+                point.set((i & 1) != 0 ? max.x : min.x, (i & 2) != 0 ? max.y : min.y, (i & 4) != 0 ? max.z : min.z);
+            else
+                point.set(min.x + random.nextFloat() * (max.x - min.x), min.y + random.nextFloat() * (max.y - min.y),
+                        min.z + random.nextFloat() * (max.z - min.z));
+
+            model.transformPosition(point);
+            if (frustum.testPoint(point))
+                return true;
+        }
+
+        return false;
+    }
+
+    private static float symmetric(Random random, float extent)
+    {
+        return (random.nextFloat() * 2.0f - 1.0f) * extent;
+    }
+
+    private static void check(boolean condition, String message)
+    {
+        if (condition)
+            return;
+
+        System.err.println("Check failed: " + message);
+        failures++;
+    }
+}
@@ -0,0 +1,212 @@
+package org.orchid;
+
+import org.joml.Vector3f;
+
+/**
+ * Light class - point or spot light node
+ * <p>
+ * Light affects only surfaces closer than its range, so {@link LightClusters} can assign it to the few clusters it
+ * touches. Spot light shines along negative z axis of the node.
+ */
+public class Light extends Node
+{
+    /**
+     * Light kind
+     */
+    public enum Type
+    {
+        POINT, SPOT
+    }
+
+    private Type type = Type.POINT;
+    private Vector3f color = new Vector3f(1.0f);
+    private float intensity = 1.0f;
+    private float range = 10.0f;
+    private float innerAngle = 0.5f;
+    private float outerAngle = 0.6f;
+
+    /**
+     * Constructor
+     *
+     * @param name unique identifier
+     */
+    public Light(String name)
+    {
+        super(name);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param name   node name
+     * @param parent parent node
+     */
+    public Light(String name, Node parent)
+    {
+        this(name);
+        setParent(parent);
+    }
+
+    /**
+     * Light type getter
+     *
+     * @return light type
+     */
+    public Type getType()
+    {
+        return type;
+    }
+
+    /**
+     * Light type setter
+     *
+     * @param type new light type
+     */
+    public void setType(Type type)
+    {
+        this.type = type;
+    }
+
+    /**
+     * Light color getter
+     *
+     * @param dest destination vector
+     * @return linear color (dest)
+     */
+    public Vector3f getColor(Vector3f dest)
+    {
+        return dest.set(color);
+    }
+
+    /**
+     * Light color setter
+     *
+     * @param r red component
+     * @param g green component
+     * @param b blue component
+     */
+    public void setColor(float r, float g, float b)
+    {
+        color.set(r, g, b);
+    }
+
+    /**
+     * Light intensity getter
+     *
+     * @return color multiplier
+     */
+    public float getIntensity()
+    {
+        return intensity;
+    }
+
+    /**
+     * Light intensity setter
+     *
+     * @param intensity new color multiplier
+     */
+    public void setIntensity(float intensity)
+    {
+        this.intensity = intensity;
+    }
+
+    /**
+     * Light range getter
+     *
+     * @return distance where light fades out completely
+     */
+    public float getRange()
+    {
+        return range;
+    }
+
+    /**
+     * Light range setter
+     *
+     * @param range new distance where light fades out completely
+     */
+    public void setRange(float range)
+    {
+        this.range = Math.max(range, 0.0f);
+    }
+
+    /**
+     * Spot light inner angle getter
+     *
+     * @return half angle of the fully lit cone in radians
+     */
+    public float getInnerAngle()
+    {
+        return innerAngle;
+    }
+
+    /**
+     * Spot light inner angle setter
+     *
+     * @param innerAngle new half angle of the fully lit cone in radians
+     */
+    public void setInnerAngle(float innerAngle)
+    {
+        this.innerAngle = innerAngle;
+    }
+
+    /**
+     * Spot light outer angle getter
+     *
+     * @return half angle of the cone light fades out at in radians
+     */
+    public float getOuterAngle()
+    {
+        return outerAngle;
+    }
+
+    /**
+     * Spot light outer angle setter
+     *
+     * @param outerAngle new half angle of the cone light fades out at in radians
+     */
+    public void setOuterAngle(float outerAngle)
+    {
+        this.outerAngle = outerAngle;
+    }
+
+    /**
+     * World space direction light shines along (negative z axis of the node)
+     *
+     * @param dest destination vector
+     * @return normalized direction (dest)
+     */
+    public Vector3f getWorldDirection(Vector3f dest)
+    {
+        TransformStore.update();
+        return dest.set(-TransformStore.getWorld(transform, 8), -TransformStore.getWorld(transform, 9),
+                -TransformStore.getWorld(transform, 10)).normalize();
+    }
+
+    /**
+     * World space sphere containing everything the light affects
+     *
+     * @param center destination vector for sphere center
+     * @return sphere radius
+     */
+    public float getWorldBounds(Vector3f center)
+    {
+        getWorldPosition(center);
+
+        if (type == Type.POINT)
+            return range;
+
+        // Narrow cones fit into the sphere passing through the tip and the rim of the cone cap, wide ones use the
+        // sphere around the tip
+        if (outerAngle > Math.PI * 0.25)
+            return range;
+
+        float radius = range * 0.5f / (float) Math.cos(outerAngle);
+        float x = -TransformStore.getWorld(transform, 8);
+        float y = -TransformStore.getWorld(transform, 9);
+        float z = -TransformStore.getWorld(transform, 10);
+        float scale = radius / (float) Math.sqrt(x * x + y * y + z * z);
+        center.add(x * scale, y * scale, z * scale);
+        return radius;
+    }
+}
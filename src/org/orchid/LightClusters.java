@@ -0,0 +1,316 @@
+package org.orchid;
+
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.lwjgl.opengl.GL31.GL_UNIFORM_BUFFER;
+import static org.lwjgl.opengl.GL43.GL_SHADER_STORAGE_BUFFER;
+
+/**
+ * Clustered light assignment - view frustum is split into a grid of froxels (screen tiles of "cluster_tile_size"
+ * pixels times "cluster_slices" exponential depth slices) and every froxel gets the list of lights which can reach it
+ * <p>
+ * Lights are assigned on CPU every frame: bounding sphere of every light is cut by the depth slices it spans and
+ * screen rectangle of every cut is projected onto the tile grid. Lights, per cluster ranges and the light index list
+ * are written into the uniform ring, so the combine pass shades every pixel only with lights of its cluster.
+ */
+public class LightClusters
+{
+    // std430 light size (position and range, color and cosine of inner angle, direction and cosine of outer angle),
+    // std430 cluster size (first index and count) and std140 cluster grid block size
+    private static final int LIGHT_SIZE = 48;
+    private static final int CLUSTER_SIZE = 8;
+    private static final int GRID_SIZE = 96;
+
+    private static int tileSize = 64;
+    private static int slices = 24;
+
+    private static int gridWidth = 0;
+    private static int gridHeight = 0;
+    private static float near = 0.1f;
+    private static float sliceScale = 0.0f;
+    private static float sliceBias = 0.0f;
+
+    // Cluster light counts, first indices and (cluster, light) pairs found by the last update
+    private static int[] clusterCounts = new int[0];
+    private static int[] clusterOffsets = new int[0];
+    private static int[] pairs = new int[1024];
+    private static int pairCount = 0;
+
+    private static int lightCount = 0;
+    private static int visibleLights = 0;
+    private static int maxClusterLights = 0;
+
+    // Screen tile rectangle of the last projected sphere part
+    private static int firstTileX, lastTileX, firstTileY, lastTileY;
+
+    private static Matrix4f viewMatrix = new Matrix4f();
+    private static Matrix4f projectionMatrix = new Matrix4f();
+    private static Vector3f center = new Vector3f();
+    private static Vector3f vector = new Vector3f();
+
+    /**
+     * Reads grid resolution from "cluster_tile_size" and "cluster_slices" properties
+     */
+    static void init()
+    {
+        if (Configuration.getProperty("cluster_tile_size") != null)
+            tileSize = Math.max(Integer.parseInt(Configuration.getProperty("cluster_tile_size")), 1);
+        if (Configuration.getProperty("cluster_slices") != null)
+            slices = Math.max(Integer.parseInt(Configuration.getProperty("cluster_slices")), 1);
+    }
+
+    /**
+     * Assigns lights to clusters of camera view and binds lights, clusters, light indices and grid blocks
+     *
+     * @param camera camera lights are seen from
+     * @param lights scene lights
+     * @param width  viewport width in pixels
+     * @param height viewport height in pixels
+     */
+    static void update(Camera camera, List<Light> lights, int width, int height)
+    {
+        camera.getViewMatrix(viewMatrix);
+        camera.getProjectionMatrix(projectionMatrix);
+        near = camera.getNear();
+
+        gridWidth = (width + tileSize - 1) / tileSize;
+        gridHeight = (height + tileSize - 1) / tileSize;
+        int clusterCount = gridWidth * gridHeight * slices;
+
+        if (clusterCounts.length < clusterCount) {
+            clusterCounts = new int[clusterCount];
+            clusterOffsets = new int[clusterCount];
+        }
+        Arrays.fill(clusterCounts, 0, clusterCount, 0);
+
+        // Slice of view depth d is log(d) * scale + bias, so slices are thinner near the camera
+        float logRatio = (float) Math.log(camera.getFar() / near);
+        sliceScale = slices / logRatio;
+        sliceBias = -slices * (float) Math.log(near) / logRatio;
+
+        lightCount = lights.size();
+        visibleLights = 0;
+        pairCount = 0;
+
+        for (int i = 0; i < lightCount; i++)
+            if (assign(lights.get(i), i, camera.getFar(), width, height))
+                visibleLights++;
+
+        maxClusterLights = 0;
+        int first = 0;
+        for (int i = 0; i < clusterCount; i++) {
+            clusterOffsets[i] = first;
+            first += clusterCounts[i];
+            maxClusterLights = Math.max(maxClusterLights, clusterCounts[i]);
+        }
+
+        // All blocks share one ring region, so they are in the same buffer even if the ring grows
+        int lightsSize = Math.max(lightCount, 1) * LIGHT_SIZE;
+        int clustersSize = clusterCount * CLUSTER_SIZE;
+        int indicesSize = Math.max(pairCount, 1) * 4;
+
+        int lightsOffset = UniformRing.allocate(align(lightsSize) + align(clustersSize) + align(indicesSize)
+                + GRID_SIZE);
+        int clustersOffset = lightsOffset + align(lightsSize);
+        int indicesOffset = clustersOffset + align(clustersSize);
+        int gridOffset = indicesOffset + align(indicesSize);
+        ByteBuffer mapped = UniformRing.getMapped();
+
+        for (int i = 0; i < lightCount; i++)
+            writeLight(mapped, lightsOffset + i * LIGHT_SIZE, lights.get(i));
+
+        for (int i = 0; i < clusterCount; i++)
+            mapped.putInt(clustersOffset + i * CLUSTER_SIZE, clusterOffsets[i])
+                    .putInt(clustersOffset + i * CLUSTER_SIZE + 4, clusterCounts[i]);
+
+        // Pairs are scattered to their cluster ranges, offsets are advanced as cursors
+        for (int i = 0; i < pairCount; i++)
+            mapped.putInt(indicesOffset + clusterOffsets[pairs[i * 2]]++ * 4, pairs[i * 2 + 1]);
+
+        mapped.putInt(gridOffset, gridWidth).putInt(gridOffset + 4, gridHeight)
+                .putInt(gridOffset + 8, slices).putInt(gridOffset + 12, tileSize)
+                .putFloat(gridOffset + 16, sliceScale).putFloat(gridOffset + 20, sliceBias)
+                .putFloat(gridOffset + 24, 0.0f).putFloat(gridOffset + 28, 0.0f);
+        viewMatrix.get(gridOffset + 32, mapped);
+
+        UniformRing.bind(GL_SHADER_STORAGE_BUFFER, Shader.LIGHT_BLOCK, lightsOffset, lightsSize);
+        UniformRing.bind(GL_SHADER_STORAGE_BUFFER, Shader.CLUSTER_BLOCK, clustersOffset, clustersSize);
+        UniformRing.bind(GL_SHADER_STORAGE_BUFFER, Shader.LIGHT_INDEX_BLOCK, indicesOffset, indicesSize);
+        UniformRing.bind(GL_UNIFORM_BUFFER, Shader.CLUSTER_GRID_BLOCK, gridOffset, GRID_SIZE);
+    }
+
+    /**
+     * Number of lights uploaded by the last update
+     *
+     * @return lights count
+     */
+    public static int getLightCount()
+    {
+        return lightCount;
+    }
+
+    /**
+     * Number of lights which reached at least one cluster during the last update
+     *
+     * @return visible lights count
+     */
+    public static int getVisibleLights()
+    {
+        return visibleLights;
+    }
+
+    /**
+     * Number of light indices written by the last update (sum of light counts of all clusters)
+     *
+     * @return light indices count
+     */
+    public static int getAssignedLights()
+    {
+        return pairCount;
+    }
+
+    /**
+     * Largest number of lights in one cluster during the last update (upper bound of lights shading one pixel)
+     *
+     * @return maximal cluster light count
+     */
+    public static int getMaxClusterLights()
+    {
+        return maxClusterLights;
+    }
+
+    /**
+     * Grid resolution getter
+     *
+     * @param dest destination vector (tiles horizontally, tiles vertically, depth slices)
+     * @return grid resolution (dest)
+     */
+    public static Vector3f getGridSize(Vector3f dest)
+    {
+        return dest.set(gridWidth, gridHeight, slices);
+    }
+
+    // Rounds slice size up to the ring binding alignment
+    private static int align(int size)
+    {
+        return (size + UniformRing.getAlignment() - 1) / UniformRing.getAlignment() * UniformRing.getAlignment();
+    }
+
+    // Adds light to every cluster its bounding sphere reaches, returns false if it reaches none
+    private static boolean assign(Light light, int index, float far, int width, int height)
+    {
+        float radius = light.getWorldBounds(center);
+        if (radius <= 0.0f)
+            return false;
+
+        viewMatrix.transformPosition(center);
+        float depth = -center.z;
+        float minDepth = Math.max(depth - radius, near);
+        float maxDepth = Math.min(depth + radius, far);
+        if (minDepth > maxDepth)
+            return false;
+
+        boolean assigned = false;
+
+        for (int slice = getSlice(minDepth), last = getSlice(maxDepth); slice <= last; slice++) {
+            float sliceNear = Math.max(getSliceDepth(slice), minDepth);
+            float sliceFar = Math.min(getSliceDepth(slice + 1), maxDepth);
+
+            // Radius of the sphere part between slice planes
+            float distance = depth < sliceNear ? sliceNear - depth : depth > sliceFar ? depth - sliceFar : 0.0f;
+            float partRadius = (float) Math.sqrt(Math.max(radius * radius - distance * distance, 0.0f));
+
+            if (!project(partRadius, sliceNear, sliceFar, width, height))
+                continue;
+
+            for (int y = firstTileY; y <= lastTileY; y++)
+                for (int x = firstTileX; x <= lastTileX; x++) {
+                    int cluster = (slice * gridHeight + y) * gridWidth + x;
+
+                    if (pairCount * 2 == pairs.length)
+                        pairs = Arrays.copyOf(pairs, pairs.length * 2);
+                    pairs[pairCount * 2] = cluster;
+                    pairs[pairCount * 2 + 1] = index;
+                    pairCount++;
+                    clusterCounts[cluster]++;
+                }
+
+            assigned = true;
+        }
+
+        return assigned;
+    }
+
+    // Projects box around the sphere part centered at view space center onto tile grid, false if it is off screen
+    private static boolean project(float radius, float nearDepth, float farDepth, int width, int height)
+    {
+        // Projected coordinate is linear in x / depth, so extremes are at box corners
+        float minX = Math.min((center.x - radius) / nearDepth, (center.x - radius) / farDepth)
+                * projectionMatrix.m00() - projectionMatrix.m20();
+        float maxX = Math.max((center.x + radius) / nearDepth, (center.x + radius) / farDepth)
+                * projectionMatrix.m00() - projectionMatrix.m20();
+        float minY = Math.min((center.y - radius) / nearDepth, (center.y - radius) / farDepth)
+                * projectionMatrix.m11() - projectionMatrix.m21();
+        float maxY = Math.max((center.y + radius) / nearDepth, (center.y + radius) / farDepth)
+                * projectionMatrix.m11() - projectionMatrix.m21();
+
+        if (maxX < -1.0f || minX > 1.0f || maxY < -1.0f || minY > 1.0f)
+            return false;
+
+        firstTileX = getTile(minX, width, gridWidth);
+        lastTileX = getTile(maxX, width, gridWidth);
+        firstTileY = getTile(minY, height, gridHeight);
+        lastTileY = getTile(maxY, height, gridHeight);
+        return true;
+    }
+
+    // Tile containing normalized device coordinate
+    private static int getTile(float coordinate, int size, int tiles)
+    {
+        int tile = (int) Math.floor((coordinate * 0.5f + 0.5f) * size / tileSize);
+        return Math.min(Math.max(tile, 0), tiles - 1);
+    }
+
+    // Depth slice containing view depth
+    private static int getSlice(float depth)
+    {
+        int slice = (int) Math.floor(Math.log(depth) * sliceScale + sliceBias);
+        return Math.min(Math.max(slice, 0), slices - 1);
+    }
+
+    // View depth where slice starts
+    private static float getSliceDepth(int slice)
+    {
+        return (float) Math.exp((slice - sliceBias) / sliceScale);
+    }
+
+    // Writes std430 light entry, point lights get cone cosines which make spot factor always one
+    private static void writeLight(ByteBuffer mapped, int offset, Light light)
+    {
+        light.getWorldPosition(vector);
+        mapped.putFloat(offset, vector.x).putFloat(offset + 4, vector.y).putFloat(offset + 8, vector.z)
+                .putFloat(offset + 12, light.getRange());
+
+        // Inner cosine is kept above outer one, smoothstep is undefined for equal edges
+        boolean spot = light.getType() == Light.Type.SPOT;
+        float cosOuter = spot ? (float) Math.cos(light.getOuterAngle()) : -2.0f;
+        float cosInner = spot ? Math.max((float) Math.cos(light.getInnerAngle()), cosOuter + 0.001f) : -1.0f;
+
+        float intensity = light.getIntensity();
+        light.getColor(vector);
+        mapped.putFloat(offset + 16, vector.x * intensity).putFloat(offset + 20, vector.y * intensity)
+                .putFloat(offset + 24, vector.z * intensity).putFloat(offset + 28, cosInner);
+
+        if (spot)
+            light.getWorldDirection(vector);
+        else
+            vector.zero();
+        mapped.putFloat(offset + 32, vector.x).putFloat(offset + 36, vector.y).putFloat(offset + 40, vector.z)
+                .putFloat(offset + 44, cosOuter);
+    }
+}
@@ -2,21 +2,18 @@ package org.orchid;
 
 import org.joml.Vector3f;
 import org.joml.Vector4f;
-import org.lwjgl.BufferUtils;
 
 import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
 
 import static org.lwjgl.opengl.GL13.GL_TEXTURE0;
 import static org.lwjgl.opengl.GL13.glActiveTexture;
-import static org.lwjgl.opengl.GL15.*;
-import static org.lwjgl.opengl.GL30.glBindBufferBase;
-import static org.lwjgl.opengl.GL31.GL_UNIFORM_BUFFER;
 
 public class Material
 {
     private Vector4f albedo = new Vector4f(1.0f);
     private Texture albedoMap = null;
-    ByteBuffer materialBuffer = BufferUtils.createByteBuffer(64);
     private Texture metalnessMap = null;
     private float roughness = 1.0f;
     private Texture roughnessMap = null;
@@ -26,27 +23,47 @@ public class Material
     private Texture emissionMap = null;
     private Texture ambientOcclusionMap = null;
 
-    private boolean bufferUpdated = false;
-    private int buffer;
     private float metalness = 1.0f;
 
+    // Map flags and references order in material table entry
+    private static final int ALBEDO_MAP = 0;
+    private static final int METALNESS_MAP = 1;
+    private static final int ROUGHNESS_MAP = 2;
+    private static final int NORMAL_MAP = 3;
+    private static final int EMISSION_MAP = 4;
+    private static final int AMBIENT_OCCLUSION_MAP = 5;
+    private static final int REFERENCES_OFFSET = 48;
+
+    private int id;
+
+    // Materials with the same maps share texture set identifier
+    private static Map<String, Integer> textureSets = new HashMap<>();
+    private int textureSetId = -1;
+
     /**
-     * Constructor - allocates material UBO
+     * Constructor - material is added to the material table
      */
     public Material()
     {
-        buffer = glGenBuffers();
-        glBindBuffer(GL_UNIFORM_BUFFER, buffer);
-        glBufferData(GL_UNIFORM_BUFFER, 80, GL_STATIC_DRAW);
-        glBindBuffer(GL_UNIFORM_BUFFER, 0);
+        id = MaterialTable.add(this);
     }
 
     /**
-     * Removes material from GRAM
+     * Removes material from the material table, its identifier can be reused by a new material
      */
     public void remove()
     {
-        glDeleteBuffers(buffer);
+        MaterialTable.remove(id);
+    }
+
+    /**
+     * Unique material identifier (among materials which are not removed)
+     *
+     * @return material identifier
+     */
+    public int getId()
+    {
+        return id;
     }
 
     /**
@@ -59,6 +76,17 @@ public class Material
         return new Vector4f(albedo);
     }
 
+    /**
+     * Albedo value getter
+     *
+     * @param dest destination vector
+     * @return albedo value (dest)
+     */
+    public Vector4f getAlbedo(Vector4f dest)
+    {
+        return dest.set(albedo);
+    }
+
     /**
      * Albedo value setter
      *
@@ -67,7 +95,7 @@ public class Material
     public void setAlbedo(Vector4f albedo)
     {
         this.albedo.set(albedo);
-        bufferUpdated = false;
+        MaterialTable.markDirty(id);
     }
 
     /**
@@ -80,7 +108,7 @@ public class Material
     public void setAlbedo(float r, float g, float b, float a)
     {
         albedo.set(r, g, b, a);
-        bufferUpdated = false;
+        MaterialTable.markDirty(id);
     }
 
     /**
@@ -101,7 +129,8 @@ public class Material
     public void setAlbedoMap(Texture albedoMap)
     {
         this.albedoMap = albedoMap;
-        bufferUpdated = false;
+        textureSetId = -1;
+        MaterialTable.markDirty(id);
     }
 
     /**
@@ -122,7 +151,7 @@ public class Material
     public void setMetalness(float metalness)
     {
         this.metalness = metalness;
-        bufferUpdated = false;
+        MaterialTable.markDirty(id);
     }
 
     /**
@@ -143,7 +172,8 @@ public class Material
     public void setMetalnessMap(Texture metalnessMap)
     {
         this.metalnessMap = metalnessMap;
-        bufferUpdated = false;
+        textureSetId = -1;
+        MaterialTable.markDirty(id);
     }
 
     /**
@@ -164,7 +194,7 @@ public class Material
     public void setRoughness(float roughness)
     {
         this.roughness = roughness;
-        bufferUpdated = false;
+        MaterialTable.markDirty(id);
     }
 
     /**
@@ -185,7 +215,8 @@ public class Material
     public void setRoughnessMap(Texture roughnessMap)
     {
         this.roughnessMap = roughnessMap;
-        bufferUpdated = false;
+        textureSetId = -1;
+        MaterialTable.markDirty(id);
     }
 
     /**
@@ -206,7 +237,8 @@ public class Material
     public void setNormalMap(Texture normalMap)
     {
         this.normalMap = normalMap;
-        bufferUpdated = false;
+        textureSetId = -1;
+        MaterialTable.markDirty(id);
     }
 
     /**
@@ -219,6 +251,17 @@ public class Material
         return new Vector3f(emission);
     }
 
+    /**
+     * Emission value getter
+     *
+     * @param dest destination vector
+     * @return emission value (dest)
+     */
+    public Vector3f getEmission(Vector3f dest)
+    {
+        return dest.set(emission);
+    }
+
     /**
      * Emission value setter
      *
@@ -227,7 +270,7 @@ public class Material
     public void setEmission(Vector3f emission)
     {
         this.emission.set(emission);
-        bufferUpdated = false;
+        MaterialTable.markDirty(id);
     }
 
     /**
@@ -240,7 +283,7 @@ public class Material
     public void setEmission(float r, float g, float b)
     {
         emission.set(r, g, b);
-        bufferUpdated = false;
+        MaterialTable.markDirty(id);
     }
 
     /**
@@ -261,7 +304,8 @@ public class Material
     public void setEmissionMap(Texture emissionMap)
     {
         this.emissionMap = emissionMap;
-        bufferUpdated = false;
+        textureSetId = -1;
+        MaterialTable.markDirty(id);
     }
 
     /**
@@ -282,15 +326,44 @@ public class Material
     public void setAmbientOcclusionMap(Texture ambientOcclusionMap)
     {
         this.ambientOcclusionMap = ambientOcclusionMap;
+        textureSetId = -1;
+        MaterialTable.markDirty(id);
+    }
+
+    /**
+     * Texture set identifier - materials using the same maps share it (all materials share it if maps are not bound
+     * per draw)
+     *
+     * @return texture set identifier
+     */
+    public int getTextureSetId()
+    {
+        if (Texture.getBinding() != Texture.Binding.SLOTS)
+            return 0;
+
+        if (textureSetId == -1) {
+            String key = textureKey(albedoMap) + ":" + textureKey(metalnessMap) + ":" + textureKey(roughnessMap)
+                    + ":" + textureKey(normalMap) + ":" + textureKey(emissionMap) + ":"
+                    + textureKey(ambientOcclusionMap);
+
+            Integer set = textureSets.get(key);
+            if (set == null) {
+                set = textureSets.size();
+                textureSets.put(key, set);
+            }
+            textureSetId = set;
+        }
+
+        return textureSetId;
     }
 
     /**
-     * Binds material UBO
+     * Binds material textures to their texture units (only if maps are bound per draw)
      */
-    public void use()
+    public void useTextures()
     {
-        if(!bufferUpdated)
-            updateBuffer();
+        if (Texture.getBinding() != Texture.Binding.SLOTS)
+            return;
 
         if(albedoMap != null) {
             glActiveTexture(GL_TEXTURE0 + Shader.ALBEDO_MAP_BINDING);
@@ -316,33 +389,86 @@ public class Material
             glActiveTexture(GL_TEXTURE0 + Shader.AMBIENT_OCCLUSION_MAP_BINDING);
             ambientOcclusionMap.use();
         }
-        glBindBufferBase(GL_UNIFORM_BUFFER, Shader.MATERIAL_BLOCK, buffer);
-    }
-
-    private void updateBuffer()
-    {
-        materialBuffer.clear();
-
-        materialBuffer.putFloat(0, albedo.x());
-        materialBuffer.putFloat(4, albedo.y());
-        materialBuffer.putFloat(8, albedo.z());
-        materialBuffer.putFloat(12, albedo.w());
-        materialBuffer.putInt(16, albedoMap == null ? 0 : 1);
-        materialBuffer.putInt(20, normalMap == null ? 0 : 1);
-        materialBuffer.putFloat(24, metalness);
-        materialBuffer.putInt(28, metalnessMap == null ? 0 : 1);
-        materialBuffer.putFloat(32, roughness);
-        materialBuffer.putInt(36, roughnessMap == null ? 0 : 1);
-        materialBuffer.putInt(40, ambientOcclusionMap == null ? 0 : 1);
-        materialBuffer.putInt(46, emissionMap == null ? 0 : 1);
-        materialBuffer.putFloat(52, emission.x());
-        materialBuffer.putFloat(56, emission.y());
-        materialBuffer.putFloat(60, emission.z());
-
-        glBindBuffer(GL_UNIFORM_BUFFER, buffer);
-        glBufferData(GL_UNIFORM_BUFFER, materialBuffer, GL_STATIC_DRAW);
-        glBindBuffer(GL_UNIFORM_BUFFER, 0);
-
-        bufferUpdated = true;
+    }
+
+    /**
+     * Writes std430 material table entry
+     *
+     * @param buffer table buffer
+     * @param offset entry offset
+     */
+    void write(ByteBuffer buffer, int offset)
+    {
+        buffer.putFloat(offset, albedo.x());
+        buffer.putFloat(offset + 4, albedo.y());
+        buffer.putFloat(offset + 8, albedo.z());
+        buffer.putFloat(offset + 12, albedo.w());
+        buffer.putFloat(offset + 16, emission.x());
+        buffer.putFloat(offset + 20, emission.y());
+        buffer.putFloat(offset + 24, emission.z());
+        buffer.putFloat(offset + 28, 0.0f);
+        buffer.putFloat(offset + 32, metalness);
+        buffer.putFloat(offset + 36, roughness);
+
+        int flags = 0;
+        for (int map = ALBEDO_MAP; map <= AMBIENT_OCCLUSION_MAP; map++)
+            if (hasMap(getMap(map)))
+                flags |= 1 << map;
+        buffer.putInt(offset + 40, flags);
+        buffer.putInt(offset + 44, 0);
+
+        // Bindless handles or texture array locations (uvec2 each)
+        for (int map = ALBEDO_MAP; map <= AMBIENT_OCCLUSION_MAP; map++)
+            buffer.putLong(offset + REFERENCES_OFFSET + map * 8, reference(getMap(map)));
+    }
+
+    /**
+     * Checks whether texture references differ from the written entry (textures are replaced by loading and
+     * streaming)
+     *
+     * @param buffer table buffer
+     * @param offset entry offset
+     * @return true if entry has to be rewritten
+     */
+    boolean referencesChanged(ByteBuffer buffer, int offset)
+    {
+        for (int map = ALBEDO_MAP; map <= AMBIENT_OCCLUSION_MAP; map++)
+            if (buffer.getLong(offset + REFERENCES_OFFSET + map * 8) != reference(getMap(map)))
+                return true;
+        return false;
+    }
+
+    private Texture getMap(int map)
+    {
+        switch (map) {
+            case ALBEDO_MAP:
+                return albedoMap;
+            case METALNESS_MAP:
+                return metalnessMap;
+            case ROUGHNESS_MAP:
+                return roughnessMap;
+            case NORMAL_MAP:
+                return normalMap;
+            case EMISSION_MAP:
+                return emissionMap;
+            default:
+                return ambientOcclusionMap;
+        }
+    }
+
+    private static int textureKey(Texture texture)
+    {
+        return texture == null ? -1 : texture.getId();
+    }
+
+    // Maps which are not available to shaders (array overflow) are treated as missing
+    private static boolean hasMap(Texture texture)
+    {
+        return texture != null && texture.getReference() != -1;
+    }
+
+    private static long reference(Texture texture)
+    {
+        return texture == null ? 0 : texture.getReference();
     }
 }
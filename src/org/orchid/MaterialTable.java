@@ -0,0 +1,184 @@
+package org.orchid;
+
+import org.lwjgl.BufferUtils;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL30.glBindBufferBase;
+import static org.lwjgl.opengl.GL43.GL_SHADER_STORAGE_BUFFER;
+
+/**
+ * Material table - parameters of all materials packed into one shader storage buffer indexed by material identifier
+ * <p>
+ * Materials are written into a CPU copy of the table when they change, dirty ranges are uploaded once per frame by
+ * sub-range writes. Texture references of material maps are checked every update, because asynchronous loading and
+ * streaming replace them.
+ */
+public class MaterialTable
+{
+    /**
+     * Size of std430 material entry
+     */
+    public static final int ENTRY_SIZE = 96;
+
+    private static Material[] materials = new Material[64];
+    private static boolean[] dirty = new boolean[64];
+    private static int materialCount = 0;
+    private static boolean anyDirty = false;
+
+    // Identifiers of removed materials
+    private static int[] freeIds = new int[16];
+    private static int freeCount = 0;
+
+    private static ByteBuffer table = BufferUtils.createByteBuffer(64 * ENTRY_SIZE);
+    private static int buffer = 0;
+    private static int bufferCapacity = 0;
+
+    /**
+     * Adds material to the table (material identifier is its index, identifiers of removed materials are reused)
+     *
+     * @param material new material
+     * @return material identifier
+     */
+    static int add(Material material)
+    {
+        int id = freeCount > 0 ? freeIds[--freeCount] : materialCount;
+        if (id >= materials.length) {
+            int capacity = Math.max(materials.length * 2, id + 1);
+            materials = Arrays.copyOf(materials, capacity);
+            dirty = Arrays.copyOf(dirty, capacity);
+
+            ByteBuffer grown = BufferUtils.createByteBuffer(capacity * ENTRY_SIZE);
+            table.clear();
+            grown.put(table).clear();
+            table = grown;
+        }
+
+        materials[id] = material;
+        materialCount = Math.max(materialCount, id + 1);
+        markDirty(id);
+        return id;
+    }
+
+    /**
+     * Removes material from the table (its entry is not read by shaders until identifier is reused)
+     *
+     * @param id material identifier
+     */
+    static void remove(int id)
+    {
+        if (materials[id] == null)
+            return;
+
+        materials[id] = null;
+        dirty[id] = false;
+
+        if (freeCount == freeIds.length)
+            freeIds = Arrays.copyOf(freeIds, freeCount * 2);
+        freeIds[freeCount++] = id;
+    }
+
+    /**
+     * Schedules material upload
+     *
+     * @param id material identifier
+     */
+    static void markDirty(int id)
+    {
+        dirty[id] = true;
+        anyDirty = true;
+    }
+
+    /**
+     * Creates storage buffer (should be called after context creation)
+     */
+    static void init()
+    {
+        buffer = glGenBuffers();
+    }
+
+    /**
+     * Uploads changed materials and binds table to {@link Shader#MATERIAL_BLOCK} (should be called once per frame
+     * before drawing)
+     */
+    static void update()
+    {
+        for (int i = 0; i < materialCount; i++)
+            if (materials[i] != null && !dirty[i] && materials[i].referencesChanged(table, i * ENTRY_SIZE))
+                markDirty(i);
+
+        glBindBuffer(GL_SHADER_STORAGE_BUFFER, buffer);
+
+        // Reallocated buffer gets the whole table
+        if (materialCount > bufferCapacity) {
+            bufferCapacity = materials.length;
+            for (int i = 0; i < materialCount; i++)
+                if (materials[i] != null && dirty[i])
+                    materials[i].write(table, i * ENTRY_SIZE);
+
+            table.clear();
+            glBufferData(GL_SHADER_STORAGE_BUFFER, table, GL_DYNAMIC_DRAW);
+            Arrays.fill(dirty, false);
+            anyDirty = false;
+        }
+
+        // Consecutive dirty materials are uploaded by one write
+        if (anyDirty) {
+            for (int i = 0; i < materialCount; ) {
+                if (!dirty[i]) {
+                    i++;
+                    continue;
+                }
+
+                int end = i;
+                while (end < materialCount && dirty[end]) {
+                    if (materials[end] != null)
+                        materials[end].write(table, end * ENTRY_SIZE);
+                    dirty[end++] = false;
+                }
+
+                table.limit(end * ENTRY_SIZE).position(i * ENTRY_SIZE);
+                glBufferSubData(GL_SHADER_STORAGE_BUFFER, i * ENTRY_SIZE, table);
+                table.clear();
+                i = end;
+            }
+            anyDirty = false;
+        }
+
+        glBindBuffer(GL_SHADER_STORAGE_BUFFER, 0);
+        glBindBufferBase(GL_SHADER_STORAGE_BUFFER, Shader.MATERIAL_BLOCK, buffer);
+    }
+
+    /**
+     * Material getter
+     *
+     * @param id material identifier
+     * @return material or null
+     */
+    public static Material get(int id)
+    {
+        return id < materialCount ? materials[id] : null;
+    }
+
+    /**
+     * Number of materials in the table
+     *
+     * @return materials count
+     */
+    public static int getCount()
+    {
+        return materialCount;
+    }
+
+    /**
+     * Deletes storage buffer
+     */
+    static void remove()
+    {
+        glDeleteBuffers(buffer);
+        buffer = 0;
+        bufferCapacity = 0;
+    }
+}
@@ -1,35 +1,50 @@
 package org.orchid;
 
-import org.lwjgl.BufferUtils;
-import org.lwjgl.assimp.AIMesh;
+import org.joml.FrustumIntersection;
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
 
-import java.nio.FloatBuffer;
-import java.nio.IntBuffer;
 import java.util.HashMap;
 import java.util.Map;
 
-import static org.lwjgl.opengl.GL11.*;
-import static org.lwjgl.opengl.GL15.*;
-import static org.lwjgl.opengl.GL20.glEnableVertexAttribArray;
-import static org.lwjgl.opengl.GL20.glVertexAttribPointer;
-import static org.lwjgl.opengl.GL30.*;
-import static org.lwjgl.opengl.GL31.GL_UNIFORM_BUFFER;
-
 public class Mesh extends Node
 {
-    private int ubo;
-    private int vao;
-    private int verticesBuffer;
-    private int normalsBuffer;
-    private int bitangentsBuffer;
-    private int uvsBuffer;
-    private int ebo;
+    /**
+     * Maximal number of levels of detail (including the full mesh)
+     */
+    public static final int MAX_LODS = 4;
+
+    /**
+     * Default projected sizes (bounding sphere radius relative to half of the viewport height) below which next
+     * level of detail is used
+     */
+    public static final float[] DEFAULT_LOD_THRESHOLDS = {0.4f, 0.2f, 0.1f};
+
+    /**
+     * Default relative threshold margin which has to be crossed to switch level of detail
+     */
+    public static final float DEFAULT_LOD_HYSTERESIS = 0.1f;
+
+    private GeometryArena.Allocation geometry;
     private int numFaces;
 
+    // Index ranges of levels of detail (shared between instances), thresholds and currently selected level
+    private int[] lodOffsets = {0};
+    private int[] lodCounts = {0};
+    private float[] lodThresholds = DEFAULT_LOD_THRESHOLDS;
+    private float lodHysteresis = DEFAULT_LOD_HYSTERESIS;
+    private int lod = 0;
+
     private Material material;
+    private boolean opaque = true;
 
-    private boolean matrixUpdated = false;
-    private FloatBuffer matrixBuffer = BufferUtils.createFloatBuffer(16);
+    // Local space bounding box (shared between instances) and its world space transformation
+    private Vector3f boundsMin = new Vector3f();
+    private Vector3f boundsMax = new Vector3f();
+    private Vector3f worldBoundsMin = new Vector3f();
+    private Vector3f worldBoundsMax = new Vector3f();
+    private int boundsStamp = -1;
+    private Matrix4f modelMatrix = new Matrix4f();
 
     private static Map<String, Mesh> loadedMeshes = new HashMap<>();
     private static Map<String, Integer> loadedInstances = new HashMap<>();
@@ -43,11 +58,6 @@ public class Mesh extends Node
     public Mesh(String name)
     {
         super(name);
-
-        ubo = glGenBuffers();
-        glBindBuffer(GL_UNIFORM_BUFFER, ubo);
-        glBufferData(GL_UNIFORM_BUFFER, 64, GL_STATIC_DRAW);
-        glBindBuffer(GL_UNIFORM_BUFFER, 0);
     }
 
     /**
@@ -68,21 +78,17 @@ public class Mesh extends Node
     @Override
     public void remove()
     {
-        glDeleteBuffers(ubo);
+        if (spatialIndex != null)
+            spatialIndex.remove(this);
         loadedInstances.put(mapName, loadedInstances.get(mapName) - 1);
 
-        if (loadedInstances.get(mapName) != 0)
-            return;
-
-        glDeleteVertexArrays(vao);
-        glDeleteBuffers(ebo);
-        glDeleteBuffers(verticesBuffer);
-        glDeleteBuffers(normalsBuffer);
-        glDeleteBuffers(bitangentsBuffer);
-        glDeleteBuffers(uvsBuffer);
+        // Geometry is deleted with the last instance
+        if (loadedInstances.get(mapName) == 0) {
+            GeometryArena.free(geometry);
 
-        loadedMeshes.remove(mapName);
-        loadedInstances.remove(mapName);
+            loadedMeshes.remove(mapName);
+            loadedInstances.remove(mapName);
+        }
 
         super.remove();
     }
@@ -108,143 +114,284 @@ public class Mesh extends Node
     }
 
     /**
-     * Loads mesh from Assimp mesh struct
+     * Loads mesh from cooked mesh data, geometry is shared between meshes loaded from the same data
      *
-     * @param aiMesh Assimp mesh
+     * @param data      cooked mesh data
+     * @param modelPath path of the model mesh belongs to
+     * @param index     index of the mesh in the model
      */
-    public void loadMesh(AIMesh aiMesh, String scenePath)
+    public void loadMesh(MeshData data, String modelPath, int index)
     {
-        mapName = aiMesh.mName().dataString() + "@" + scenePath;
+        mapName = index + "@" + modelPath;
+
+        data.getBoundsMin(boundsMin);
+        data.getBoundsMax(boundsMax);
 
         if (loadedMeshes.containsKey(mapName)) {
             Mesh loaded = loadedMeshes.get(mapName);
-            vao = loaded.vao;
+            geometry = loaded.geometry;
             numFaces = loaded.numFaces;
+            lodOffsets = loaded.lodOffsets;
+            lodCounts = loaded.lodCounts;
             loadedInstances.put(mapName, loadedInstances.get(mapName) + 1);
             return;
         }
 
-        FloatBuffer vertices = BufferUtils.createFloatBuffer(aiMesh.mNumVertices() * 3);
-        FloatBuffer normals = BufferUtils.createFloatBuffer(aiMesh.mNumVertices() * 3);
-        FloatBuffer bitangents = BufferUtils.createFloatBuffer(aiMesh.mNumVertices() * 3);
-        FloatBuffer uvs = BufferUtils.createFloatBuffer(aiMesh.mNumVertices() * 2);
-
-        boolean hasNormals = aiMesh.mNormals() != null;
-        boolean hasBitangents = aiMesh.mBitangents() != null;
-        boolean hasUVs = aiMesh.mTextureCoords(0) != null;
-
-        for (int i = 0; i < aiMesh.mNumVertices(); i++) {
-            vertices.put(aiMesh.mVertices().get(i).x());
-            vertices.put(aiMesh.mVertices().get(i).y());
-            vertices.put(aiMesh.mVertices().get(i).z());
-
-            if (hasNormals) {
-                normals.put(aiMesh.mNormals().get(i).x());
-                normals.put(aiMesh.mNormals().get(i).y());
-                normals.put(aiMesh.mNormals().get(i).z());
-            }
-
-            if (hasBitangents) {
-                bitangents.put(aiMesh.mBitangents().get(i).x());
-                bitangents.put(aiMesh.mBitangents().get(i).y());
-                bitangents.put(aiMesh.mBitangents().get(i).z());
-            }
-
-            if (hasUVs) {
-                uvs.put(aiMesh.mTextureCoords(0).get(i).x());
-                uvs.put(aiMesh.mTextureCoords(0).get(i).y());
-            }
+        numFaces = data.getLodIndexCount(0);
+
+        lodOffsets = new int[Math.min(data.getLodCount(), MAX_LODS)];
+        lodCounts = new int[lodOffsets.length];
+        for (int i = 0; i < lodOffsets.length; i++) {
+            lodOffsets[i] = data.getLodOffset(i);
+            lodCounts[i] = data.getLodIndexCount(i);
         }
 
-        IntBuffer indices = BufferUtils.createIntBuffer(aiMesh.mNumFaces() * 3);
+        // Cooked buffers are uploaded as is, cached ones straight from the mapped file
+        geometry = GeometryArena.allocate(data);
 
-        for (int i = 0; i < aiMesh.mNumFaces(); i++) {
-            indices.put(aiMesh.mFaces().get(i).mIndices().get(0));
-            indices.put(aiMesh.mFaces().get(i).mIndices().get(1));
-            indices.put(aiMesh.mFaces().get(i).mIndices().get(2));
-        }
+        loadedMeshes.put(mapName, this);
+        loadedInstances.put(mapName, 1);
+    }
 
-        numFaces = indices.capacity();
+    /**
+     * Local space axis aligned bounding box minimum
+     *
+     * @return bounding box minimum corner
+     */
+    public Vector3f getBoundsMin()
+    {
+        return new Vector3f(boundsMin);
+    }
 
-        vao = glGenVertexArrays();
-        glBindVertexArray(vao);
+    /**
+     * Local space axis aligned bounding box minimum
+     *
+     * @param dest destination vector
+     * @return bounding box minimum corner (dest)
+     */
+    public Vector3f getBoundsMin(Vector3f dest)
+    {
+        return dest.set(boundsMin);
+    }
 
-        vertices.rewind();
-        verticesBuffer = glGenBuffers();
-        glBindBuffer(GL_ARRAY_BUFFER, verticesBuffer);
-        glBufferData(GL_ARRAY_BUFFER, vertices, GL_STATIC_DRAW);
+    /**
+     * Local space axis aligned bounding box maximum
+     *
+     * @return bounding box maximum corner
+     */
+    public Vector3f getBoundsMax()
+    {
+        return new Vector3f(boundsMax);
+    }
 
-        glEnableVertexAttribArray(Shader.POSITION_LOCATION);
-        glVertexAttribPointer(Shader.POSITION_LOCATION, 3, GL_FLOAT, false, 0, 0);
+    /**
+     * Local space axis aligned bounding box maximum
+     *
+     * @param dest destination vector
+     * @return bounding box maximum corner (dest)
+     */
+    public Vector3f getBoundsMax(Vector3f dest)
+    {
+        return dest.set(boundsMax);
+    }
 
-        if (hasNormals) {
-            normals.rewind();
-            normalsBuffer = glGenBuffers();
-            glBindBuffer(GL_ARRAY_BUFFER, normalsBuffer);
-            glBufferData(GL_ARRAY_BUFFER, normals, GL_STATIC_DRAW);
+    /**
+     * Local space bounding box setter (mesh loading sets it from mesh data, used for meshes without geometry)
+     *
+     * @param min bounding box minimum corner
+     * @param max bounding box maximum corner
+     */
+    void setBounds(Vector3f min, Vector3f max)
+    {
+        boundsMin.set(min);
+        boundsMax.set(max);
+        boundsStamp = -1;
+    }
 
-            glEnableVertexAttribArray(Shader.NORMAL_LOCATION);
-            glVertexAttribPointer(Shader.NORMAL_LOCATION, 3, GL_FLOAT, false, 0, 0);
-        }
+    /**
+     * Checks whether world space bounding box of the mesh intersects view frustum
+     *
+     * @param frustum view frustum
+     * @return true if mesh is (potentially) visible
+     */
+    public boolean isVisible(FrustumIntersection frustum)
+    {
+        if (boundsStamp != getTransformStamp())
+            recalculateWorldBounds();
 
-        if (hasBitangents) {
-            bitangents.rewind();
-            bitangentsBuffer = glGenBuffers();
-            glBindBuffer(GL_ARRAY_BUFFER, bitangentsBuffer);
-            glBufferData(GL_ARRAY_BUFFER, bitangents, GL_STATIC_DRAW);
+        return frustum.testAab(worldBoundsMin, worldBoundsMax);
+    }
 
-            glEnableVertexAttribArray(Shader.BITANGENT_LOCATION);
-            glVertexAttribPointer(Shader.BITANGENT_LOCATION, 3, GL_FLOAT, false, 0, 0);
-        }
+    /**
+     * World space axis aligned bounding box
+     *
+     * @param min destination for bounding box minimum corner
+     * @param max destination for bounding box maximum corner
+     */
+    @Override
+    public void getWorldBounds(Vector3f min, Vector3f max)
+    {
+        if (boundsStamp != getTransformStamp())
+            recalculateWorldBounds();
 
-        if (hasUVs) {
-            uvs.rewind();
-            uvsBuffer = glGenBuffers();
-            glBindBuffer(GL_ARRAY_BUFFER, uvsBuffer);
-            glBufferData(GL_ARRAY_BUFFER, uvs, GL_STATIC_DRAW);
+        min.set(worldBoundsMin);
+        max.set(worldBoundsMax);
+    }
 
-            glEnableVertexAttribArray(Shader.UVS_LOCATION);
-            glVertexAttribPointer(Shader.UVS_LOCATION, 2, GL_FLOAT, false, 0, 0);
-        }
+    /**
+     * Opacity flag getter
+     *
+     * @return true if mesh is drawn in opaque (deferred) pass
+     */
+    public boolean isOpaque()
+    {
+        return opaque;
+    }
 
-        indices.rewind();
-        int elementsBuffer = glGenBuffers();
-        glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, elementsBuffer);
-        glBufferData(GL_ELEMENT_ARRAY_BUFFER, indices, GL_STATIC_DRAW);
+    /**
+     * Opacity flag setter
+     *
+     * @param opaque whether mesh is drawn in opaque (deferred) pass
+     */
+    public void setOpaque(boolean opaque)
+    {
+        this.opaque = opaque;
+    }
 
-        glBindVertexArray(0);
+    /**
+     * Geometry arena allocation getter (shared between mesh instances)
+     *
+     * @return geometry allocation
+     */
+    public GeometryArena.Allocation getGeometry()
+    {
+        return geometry;
+    }
 
-        loadedMeshes.put(mapName, this);
-        loadedInstances.put(mapName, 1);
+    /**
+     * Number of levels of detail
+     *
+     * @return levels of detail count (1 if mesh has only the full level)
+     */
+    public int getLodCount()
+    {
+        return lodOffsets.length;
+    }
+
+    /**
+     * Number of indices of the level of detail
+     *
+     * @param lod level of detail
+     * @return indices count
+     */
+    public int getNumIndices(int lod)
+    {
+        return lodCounts[lod];
+    }
+
+    /**
+     * Index of the first level of detail index in the geometry arena element buffer
+     *
+     * @param lod level of detail
+     * @return first index
+     */
+    public int getFirstIndex(int lod)
+    {
+        return geometry.getFirstIndex() + lodOffsets[lod];
+    }
+
+    /**
+     * Level of detail thresholds setter
+     *
+     * @param thresholds projected sizes (bounding sphere radius relative to half of the viewport height) below
+     *                   which next level of detail is used, in decreasing order
+     * @param hysteresis relative threshold margin which has to be crossed to switch level of detail
+     */
+    public void setLodThresholds(float[] thresholds, float hysteresis)
+    {
+        this.lodThresholds = thresholds;
+        this.lodHysteresis = hysteresis;
+    }
+
+    /**
+     * Level of detail thresholds getter
+     *
+     * @return projected sizes below which next level of detail is used
+     */
+    public float[] getLodThresholds()
+    {
+        return lodThresholds;
     }
 
     /**
-     * Draws mesh
+     * Level of detail hysteresis getter
+     *
+     * @return relative threshold margin
      */
-    public void draw()
+    public float getLodHysteresis()
     {
-        if (!matrixUpdated) {
-            matrixBuffer.clear();
-            getModelMatrix().get(matrixBuffer);
-            glBindBuffer(GL_UNIFORM_BUFFER, ubo);
-            glBufferData(GL_UNIFORM_BUFFER, matrixBuffer, GL_STATIC_DRAW);
-            glBindBuffer(GL_UNIFORM_BUFFER, 0);
+        return lodHysteresis;
+    }
 
-            matrixUpdated = true;
+    /**
+     * Selects level of detail by projected size of the world space bounding sphere, selection is kept until size
+     * crosses threshold by hysteresis margin
+     *
+     * @param cameraPosition  camera world position
+     * @param projectionScale cotangent of the half of vertical field of view
+     * @return selected level of detail
+     */
+    public int selectLod(Vector3f cameraPosition, float projectionScale)
+    {
+        if (boundsStamp != getTransformStamp())
+            recalculateWorldBounds();
+
+        float centerX = (worldBoundsMin.x + worldBoundsMax.x) * 0.5f;
+        float centerY = (worldBoundsMin.y + worldBoundsMax.y) * 0.5f;
+        float centerZ = (worldBoundsMin.z + worldBoundsMax.z) * 0.5f;
+        float radius = worldBoundsMin.distance(worldBoundsMax) * 0.5f;
+        float distance = cameraPosition.distance(centerX, centerY, centerZ);
+
+        if (distance <= radius) {
+            lod = 0;
+            return lod;
         }
 
-        material.use();
+        float size = radius * projectionScale / distance;
+        int levels = Math.min(lodOffsets.length, lodThresholds.length + 1);
+        lod = Math.min(lod, levels - 1);
+
+        while (lod < levels - 1 && size < lodThresholds[lod] * (1.0f - lodHysteresis))
+            lod++;
+        while (lod > 0 && size > lodThresholds[lod - 1] * (1.0f + lodHysteresis))
+            lod--;
 
-        glBindBufferBase(GL_UNIFORM_BUFFER, Shader.MODEL_BLOCK, ubo);
-        glBindVertexArray(vao);
-        glDrawElements(GL_TRIANGLES, numFaces, GL_UNSIGNED_INT, 0);
-        glBindVertexArray(0);
+        return lod;
     }
 
-    @Override
-    protected void setOutdated()
+    /**
+     * Index type getter
+     *
+     * @return GL index type
+     */
+    public int getIndexType()
+    {
+        return geometry.getIndexType();
+    }
+
+    /**
+     * Number of indices getter
+     *
+     * @return number of indices
+     */
+    public int getNumIndices()
+    {
+        return numFaces;
+    }
+
+    private void recalculateWorldBounds()
     {
-        matrixUpdated = false;
-        super.setOutdated();
+        getModelMatrix(modelMatrix).transformAab(boundsMin, boundsMax, worldBoundsMin, worldBoundsMax);
+        boundsStamp = getTransformStamp();
     }
 }
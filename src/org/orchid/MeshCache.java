@@ -0,0 +1,309 @@
+package org.orchid;
+
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+import org.lwjgl.assimp.AIScene;
+import org.lwjgl.assimp.Assimp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+/**
+ * Cooked mesh cache - imported models are stored in a binary GPU ready format
+ * <p>
+ * Cache files are keyed by the source file hash, import flags and format version, so model is imported by Assimp
+ * only when the source asset changes. Cached files are memory mapped and mesh buffers are slices of the mapping.
+ * <p>
+ * File layout (little endian): magic, version, import flags, header size, header (meshes and nodes description),
+ * padding to 16 bytes, vertex and index blobs (each aligned to 16 bytes).
+ */
+public class MeshCache
+{
+    private static final int MAGIC = 0x4D43524F; // "ORCM"
+    private static final int VERSION = 5;
+    private static final int PREFIX_SIZE = 16;
+    private static final int ALIGNMENT = 16;
+
+    /**
+     * Loads cooked model, imports and cooks it if cache file is missing or stale
+     *
+     * @param path  path to model file
+     * @param flags Assimp import flags
+     * @return cooked model or null if model can't be loaded
+     */
+    public static ModelData load(String path, int flags)
+    {
+        String key;
+        try {
+            key = hash(path) + "_" + Integer.toHexString(flags) + "_" + VERSION;
+        } catch (Exception e) {
+            System.err.println("Model \"" + path + "\" hashing failed");
+            e.printStackTrace();
+            return null;
+        }
+
+        File cacheFile = new File(getCacheDirectory(), key + ".ocm");
+
+        if (cacheFile.exists()) {
+            try {
+                return read(cacheFile);
+            } catch (Exception e) {
+                System.err.println("Cooked model \"" + cacheFile + "\" is corrupted, reimporting");
+                e.printStackTrace();
+            }
+        }
+
+        AIScene aiScene = Assimp.aiImportFile(path, flags);
+        if (aiScene == null) {
+            System.err.println("Model \"" + path + "\" import failed: " + Assimp.aiGetErrorString());
+            return null;
+        }
+
+        ModelData model = ModelData.fromAssimp(aiScene);
+        Assimp.aiReleaseImport(aiScene);
+
+        try {
+            write(model, flags, cacheFile);
+        } catch (Exception e) {
+            System.err.println("Cooked model \"" + cacheFile + "\" writing failed");
+            e.printStackTrace();
+        }
+
+        return model;
+    }
+
+    // Cache directory is set by "mesh_cache_path" property
+    private static File getCacheDirectory()
+    {
+        String directory = Configuration.getProperty("mesh_cache_path");
+        return new File(directory == null ? "./res/cache" : directory);
+    }
+
+    private static String hash(String path) throws Exception
+    {
+        MessageDigest digest = MessageDigest.getInstance("SHA-1");
+
+        try (FileChannel channel = FileChannel.open(new File(path).toPath())) {
+            digest.update(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+
+        StringBuilder builder = new StringBuilder();
+        for (byte b : digest.digest())
+            builder.append(String.format("%02x", b));
+        return builder.toString();
+    }
+
+    private static ModelData read(File file) throws IOException
+    {
+        MappedByteBuffer mapped;
+        try (FileChannel channel = FileChannel.open(file.toPath())) {
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        mapped.order(ByteOrder.LITTLE_ENDIAN);
+
+        if (mapped.getInt(0) != MAGIC || mapped.getInt(4) != VERSION)
+            throw new IOException("Wrong cooked model magic or version");
+
+        int headerSize = mapped.getInt(12);
+        int dataStart = align(PREFIX_SIZE + headerSize);
+
+        ByteBuffer header = mapped.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        header.position(PREFIX_SIZE);
+
+        MeshData[] meshes = new MeshData[header.getInt()];
+        for (int i = 0; i < meshes.length; i++) {
+            String name = readString(header);
+            int vertexCount = header.getInt();
+            int indexCount = header.getInt();
+            int indexType = header.getInt();
+            int stride = header.getInt();
+
+            MeshData.Attribute[] attributes = new MeshData.Attribute[header.getInt()];
+            for (int j = 0; j < attributes.length; j++)
+                attributes[j] = new MeshData.Attribute(header.getInt(), header.getInt(), header.getInt(),
+                        header.getInt() != 0, header.getInt());
+
+            int[] lodOffsets = new int[header.getInt()];
+            int[] lodCounts = new int[lodOffsets.length];
+            for (int j = 0; j < lodOffsets.length; j++) {
+                lodOffsets[j] = header.getInt();
+                lodCounts[j] = header.getInt();
+            }
+
+            Vector3f boundsMin = new Vector3f(header.getFloat(), header.getFloat(), header.getFloat());
+            Vector3f boundsMax = new Vector3f(header.getFloat(), header.getFloat(), header.getFloat());
+
+            ByteBuffer vertices = slice(mapped, dataStart + header.getInt(), header.getInt());
+            ByteBuffer indices = slice(mapped, dataStart + header.getInt(), header.getInt());
+
+            meshes[i] = new MeshData(name, vertexCount, indexCount, indexType, stride, attributes, lodOffsets,
+                    lodCounts, boundsMin, boundsMax, vertices, indices);
+        }
+
+        int nodeCount = header.getInt();
+        String[] names = new String[nodeCount];
+        int[] parents = new int[nodeCount];
+        float[][] matrices = new float[nodeCount][16];
+        int[][] nodeMeshes = new int[nodeCount][];
+
+        for (int i = 0; i < nodeCount; i++) {
+            names[i] = readString(header);
+            parents[i] = header.getInt();
+            for (int j = 0; j < 16; j++)
+                matrices[i][j] = header.getFloat();
+            nodeMeshes[i] = new int[header.getInt()];
+            for (int j = 0; j < nodeMeshes[i].length; j++)
+                nodeMeshes[i][j] = header.getInt();
+        }
+
+        return new ModelData(meshes, names, parents, matrices, nodeMeshes);
+    }
+
+    private static void write(ModelData model, int flags, File file) throws IOException
+    {
+        MeshData[] meshes = model.getMeshes();
+
+        // Header is written first to know where data blobs start
+        HeaderWriter header = new HeaderWriter();
+        int dataSize = 0;
+        Vector3f bounds = new Vector3f();
+
+        header.putInt(meshes.length);
+        for (MeshData mesh : meshes) {
+            header.putString(mesh.getName());
+            header.putInt(mesh.getVertexCount());
+            header.putInt(mesh.getIndexCount());
+            header.putInt(mesh.getIndexType());
+            header.putInt(mesh.getStride());
+
+            header.putInt(mesh.getAttributes().length);
+            for (MeshData.Attribute attribute : mesh.getAttributes()) {
+                header.putInt(attribute.location);
+                header.putInt(attribute.size);
+                header.putInt(attribute.type);
+                header.putInt(attribute.normalized ? 1 : 0);
+                header.putInt(attribute.offset);
+            }
+
+            header.putInt(mesh.getLodCount());
+            for (int lod = 0; lod < mesh.getLodCount(); lod++)
+                header.putInt(mesh.getLodOffset(lod)).putInt(mesh.getLodIndexCount(lod));
+
+            mesh.getBoundsMin(bounds);
+            header.putFloat(bounds.x).putFloat(bounds.y).putFloat(bounds.z);
+            mesh.getBoundsMax(bounds);
+            header.putFloat(bounds.x).putFloat(bounds.y).putFloat(bounds.z);
+
+            int verticesSize = mesh.getVertices().remaining();
+            header.putInt(dataSize).putInt(verticesSize);
+            dataSize = align(dataSize + verticesSize);
+
+            int indicesSize = mesh.getIndices().remaining();
+            header.putInt(dataSize).putInt(indicesSize);
+            dataSize = align(dataSize + indicesSize);
+        }
+
+        Matrix4f nodeMatrix = new Matrix4f();
+        float[] matrix = new float[16];
+        header.putInt(model.getNodeCount());
+        for (int i = 0; i < model.getNodeCount(); i++) {
+            header.putString(model.getNodeName(i));
+            header.putInt(model.getNodeParent(i));
+            model.getNodeMatrix(i, nodeMatrix).get(matrix);
+            for (float value : matrix)
+                header.putFloat(value);
+            header.putInt(model.getNodeMeshes(i).length);
+            for (int mesh : model.getNodeMeshes(i))
+                header.putInt(mesh);
+        }
+
+        byte[] headerBytes = header.toByteArray();
+        int dataStart = align(PREFIX_SIZE + headerBytes.length);
+
+        file.getParentFile().mkdirs();
+        File temporary = new File(file.getPath() + ".tmp");
+
+        // Data is written to temporary file first, so interrupted cooking never leaves broken cache file
+        try (RandomAccessFile output = new RandomAccessFile(temporary, "rw");
+             FileChannel channel = output.getChannel()) {
+            output.setLength(0);
+
+            ByteBuffer prefix = ByteBuffer.allocate(PREFIX_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            prefix.putInt(MAGIC).putInt(VERSION).putInt(flags).putInt(headerBytes.length).flip();
+            channel.write(prefix, 0);
+            channel.write(ByteBuffer.wrap(headerBytes), PREFIX_SIZE);
+
+            int offset = 0;
+            for (MeshData mesh : meshes) {
+                channel.write(mesh.getVertices(), dataStart + offset);
+                offset = align(offset + mesh.getVertices().remaining());
+                channel.write(mesh.getIndices(), dataStart + offset);
+                offset = align(offset + mesh.getIndices().remaining());
+            }
+        }
+
+        if (!temporary.renameTo(file)) {
+            temporary.delete();
+            throw new IOException("Can't rename \"" + temporary + "\"");
+        }
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int offset, int size)
+    {
+        ByteBuffer slice = buffer.duplicate();
+        slice.position(offset).limit(offset + size);
+        return slice.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static String readString(ByteBuffer buffer)
+    {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int align(int value)
+    {
+        return (value + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+    }
+
+    // Little endian header serializer
+    private static class HeaderWriter
+    {
+        private ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        private ByteBuffer scratch = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+
+        HeaderWriter putInt(int value)
+        {
+            scratch.putInt(0, value);
+            stream.write(scratch.array(), 0, 4);
+            return this;
+        }
+
+        HeaderWriter putFloat(float value)
+        {
+            return putInt(Float.floatToRawIntBits(value));
+        }
+
+        HeaderWriter putString(String value)
+        {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            putInt(bytes.length);
+            stream.write(bytes, 0, bytes.length);
+            return this;
+        }
+
+        byte[] toByteArray()
+        {
+            return stream.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,485 @@
+package org.orchid;
+
+import org.joml.Vector3f;
+import org.lwjgl.BufferUtils;
+import org.lwjgl.assimp.AIMesh;
+import org.lwjgl.assimp.AIVector3D;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL30.GL_HALF_FLOAT;
+
+/**
+ * Cooked mesh data - GPU ready interleaved vertices, indices and their layout
+ * <p>
+ * Vertex and index buffers are either built from imported Assimp mesh or are slices of memory mapped mesh cache
+ * file, in both cases they can be passed to glBufferData as is.
+ */
+public class MeshData
+{
+    // Maximal position error allowed for half float positions and maximal uv error (in texels of the largest
+    // expected texture) allowed for half float uvs
+    private static final float POSITION_TOLERANCE = 0.0005f;
+    private static final float UV_TOLERANCE = 0.5f;
+    private static final int UV_TEXTURE_SIZE = 2048;
+    private static final float HALF_MAX = 65504.0f;
+
+    /**
+     * Vertex attribute description
+     */
+    public static class Attribute
+    {
+        public final int location;
+        public final int size;
+        public final int type;
+        public final boolean normalized;
+        public final int offset;
+
+        /**
+         * Constructor
+         *
+         * @param location   shader attribute location
+         * @param size       number of components
+         * @param type       GL component type
+         * @param normalized whether integer components are normalized
+         * @param offset     byte offset inside of vertex
+         */
+        public Attribute(int location, int size, int type, boolean normalized, int offset)
+        {
+            this.location = location;
+            this.size = size;
+            this.type = type;
+            this.normalized = normalized;
+            this.offset = offset;
+        }
+    }
+
+    private String name;
+    private int vertexCount;
+    private int indexCount;
+    private int indexType;
+    private int stride;
+    private Attribute[] attributes;
+    private int[] lodOffsets;
+    private int[] lodCounts;
+    private Vector3f boundsMin = new Vector3f();
+    private Vector3f boundsMax = new Vector3f();
+
+    private ByteBuffer vertices;
+    private ByteBuffer indices;
+
+    /**
+     * Constructor
+     *
+     * @param name        mesh name
+     * @param vertexCount number of vertices
+     * @param indexCount  number of indices
+     * @param indexType   GL index type
+     * @param stride      vertex size in bytes
+     * @param attributes  vertex attributes
+     * @param lodOffsets  first index of every level of detail
+     * @param lodCounts   number of indices of every level of detail
+     * @param boundsMin   bounding box minimum corner
+     * @param boundsMax   bounding box maximum corner
+     * @param vertices    interleaved vertex data
+     * @param indices     index data
+     */
+    public MeshData(String name, int vertexCount, int indexCount, int indexType, int stride, Attribute[] attributes,
+                    int[] lodOffsets, int[] lodCounts, Vector3f boundsMin, Vector3f boundsMax, ByteBuffer vertices,
+                    ByteBuffer indices)
+    {
+        this.name = name;
+        this.vertexCount = vertexCount;
+        this.indexCount = indexCount;
+        this.indexType = indexType;
+        this.stride = stride;
+        this.attributes = attributes;
+        this.lodOffsets = lodOffsets;
+        this.lodCounts = lodCounts;
+        this.boundsMin.set(boundsMin);
+        this.boundsMax.set(boundsMax);
+        this.vertices = vertices;
+        this.indices = indices;
+    }
+
+    /**
+     * Cooks imported Assimp mesh into compact interleaved layout (see {@link #fromArrays})
+     *
+     * @param aiMesh Assimp mesh
+     * @return cooked mesh data
+     */
+    public static MeshData fromAssimp(AIMesh aiMesh)
+    {
+        int vertexCount = aiMesh.mNumVertices();
+
+        float[] positions = new float[vertexCount * 3];
+        float[] normals = aiMesh.mNormals() != null ? new float[vertexCount * 3] : null;
+        float[] bitangents = aiMesh.mBitangents() != null ? new float[vertexCount * 3] : null;
+        float[] uvs = aiMesh.mTextureCoords(0) != null ? new float[vertexCount * 2] : null;
+
+        for (int i = 0; i < vertexCount; i++) {
+            AIVector3D vertex = aiMesh.mVertices().get(i);
+            positions[i * 3] = vertex.x();
+            positions[i * 3 + 1] = vertex.y();
+            positions[i * 3 + 2] = vertex.z();
+
+            if (normals != null) {
+                AIVector3D normal = aiMesh.mNormals().get(i);
+                normals[i * 3] = normal.x();
+                normals[i * 3 + 1] = normal.y();
+                normals[i * 3 + 2] = normal.z();
+            }
+            if (bitangents != null) {
+                AIVector3D bitangent = aiMesh.mBitangents().get(i);
+                bitangents[i * 3] = bitangent.x();
+                bitangents[i * 3 + 1] = bitangent.y();
+                bitangents[i * 3 + 2] = bitangent.z();
+            }
+            if (uvs != null) {
+                AIVector3D uv = aiMesh.mTextureCoords(0).get(i);
+                uvs[i * 2] = uv.x();
+                uvs[i * 2 + 1] = uv.y();
+            }
+        }
+
+        int[] triangles = new int[aiMesh.mNumFaces() * 3];
+        for (int i = 0; i < aiMesh.mNumFaces(); i++)
+            for (int j = 0; j < 3; j++)
+                triangles[i * 3 + j] = aiMesh.mFaces().get(i).mIndices().get(j);
+
+        return fromArrays(aiMesh.mName().dataString(), positions, normals, bitangents, uvs, triangles);
+    }
+
+    /**
+     * Cooks mesh into compact interleaved layout (triangles and vertices are reordered by MeshOptimizer first).
+     * Layout is selected automatically: positions are stored as half floats if quantization error is small enough,
+     * normals and bitangents are octahedral encoded (two normalized shorts), uvs are half floats if their error is
+     * within UV_TOLERANCE texels of UV_TEXTURE_SIZE texture and indices are 16-bit if vertex count allows
+     *
+     * @param name       mesh name
+     * @param positions  vertex positions (3 floats per vertex)
+     * @param normals    vertex normals (3 floats per vertex) or null
+     * @param bitangents vertex bitangents (3 floats per vertex) or null
+     * @param uvs        texture coordinates (2 floats per vertex) or null
+     * @param triangles  triangle vertex indices
+     * @return cooked mesh data
+     */
+    public static MeshData fromArrays(String name, float[] positions, float[] normals, float[] bitangents,
+                                      float[] uvs, int[] triangles)
+    {
+        int vertexCount = positions.length / 3;
+
+        boolean hasNormals = normals != null;
+        boolean hasBitangents = bitangents != null;
+        boolean hasUVs = uvs != null;
+
+        Vector3f boundsMin = new Vector3f(Float.POSITIVE_INFINITY);
+        Vector3f boundsMax = new Vector3f(Float.NEGATIVE_INFINITY);
+        Vector3f position = new Vector3f();
+        float positionExtent = 0.0f;
+        float uvExtent = 0.0f;
+
+        for (int i = 0; i < vertexCount; i++) {
+            position.set(positions[i * 3], positions[i * 3 + 1], positions[i * 3 + 2]);
+            boundsMin.min(position);
+            boundsMax.max(position);
+            positionExtent = Math.max(positionExtent,
+                    Math.max(Math.abs(position.x), Math.max(Math.abs(position.y), Math.abs(position.z))));
+
+            if (hasUVs)
+                uvExtent = Math.max(uvExtent, Math.max(Math.abs(uvs[i * 2]), Math.abs(uvs[i * 2 + 1])));
+        }
+
+        if (vertexCount == 0) {
+            boundsMin.set(0.0f);
+            boundsMax.set(0.0f);
+        }
+
+        // Levels of detail only have own indices, then triangles and vertices of all levels are reordered
+        // (vertices are written in the new order below)
+        int[][] lods = MeshSimplifier.generateLods(triangles, positions, vertexCount);
+        int[] vertexOrder = MeshOptimizer.optimize(lods, positions, vertexCount);
+
+        // Half float relative precision is 2^-11, values below a power of two are rounded to 2^-12 of it (powers of
+        // two themselves are exact)
+        boolean halfPositions = positionExtent < HALF_MAX && positionExtent / 2048.0f <= POSITION_TOLERANCE;
+        float uvError = Math.scalb(1.0f, Math.getExponent(Math.nextDown(uvExtent)) - 11);
+        boolean halfUVs = uvError * UV_TEXTURE_SIZE <= UV_TOLERANCE;
+
+        Attribute[] attributes = new Attribute[1 + (hasNormals ? 1 : 0) + (hasBitangents ? 1 : 0) + (hasUVs ? 1 : 0)];
+        int stride = 0;
+        int count = 0;
+
+        // Half positions are padded to 8 bytes to keep attributes 4 byte aligned
+        attributes[count++] = new Attribute(Shader.POSITION_LOCATION, 3, halfPositions ? GL_HALF_FLOAT : GL_FLOAT,
+                false, stride);
+        stride += halfPositions ? 8 : 12;
+        if (hasNormals) {
+            attributes[count++] = new Attribute(Shader.NORMAL_LOCATION, 2, GL_SHORT, true, stride);
+            stride += 4;
+        }
+        if (hasBitangents) {
+            attributes[count++] = new Attribute(Shader.BITANGENT_LOCATION, 2, GL_SHORT, true, stride);
+            stride += 4;
+        }
+        if (hasUVs) {
+            attributes[count] = new Attribute(Shader.UVS_LOCATION, 2, halfUVs ? GL_HALF_FLOAT : GL_FLOAT, false,
+                    stride);
+            stride += halfUVs ? 4 : 8;
+        }
+
+        ByteBuffer vertices = BufferUtils.createByteBuffer(vertexCount * stride);
+
+        for (int v = 0; v < vertexCount; v++) {
+            int i = vertexOrder[v];
+
+            if (halfPositions)
+                vertices.putShort(toHalf(positions[i * 3])).putShort(toHalf(positions[i * 3 + 1]))
+                        .putShort(toHalf(positions[i * 3 + 2])).putShort((short) 0);
+            else
+                vertices.putFloat(positions[i * 3]).putFloat(positions[i * 3 + 1]).putFloat(positions[i * 3 + 2]);
+
+            if (hasNormals)
+                vertices.putInt(encodeOctahedral(normals[i * 3], normals[i * 3 + 1], normals[i * 3 + 2]));
+            if (hasBitangents)
+                vertices.putInt(encodeOctahedral(bitangents[i * 3], bitangents[i * 3 + 1], bitangents[i * 3 + 2]));
+            if (hasUVs) {
+                if (halfUVs)
+                    vertices.putShort(toHalf(uvs[i * 2])).putShort(toHalf(uvs[i * 2 + 1]));
+                else
+                    vertices.putFloat(uvs[i * 2]).putFloat(uvs[i * 2 + 1]);
+            }
+        }
+
+        int indexCount = 0;
+        int[] lodOffsets = new int[lods.length];
+        int[] lodCounts = new int[lods.length];
+        for (int i = 0; i < lods.length; i++) {
+            lodOffsets[i] = indexCount;
+            lodCounts[i] = lods[i].length;
+            indexCount += lods[i].length;
+        }
+
+        boolean shortIndices = vertexCount <= 0x10000;
+        ByteBuffer indices = BufferUtils.createByteBuffer(indexCount * (shortIndices ? 2 : 4));
+
+        for (int[] lod : lods) {
+            for (int index : lod) {
+                if (shortIndices)
+                    indices.putShort((short) index);
+                else
+                    indices.putInt(index);
+            }
+        }
+
+        vertices.flip();
+        indices.flip();
+
+        return new MeshData(name, vertexCount, indexCount,
+                shortIndices ? GL_UNSIGNED_SHORT : GL_UNSIGNED_INT, stride, attributes, lodOffsets, lodCounts,
+                boundsMin, boundsMax, vertices, indices);
+    }
+
+    /**
+     * Encodes unit vector with octahedral mapping into two normalized shorts (x in the first one)
+     *
+     * @param x vector x
+     * @param y vector y
+     * @param z vector z
+     * @return packed shorts (in native byte order when stored with putInt)
+     */
+    static int encodeOctahedral(float x, float y, float z)
+    {
+        float length = Math.abs(x) + Math.abs(y) + Math.abs(z);
+        if (length == 0.0f)
+            return 0;
+
+        float u = x / length;
+        float v = y / length;
+
+        // Lower hemisphere is folded over the diagonals
+        if (z < 0.0f) {
+            float foldedU = (1.0f - Math.abs(v)) * (u >= 0.0f ? 1.0f : -1.0f);
+            float foldedV = (1.0f - Math.abs(u)) * (v >= 0.0f ? 1.0f : -1.0f);
+            u = foldedU;
+            v = foldedV;
+        }
+
+        int packedU = Math.round(Math.max(-1.0f, Math.min(1.0f, u)) * 32767.0f) & 0xFFFF;
+        int packedV = Math.round(Math.max(-1.0f, Math.min(1.0f, v)) * 32767.0f) & 0xFFFF;
+
+        return ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN ? packedU | packedV << 16 : packedU << 16 | packedV;
+    }
+
+    /**
+     * Converts float to IEEE 754 half float (round to nearest)
+     *
+     * @param value float value
+     * @return half float bits
+     */
+    static short toHalf(float value)
+    {
+        int bits = Float.floatToIntBits(value);
+        int sign = (bits >>> 16) & 0x8000;
+        int exponent = ((bits >>> 23) & 0xFF) - 127 + 15;
+        int mantissa = bits & 0x7FFFFF;
+
+        if (exponent <= 0) {
+            // Subnormal half or zero
+            if (exponent < -10)
+                return (short) sign;
+
+            mantissa |= 0x800000;
+            int shift = 14 - exponent;
+            int half = mantissa >> shift;
+            if (((mantissa >> (shift - 1)) & 1) != 0)
+                half++;
+            return (short) (sign | half);
+        }
+
+        if (exponent >= 31)
+            return (short) (sign | 0x7C00);
+
+        // Rounding carry may overflow into exponent, which is still correct
+        int half = (exponent << 10) | (mantissa >> 13);
+        if ((mantissa & 0x1000) != 0)
+            half++;
+        return (short) (sign | half);
+    }
+
+    /**
+     * Mesh name getter
+     *
+     * @return mesh name
+     */
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * Number of vertices getter
+     *
+     * @return number of vertices
+     */
+    public int getVertexCount()
+    {
+        return vertexCount;
+    }
+
+    /**
+     * Number of indices getter
+     *
+     * @return number of indices
+     */
+    public int getIndexCount()
+    {
+        return indexCount;
+    }
+
+    /**
+     * Index type getter
+     *
+     * @return GL index type
+     */
+    public int getIndexType()
+    {
+        return indexType;
+    }
+
+    /**
+     * Vertex size getter
+     *
+     * @return vertex size in bytes
+     */
+    public int getStride()
+    {
+        return stride;
+    }
+
+    /**
+     * Vertex attributes getter
+     *
+     * @return vertex attributes
+     */
+    public Attribute[] getAttributes()
+    {
+        return attributes;
+    }
+
+    /**
+     * Number of levels of detail (the first level is the full mesh)
+     *
+     * @return levels of detail count
+     */
+    public int getLodCount()
+    {
+        return lodOffsets.length;
+    }
+
+    /**
+     * First index of the level of detail
+     *
+     * @param lod level of detail
+     * @return index offset
+     */
+    public int getLodOffset(int lod)
+    {
+        return lodOffsets[lod];
+    }
+
+    /**
+     * Number of indices of the level of detail
+     *
+     * @param lod level of detail
+     * @return indices count
+     */
+    public int getLodIndexCount(int lod)
+    {
+        return lodCounts[lod];
+    }
+
+    /**
+     * Bounding box minimum corner
+     *
+     * @param dest destination vector
+     * @return bounding box minimum corner (dest)
+     */
+    public Vector3f getBoundsMin(Vector3f dest)
+    {
+        return dest.set(boundsMin);
+    }
+
+    /**
+     * Bounding box maximum corner
+     *
+     * @param dest destination vector
+     * @return bounding box maximum corner (dest)
+     */
+    public Vector3f getBoundsMax(Vector3f dest)
+    {
+        return dest.set(boundsMax);
+    }
+
+    /**
+     * Interleaved vertex data getter
+     *
+     * @return vertex data (position and limit cover whole data)
+     */
+    public ByteBuffer getVertices()
+    {
+        return vertices.duplicate();
+    }
+
+    /**
+     * Index data getter
+     *
+     * @return index data (position and limit cover whole data)
+     */
+    public ByteBuffer getIndices()
+    {
+        return indices.duplicate();
+    }
+}
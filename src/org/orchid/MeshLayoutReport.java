@@ -0,0 +1,161 @@
+package org.orchid;
+
+import org.lwjgl.assimp.AIMesh;
+import org.lwjgl.assimp.AIScene;
+import org.lwjgl.assimp.Assimp;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.lwjgl.opengl.GL11.GL_UNSIGNED_SHORT;
+
+/**
+ * Mesh layout report - compares memory and vertex fetch of the original float layout (separate position, normal,
+ * bitangent and uv arrays with 32-bit indices) with the cooked {@link MeshData} layout (no GL context is required)
+ * <p>
+ * Usage: "MeshLayoutReport model..." (default models are the demo meshes and a generated high-poly sphere),
+ * "MeshLayoutReport --generated [rings]" reports the generated sphere only (Assimp is not needed). Fetched bytes per
+ * triangle are estimated as ACMR times vertex size - every post-transform cache miss fetches the whole vertex.
+ */
+public class MeshLayoutReport
+{
+    private static final String[] DEFAULT_MODELS = {"./res/meshes/sphere.fbx", "./res/meshes/monkey.fbx"};
+    private static final int DEFAULT_RINGS = 512;
+
+    public static void main(String[] args)
+    {
+        boolean generatedOnly = args.length > 0 && args[0].equals("--generated");
+        String[] models = generatedOnly ? new String[0] : args.length > 0 ? args : DEFAULT_MODELS;
+        int rings = generatedOnly && args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_RINGS;
+
+        System.out.println("mesh                 | vertices | triangles | vertex B old/new | index B old/new "
+                + "| VRAM KiB old/new (with LODs) | fetch B/triangle old/new");
+
+        long[] totals = new long[5];
+        for (String model : models) {
+            AIScene aiScene = Assimp.aiImportFile(model, Assimp.aiProcess_Triangulate | Assimp.aiProcess_FlipUVs
+                    | Assimp.aiProcess_CalcTangentSpace);
+            if (aiScene == null) {
+                System.err.println("Model \"" + model + "\" import failed: " + Assimp.aiGetErrorString());
+                continue;
+            }
+
+            for (int i = 0; i < aiScene.mNumMeshes(); i++) {
+                AIMesh aiMesh = AIMesh.create(aiScene.mMeshes().get(i));
+                report(MeshData.fromAssimp(aiMesh), getTriangles(aiMesh), aiMesh.mNormals() != null,
+                        aiMesh.mBitangents() != null, aiMesh.mTextureCoords(0) != null, totals);
+            }
+
+            Assimp.aiReleaseImport(aiScene);
+        }
+
+        if (generatedOnly || args.length == 0)
+            reportSphere(rings, totals);
+
+        System.out.printf("total VRAM %.1f KiB -> %.1f KiB (%.2fx), %.1f KiB with levels of detail%n",
+                totals[0] / 1024.0, totals[1] / 1024.0, (double) totals[0] / totals[1], totals[2] / 1024.0);
+        System.out.printf("total fetched drawing every mesh once %.1f KiB -> %.1f KiB (%.2fx)%n", totals[3] / 1024.0,
+                totals[4] / 1024.0, (double) totals[3] / totals[4]);
+    }
+
+    private static int[] getTriangles(AIMesh aiMesh)
+    {
+        int[] triangles = new int[aiMesh.mNumFaces() * 3];
+        for (int i = 0; i < aiMesh.mNumFaces(); i++)
+            for (int j = 0; j < 3; j++)
+                triangles[i * 3 + j] = aiMesh.mFaces().get(i).mIndices().get(j);
+        return triangles;
+    }
+
+    // Unit UV sphere with normals, bitangents and uvs in [0, 1] (seam vertices are duplicated)
+    private static void reportSphere(int rings, long[] totals)
+    {
+        int segments = rings * 2;
+        int vertexCount = (rings + 1) * (segments + 1);
+
+        float[] positions = new float[vertexCount * 3];
+        float[] normals = new float[vertexCount * 3];
+        float[] bitangents = new float[vertexCount * 3];
+        float[] uvs = new float[vertexCount * 2];
+
+        for (int ring = 0, v = 0; ring <= rings; ring++) {
+            double theta = Math.PI * ring / rings;
+            for (int segment = 0; segment <= segments; segment++, v++) {
+                double phi = 2.0 * Math.PI * segment / segments;
+                float x = (float) (Math.sin(theta) * Math.cos(phi));
+                float y = (float) Math.cos(theta);
+                float z = (float) (Math.sin(theta) * Math.sin(phi));
+
+                positions[v * 3] = normals[v * 3] = x;
+                positions[v * 3 + 1] = normals[v * 3 + 1] = y;
+                positions[v * 3 + 2] = normals[v * 3 + 2] = z;
+                bitangents[v * 3] = (float) (Math.cos(theta) * Math.cos(phi));
+                bitangents[v * 3 + 1] = (float) -Math.sin(theta);
+                bitangents[v * 3 + 2] = (float) (Math.cos(theta) * Math.sin(phi));
+                uvs[v * 2] = (float) segment / segments;
+                uvs[v * 2 + 1] = (float) ring / rings;
+            }
+        }
+
+        // Pole rings only have one triangle per quad
+        int[] triangles = new int[(rings - 1) * segments * 6];
+        int count = 0;
+        for (int ring = 0; ring < rings; ring++) {
+            for (int segment = 0; segment < segments; segment++) {
+                int a = ring * (segments + 1) + segment;
+                int b = a + segments + 1;
+                if (ring != 0) {
+                    triangles[count++] = a;
+                    triangles[count++] = a + 1;
+                    triangles[count++] = b;
+                }
+                if (ring != rings - 1) {
+                    triangles[count++] = a + 1;
+                    triangles[count++] = b + 1;
+                    triangles[count++] = b;
+                }
+            }
+        }
+
+        report(MeshData.fromArrays("generated sphere", positions, normals, bitangents, uvs, triangles), triangles,
+                true, true, true, totals);
+    }
+
+    private static void report(MeshData data, int[] triangles, boolean hasNormals, boolean hasBitangents,
+                               boolean hasUVs, long[] totals)
+    {
+        int vertexCount = data.getVertexCount();
+
+        int oldStride = 12 + (hasNormals ? 12 : 0) + (hasBitangents ? 12 : 0) + (hasUVs ? 8 : 0);
+        float oldAcmr = MeshOptimizer.getACMR(triangles, vertexCount, MeshOptimizer.CACHE_SIZE);
+
+        int newStride = data.getStride();
+        int indexSize = data.getIndexType() == GL_UNSIGNED_SHORT ? 2 : 4;
+
+        // Full level of detail is the first one
+        ByteBuffer indices = data.getIndices().order(ByteOrder.nativeOrder());
+        int[] lod = new int[data.getLodIndexCount(0)];
+        for (int i = 0; i < lod.length; i++) {
+            int position = (data.getLodOffset(0) + i) * indexSize;
+            lod[i] = indexSize == 2 ? indices.getShort(position) & 0xFFFF : indices.getInt(position);
+        }
+        float newAcmr = MeshOptimizer.getACMR(lod, vertexCount, MeshOptimizer.CACHE_SIZE);
+
+        long oldMemory = (long) vertexCount * oldStride + (long) triangles.length * 4;
+        long newMemory = (long) vertexCount * newStride + (long) lod.length * indexSize;
+        long lodMemory = (long) vertexCount * newStride + (long) data.getIndexCount() * indexSize;
+        long oldFetch = (long) (oldAcmr * oldStride * (triangles.length / 3) + triangles.length * 4L);
+        long newFetch = (long) (newAcmr * newStride * (lod.length / 3) + (long) lod.length * indexSize);
+
+        System.out.printf("%-20.20s | %8d | %9d | %7d / %-6d | %6d / %-6d | %9.1f / %-7.1f (%.1f) | %6.2f / %.2f%n",
+                data.getName(), vertexCount, triangles.length / 3, oldStride, newStride, 4, indexSize,
+                oldMemory / 1024.0, newMemory / 1024.0, lodMemory / 1024.0, oldAcmr * oldStride,
+                newAcmr * newStride);
+
+        totals[0] += oldMemory;
+        totals[1] += newMemory;
+        totals[2] += lodMemory;
+        totals[3] += oldFetch;
+        totals[4] += newFetch;
+    }
+}
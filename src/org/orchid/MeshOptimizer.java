@@ -0,0 +1,416 @@
+package org.orchid;
+
+import java.util.Arrays;
+
+/**
+ * Import time mesh optimizer - reorders triangles and vertices of indexed triangle lists
+ * <p>
+ * Triangles are reordered for post-transform vertex cache locality (Tipsify), then clusters of triangles are
+ * sorted so outer facing ones are drawn first (reduces overdraw) and finally vertices are reordered in the order
+ * of first use (vertex fetch locality).
+ */
+public class MeshOptimizer
+{
+    /**
+     * Simulated post-transform cache size
+     */
+    public static final int CACHE_SIZE = 16;
+
+    // Cluster is split when its ACMR (measured from cluster start) falls below mesh ACMR times this threshold
+    private static final float OVERDRAW_THRESHOLD = 1.05f;
+
+    /**
+     * Optimizes mesh and its levels of detail - indices are rewritten in place. Vertex fetch order is shared by all
+     * levels, the full mesh has priority.
+     *
+     * @param lods        triangle list indices of every level of detail (the first one is the full mesh)
+     * @param positions   vertex positions (3 floats per vertex)
+     * @param vertexCount number of vertices
+     * @return new vertex order (old index of every new vertex)
+     */
+    public static int[] optimize(int[][] lods, float[] positions, int vertexCount)
+    {
+        int totalCount = 0;
+        for (int i = 0; i < lods.length; i++) {
+            int[] clusters = optimizeVertexCache(lods[i], vertexCount, CACHE_SIZE);
+
+            // Coarse levels are used for distant meshes which hardly overdraw themselves
+            if (i == 0)
+                optimizeOverdraw(lods[i], clusters, positions, vertexCount);
+
+            totalCount += lods[i].length;
+        }
+
+        int[] indices = new int[totalCount];
+        int offset = 0;
+        for (int[] lod : lods) {
+            System.arraycopy(lod, 0, indices, offset, lod.length);
+            offset += lod.length;
+        }
+
+        int[] order = optimizeVertexFetch(indices, vertexCount);
+
+        offset = 0;
+        for (int[] lod : lods) {
+            System.arraycopy(indices, offset, lod, 0, lod.length);
+            offset += lod.length;
+        }
+
+        return order;
+    }
+
+    /**
+     * Reorders triangles for vertex cache locality (Tipsify)
+     *
+     * @param indices     triangle list indices, rewritten in place
+     * @param vertexCount number of vertices
+     * @param cacheSize   target cache size
+     * @return sorted triangle indices where clusters start (cache is flushed at cluster boundaries)
+     */
+    public static int[] optimizeVertexCache(int[] indices, int vertexCount, int cacheSize)
+    {
+        int triangleCount = indices.length / 3;
+
+        // Vertex to triangle adjacency (compressed rows)
+        int[] adjacencyOffsets = new int[vertexCount + 1];
+        for (int index : indices)
+            adjacencyOffsets[index + 1]++;
+        for (int i = 0; i < vertexCount; i++)
+            adjacencyOffsets[i + 1] += adjacencyOffsets[i];
+
+        int[] adjacency = new int[indices.length];
+        int[] fill = Arrays.copyOf(adjacencyOffsets, vertexCount);
+        for (int i = 0; i < indices.length; i++)
+            adjacency[fill[indices[i]]++] = i / 3;
+
+        int[] live = new int[vertexCount];
+        for (int i = 0; i < vertexCount; i++)
+            live[i] = adjacencyOffsets[i + 1] - adjacencyOffsets[i];
+
+        int[] cacheTime = new int[vertexCount];
+        boolean[] emitted = new boolean[triangleCount];
+        int[] deadEnd = new int[indices.length];
+        int deadEndSize = 0;
+        int[] candidates = new int[indices.length];
+
+        int[] result = new int[indices.length];
+        int resultSize = 0;
+
+        int[] clusters = new int[triangleCount + 1];
+        int clusterCount = 0;
+
+        int time = cacheSize + 1;
+        int cursor = 0;
+        int fanning = vertexCount > 0 ? 0 : -1;
+
+        while (fanning >= 0) {
+            int candidateCount = 0;
+
+            for (int i = adjacencyOffsets[fanning]; i < adjacencyOffsets[fanning + 1]; i++) {
+                int triangle = adjacency[i];
+                if (emitted[triangle])
+                    continue;
+
+                for (int j = 0; j < 3; j++) {
+                    int vertex = indices[triangle * 3 + j];
+                    result[resultSize++] = vertex;
+                    deadEnd[deadEndSize++] = vertex;
+                    candidates[candidateCount++] = vertex;
+                    live[vertex]--;
+
+                    if (time - cacheTime[vertex] > cacheSize)
+                        cacheTime[vertex] = time++;
+                }
+
+                emitted[triangle] = true;
+            }
+
+            // Next fanning vertex is the one which stays in cache longest
+            int next = -1;
+            int priority = -1;
+            for (int i = 0; i < candidateCount; i++) {
+                int vertex = candidates[i];
+                if (live[vertex] <= 0)
+                    continue;
+
+                int vertexPriority = 0;
+                if (time - cacheTime[vertex] + 2 * live[vertex] <= cacheSize)
+                    vertexPriority = time - cacheTime[vertex];
+
+                if (vertexPriority > priority) {
+                    priority = vertexPriority;
+                    next = vertex;
+                }
+            }
+
+            if (next == -1) {
+                // Dead end - cache locality is lost, so a new cluster starts here
+                while (deadEndSize > 0 && next == -1) {
+                    int vertex = deadEnd[--deadEndSize];
+                    if (live[vertex] > 0)
+                        next = vertex;
+                }
+
+                while (next == -1 && cursor < vertexCount) {
+                    if (live[cursor] > 0)
+                        next = cursor;
+                    cursor++;
+                }
+
+                if (next != -1 && resultSize > 0 && (clusterCount == 0 || clusters[clusterCount - 1] != resultSize / 3))
+                    clusters[clusterCount++] = resultSize / 3;
+            }
+
+            fanning = next;
+        }
+
+        System.arraycopy(result, 0, indices, 0, resultSize);
+
+        // First cluster always starts at zero
+        int[] boundaries = new int[clusterCount + 1];
+        System.arraycopy(clusters, 0, boundaries, 1, clusterCount);
+        return triangleCount == 0 ? new int[0] : boundaries;
+    }
+
+    /**
+     * Sorts triangle clusters so outer facing clusters are drawn first. Hard clusters are split further where
+     * vertex cache efficiency allows.
+     *
+     * @param indices     cache optimized indices, rewritten in place
+     * @param clusters    triangle indices where hard clusters start
+     * @param positions   vertex positions (3 floats per vertex)
+     * @param vertexCount number of vertices
+     */
+    public static void optimizeOverdraw(int[] indices, int[] clusters, float[] positions, int vertexCount)
+    {
+        int triangleCount = indices.length / 3;
+        if (triangleCount == 0)
+            return;
+
+        int[] softClusters = splitClusters(indices, clusters, vertexCount);
+        int clusterCount = softClusters.length;
+
+        // Mesh centroid (area weighted)
+        float[] meshCentroid = new float[3];
+        float meshArea = 0.0f;
+        float[] normal = new float[3];
+
+        for (int t = 0; t < triangleCount; t++) {
+            float area = triangleNormal(indices, positions, t, normal);
+            for (int j = 0; j < 3; j++)
+                meshCentroid[j] += area * (positions[indices[t * 3] * 3 + j] + positions[indices[t * 3 + 1] * 3 + j]
+                        + positions[indices[t * 3 + 2] * 3 + j]) / 3.0f;
+            meshArea += area;
+        }
+
+        if (meshArea > 0.0f)
+            for (int j = 0; j < 3; j++)
+                meshCentroid[j] /= meshArea;
+
+        // Sort key is the distance of cluster centroid along its average normal
+        float[] sortKeys = new float[clusterCount];
+        Integer[] order = new Integer[clusterCount];
+
+        for (int c = 0; c < clusterCount; c++) {
+            int begin = softClusters[c];
+            int end = c + 1 < clusterCount ? softClusters[c + 1] : triangleCount;
+
+            float[] centroid = new float[3];
+            float[] clusterNormal = new float[3];
+            float clusterArea = 0.0f;
+
+            for (int t = begin; t < end; t++) {
+                float area = triangleNormal(indices, positions, t, normal);
+                for (int j = 0; j < 3; j++) {
+                    centroid[j] += area * (positions[indices[t * 3] * 3 + j] + positions[indices[t * 3 + 1] * 3 + j]
+                            + positions[indices[t * 3 + 2] * 3 + j]) / 3.0f;
+                    clusterNormal[j] += area * normal[j];
+                }
+                clusterArea += area;
+            }
+
+            float key = 0.0f;
+            if (clusterArea > 0.0f)
+                for (int j = 0; j < 3; j++)
+                    key += (centroid[j] / clusterArea - meshCentroid[j]) * clusterNormal[j];
+
+            sortKeys[c] = key;
+            order[c] = c;
+        }
+
+        // Stable sort keeps cache order of clusters with equal keys
+        Arrays.sort(order, (a, b) -> Float.compare(sortKeys[b], sortKeys[a]));
+
+        int[] result = new int[indices.length];
+        int resultSize = 0;
+        for (int c : order) {
+            int begin = softClusters[c];
+            int end = c + 1 < clusterCount ? softClusters[c + 1] : triangleCount;
+            System.arraycopy(indices, begin * 3, result, resultSize, (end - begin) * 3);
+            resultSize += (end - begin) * 3;
+        }
+
+        System.arraycopy(result, 0, indices, 0, indices.length);
+    }
+
+    /**
+     * Reorders vertices in the order of first use, unused vertices are moved to the end
+     *
+     * @param indices     indices, rewritten in place
+     * @param vertexCount number of vertices
+     * @return new vertex order (old index of every new vertex)
+     */
+    public static int[] optimizeVertexFetch(int[] indices, int vertexCount)
+    {
+        int[] remap = new int[vertexCount];
+        Arrays.fill(remap, -1);
+
+        int[] order = new int[vertexCount];
+        int next = 0;
+
+        for (int i = 0; i < indices.length; i++) {
+            int vertex = indices[i];
+            if (remap[vertex] == -1) {
+                remap[vertex] = next;
+                order[next++] = vertex;
+            }
+            indices[i] = remap[vertex];
+        }
+
+        for (int i = 0; i < vertexCount; i++)
+            if (remap[i] == -1)
+                order[next++] = i;
+
+        return order;
+    }
+
+    /**
+     * Average cache miss ratio - transformed vertices per triangle with simulated FIFO cache (0.5 is ideal for
+     * large regular meshes, 3 is the worst case)
+     *
+     * @param indices     triangle list indices
+     * @param vertexCount number of vertices
+     * @param cacheSize   simulated cache size
+     * @return ACMR
+     */
+    public static float getACMR(int[] indices, int vertexCount, int cacheSize)
+    {
+        if (indices.length == 0)
+            return 0.0f;
+        return (float) countCacheMisses(indices, 0, indices.length, vertexCount, cacheSize) / (indices.length / 3);
+    }
+
+    /**
+     * Average transform to vertex ratio - transformed vertices per used vertex with simulated FIFO cache
+     * (1 is ideal)
+     *
+     * @param indices     triangle list indices
+     * @param vertexCount number of vertices
+     * @param cacheSize   simulated cache size
+     * @return ATVR
+     */
+    public static float getATVR(int[] indices, int vertexCount, int cacheSize)
+    {
+        boolean[] used = new boolean[vertexCount];
+        int usedCount = 0;
+        for (int index : indices)
+            if (!used[index]) {
+                used[index] = true;
+                usedCount++;
+            }
+
+        if (usedCount == 0)
+            return 0.0f;
+        return (float) countCacheMisses(indices, 0, indices.length, vertexCount, cacheSize) / usedCount;
+    }
+
+    // FIFO cache simulation over index range
+    private static int countCacheMisses(int[] indices, int begin, int end, int vertexCount, int cacheSize)
+    {
+        int[] cacheTime = new int[vertexCount];
+        Arrays.fill(cacheTime, Integer.MIN_VALUE / 2);
+
+        int time = 0;
+        int misses = 0;
+        for (int i = begin; i < end; i++) {
+            int vertex = indices[i];
+            if (time - cacheTime[vertex] > cacheSize) {
+                cacheTime[vertex] = time++;
+                misses++;
+            }
+        }
+
+        return misses;
+    }
+
+    // Splits hard clusters where ACMR measured from the cluster start is already good enough
+    private static int[] splitClusters(int[] indices, int[] clusters, int vertexCount)
+    {
+        int triangleCount = indices.length / 3;
+        float threshold = getACMR(indices, vertexCount, CACHE_SIZE) * OVERDRAW_THRESHOLD;
+
+        int[] result = new int[triangleCount];
+        int resultCount = 0;
+
+        int[] cacheTime = new int[vertexCount];
+
+        for (int c = 0; c < clusters.length; c++) {
+            int begin = clusters[c];
+            int end = c + 1 < clusters.length ? clusters[c + 1] : triangleCount;
+
+            int clusterStart = begin;
+            int misses = 0;
+            int time = CACHE_SIZE + 1;
+            Arrays.fill(cacheTime, 0);
+            result[resultCount++] = begin;
+
+            for (int t = begin; t < end; t++) {
+                for (int j = 0; j < 3; j++) {
+                    int vertex = indices[t * 3 + j];
+                    if (time - cacheTime[vertex] > CACHE_SIZE) {
+                        cacheTime[vertex] = time++;
+                        misses++;
+                    }
+                }
+
+                // Cache is reset at the new cluster so its first triangles always miss
+                if (t + 1 < end && (float) misses / (t + 1 - clusterStart) <= threshold) {
+                    result[resultCount++] = t + 1;
+                    clusterStart = t + 1;
+                    misses = 0;
+                    time += CACHE_SIZE + 1;
+                }
+            }
+        }
+
+        return Arrays.copyOf(result, resultCount);
+    }
+
+    // Writes unit normal of the triangle into dest and returns triangle area
+    private static float triangleNormal(int[] indices, float[] positions, int triangle, float[] dest)
+    {
+        int a = indices[triangle * 3] * 3;
+        int b = indices[triangle * 3 + 1] * 3;
+        int c = indices[triangle * 3 + 2] * 3;
+
+        float abX = positions[b] - positions[a], abY = positions[b + 1] - positions[a + 1];
+        float abZ = positions[b + 2] - positions[a + 2];
+        float acX = positions[c] - positions[a], acY = positions[c + 1] - positions[a + 1];
+        float acZ = positions[c + 2] - positions[a + 2];
+
+        float x = abY * acZ - abZ * acY;
+        float y = abZ * acX - abX * acZ;
+        float z = abX * acY - abY * acX;
+        float length = (float) Math.sqrt(x * x + y * y + z * z);
+
+        if (length == 0.0f) {
+            dest[0] = dest[1] = dest[2] = 0.0f;
+            return 0.0f;
+        }
+
+        dest[0] = x / length;
+        dest[1] = y / length;
+        dest[2] = z / length;
+        return length * 0.5f;
+    }
+}
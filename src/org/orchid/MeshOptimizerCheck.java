@@ -0,0 +1,183 @@
+package org.orchid;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Mesh optimizer check - optimizes shuffled sphere mesh with its levels of detail and verifies cache statistics
+ * and that triangles are preserved (no GL context is required)
+ * <p>
+ * Usage: "MeshOptimizerCheck [segments]", exits with non-zero status if some check fails. ACMR and ATVR of the full
+ * mesh are printed before and after optimization.
+ */
+public class MeshOptimizerCheck
+{
+    // Optimized full mesh should be close to the ideal 0.5 ACMR of large regular meshes
+    private static final float MAX_ACMR = 0.8f;
+    private static final float MAX_ATVR = 1.5f;
+
+    private static int failures = 0;
+
+    public static void main(String[] args)
+    {
+        int segments = args.length > 0 ? Integer.parseInt(args[0]) : 128;
+
+        float[] positions = buildSphere(segments);
+        int vertexCount = positions.length / 3;
+        int[] triangles = buildTriangles(segments);
+
+        // Imported meshes often come in arbitrary order, shuffled one is the worst case
+        Random random = new Random(segments);
+        shuffleVertices(triangles, positions, vertexCount, random);
+        shuffleTriangles(triangles, random);
+
+        int[][] lods = MeshSimplifier.generateLods(triangles, positions, vertexCount);
+        int[][] original = new int[lods.length][];
+        for (int i = 0; i < lods.length; i++)
+            original[i] = lods[i].clone();
+
+        float acmr = MeshOptimizer.getACMR(lods[0], vertexCount, MeshOptimizer.CACHE_SIZE);
+        float atvr = MeshOptimizer.getATVR(lods[0], vertexCount, MeshOptimizer.CACHE_SIZE);
+
+        long start = System.nanoTime();
+        int[] order = MeshOptimizer.optimize(lods, positions, vertexCount);
+        double time = (System.nanoTime() - start) / 1000000.0;
+
+        float optimizedAcmr = MeshOptimizer.getACMR(lods[0], vertexCount, MeshOptimizer.CACHE_SIZE);
+        float optimizedAtvr = MeshOptimizer.getATVR(lods[0], vertexCount, MeshOptimizer.CACHE_SIZE);
+
+        System.out.printf("Sphere: %d vertices, %d triangles, %d levels of detail, optimized in %.1f ms%n",
+                vertexCount, triangles.length / 3, lods.length, time);
+        System.out.printf("ACMR %.3f -> %.3f, ATVR %.3f -> %.3f%n", acmr, optimizedAcmr, atvr, optimizedAtvr);
+
+        check(optimizedAcmr < acmr && optimizedAcmr <= MAX_ACMR, "ACMR " + optimizedAcmr);
+        check(optimizedAtvr < atvr && optimizedAtvr <= MAX_ATVR, "ATVR " + optimizedAtvr);
+        check(isPermutation(order), "vertex order is not a permutation");
+
+        // Optimized indices refer to new vertices, order maps them back to the original ones
+        for (int i = 0; i < lods.length; i++) {
+            int[] remapped = new int[lods[i].length];
+            for (int j = 0; j < remapped.length; j++)
+                remapped[j] = order[lods[i][j]];
+
+            check(Arrays.equals(canonicalize(remapped), canonicalize(original[i])),
+                    "triangles of level " + i + " changed");
+        }
+
+        System.out.println(failures == 0 ? "Mesh optimizer check passed" : failures + " checks failed");
+        if (failures != 0)
+            System.exit(1);
+    }
+
+    // UV sphere positions - rings of segments + 1 vertices from pole to pole (seam vertices are duplicated)
+    private static float[] buildSphere(int segments)
+    {
+        int rings = segments / 2;
+        float[] positions = new float[(rings + 1) * (segments + 1) * 3];
+
+        for (int r = 0, v = 0; r <= rings; r++) {
+            double theta = Math.PI * r / rings;
+            for (int s = 0; s <= segments; s++, v += 3) {
+                double phi = 2.0 * Math.PI * s / segments;
+                positions[v] = (float) (Math.sin(theta) * Math.cos(phi));
+                positions[v + 1] = (float) Math.cos(theta);
+                positions[v + 2] = (float) (Math.sin(theta) * Math.sin(phi));
+            }
+        }
+
+        return positions;
+    }
+
+    private static int[] buildTriangles(int segments)
+    {
+        int rings = segments / 2;
+        int[] triangles = new int[rings * segments * 6];
+
+        int t = 0;
+        for (int r = 0; r < rings; r++)
+            for (int s = 0; s < segments; s++) {
+                int a = r * (segments + 1) + s;
+                int b = a + segments + 1;
+
+                triangles[t++] = a;
+                triangles[t++] = b;
+                triangles[t++] = a + 1;
+                triangles[t++] = a + 1;
+                triangles[t++] = b;
+                triangles[t++] = b + 1;
+            }
+
+        return triangles;
+    }
+
+    private static void shuffleVertices(int[] triangles, float[] positions, int vertexCount, Random random)
+    {
+        int[] remap = new int[vertexCount];
+        for (int i = 0; i < vertexCount; i++)
+            remap[i] = i;
+        for (int i = vertexCount - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int swap = remap[i];
+            remap[i] = remap[j];
+            remap[j] = swap;
+        }
+
+        float[] source = positions.clone();
+        for (int i = 0; i < vertexCount; i++)
+            System.arraycopy(source, i * 3, positions, remap[i] * 3, 3);
+        for (int i = 0; i < triangles.length; i++)
+            triangles[i] = remap[triangles[i]];
+    }
+
+    private static void shuffleTriangles(int[] triangles, Random random)
+    {
+        for (int i = triangles.length / 3 - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            for (int k = 0; k < 3; k++) {
+                int swap = triangles[i * 3 + k];
+                triangles[i * 3 + k] = triangles[j * 3 + k];
+                triangles[j * 3 + k] = swap;
+            }
+        }
+    }
+
+    private static boolean isPermutation(int[] order)
+    {
+        boolean[] seen = new boolean[order.length];
+        for (int vertex : order) {
+            if (vertex < 0 || vertex >= order.length || seen[vertex])
+                return false;
+            seen[vertex] = true;
+        }
+        return true;
+    }
+
+    // Sorted triangles, each rotated to start with its smallest index (winding is kept)
+    private static long[] canonicalize(int[] indices)
+    {
+        long[] triangles = new long[indices.length / 3];
+
+        for (int i = 0; i < triangles.length; i++) {
+            int a = indices[i * 3], b = indices[i * 3 + 1], c = indices[i * 3 + 2];
+            while (a > b || a > c) {
+                int swap = a;
+                a = b;
+                b = c;
+                c = swap;
+            }
+            triangles[i] = ((long) a << 42) | ((long) b << 21) | c;
+        }
+
+        Arrays.sort(triangles);
+        return triangles;
+    }
+
+    private static void check(boolean condition, String message)
+    {
+        if (condition)
+            return;
+
+        System.err.println("Check failed: " + message);
+        failures++;
+    }
+}
@@ -0,0 +1,287 @@
+package org.orchid;
+
+import java.util.Arrays;
+
+/**
+ * Mesh simplifier - generates levels of detail by quadric error metric edge collapses
+ * <p>
+ * Vertices are only collapsed into other existing vertices, so all levels of detail share the vertex buffer and
+ * differ only by indices. Border vertices (including texture seams) are locked to avoid cracks.
+ */
+public class MeshSimplifier
+{
+    /**
+     * Triangle count ratios of generated levels of detail (relative to the full mesh)
+     */
+    public static final float[] LOD_RATIOS = {0.5f, 0.25f, 0.125f};
+
+    // Level is dropped if it doesn't remove at least this part of the previous level triangles
+    private static final float MIN_REDUCTION = 0.1f;
+
+    // Quadric is a symmetric 4x4 matrix, only 10 unique values are stored
+    private static final int QUADRIC_SIZE = 10;
+
+    /**
+     * Generates chain of levels of detail, each level is simplified from the previous one
+     *
+     * @param indices     triangle list indices of the full mesh
+     * @param positions   vertex positions (3 floats per vertex)
+     * @param vertexCount number of vertices
+     * @return indices of all levels, the first one is the full mesh
+     */
+    public static int[][] generateLods(int[] indices, float[] positions, int vertexCount)
+    {
+        int[][] lods = new int[LOD_RATIOS.length + 1][];
+        lods[0] = indices;
+        int count = 1;
+
+        for (float ratio : LOD_RATIOS) {
+            int[] previous = lods[count - 1];
+            int target = (int) (indices.length / 3 * ratio) * 3;
+
+            int[] lod = simplify(previous, positions, vertexCount, target);
+            if (lod.length == 0 || lod.length > previous.length * (1.0f - MIN_REDUCTION))
+                break;
+
+            lods[count++] = lod;
+        }
+
+        return Arrays.copyOf(lods, count);
+    }
+
+    /**
+     * Simplifies mesh until index count is not greater than target (or until no more edges can be collapsed)
+     *
+     * @param indices          triangle list indices
+     * @param positions        vertex positions (3 floats per vertex)
+     * @param vertexCount      number of vertices
+     * @param targetIndexCount target number of indices
+     * @return simplified indices
+     */
+    public static int[] simplify(int[] indices, float[] positions, int vertexCount, int targetIndexCount)
+    {
+        double[] quadrics = new double[vertexCount * QUADRIC_SIZE];
+        for (int t = 0; t < indices.length / 3; t++)
+            addTriangleQuadric(indices, positions, t, quadrics);
+
+        boolean[] locked = findBorders(indices, vertexCount);
+
+        int[] current = indices.clone();
+        int[] remap = new int[vertexCount];
+        boolean[] touched = new boolean[vertexCount];
+
+        while (current.length > targetIndexCount) {
+            int triangleCount = current.length / 3;
+
+            // Vertex to triangle adjacency (compressed rows)
+            int[] adjacencyOffsets = new int[vertexCount + 1];
+            for (int index : current)
+                adjacencyOffsets[index + 1]++;
+            for (int i = 0; i < vertexCount; i++)
+                adjacencyOffsets[i + 1] += adjacencyOffsets[i];
+
+            int[] adjacency = new int[current.length];
+            int[] fill = Arrays.copyOf(adjacencyOffsets, vertexCount);
+            for (int i = 0; i < current.length; i++)
+                adjacency[fill[current[i]]++] = i / 3;
+
+            // Unique edges (smaller vertex in the high half)
+            long[] edges = new long[current.length];
+            for (int t = 0; t < triangleCount; t++)
+                for (int j = 0; j < 3; j++) {
+                    int a = current[t * 3 + j];
+                    int b = current[t * 3 + (j + 1) % 3];
+                    edges[t * 3 + j] = (long) Math.min(a, b) << 32 | Math.max(a, b);
+                }
+            Arrays.sort(edges);
+
+            // Collapse candidates sorted by cost (cost bits in the high half, candidate index in the low half)
+            int[] from = new int[edges.length];
+            int[] to = new int[edges.length];
+            long[] candidates = new long[edges.length];
+            int candidateCount = 0;
+
+            for (int i = 0; i < edges.length; i++) {
+                if (i > 0 && edges[i] == edges[i - 1])
+                    continue;
+
+                int a = (int) (edges[i] >>> 32);
+                int b = (int) edges[i];
+                if (a == b)
+                    continue;
+
+                double costA = locked[a] ? Double.POSITIVE_INFINITY : collapseCost(quadrics, a, b, positions);
+                double costB = locked[b] ? Double.POSITIVE_INFINITY : collapseCost(quadrics, b, a, positions);
+                if (Double.isInfinite(costA) && Double.isInfinite(costB))
+                    continue;
+
+                from[candidateCount] = costA <= costB ? a : b;
+                to[candidateCount] = costA <= costB ? b : a;
+
+                // Non-negative float bits keep their order when compared as integers
+                float cost = (float) Math.max(Math.min(costA, costB), 0.0);
+                candidates[candidateCount] = (long) Float.floatToIntBits(cost) << 32 | candidateCount;
+                candidateCount++;
+            }
+
+            Arrays.sort(candidates, 0, candidateCount);
+
+            // Every interior collapse removes two triangles
+            int collapsesLeft = Math.max((current.length - targetIndexCount) / 6, 1);
+            int collapses = 0;
+
+            for (int i = 0; i < vertexCount; i++)
+                remap[i] = i;
+            Arrays.fill(touched, false);
+
+            for (int c = 0; c < candidateCount && collapses < collapsesLeft; c++) {
+                int candidate = (int) candidates[c];
+                int v0 = from[candidate];
+                int v1 = to[candidate];
+
+                if (touched[v0] || touched[v1] || flips(current, adjacency, adjacencyOffsets, positions, v0, v1))
+                    continue;
+
+                remap[v0] = v1;
+                for (int q = 0; q < QUADRIC_SIZE; q++)
+                    quadrics[v1 * QUADRIC_SIZE + q] += quadrics[v0 * QUADRIC_SIZE + q];
+
+                // Neighbours are touched too, so flip tests of later collapses in this pass stay valid
+                for (int i = adjacencyOffsets[v0]; i < adjacencyOffsets[v0 + 1]; i++)
+                    for (int j = 0; j < 3; j++)
+                        touched[current[adjacency[i] * 3 + j]] = true;
+
+                collapses++;
+            }
+
+            if (collapses == 0)
+                break;
+
+            // Collapsed triangles become degenerate and are removed
+            int size = 0;
+            for (int t = 0; t < triangleCount; t++) {
+                int a = remap[current[t * 3]];
+                int b = remap[current[t * 3 + 1]];
+                int c = remap[current[t * 3 + 2]];
+                if (a == b || b == c || a == c)
+                    continue;
+
+                current[size++] = a;
+                current[size++] = b;
+                current[size++] = c;
+            }
+
+            current = Arrays.copyOf(current, size);
+        }
+
+        return current;
+    }
+
+    // Checks whether moving v0 to v1 flips or degenerates any triangle which is not removed by the collapse
+    private static boolean flips(int[] indices, int[] adjacency, int[] adjacencyOffsets, float[] positions,
+                                 int v0, int v1)
+    {
+        for (int i = adjacencyOffsets[v0]; i < adjacencyOffsets[v0 + 1]; i++) {
+            int t = adjacency[i] * 3;
+            int a = indices[t], b = indices[t + 1], c = indices[t + 2];
+
+            if (a == v1 || b == v1 || c == v1)
+                continue;
+
+            float[] before = normal(positions, a, b, c);
+            float[] after = normal(positions, a == v0 ? v1 : a, b == v0 ? v1 : b, c == v0 ? v1 : c);
+
+            float dot = before[0] * after[0] + before[1] * after[1] + before[2] * after[2];
+            float lengths = (float) Math.sqrt((before[0] * before[0] + before[1] * before[1] + before[2] * before[2])
+                    * (after[0] * after[0] + after[1] * after[1] + after[2] * after[2]));
+
+            if (lengths == 0.0f || dot < 0.25f * lengths)
+                return true;
+        }
+
+        return false;
+    }
+
+    // Unnormalized triangle normal
+    private static float[] normal(float[] positions, int a, int b, int c)
+    {
+        float abX = positions[b * 3] - positions[a * 3], abY = positions[b * 3 + 1] - positions[a * 3 + 1];
+        float abZ = positions[b * 3 + 2] - positions[a * 3 + 2];
+        float acX = positions[c * 3] - positions[a * 3], acY = positions[c * 3 + 1] - positions[a * 3 + 1];
+        float acZ = positions[c * 3 + 2] - positions[a * 3 + 2];
+
+        return new float[]{abY * acZ - abZ * acY, abZ * acX - abX * acZ, abX * acY - abY * acX};
+    }
+
+    // Error of moving v0 into v1 position measured by both vertices quadrics
+    private static double collapseCost(double[] quadrics, int v0, int v1, float[] positions)
+    {
+        double x = positions[v1 * 3], y = positions[v1 * 3 + 1], z = positions[v1 * 3 + 2];
+        int q0 = v0 * QUADRIC_SIZE;
+        int q1 = v1 * QUADRIC_SIZE;
+
+        // Quadrics are linear, so the sum of evaluations equals evaluation of the sum
+        return evaluate(quadrics, q0, x, y, z) + evaluate(quadrics, q1, x, y, z);
+    }
+
+    private static double evaluate(double[] quadrics, int q, double x, double y, double z)
+    {
+        return quadrics[q] * x * x + 2 * quadrics[q + 1] * x * y + 2 * quadrics[q + 2] * x * z
+                + 2 * quadrics[q + 3] * x + quadrics[q + 4] * y * y + 2 * quadrics[q + 5] * y * z
+                + 2 * quadrics[q + 6] * y + quadrics[q + 7] * z * z + 2 * quadrics[q + 8] * z + quadrics[q + 9];
+    }
+
+    // Adds area weighted plane quadric of the triangle to all its vertices
+    private static void addTriangleQuadric(int[] indices, float[] positions, int triangle, double[] quadrics)
+    {
+        int a = indices[triangle * 3], b = indices[triangle * 3 + 1], c = indices[triangle * 3 + 2];
+        float[] n = normal(positions, a, b, c);
+
+        double length = Math.sqrt(n[0] * n[0] + n[1] * n[1] + n[2] * n[2]);
+        if (length == 0.0)
+            return;
+
+        double nx = n[0] / length, ny = n[1] / length, nz = n[2] / length;
+        double d = -(nx * positions[a * 3] + ny * positions[a * 3 + 1] + nz * positions[a * 3 + 2]);
+        double area = length * 0.5;
+
+        double[] plane = {
+                nx * nx, nx * ny, nx * nz, nx * d,
+                ny * ny, ny * nz, ny * d,
+                nz * nz, nz * d,
+                d * d
+        };
+
+        for (int vertex : new int[]{a, b, c})
+            for (int i = 0; i < QUADRIC_SIZE; i++)
+                quadrics[vertex * QUADRIC_SIZE + i] += plane[i] * area;
+    }
+
+    // Vertices of edges used by a single triangle
+    private static boolean[] findBorders(int[] indices, int vertexCount)
+    {
+        long[] edges = new long[indices.length];
+        for (int t = 0; t < indices.length / 3; t++)
+            for (int j = 0; j < 3; j++) {
+                int a = indices[t * 3 + j];
+                int b = indices[t * 3 + (j + 1) % 3];
+                edges[t * 3 + j] = (long) Math.min(a, b) << 32 | Math.max(a, b);
+            }
+        Arrays.sort(edges);
+
+        boolean[] borders = new boolean[vertexCount];
+        for (int i = 0; i < edges.length; ) {
+            int end = i + 1;
+            while (end < edges.length && edges[end] == edges[i])
+                end++;
+
+            if (end - i == 1) {
+                borders[(int) (edges[i] >>> 32)] = true;
+                borders[(int) edges[i]] = true;
+            }
+            i = end;
+        }
+
+        return borders;
+    }
+}
@@ -0,0 +1,158 @@
+package org.orchid;
+
+import org.joml.Matrix4f;
+import org.lwjgl.assimp.AIMesh;
+import org.lwjgl.assimp.AINode;
+import org.lwjgl.assimp.AIScene;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Cooked model - meshes and node hierarchy of imported model file
+ * <p>
+ * Nodes are stored parent-before-child, every node has its local transformation matrix and indices of its meshes.
+ */
+public class ModelData
+{
+    private MeshData[] meshes;
+    private String[] nodeNames;
+    private int[] nodeParents;
+    private float[][] nodeMatrices;
+    private int[][] nodeMeshes;
+
+    /**
+     * Constructor
+     *
+     * @param meshes       cooked meshes
+     * @param nodeNames    node names
+     * @param nodeParents  node parent indices (-1 for root)
+     * @param nodeMatrices node local matrices (16 floats, column-major)
+     * @param nodeMeshes   indices of node meshes
+     */
+    public ModelData(MeshData[] meshes, String[] nodeNames, int[] nodeParents, float[][] nodeMatrices,
+                     int[][] nodeMeshes)
+    {
+        this.meshes = meshes;
+        this.nodeNames = nodeNames;
+        this.nodeParents = nodeParents;
+        this.nodeMatrices = nodeMatrices;
+        this.nodeMeshes = nodeMeshes;
+    }
+
+    /**
+     * Cooks imported Assimp scene
+     *
+     * @param aiScene Assimp scene
+     * @return cooked model
+     */
+    public static ModelData fromAssimp(AIScene aiScene)
+    {
+        MeshData[] meshes = new MeshData[aiScene.mNumMeshes()];
+        for (int i = 0; i < meshes.length; i++)
+            meshes[i] = MeshData.fromAssimp(AIMesh.create(aiScene.mMeshes().get(i)));
+
+        List<String> names = new ArrayList<>();
+        List<Integer> parents = new ArrayList<>();
+        List<float[]> matrices = new ArrayList<>();
+        List<int[]> nodeMeshes = new ArrayList<>();
+
+        addNode(aiScene.mRootNode(), -1, names, parents, matrices, nodeMeshes);
+
+        int[] parentsArray = new int[parents.size()];
+        for (int i = 0; i < parentsArray.length; i++)
+            parentsArray[i] = parents.get(i);
+
+        return new ModelData(meshes, names.toArray(new String[0]), parentsArray, matrices.toArray(new float[0][]),
+                nodeMeshes.toArray(new int[0][]));
+    }
+
+    /**
+     * Meshes getter
+     *
+     * @return cooked meshes
+     */
+    public MeshData[] getMeshes()
+    {
+        return meshes;
+    }
+
+    /**
+     * Number of nodes
+     *
+     * @return nodes count
+     */
+    public int getNodeCount()
+    {
+        return nodeNames.length;
+    }
+
+    /**
+     * Node name getter
+     *
+     * @param node node index
+     * @return node name
+     */
+    public String getNodeName(int node)
+    {
+        return nodeNames[node];
+    }
+
+    /**
+     * Node parent getter
+     *
+     * @param node node index
+     * @return parent node index (-1 for root)
+     */
+    public int getNodeParent(int node)
+    {
+        return nodeParents[node];
+    }
+
+    /**
+     * Node local matrix getter
+     *
+     * @param node node index
+     * @param dest destination matrix
+     * @return local matrix (dest)
+     */
+    public Matrix4f getNodeMatrix(int node, Matrix4f dest)
+    {
+        return dest.set(nodeMatrices[node]);
+    }
+
+    /**
+     * Node meshes getter
+     *
+     * @param node node index
+     * @return indices of node meshes
+     */
+    public int[] getNodeMeshes(int node)
+    {
+        return nodeMeshes[node];
+    }
+
+    // Adds Assimp node and its children in depth first order
+    private static void addNode(AINode aiNode, int parent, List<String> names, List<Integer> parents,
+                                List<float[]> matrices, List<int[]> nodeMeshes)
+    {
+        int index = names.size();
+
+        names.add(aiNode.mName().dataString());
+        parents.add(parent);
+        matrices.add(new float[]{
+                aiNode.mTransformation().a1(), aiNode.mTransformation().b1(), aiNode.mTransformation().c1(), aiNode.mTransformation().d1(),
+                aiNode.mTransformation().a2(), aiNode.mTransformation().b2(), aiNode.mTransformation().c2(), aiNode.mTransformation().d2(),
+                aiNode.mTransformation().a3(), aiNode.mTransformation().b3(), aiNode.mTransformation().c3(), aiNode.mTransformation().d3(),
+                aiNode.mTransformation().a4(), aiNode.mTransformation().b4(), aiNode.mTransformation().c4(), aiNode.mTransformation().d4()
+        });
+
+        int[] meshes = new int[aiNode.mNumMeshes()];
+        for (int i = 0; i < meshes.length; i++)
+            meshes[i] = aiNode.mMeshes().get(i);
+        nodeMeshes.add(meshes);
+
+        for (int i = 0; i < aiNode.mNumChildren(); i++)
+            addNode(AINode.create(aiNode.mChildren().get(i)), index, names, parents, matrices, nodeMeshes);
+    }
+}
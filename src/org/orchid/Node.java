@@ -7,6 +7,8 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -15,23 +17,22 @@ import java.util.regex.Pattern;
  */
 public class Node
 {
-    private String name;
+    private static final int POSITION = 0;
+    private static final int ROTATION = 1;
+    private static final int SCALE = 2;
 
-    private Vector3f position = new Vector3f(0.0f);
-    private Vector3f rotation = new Vector3f();
-    private Vector3f scale = new Vector3f(1.0f);
+    private String name;
 
     private Node parent;
     private List<Node> children = new ArrayList<>();
     private Map<String, Node> childrenMap = new HashMap<>();
 
-    private Matrix4f positionMatrix = new Matrix4f();
-    private Matrix4f rotationMatrix = new Matrix4f();
-    private Matrix4f scaleMatrix = new Matrix4f();
-
-    private Matrix4f modelMatrix = new Matrix4f();
+    // Index of the node transform in the transform store (node is a handle to it)
+    int transform;
 
-    private boolean matrixUpdated = false;
+    // Spatial index the node is stored in and its proxy
+    BoundingVolumeHierarchy spatialIndex = null;
+    int proxy = -1;
 
     /**
      * Constructor
@@ -41,6 +42,7 @@ public class Node
     public Node(String name)
     {
         this.name = name;
+        transform = TransformStore.allocate(this);
     }
 
     /**
@@ -66,13 +68,20 @@ public class Node
     }
 
     /**
-     * Parent node setter
+     * Parent node setter (node is removed from children of the previous parent)
      *
      * @param parent new parent
      */
     public void setParent(Node parent)
     {
+        if (this.parent != null && this.parent != parent) {
+            Node previous = this.parent;
+            this.parent = null;
+            previous.removeChild(this);
+        }
+
         this.parent = parent;
+        TransformStore.setParent(transform, parent == null ? -1 : parent.transform);
         if (parent != null)
             parent.addChild(this);
     }
@@ -110,18 +119,22 @@ public class Node
     }
 
     /**
-     * Adds new child node
+     * Adds new child node (child with the name of existing sibling is renamed to "name N")
      *
      * @param child new child
      */
     public void addChild(Node child)
     {
-        if (childrenMap.containsKey(child.getName()))
+        if (childrenMap.get(child.getName()) == child)
             return;
 
+        // Child is detached before renaming, so the previous parent finds it by the old name
+        if (child.getParent() != null)
+            child.setParent(null);
+
         // Same name avoidance
         int index = 0;
-        Pattern p = Pattern.compile(child.name + "\\s*(\\d*)$");
+        Pattern p = Pattern.compile(Pattern.quote(child.name) + "\\s*(\\d*)$");
         for(Node n : children)
         {
             Matcher m = p.matcher(n.name);
@@ -139,11 +152,13 @@ public class Node
         if(index != 0)
             child.name = child.name.replaceAll("\\s*\\d*$",  " " + (index + 1));
 
+        // Numbered name can still be taken by a sibling with other base name ("a 2" added next to existing "a 2")
+        while (childrenMap.containsKey(child.name))
+            child.name = child.name.replaceAll("\\s*\\d*$",  " " + (++index + 1));
+
         children.add(child);
         childrenMap.put(child.getName(), child);
 
-        child.setOutdated();
-
         if (child.getParent() != this)
             child.setParent(this);
     }
@@ -155,9 +170,9 @@ public class Node
      */
     public void removeChild(int index)
     {
-        childrenMap.remove(children.get(index).getName());
-        children.get(index).setParent(null);
-        children.remove(index);
+        Node child = children.remove(index);
+        childrenMap.remove(child.getName());
+        child.setParent(null);
     }
 
     /**
@@ -167,12 +182,11 @@ public class Node
      */
     public void removeChild(Node node)
     {
-        if (!children.contains(node))
+        if (!children.remove(node))
             return;
 
-        node.setParent(null);
-        children.remove(node);
         childrenMap.remove(node.getName());
+        node.setParent(null);
     }
 
     /**
@@ -183,12 +197,14 @@ public class Node
         if (parent != null)
             parent.removeChild(this);
 
-        for (Node n : children) {
-            n.setParent(null);
-            n.remove();
-        }
+        // Children detach themselves from the list
+        while (!children.isEmpty())
+            children.get(children.size() - 1).remove();
 
-        children.clear();
+        if (transform != -1) {
+            TransformStore.free(transform);
+            transform = -1;
+        }
     }
 
     /**
@@ -208,7 +224,18 @@ public class Node
      */
     public Vector3f getPosition()
     {
-        return new Vector3f(position);
+        return getLocal(POSITION, new Vector3f());
+    }
+
+    /**
+     * Position getter
+     *
+     * @param dest destination vector
+     * @return local position (dest)
+     */
+    public Vector3f getPosition(Vector3f dest)
+    {
+        return getLocal(POSITION, dest);
     }
 
     /**
@@ -218,8 +245,7 @@ public class Node
      */
     public void setPosition(Vector3f position)
     {
-        this.position.set(position);
-        recalculatePosition();
+        TransformStore.setLocal(transform, POSITION, position.x, position.y, position.z);
     }
 
     /**
@@ -231,8 +257,7 @@ public class Node
      */
     public void setPosition(float x, float y, float z)
     {
-        position.set(x, y, z);
-        recalculatePosition();
+        TransformStore.setLocal(transform, POSITION, x, y, z);
     }
 
     /**
@@ -242,8 +267,10 @@ public class Node
      */
     public void translate(Vector3f translation)
     {
-        position.add(translation);
-        recalculatePosition();
+        TransformStore.setLocal(transform, POSITION,
+                TransformStore.getLocal(transform, POSITION, 0) + translation.x,
+                TransformStore.getLocal(transform, POSITION, 1) + translation.y,
+                TransformStore.getLocal(transform, POSITION, 2) + translation.z);
     }
 
     /**
@@ -253,7 +280,18 @@ public class Node
      */
     public Vector3f getRotation()
     {
-        return new Vector3f(rotation);
+        return getLocal(ROTATION, new Vector3f());
+    }
+
+    /**
+     * Rotation getter
+     *
+     * @param dest destination vector
+     * @return local rotation (dest)
+     */
+    public Vector3f getRotation(Vector3f dest)
+    {
+        return getLocal(ROTATION, dest);
     }
 
     /**
@@ -263,8 +301,7 @@ public class Node
      */
     public void setRotation(Vector3f rotation)
     {
-        this.rotation.set(rotation);
-        recalculateRotation();
+        TransformStore.setLocal(transform, ROTATION, rotation.x, rotation.y, rotation.z);
     }
 
     /**
@@ -276,8 +313,7 @@ public class Node
      */
     public void setRotation(float x, float y, float z)
     {
-        rotation.set(x, y, z);
-        recalculateRotation();
+        TransformStore.setLocal(transform, ROTATION, x, y, z);
     }
 
     /**
@@ -287,7 +323,18 @@ public class Node
      */
     public Vector3f getScale()
     {
-        return new Vector3f(scale);
+        return getLocal(SCALE, new Vector3f());
+    }
+
+    /**
+     * Scale getter
+     *
+     * @param dest destination vector
+     * @return local scale (dest)
+     */
+    public Vector3f getScale(Vector3f dest)
+    {
+        return getLocal(SCALE, dest);
     }
 
     /**
@@ -297,8 +344,7 @@ public class Node
      */
     public void setScale(Vector3f scale)
     {
-        this.scale.set(scale);
-        recalculateScale();
+        TransformStore.setLocal(transform, SCALE, scale.x, scale.y, scale.z);
     }
 
     /**
@@ -310,8 +356,7 @@ public class Node
      */
     public void setScale(float x, float y, float z)
     {
-        scale.set(x, y, z);
-        recalculateScale();
+        TransformStore.setLocal(transform, SCALE, x, y, z);
     }
 
     /**
@@ -321,8 +366,10 @@ public class Node
      */
     public void scale(Vector3f factor)
     {
-        scale.mul(factor);
-        recalculateScale();
+        TransformStore.setLocal(transform, SCALE,
+                TransformStore.getLocal(transform, SCALE, 0) * factor.x,
+                TransformStore.getLocal(transform, SCALE, 1) * factor.y,
+                TransformStore.getLocal(transform, SCALE, 2) * factor.z);
     }
 
     /**
@@ -330,8 +377,42 @@ public class Node
      */
     public void update()
     {
-        for (Node n : children)
-            n.update();
+        onUpdate();
+        for (int i = 0; i < children.size(); i++)
+            children.get(i).update();
+    }
+
+    /**
+     * Updates node and all its' children, subtrees larger than the threshold are updated by separate fork join
+     * tasks. Per-node logic may run concurrently for different subtrees, so it should only change the node itself
+     * and its' descendants and should not create or reparent nodes. World transforms read by it are the ones of the
+     * previous update (they are not recalculated until the pass ends).
+     *
+     * @param pool      fork join pool
+     * @param threshold minimal subtree size updated by a separate task
+     */
+    void update(ForkJoinPool pool, int threshold)
+    {
+        TransformStore.validateOrder();
+
+        if (TransformStore.getSubtreeSize(transform) < threshold) {
+            update();
+            return;
+        }
+
+        TransformStore.setNodePass(true);
+        try {
+            pool.invoke(new UpdateTask(this, Math.max(threshold, 1)));
+        } finally {
+            TransformStore.setNodePass(false);
+        }
+    }
+
+    /**
+     * Per-node update logic (called once per frame before world transforms are recalculated)
+     */
+    protected void onUpdate()
+    {
     }
 
     /**
@@ -341,45 +422,95 @@ public class Node
      */
     public Matrix4f getModelMatrix()
     {
-        if (!matrixUpdated)
-            recalculateModelMatrix();
-
-        return new Matrix4f(modelMatrix);
+        return getModelMatrix(new Matrix4f());
+    }
 
+    /**
+     * Model matrix (during parallel node update - the one of the previous update)
+     *
+     * @param dest destination matrix
+     * @return model matrix in the global space (dest)
+     */
+    public Matrix4f getModelMatrix(Matrix4f dest)
+    {
+        TransformStore.update();
+        return TransformStore.getWorld(transform, dest);
     }
 
-    // Sets node (and all its' children) matrices outdated status and forces node to recalculate them for optimization
-    protected void setOutdated()
+    /**
+     * World position (during parallel node update - the one of the previous update)
+     *
+     * @param dest destination vector
+     * @return position in the global space (dest)
+     */
+    public Vector3f getWorldPosition(Vector3f dest)
     {
-        matrixUpdated = false;
-        for (Node n : children)
-            n.setOutdated();
+        TransformStore.update();
+        return dest.set(TransformStore.getWorld(transform, 12), TransformStore.getWorld(transform, 13),
+                TransformStore.getWorld(transform, 14));
     }
 
-    private void recalculatePosition()
+    /**
+     * World space bounding box (node without geometry is a point)
+     *
+     * @param min destination for bounding box minimum corner
+     * @param max destination for bounding box maximum corner
+     */
+    public void getWorldBounds(Vector3f min, Vector3f max)
     {
-        positionMatrix.identity().translation(position);
-        setOutdated();
+        max.set(getWorldPosition(min));
     }
 
-    private void recalculateRotation()
+    // Update pass number of the last world matrix change, lets subclasses cache values derived from it
+    protected int getTransformStamp()
     {
-        rotationMatrix.identity().rotateXYZ(rotation);
-        setOutdated();
+        TransformStore.update();
+        return TransformStore.getStamp(transform);
     }
 
-    private void recalculateScale()
+    private Vector3f getLocal(int component, Vector3f dest)
     {
-        scaleMatrix.identity().scale(scale);
-        setOutdated();
+        return dest.set(TransformStore.getLocal(transform, component, 0),
+                TransformStore.getLocal(transform, component, 1),
+                TransformStore.getLocal(transform, component, 2));
     }
 
-    private void recalculateModelMatrix()
+    // Updates node logic and forks tasks for large children subtrees, joins them before returning
+    private static class UpdateTask extends RecursiveAction
     {
-        modelMatrix.identity().mul(positionMatrix).mul(rotationMatrix).mul(scaleMatrix);
-        if(parent != null)
-            modelMatrix.set(parent.getModelMatrix().mul(modelMatrix));
+        private static final long serialVersionUID = 1L;
+
+        private final Node node;
+        private final int threshold;
+
+        UpdateTask(Node node, int threshold)
+        {
+            this.node = node;
+            this.threshold = threshold;
+        }
 
-        matrixUpdated = true;
+        @Override
+        protected void compute()
+        {
+            node.onUpdate();
+
+            List<UpdateTask> tasks = null;
+
+            for (int i = 0; i < node.children.size(); i++) {
+                Node child = node.children.get(i);
+
+                if (TransformStore.getSubtreeSize(child.transform) < threshold) {
+                    child.update();
+                    continue;
+                }
+
+                if (tasks == null)
+                    tasks = new ArrayList<>();
+                tasks.add(new UpdateTask(child, threshold));
+            }
+
+            if (tasks != null)
+                invokeAll(tasks);
+        }
     }
 }
@@ -0,0 +1,97 @@
+package org.orchid;
+
+import org.joml.Vector3f;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Node hierarchy check - verifies that children with duplicate names, renamed children and reparented nodes keep
+ * consistent children lists and world transforms (no GL context is required)
+ * <p>
+ * Usage: "NodeHierarchyCheck", exits with non-zero status if some check fails.
+ */
+public class NodeHierarchyCheck
+{
+    private static int failures = 0;
+
+    public static void main(String[] args)
+    {
+        // Siblings with the same name, like spheres of pbr_test.xml
+        Node root = new Node("root");
+        Node[] spheres = new Node[30];
+        for (int i = 0; i < spheres.length; i++) {
+            spheres[i] = new Node("sphere", root);
+            spheres[i].setPosition(i + 1.0f, 0.0f, 0.0f);
+            new Node("child", spheres[i]).setPosition(0.0f, 1.0f, 0.0f);
+        }
+
+        check(root.getNumChild() == spheres.length, "duplicate names: " + root.getNumChild() + " of "
+                + spheres.length + " children added");
+        checkNames(root);
+
+        // Explicit numbers colliding with generated ones
+        new Node("sphere 2", root);
+        new Node("sphere 31", root);
+        checkNames(root);
+        check(root.getNumChild() == spheres.length + 2, "numbered names: " + root.getNumChild() + " children");
+
+        checkPositions(spheres, 0);
+
+        // Reparenting removes node from the previous parent
+        Node other = new Node("other");
+        other.setPosition(0.0f, 0.0f, 10.0f);
+        spheres[0].setParent(other);
+        other.addChild(spheres[1]);
+        check(root.getNumChild() == spheres.length, "reparenting: " + root.getNumChild() + " children left");
+        check(other.getNumChild() == 2, "reparenting: " + other.getNumChild() + " children moved");
+        check(root.getChild(spheres[0].getName()) != spheres[0], "reparenting: old parent still finds child");
+        checkNames(other);
+
+        Vector3f position = new Vector3f();
+        spheres[0].getChild(0).getWorldPosition(position);
+        check(position.equals(1.0f, 1.0f, 10.0f), "reparenting: child at " + position);
+
+        // Removed subtrees free their transforms
+        int count = TransformStore.getCount();
+        spheres[2].remove();
+        check(root.getNumChild() == spheres.length - 1, "removal: " + root.getNumChild() + " children left");
+        TransformStore.update();
+        check(TransformStore.getCount() == count - 2, "removal: " + TransformStore.getCount() + " transforms");
+        checkPositions(spheres, 3);
+
+        System.out.println(failures == 0 ? "Node hierarchy check passed" : failures + " checks failed");
+        if (failures != 0)
+            System.exit(1);
+    }
+
+    // Children of the spheres still under root should be above them
+    private static void checkPositions(Node[] spheres, int from)
+    {
+        Vector3f position = new Vector3f();
+        for (int i = from; i < spheres.length; i++) {
+            spheres[i].getChild(0).getWorldPosition(position);
+            check(position.equals(i + 1.0f, 1.0f, 0.0f), spheres[i].getName() + " child at " + position);
+        }
+    }
+
+    private static void checkNames(Node parent)
+    {
+        Set<String> names = new HashSet<>();
+        for (int i = 0; i < parent.getNumChild(); i++) {
+            Node child = parent.getChild(i);
+            check(names.add(child.getName()), "duplicate sibling name \"" + child.getName() + "\"");
+            check(parent.getChild(child.getName()) == child, "child \"" + child.getName() + "\" not found by name");
+            check(child.getParent() == parent, "child \"" + child.getName() + "\" has other parent");
+        }
+    }
+
+    private static void check(boolean condition, String message)
+    {
+        if (condition)
+            return;
+
+        System.err.println("Check failed: " + message);
+        failures++;
+    }
+}
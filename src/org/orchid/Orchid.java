@@ -8,7 +8,7 @@ import static org.lwjgl.opengl.GL13.*;
 import static org.lwjgl.opengl.GL15.*;
 import static org.lwjgl.opengl.GL20.*;
 import static org.lwjgl.opengl.GL30.*;
-import static org.lwjgl.opengl.GL31.GL_RGBA8_SNORM;
+import static org.lwjgl.opengl.GL31.GL_UNIFORM_BUFFER;
 
 /**
  * Main class - loads configuration and scene files and manages game loop
@@ -17,6 +17,7 @@ public class Orchid
 {
     private static long window;
     private static int windowHeight, windowWidth;
+    private static int renderHeight, renderWidth;
 
     // Skybox data
     private static int skyboxCubeArray;
@@ -27,19 +28,16 @@ public class Orchid
     private static int verticesBuffer;
     private static int uvsBuffer;
 
-    // Deferred pass data
-    private static int deferredframeBuffer;
-    private static int deferredPositionBuffer;
-    private static int deferredAlbedoMetalnessBuffer;
-    private static int deferredNormalRoughnessBuffer;
-    private static int deferredEnvironmentEmissionBuffer;
-
-    // Forward/Postprocessing pass data
-    private static int frameBuffer;
-    private static int colorBuffer;
-
-    // Depth buffer is shared between different framebuffers
-    private static int sharedDepthbuffer;
+    // Frame graph and its render targets (G-buffer layout: albedo and metalness, octahedral normal, roughness,
+    // environment lighting and emission, position is reconstructed from depth)
+    private static FrameGraph frameGraph;
+    private static FrameGraph.Resource depthTarget;
+    private static FrameGraph.Resource albedoMetalnessTarget;
+    private static FrameGraph.Resource normalTarget;
+    private static FrameGraph.Resource roughnessTarget;
+    private static FrameGraph.Resource environmentEmissionTarget;
+    private static FrameGraph.Resource colorTarget;
+    private static FrameGraph.Resource backbuffer;
 
     private static Shader deferredShader;
     private static Shader combineShader;
@@ -50,23 +48,89 @@ public class Orchid
     private static double deltaTime;
 
     /**
-     * Window properties change callback
+     * Window height getter
+     *
+     * @return window height in pixels
      */
-    public static void windowCallback()
+    static int getWindowHeight()
     {
-        glfwSetWindowSize(window, windowWidth, windowHeight);
-        glfwSetWindowTitle(window, Configuration.getProperty("window_title"));
+        return windowHeight;
+    }
 
-        windowWidth = Integer.parseInt(Configuration.getProperty("window_width"));
-        windowHeight = Integer.parseInt(Configuration.getProperty("window_height"));
+    /**
+     * Window width getter
+     *
+     * @return window width in pixels
+     */
+    static int getWindowWidth()
+    {
+        return windowWidth;
+    }
+
+    /**
+     * Render height getter (window height scaled by {@link DynamicResolution})
+     *
+     * @return height of the scaled passes in pixels
+     */
+    static int getRenderHeight()
+    {
+        return renderHeight;
+    }
 
-        // Resizing buffers by recreating them
-        cleanupDepthbuffer();
-        genDepthbuffer();
-        cleanupDeferredFramebuffer();
-        genDeferredFramebuffer();
-        cleanupFramebuffer();
-        genFramebuffer();
+    /**
+     * Render width getter (window width scaled by {@link DynamicResolution})
+     *
+     * @return width of the scaled passes in pixels
+     */
+    static int getRenderWidth()
+    {
+        return renderWidth;
+    }
+
+    /**
+     * Shared depth texture getter
+     *
+     * @return GL texture name
+     */
+    static int getDepthTexture()
+    {
+        return frameGraph.getTexture(depthTarget);
+    }
+
+    /**
+     * Frame graph getter
+     *
+     * @return frame graph rendering the scene
+     */
+    static FrameGraph getFrameGraph()
+    {
+        return frameGraph;
+    }
+
+    /**
+     * Window size properties change callback - targets follow the window by framebuffer size callback
+     */
+    public static void windowSizeCallback()
+    {
+        glfwSetWindowSize(window, Integer.parseInt(Configuration.getProperty("window_width")),
+                Integer.parseInt(Configuration.getProperty("window_height")));
+    }
+
+    /**
+     * Window title property change callback
+     */
+    public static void windowTitleCallback()
+    {
+        glfwSetWindowTitle(window, Configuration.getProperty("window_title"));
+    }
+
+    /**
+     * Window properties change callback (size and title)
+     */
+    public static void windowCallback()
+    {
+        windowSizeCallback();
+        windowTitleCallback();
     }
 
     /**
@@ -92,7 +156,7 @@ public class Orchid
             throw new RuntimeException("GLFW initialization failed");
 
         glfwWindowHint(GLFW_CONTEXT_VERSION_MAJOR, 4);
-        glfwWindowHint(GLFW_CONTEXT_VERSION_MINOR, 2);
+        glfwWindowHint(GLFW_CONTEXT_VERSION_MINOR, 4);
         glfwWindowHint(GLFW_OPENGL_CORE_PROFILE, GLFW_TRUE);
 
         windowWidth = Integer.parseInt(Configuration.getProperty("window_width"));
@@ -103,12 +167,31 @@ public class Orchid
         if (window == 0)
             throw new RuntimeException("Window creation failed");
 
+        // Window size is in screen coordinates, framebuffer can be larger on HiDPI displays (size callback isn't
+        // invoked for the initial size)
+        int[] framebufferWidth = new int[1];
+        int[] framebufferHeight = new int[1];
+        glfwGetFramebufferSize(window, framebufferWidth, framebufferHeight);
+        windowWidth = framebufferWidth[0];
+        windowHeight = framebufferHeight[0];
+
         glfwMakeContextCurrent(window);
         GL.createCapabilities();
 
         glDepthFunc(GL_LEQUAL);
 
         Input.init(window);
+        glfwSetFramebufferSizeCallback(window, (handle, width, height) -> resize(width, height));
+        UniformRing.init();
+        TextureLoader.init();
+        TextureStreamer.init();
+        Texture.init();
+        MaterialTable.init();
+        GpuCulling.init();
+        LightClusters.init();
+        RenderTargetPool.init();
+        DynamicResolution.init();
+        AllocationMonitor.init();
 
         // Scene loading invokes some of GL functions so it should be performed after context creation
         Scene.loadScene(Configuration.getProperty("main_scene"));
@@ -131,40 +214,151 @@ public class Orchid
 
         BRDFLookUp = new Texture("./res/brdf.png", 3);
 
-        genDepthbuffer();
-        genDeferredFramebuffer();
-        genFramebuffer();
+        buildFrameGraph();
+        frameGraph.compile(DynamicResolution.getMaxRenderSize(windowWidth),
+                DynamicResolution.getMaxRenderSize(windowHeight));
+        frameGraph.setBackbufferSize(windowWidth, windowHeight);
+        updateRenderSize();
+        dumpFrameGraph();
         genRenderquad();
         genSkybox();
 
         while (!glfwWindowShouldClose(window))
         {
             Time.updateDelta();
+            UniformRing.beginFrame();
 
             Input.update();
+            TextureLoader.update();
+            TextureStreamer.update();
             Scene.update();
+            MaterialTable.update();
 
-            glBindFramebuffer(GL_FRAMEBUFFER, frameBuffer);
-            glClear(GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT);
-
-            deferredPass();
-            if(Scene.getSkybox() != null)
-                skyboxPass();
-
-            postprocessingPass();
+            updateRenderSize();
+            bindTargetBlock();
+            DynamicResolution.begin();
+            frameGraph.execute();
+            DynamicResolution.end();
+            RenderTargetPool.update();
+            UniformRing.endFrame();
 
             glfwPollEvents();
             glfwSwapBuffers(window);
+
+            if (AllocationMonitor.update())
+                glfwSetWindowShouldClose(window, true);
         }
 
-        cleanupFramebuffer();
+        frameGraph.remove();
+        RenderTargetPool.remove();
+        DynamicResolution.remove();
         cleanupRenderquad();
         cleanupSkybox();
         Scene.sceneCleanup();
+        TextureLoader.remove();
+        TextureArrays.remove();
+        GpuCulling.remove();
+        GeometryArena.remove();
+        MaterialTable.remove();
+        UniformRing.remove();
+
+        if (!AllocationMonitor.isPassed())
+            System.exit(1);
+    }
+
+    // Declares passes and their targets
+    private static void buildFrameGraph()
+    {
+        frameGraph = new FrameGraph();
+
+        depthTarget = frameGraph.createTexture("depth", GL_DEPTH24_STENCIL8, GL_DEPTH_STENCIL,
+                GL_UNSIGNED_INT_24_8, GL_NEAREST);
+        albedoMetalnessTarget = frameGraph.createTexture("albedo_metalness", GL_RGBA8, GL_RGBA, GL_UNSIGNED_BYTE,
+                GL_NEAREST);
+        normalTarget = frameGraph.createTexture("normal", GL_RG16, GL_RG, GL_UNSIGNED_SHORT, GL_NEAREST);
+        roughnessTarget = frameGraph.createTexture("roughness", GL_R8, GL_RED, GL_UNSIGNED_BYTE, GL_NEAREST);
+        environmentEmissionTarget = frameGraph.createTexture("environment_emission", GL_R11F_G11F_B10F, GL_RGB,
+                GL_FLOAT, GL_NEAREST);
+        colorTarget = frameGraph.createTexture("color", GL_RGBA16F, GL_RGBA, GL_FLOAT, GL_LINEAR);
+        backbuffer = frameGraph.importBackbuffer("backbuffer");
+
+        frameGraph.addPass("deferred", Orchid::deferredPass)
+                .write(albedoMetalnessTarget).write(normalTarget).write(roughnessTarget)
+                .write(environmentEmissionTarget).write(depthTarget);
+
+        frameGraph.addPass("combine", Orchid::combinePass)
+                .read(depthTarget).read(albedoMetalnessTarget).read(normalTarget).read(roughnessTarget)
+                .read(environmentEmissionTarget).write(colorTarget);
+
+        // Skybox is drawn over combined image where depth is cleared
+        frameGraph.addPass("skybox", Orchid::skyboxPass)
+                .read(depthTarget).write(colorTarget).write(depthTarget);
+
+        frameGraph.addPass("postprocessing", Orchid::postprocessingPass)
+                .read(colorTarget).write(backbuffer);
+    }
+
+    // Prints compiled graph if "frame_graph_dump" property is true
+    private static void dumpFrameGraph()
+    {
+        if ("true".equals(Configuration.getProperty("frame_graph_dump")))
+            System.out.print(frameGraph.dump());
+    }
+
+    // Follows framebuffer size, graph keeps its targets while the size fits into the same pool buckets
+    private static void resize(int width, int height)
+    {
+        // Minimized window has zero size
+        if (width <= 0 || height <= 0 || width == windowWidth && height == windowHeight)
+            return;
+
+        windowWidth = width;
+        windowHeight = height;
+
+        if (frameGraph.resize(DynamicResolution.getMaxRenderSize(width), DynamicResolution.getMaxRenderSize(height)))
+            dumpFrameGraph();
+        frameGraph.setBackbufferSize(width, height);
+        renderWidth = renderHeight = 0;
+        updateRenderSize();
+
+        // Depth pyramid of the old depth buffer doesn't match the new one
+        DepthPyramid.invalidate();
+
+        if (Scene.getMainCamera() != null)
+            Scene.getMainCamera().setAspectRatio((float) width / height);
+    }
+
+    // Scales viewport of the graph passes by current dynamic resolution scale, targets stay the same
+    private static void updateRenderSize()
+    {
+        int width = DynamicResolution.getRenderSize(windowWidth);
+        int height = DynamicResolution.getRenderSize(windowHeight);
+        if (width == renderWidth && height == renderHeight)
+            return;
+
+        frameGraph.setViewport(width, height);
+        renderWidth = frameGraph.getWidth();
+        renderHeight = frameGraph.getHeight();
+    }
+
+    // Binds viewport to target size ratio, targets can be larger than viewport (see RenderTargetPool)
+    private static void bindTargetBlock()
+    {
+        float scaleX = (float) frameGraph.getWidth() / frameGraph.getTargetWidth();
+        float scaleY = (float) frameGraph.getHeight() / frameGraph.getTargetHeight();
+
+        int offset = UniformRing.allocate(16);
+        UniformRing.getMapped().putFloat(offset, scaleX).putFloat(offset + 4, scaleY)
+                .putFloat(offset + 8, scaleX - 0.5f / frameGraph.getTargetWidth())
+                .putFloat(offset + 12, scaleY - 0.5f / frameGraph.getTargetHeight());
+        UniformRing.bind(GL_UNIFORM_BUFFER, Shader.TARGET_BLOCK, offset, 16);
     }
 
     private static void skyboxPass()
     {
+        if (Scene.getSkybox() == null)
+            return;
+
         glEnable(GL_DEPTH_TEST);
 
         skyboxShader.use();
@@ -176,8 +370,7 @@ public class Orchid
 
     private static void deferredPass()
     {
-        glBindFramebuffer(GL_FRAMEBUFFER, deferredframeBuffer);
-        glClear(GL_COLOR_BUFFER_BIT);
+        glClear(GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT);
 
         deferredShader.use();
         glEnable(GL_DEPTH_TEST);
@@ -187,150 +380,47 @@ public class Orchid
         Scene.getSkyboxIrradiance().use();
         glActiveTexture(GL_TEXTURE12);
         BRDFLookUp.use();
-        Scene.drawOpaque();
+        if (Texture.getBinding() == Texture.Binding.ARRAYS)
+            TextureArrays.bind();
+        Scene.drawOpaque(deferredShader);
+    }
+
+    private static void combinePass()
+    {
+        LightClusters.update(Scene.getMainCamera(), Scene.getLights(), renderWidth, renderHeight);
 
-        glBindFramebuffer(GL_FRAMEBUFFER, frameBuffer);
         combineShader.use();
         glActiveTexture(GL_TEXTURE0);
-        glBindTexture(GL_TEXTURE_2D, deferredPositionBuffer);
+        glBindTexture(GL_TEXTURE_2D, frameGraph.getTexture(depthTarget));
         glActiveTexture(GL_TEXTURE1);
-        glBindTexture(GL_TEXTURE_2D, deferredAlbedoMetalnessBuffer);
+        glBindTexture(GL_TEXTURE_2D, frameGraph.getTexture(albedoMetalnessTarget));
         glActiveTexture(GL_TEXTURE2);
-        glBindTexture(GL_TEXTURE_2D, deferredNormalRoughnessBuffer);
+        glBindTexture(GL_TEXTURE_2D, frameGraph.getTexture(normalTarget));
         glActiveTexture(GL_TEXTURE3);
-        glBindTexture(GL_TEXTURE_2D, deferredEnvironmentEmissionBuffer);
+        glBindTexture(GL_TEXTURE_2D, frameGraph.getTexture(environmentEmissionTarget));
+        glActiveTexture(GL_TEXTURE4);
+        glBindTexture(GL_TEXTURE_2D, frameGraph.getTexture(roughnessTarget));
         glActiveTexture(GL_TEXTURE9);
         BRDFLookUp.use();
 
-        glDepthMask(false);
+        // Combined image covers whole screen, so color target needs no clearing
+        glDisable(GL_DEPTH_TEST);
         drawRenderquad();
-        glDepthMask(true);
     }
 
     private static void postprocessingPass()
     {
         glDisable(GL_DEPTH_TEST);
-        glBindFramebuffer(GL_FRAMEBUFFER, 0);
         glClear(GL_COLOR_BUFFER_BIT);
 
         postprocessingShader.use();
 
         glActiveTexture(GL_TEXTURE0);
-        glBindTexture(GL_TEXTURE_2D, colorBuffer);
+        glBindTexture(GL_TEXTURE_2D, frameGraph.getTexture(colorTarget));
 
         drawRenderquad();
     }
 
-    private static void genDepthbuffer()
-    {
-        sharedDepthbuffer = glGenRenderbuffers();
-        glBindRenderbuffer(GL_RENDERBUFFER, sharedDepthbuffer);
-        glRenderbufferStorage(GL_RENDERBUFFER, GL_DEPTH24_STENCIL8, windowWidth, windowHeight);
-        glBindRenderbuffer(GL_RENDERBUFFER, 0);
-    }
-
-    private static void cleanupDepthbuffer()
-    {
-        glDeleteRenderbuffers(sharedDepthbuffer);
-    }
-
-    private static void genDeferredFramebuffer()
-    {
-        deferredframeBuffer = glGenFramebuffers();
-        glBindFramebuffer(GL_FRAMEBUFFER, deferredframeBuffer);
-
-        deferredPositionBuffer = glGenTextures();
-        glBindTexture(GL_TEXTURE_2D, deferredPositionBuffer);
-        glTexImage2D(GL_TEXTURE_2D, 0, GL_RGB16F, windowWidth, windowHeight,
-                0, GL_RGB, GL_FLOAT, 0);
-        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_NEAREST);
-        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
-        glBindTexture(GL_TEXTURE_2D, 0);
-
-        glFramebufferTexture2D(GL_FRAMEBUFFER, GL_COLOR_ATTACHMENT0, GL_TEXTURE_2D, deferredPositionBuffer, 0);
-
-        deferredAlbedoMetalnessBuffer = glGenTextures();
-        glBindTexture(GL_TEXTURE_2D, deferredAlbedoMetalnessBuffer);
-        glTexImage2D(GL_TEXTURE_2D, 0, GL_RGBA8, windowWidth, windowHeight,
-                0, GL_RGBA, GL_UNSIGNED_BYTE, 0);
-        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_NEAREST);
-        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
-        glBindTexture(GL_TEXTURE_2D, 0);
-
-        glFramebufferTexture2D(GL_FRAMEBUFFER, GL_COLOR_ATTACHMENT1, GL_TEXTURE_2D, deferredAlbedoMetalnessBuffer, 0);
-
-        deferredNormalRoughnessBuffer = glGenTextures();
-        glBindTexture(GL_TEXTURE_2D, deferredNormalRoughnessBuffer);
-        glTexImage2D(GL_TEXTURE_2D, 0, GL_RGBA8_SNORM, windowWidth, windowHeight,
-                0, GL_RGBA, GL_SHORT, 0);
-        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_NEAREST);
-        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
-        glBindTexture(GL_TEXTURE_2D, 0);
-
-        glFramebufferTexture2D(GL_FRAMEBUFFER, GL_COLOR_ATTACHMENT2, GL_TEXTURE_2D, deferredNormalRoughnessBuffer, 0);
-
-        deferredEnvironmentEmissionBuffer = glGenTextures();
-        glBindTexture(GL_TEXTURE_2D, deferredEnvironmentEmissionBuffer);
-        glTexImage2D(GL_TEXTURE_2D, 0, GL_RGB16F, windowWidth, windowHeight,
-                0, GL_RGB, GL_FLOAT, 0);
-        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_NEAREST);
-        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_NEAREST);
-        glBindTexture(GL_TEXTURE_2D, 0);
-
-        glFramebufferTexture2D(GL_FRAMEBUFFER, GL_COLOR_ATTACHMENT3, GL_TEXTURE_2D, deferredEnvironmentEmissionBuffer, 0);
-
-        glFramebufferRenderbuffer(GL_FRAMEBUFFER, GL_DEPTH_STENCIL_ATTACHMENT, GL_RENDERBUFFER, sharedDepthbuffer);
-
-        if (glCheckFramebufferStatus(GL_FRAMEBUFFER) != GL_FRAMEBUFFER_COMPLETE)
-            System.err.println("Deferred framebuffer is not ready: " + glCheckFramebufferStatus(GL_FRAMEBUFFER));
-
-
-        int attachments[] = {GL_COLOR_ATTACHMENT0, GL_COLOR_ATTACHMENT1, GL_COLOR_ATTACHMENT2,
-                GL_COLOR_ATTACHMENT3, GL_COLOR_ATTACHMENT4, GL_COLOR_ATTACHMENT5, GL_COLOR_ATTACHMENT6};
-
-        glDrawBuffers(attachments);
-
-        glBindFramebuffer(GL_FRAMEBUFFER, 0);
-    }
-
-    private static void cleanupDeferredFramebuffer()
-    {
-        glDeleteFramebuffers(deferredframeBuffer);
-        glDeleteTextures(deferredPositionBuffer);
-        glDeleteTextures(deferredAlbedoMetalnessBuffer);
-        glDeleteTextures(deferredNormalRoughnessBuffer);
-        glDeleteTextures(deferredEnvironmentEmissionBuffer);
-    }
-
-    private static void genFramebuffer()
-    {
-        frameBuffer = glGenFramebuffers();
-        glBindFramebuffer(GL_FRAMEBUFFER, frameBuffer);
-
-        colorBuffer = glGenTextures();
-        glBindTexture(GL_TEXTURE_2D, colorBuffer);
-        glTexImage2D(GL_TEXTURE_2D, 0, GL_RGBA16F, windowWidth, windowHeight,
-                0, GL_RGBA, GL_FLOAT, 0);
-        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
-        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
-        glBindTexture(GL_TEXTURE_2D, 0);
-
-        glFramebufferTexture2D(GL_FRAMEBUFFER, GL_COLOR_ATTACHMENT0, GL_TEXTURE_2D, colorBuffer, 0);
-
-        glFramebufferRenderbuffer(GL_FRAMEBUFFER, GL_DEPTH_STENCIL_ATTACHMENT, GL_RENDERBUFFER, sharedDepthbuffer);
-
-        if (glCheckFramebufferStatus(GL_FRAMEBUFFER) != GL_FRAMEBUFFER_COMPLETE)
-            System.err.println("Forward framebuffer is not ready");
-
-        glBindFramebuffer(GL_FRAMEBUFFER, 0);
-    }
-
-    private static void cleanupFramebuffer()
-    {
-        glDeleteFramebuffers(frameBuffer);
-        glDeleteTextures(colorBuffer);
-    }
-
     private static void genRenderquad()
     {
         float[] vertices = {
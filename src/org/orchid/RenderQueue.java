@@ -0,0 +1,397 @@
+package org.orchid;
+
+import org.joml.Matrix4f;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL15.glBindBuffer;
+import static org.lwjgl.opengl.GL30.glBindVertexArray;
+import static org.lwjgl.opengl.GL40.GL_DRAW_INDIRECT_BUFFER;
+import static org.lwjgl.opengl.GL43.GL_SHADER_STORAGE_BUFFER;
+import static org.lwjgl.opengl.GL43.glMultiDrawElementsIndirect;
+
+/**
+ * Render queue - sorts draw packets by 64-bit keys to minimize GL state changes
+ * <p>
+ * Opaque key layout (from most to least significant bits):
+ * shader (4) | texture set (10) | geometry pool (4) | mesh geometry (12) | level of detail (2) | front-to-back depth
+ * (16). Transparent packets put back-to-front depth on top so blending order is preserved. Shader and texture set
+ * identifiers only grow, so they are remapped to dense per-queue indices before they go into keys.
+ * <p>
+ * Meshes are sub-allocated from {@link GeometryArena} pools, consecutive packets of the same mesh become one
+ * DrawElementsIndirectCommand and all commands sharing shader, texture set and pool are submitted by one
+ * glMultiDrawElementsIndirect. Instance data of the whole queue is uploaded once, command base instance selects its
+ * entries. Materials are looked up in {@link MaterialTable} by per-instance identifier.
+ */
+public class RenderQueue
+{
+    private static final int SHADER_SHIFT = 28;
+    private static final int TEXTURE_SET_SHIFT = 18;
+    private static final int POOL_SHIFT = 14;
+    private static final int LOD_BITS = 2;
+
+    private static final long SHADER_MASK = 0xFL << SHADER_SHIFT;
+    private static final long TEXTURE_SET_MASK = 0x3FFL << TEXTURE_SET_SHIFT;
+    private static final long POOL_MASK = 0xFL << POOL_SHIFT;
+    private static final long SUBMISSION_MASK = SHADER_MASK | TEXTURE_SET_MASK | POOL_MASK;
+
+    private static final int MAX_SHADERS = 16;
+    private static final int MAX_TEXTURE_SETS = 1024;
+
+    // std430 instance entry - model matrix and material identifier (padded to 16 bytes)
+    private static final int INSTANCE_SIZE = 80;
+
+    // DrawElementsIndirectCommand - count, instance count, first index, base vertex, base instance
+    private static final int COMMAND_SIZE = 20;
+
+    // Packets data (indexed by submission order)
+    private long[] stateKeys = new long[256];
+    private Mesh[] meshes = new Mesh[256];
+    private Shader[] shaders = new Shader[256];
+    private int[] lods = new int[256];
+
+    // Sort keys and packet indices (sorted in place, temporary arrays are used by radix sort)
+    private long[] keys = new long[256];
+    private int[] items = new int[256];
+    private long[] tempKeys = new long[256];
+    private int[] tempItems = new int[256];
+    private int[] histograms = new int[8 * 256];
+
+    private int size = 0;
+
+    // Dense key indices of shader and texture set identifiers (valid if their stamp matches the current one)
+    private int[] shaderIndices = new int[MAX_SHADERS];
+    private int[] shaderStamps = new int[MAX_SHADERS];
+    private int[] textureSetIndices = new int[MAX_TEXTURE_SETS];
+    private int[] textureSetStamps = new int[MAX_TEXTURE_SETS];
+    private int stamp = 1;
+    private int shaderCount = 0;
+    private int textureSetCount = 0;
+
+    private Matrix4f modelMatrix = new Matrix4f();
+
+    // Statistics of the last draw
+    private int drawCalls = 0;
+    private int commands = 0;
+    private int shaderChanges = 0;
+    private int textureSetChanges = 0;
+    private int vertexArrayChanges = 0;
+    private long triangles = 0;
+
+    /**
+     * Removes all packets from queue
+     */
+    public void clear()
+    {
+        Arrays.fill(meshes, 0, size, null);
+        Arrays.fill(shaders, 0, size, null);
+        size = 0;
+        stamp++;
+        shaderCount = 0;
+        textureSetCount = 0;
+    }
+
+    /**
+     * Number of queued packets
+     *
+     * @return packets count
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * Adds draw packet to queue
+     *
+     * @param mesh        mesh to draw
+     * @param shader      shader to draw mesh with
+     * @param lod         level of detail of the mesh
+     * @param depth       normalized distance to camera [0, 1]
+     * @param transparent whether packet should be sorted back-to-front
+     */
+    public void submit(Mesh mesh, Shader shader, int lod, float depth, boolean transparent)
+    {
+        if (size == meshes.length)
+            grow(size * 2);
+
+        Material material = mesh.getMaterial();
+        GeometryArena.Allocation geometry = mesh.getGeometry();
+
+        long state = ((long) getShaderIndex(shader.getId()) << SHADER_SHIFT)
+                | ((long) getTextureSetIndex(material.getTextureSetId()) << TEXTURE_SET_SHIFT)
+                | ((long) (geometry.getPool() & 0xF) << POOL_SHIFT)
+                | ((geometry.getId() << LOD_BITS | lod) & 0x3FFF);
+
+        long quantizedDepth = (long) (Math.min(Math.max(depth, 0.0f), 1.0f) * 0xFFFF);
+
+        stateKeys[size] = state;
+        meshes[size] = mesh;
+        shaders[size] = shader;
+        lods[size] = lod;
+
+        if (transparent)
+            keys[size] = ((0xFFFF - quantizedDepth) << 48) | state;
+        else
+            keys[size] = (state << 16) | quantizedDepth;
+
+        items[size] = size;
+        size++;
+    }
+
+    /**
+     * Sorts queued packets by their keys (LSD radix sort)
+     */
+    public void sort()
+    {
+        Arrays.fill(histograms, 0);
+
+        for (int i = 0; i < size; i++) {
+            long key = keys[i];
+            for (int pass = 0; pass < 8; pass++)
+                histograms[pass * 256 + (int) ((key >>> (pass * 8)) & 0xFF)]++;
+        }
+
+        for (int pass = 0; pass < 8; pass++) {
+            int offset = pass * 256;
+
+            // All keys share this digit so the pass would not change anything
+            if (size == 0 || histograms[offset + (int) ((keys[0] >>> (pass * 8)) & 0xFF)] == size)
+                continue;
+
+            int sum = 0;
+            for (int i = 0; i < 256; i++) {
+                int count = histograms[offset + i];
+                histograms[offset + i] = sum;
+                sum += count;
+            }
+
+            for (int i = 0; i < size; i++) {
+                int digit = (int) ((keys[i] >>> (pass * 8)) & 0xFF);
+                int position = histograms[offset + digit]++;
+                tempKeys[position] = keys[i];
+                tempItems[position] = items[i];
+            }
+
+            long[] swapKeys = keys;
+            keys = tempKeys;
+            tempKeys = swapKeys;
+
+            int[] swapItems = items;
+            items = tempItems;
+            tempItems = swapItems;
+        }
+    }
+
+    /**
+     * Draws sorted packets - consecutive packets of the same mesh and level of detail are merged into instanced draw
+     * commands, commands with the same shader, texture set and geometry pool are submitted together
+     */
+    public void draw()
+    {
+        drawCalls = 0;
+        commands = 0;
+        shaderChanges = 0;
+        textureSetChanges = 0;
+        vertexArrayChanges = 0;
+        triangles = 0;
+
+        if (size == 0)
+            return;
+
+        // Instances and commands share one ring region, so both are in the same buffer even if the ring grows
+        GeometryArena.reserveInstances(size);
+        int instancesSize = size * INSTANCE_SIZE;
+        int offset = UniformRing.allocate(instancesSize + size * COMMAND_SIZE);
+        int commandsOffset = offset + instancesSize;
+        ByteBuffer mapped = UniformRing.getMapped();
+
+        uploadInstances(mapped, offset);
+        UniformRing.bind(GL_SHADER_STORAGE_BUFFER, Shader.INSTANCE_BLOCK, offset, instancesSize);
+        glBindBuffer(GL_DRAW_INDIRECT_BUFFER, UniformRing.getBuffer());
+
+        long previous = -1;
+
+        for (int i = 0; i < size; ) {
+            int item = items[i];
+            long state = stateKeys[item];
+            Mesh mesh = meshes[item];
+
+            if (previous == -1 || (state & SHADER_MASK) != (previous & SHADER_MASK)) {
+                shaders[item].use();
+                shaderChanges++;
+            }
+            if (previous == -1 || (state & TEXTURE_SET_MASK) != (previous & TEXTURE_SET_MASK)) {
+                mesh.getMaterial().useTextures();
+                textureSetChanges++;
+            }
+            if (previous == -1 || (state & POOL_MASK) != (previous & POOL_MASK)) {
+                glBindVertexArray(GeometryArena.getVertexArray(mesh.getGeometry().getPool()));
+                vertexArrayChanges++;
+            }
+
+            int first = commands;
+            while (i < size && (stateKeys[items[i]] & SUBMISSION_MASK) == (state & SUBMISSION_MASK))
+                i = writeCommand(mapped, commandsOffset + commands++ * COMMAND_SIZE, i);
+
+            glMultiDrawElementsIndirect(GL_TRIANGLES, mesh.getIndexType(),
+                    commandsOffset + (long) first * COMMAND_SIZE, commands - first, 0);
+
+            drawCalls++;
+            previous = state;
+        }
+
+        glBindBuffer(GL_DRAW_INDIRECT_BUFFER, 0);
+        glBindVertexArray(0);
+    }
+
+    /**
+     * Number of draw calls issued during the last draw
+     *
+     * @return draw calls count
+     */
+    public int getDrawCalls()
+    {
+        return drawCalls;
+    }
+
+    /**
+     * Number of indirect draw commands (instanced draws of one mesh) submitted during the last draw
+     *
+     * @return commands count
+     */
+    public int getCommands()
+    {
+        return commands;
+    }
+
+    /**
+     * Number of triangles drawn during the last draw
+     *
+     * @return triangles count
+     */
+    public long getTriangles()
+    {
+        return triangles;
+    }
+
+    /**
+     * Number of state changes (shader, texture set and vertex array binds) during the last draw
+     *
+     * @return state changes count
+     */
+    public int getStateChanges()
+    {
+        return shaderChanges + textureSetChanges + vertexArrayChanges;
+    }
+
+    /**
+     * Number of shader changes during the last draw
+     *
+     * @return shader changes count
+     */
+    public int getShaderChanges()
+    {
+        return shaderChanges;
+    }
+
+    /**
+     * Number of texture set changes during the last draw
+     *
+     * @return texture set changes count
+     */
+    public int getTextureSetChanges()
+    {
+        return textureSetChanges;
+    }
+
+    /**
+     * Number of vertex array (geometry pool) changes during the last draw
+     *
+     * @return vertex array changes count
+     */
+    public int getVertexArrayChanges()
+    {
+        return vertexArrayChanges;
+    }
+
+    // Dense index of shader identifier in the queue
+    private int getShaderIndex(int id)
+    {
+        if (id >= shaderStamps.length) {
+            shaderStamps = Arrays.copyOf(shaderStamps, Math.max(id + 1, shaderStamps.length * 2));
+            shaderIndices = Arrays.copyOf(shaderIndices, shaderStamps.length);
+        }
+
+        if (shaderStamps[id] != stamp) {
+            if (shaderCount == MAX_SHADERS)
+                throw new RuntimeException("Too many shaders in render queue (" + MAX_SHADERS + " max)");
+            shaderStamps[id] = stamp;
+            shaderIndices[id] = shaderCount++;
+        }
+        return shaderIndices[id];
+    }
+
+    // Dense index of texture set identifier in the queue
+    private int getTextureSetIndex(int id)
+    {
+        if (id >= textureSetStamps.length) {
+            textureSetStamps = Arrays.copyOf(textureSetStamps, Math.max(id + 1, textureSetStamps.length * 2));
+            textureSetIndices = Arrays.copyOf(textureSetIndices, textureSetStamps.length);
+        }
+
+        if (textureSetStamps[id] != stamp) {
+            if (textureSetCount == MAX_TEXTURE_SETS)
+                throw new RuntimeException("Too many texture sets in render queue (" + MAX_TEXTURE_SETS + " max)");
+            textureSetStamps[id] = stamp;
+            textureSetIndices[id] = textureSetCount++;
+        }
+        return textureSetIndices[id];
+    }
+
+    // Writes model matrices and material identifiers of sorted packets into the uniform ring
+    private void uploadInstances(ByteBuffer mapped, int offset)
+    {
+        for (int i = 0; i < size; i++) {
+            meshes[items[i]].getModelMatrix(modelMatrix).get(offset, mapped);
+            mapped.putInt(offset + 64, meshes[items[i]].getMaterial().getId());
+            offset += INSTANCE_SIZE;
+        }
+    }
+
+    // Writes draw command of the run of packets with the same mesh starting at sorted position, returns run end
+    private int writeCommand(ByteBuffer mapped, int offset, int start)
+    {
+        long state = stateKeys[items[start]];
+        Mesh mesh = meshes[items[start]];
+        GeometryArena.Allocation geometry = mesh.getGeometry();
+
+        int end = start + 1;
+        while (end < size && stateKeys[items[end]] == state && meshes[items[end]].getGeometry() == geometry)
+            end++;
+
+        int lod = lods[items[start]];
+        mapped.putInt(offset, mesh.getNumIndices(lod));
+        mapped.putInt(offset + 4, end - start);
+        mapped.putInt(offset + 8, mesh.getFirstIndex(lod));
+        mapped.putInt(offset + 12, geometry.getBaseVertex());
+        mapped.putInt(offset + 16, start);
+
+        triangles += (long) mesh.getNumIndices(lod) / 3 * (end - start);
+        return end;
+    }
+
+    private void grow(int capacity)
+    {
+        stateKeys = Arrays.copyOf(stateKeys, capacity);
+        meshes = Arrays.copyOf(meshes, capacity);
+        shaders = Arrays.copyOf(shaders, capacity);
+        lods = Arrays.copyOf(lods, capacity);
+        keys = Arrays.copyOf(keys, capacity);
+        items = Arrays.copyOf(items, capacity);
+        tempKeys = new long[capacity];
+        tempItems = new int[capacity];
+    }
+}
@@ -0,0 +1,196 @@
+package org.orchid;
+
+import org.joml.FrustumIntersection;
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+import org.lwjgl.opengl.GL;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.lwjgl.glfw.GLFW.*;
+
+/**
+ * Render queue report - prints draw calls, indirect commands and state changes of the visible opaque meshes of a
+ * scene drawn in submission order and in sorted order
+ * <p>
+ * Usage: "RenderQueueReport scene.xml" draws the scene in a hidden window (OpenGL 4.4 is required),
+ * "RenderQueueReport generate meshes materials scene.xml" writes a test scene - grid of spheres and monkeys with
+ * materials of several texture sets, neighbouring meshes never share mesh and material.
+ */
+public class RenderQueueReport
+{
+    private static final String[] MESHES = {"./res/meshes/sphere.fbx", "./res/meshes/monkey.fbx"};
+    private static final String[] MAPS = {"metalness", "roughness"};
+    private static final float SPACING = 2.5f;
+
+    public static void main(String[] args) throws IOException
+    {
+        if (args.length == 4 && args[0].equals("generate")) {
+            generate(Integer.parseInt(args[1]), Integer.parseInt(args[2]), args[3]);
+            return;
+        }
+
+        if (args.length != 1) {
+            System.err.println("Usage: RenderQueueReport scene.xml | RenderQueueReport generate meshes materials "
+                    + "scene.xml");
+            return;
+        }
+
+        Configuration.loadConfiguration("./res/config.xml");
+
+        if (!glfwInit())
+            throw new RuntimeException("GLFW initialization failed");
+
+        glfwWindowHint(GLFW_CONTEXT_VERSION_MAJOR, 4);
+        glfwWindowHint(GLFW_CONTEXT_VERSION_MINOR, 4);
+        glfwWindowHint(GLFW_OPENGL_CORE_PROFILE, GLFW_TRUE);
+        glfwWindowHint(GLFW_VISIBLE, GLFW_FALSE);
+
+        long window = glfwCreateWindow(Integer.parseInt(Configuration.getProperty("window_width")),
+                Integer.parseInt(Configuration.getProperty("window_height")), "RenderQueueReport", 0, 0);
+        if (window == 0)
+            throw new RuntimeException("Window creation failed");
+
+        glfwMakeContextCurrent(window);
+        GL.createCapabilities();
+
+        UniformRing.init();
+        TextureLoader.init();
+        TextureStreamer.init();
+        Texture.init();
+        MaterialTable.init();
+        GpuCulling.init();
+
+        Scene.loadScene(args[0]);
+        Shader shader = new Shader("./res/shaders/deferred_vertex.glsl", "./res/shaders/deferred_frag.glsl");
+
+        UniformRing.beginFrame();
+        TextureLoader.update();
+        Scene.update();
+        MaterialTable.update();
+
+        Camera camera = Scene.getMainCamera();
+        camera.use();
+
+        // Visible opaque meshes in scene order, same packets as Scene.drawOpaque
+        Matrix4f viewProjection = camera.getProjectionMatrix(new Matrix4f()).mul(camera.getViewMatrix(new Matrix4f()));
+        FrustumIntersection frustum = new FrustumIntersection(viewProjection);
+        Vector3f cameraPosition = camera.getWorldPosition(new Vector3f());
+        float projectionScale = 1.0f / (float) Math.tan(camera.getFOV() * 0.5f);
+
+        List<Node> nodes = new ArrayList<>();
+        Scene.queryFrustum(frustum, nodes);
+
+        RenderQueue queue = new RenderQueue();
+        Vector3f min = new Vector3f();
+        Vector3f max = new Vector3f();
+
+        for (Node node : nodes) {
+            if (!(node instanceof Mesh) || !((Mesh) node).isOpaque() || !((Mesh) node).isVisible(frustum))
+                continue;
+
+            Mesh mesh = (Mesh) node;
+            mesh.getWorldBounds(min, max);
+            float distance = min.add(max).mul(0.5f).distance(cameraPosition);
+            float depth = (distance - camera.getNear()) / (camera.getFar() - camera.getNear());
+            queue.submit(mesh, shader, mesh.selectLod(cameraPosition, projectionScale), depth, false);
+        }
+
+        System.out.println("Scene \"" + args[0] + "\": " + queue.size() + " visible opaque meshes");
+        System.out.println("order      | draw calls | commands | state changes (shader, texture set, vertex array)");
+
+        queue.draw();
+        report("submission", queue);
+
+        queue.sort();
+        queue.draw();
+        report("sorted", queue);
+
+        UniformRing.endFrame();
+
+        Scene.sceneCleanup();
+        GpuCulling.remove();
+        GeometryArena.remove();
+        MaterialTable.remove();
+        TextureLoader.remove();
+        TextureArrays.remove();
+        UniformRing.remove();
+
+        glfwDestroyWindow(window);
+        glfwTerminate();
+    }
+
+    private static void report(String order, RenderQueue queue)
+    {
+        System.out.printf("%-10s | %10d | %8d | %d (%d, %d, %d)%n", order, queue.getDrawCalls(), queue.getCommands(),
+                queue.getStateChanges(), queue.getShaderChanges(), queue.getTextureSetChanges(),
+                queue.getVertexArrayChanges());
+    }
+
+    // Writes square grid of meshes facing the camera, environment is shared with the demo scenes
+    private static void generate(int meshes, int materials, String path) throws IOException
+    {
+        int side = (int) Math.ceil(Math.sqrt(meshes));
+        float extent = side * SPACING;
+
+        StringBuilder xml = new StringBuilder();
+        xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\" ?>\n");
+        xml.append("<!-- Generated by RenderQueueReport: ").append(meshes).append(" meshes, ").append(materials)
+                .append(" materials -->\n<scene>\n    <environment>\n");
+        for (String skybox : new String[]{"skybox", "skybox_irradiance", "skybox_radiance"})
+            xml.append("        <").append(skybox).append(">\n            <path>./res/textures/")
+                    .append(skybox.equals("skybox") ? "skybox" : skybox.substring(7)).append("</path>\n")
+                    .append("            <extension>.hdr</extension>\n        </").append(skybox).append(">\n");
+        xml.append("    </environment>\n    <tree>\n        <node name=\"root\">\n");
+
+        xml.append("            <camera name=\"camera\">\n");
+        appendVector(xml, "                ", "position", 0.0f, 0.0f, extent * 1.5f);
+        xml.append("                <near>0.1</near>\n                <far>").append(extent * 4.0f)
+                .append("</far>\n                <fov>1.2</fov>\n            </camera>\n");
+
+        for (int i = 0; i < meshes; i++) {
+            int material = i % materials;
+
+            xml.append("            <node name=\"mesh_").append(i).append("\">\n                <model>\n");
+            appendVector(xml, "                    ", "position", (i % side - side * 0.5f) * SPACING,
+                    (i / side - side * 0.5f) * SPACING, 0.0f);
+            xml.append("                    <material>\n                        <albedo>\n")
+                    .append("                            <r>").append((material % 4) / 3.0f).append("</r>\n")
+                    .append("                            <g>").append((material / 4 % 4) / 3.0f).append("</g>\n")
+                    .append("                            <b>").append((material / 16 % 4) / 3.0f).append("</b>\n")
+                    .append("                        </albedo>\n")
+                    .append("                        <metalness>").append((float) (material / 4 % 2))
+                    .append("</metalness>\n")
+                    .append("                        <roughness>0.5</roughness>\n");
+
+            // Texture sets - no maps, metalness map, roughness map, both maps
+            for (int m = 0; m < MAPS.length; m++)
+                if ((material >> m & 1) != 0)
+                    xml.append("                        <").append(MAPS[m]).append("_map>./res/textures/")
+                            .append(MAPS[m]).append(".png</").append(MAPS[m]).append("_map>\n");
+
+            xml.append("                    </material>\n                    <mesh_path>")
+                    .append(MESHES[i / materials % MESHES.length]).append("</mesh_path>\n")
+                    .append("                </model>\n            </node>\n");
+        }
+
+        xml.append("        </node>\n    </tree>\n</scene>\n");
+
+        try (FileWriter writer = new FileWriter(path)) {
+            writer.write(xml.toString());
+        }
+        System.out.println("Scene \"" + path + "\" with " + meshes + " meshes written");
+    }
+
+    private static void appendVector(StringBuilder xml, String indent, String name, float x, float y, float z)
+    {
+        xml.append(indent).append("<").append(name).append(">\n")
+                .append(indent).append("    <x>").append(x).append("</x>\n")
+                .append(indent).append("    <y>").append(y).append("</y>\n")
+                .append(indent).append("    <z>").append(z).append("</z>\n")
+                .append(indent).append("</").append(name).append(">\n");
+    }
+}
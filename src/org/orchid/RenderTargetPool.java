@@ -0,0 +1,208 @@
+package org.orchid;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL12.GL_CLAMP_TO_EDGE;
+import static org.lwjgl.opengl.GL30.*;
+
+/**
+ * Render target pool - reuses 2D textures keyed by format, filter and size
+ * <p>
+ * Requested sizes are rounded up to multiples of "render_target_bucket" pixels, so resizing within a bucket gets the
+ * same textures back and only the viewport changes (sampling shaders scale their coordinates by viewport / target
+ * size). Released targets stay in the pool for "render_target_grace_frames" frames before they are deleted, so
+ * resizing back and forth doesn't reallocate either.
+ */
+public class RenderTargetPool
+{
+    private static class Target
+    {
+        int texture;
+        int internalFormat;
+        int format;
+        int type;
+        int filter;
+        int width;
+        int height;
+        boolean used;
+        int releaseFrame;
+    }
+
+    private static int bucket = 128;
+    private static int graceFrames = 120;
+
+    private static List<Target> targets = new ArrayList<>();
+    private static int frame = 0;
+    private static int allocations = 0;
+
+    /**
+     * Reads "render_target_bucket" and "render_target_grace_frames" properties
+     */
+    static void init()
+    {
+        if (Configuration.getProperty("render_target_bucket") != null)
+            bucket = Math.max(Integer.parseInt(Configuration.getProperty("render_target_bucket")), 1);
+        if (Configuration.getProperty("render_target_grace_frames") != null)
+            graceFrames = Math.max(Integer.parseInt(Configuration.getProperty("render_target_grace_frames")), 0);
+    }
+
+    /**
+     * Size targets of requested size are allocated with
+     *
+     * @param size requested width or height in pixels
+     * @return size rounded up to the bucket
+     */
+    public static int getBucketSize(int size)
+    {
+        return (Math.max(size, 1) + bucket - 1) / bucket * bucket;
+    }
+
+    /**
+     * Takes unused target from the pool or allocates new one (allocated size is {@link #getBucketSize} of the
+     * requested one)
+     *
+     * @param internalFormat texture internal format
+     * @param format         texture pixel format
+     * @param type           texture pixel type
+     * @param filter         minification and magnification filter
+     * @param width          requested width in pixels
+     * @param height         requested height in pixels
+     * @return GL texture name
+     */
+    static int acquire(int internalFormat, int format, int type, int filter, int width, int height)
+    {
+        width = getBucketSize(width);
+        height = getBucketSize(height);
+
+        for (Target target : targets)
+            if (!target.used && target.internalFormat == internalFormat && target.format == format
+                    && target.type == type && target.filter == filter && target.width == width
+                    && target.height == height) {
+                target.used = true;
+                return target.texture;
+            }
+
+        Target target = new Target();
+        target.internalFormat = internalFormat;
+        target.format = format;
+        target.type = type;
+        target.filter = filter;
+        target.width = width;
+        target.height = height;
+        target.used = true;
+
+        target.texture = glGenTextures();
+        glBindTexture(GL_TEXTURE_2D, target.texture);
+        glTexImage2D(GL_TEXTURE_2D, 0, internalFormat, width, height, 0, format, type, 0);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, filter);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, filter);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
+        glBindTexture(GL_TEXTURE_2D, 0);
+
+        targets.add(target);
+        allocations++;
+        return target.texture;
+    }
+
+    /**
+     * Returns target to the pool
+     *
+     * @param texture GL texture name returned by {@link #acquire}
+     */
+    static void release(int texture)
+    {
+        for (Target target : targets)
+            if (target.texture == texture) {
+                target.used = false;
+                target.releaseFrame = frame;
+                return;
+            }
+    }
+
+    /**
+     * Advances frame counter and deletes targets unused for longer than grace period
+     */
+    static void update()
+    {
+        frame++;
+
+        for (int i = targets.size() - 1; i >= 0; i--) {
+            Target target = targets.get(i);
+            if (!target.used && frame - target.releaseFrame > graceFrames) {
+                glDeleteTextures(target.texture);
+                targets.remove(i);
+            }
+        }
+    }
+
+    /**
+     * Number of textures in the pool (used and waiting for reuse)
+     *
+     * @return targets count
+     */
+    public static int getTargetCount()
+    {
+        return targets.size();
+    }
+
+    /**
+     * Number of textures allocated since start (reused targets are not counted)
+     *
+     * @return allocations count
+     */
+    public static int getAllocations()
+    {
+        return allocations;
+    }
+
+    /**
+     * Video memory taken by pooled targets
+     *
+     * @return size in bytes
+     */
+    public static long getMemoryUsage()
+    {
+        long size = 0;
+        for (Target target : targets)
+            size += (long) target.width * target.height * getPixelSize(target.internalFormat);
+        return size;
+    }
+
+    /**
+     * Deletes all pooled targets
+     */
+    static void remove()
+    {
+        for (Target target : targets)
+            glDeleteTextures(target.texture);
+        targets.clear();
+    }
+
+    /**
+     * Approximate size of a pixel
+     *
+     * @param internalFormat texture internal format
+     * @return size in bytes
+     */
+    static int getPixelSize(int internalFormat)
+    {
+        switch (internalFormat) {
+            case GL_R8:
+                return 1;
+            case GL_RG8:
+            case GL_R16F:
+                return 2;
+            case GL_RGBA16F:
+            case GL_RGB16F:
+            case GL_RG32F:
+                return 8;
+            case GL_RGBA32F:
+                return 16;
+            default:
+                return 4;
+        }
+    }
+}
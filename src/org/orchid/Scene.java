@@ -1,10 +1,8 @@
 package org.orchid;
 
+import org.joml.FrustumIntersection;
 import org.joml.Matrix4f;
 import org.joml.Vector3f;
-import org.lwjgl.assimp.AIMesh;
-import org.lwjgl.assimp.AINode;
-import org.lwjgl.assimp.AIScene;
 import org.lwjgl.assimp.Assimp;
 import org.xml.sax.Attributes;
 import org.xml.sax.helpers.DefaultHandler;
@@ -13,6 +11,7 @@ import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 public class Scene
 {
@@ -20,11 +19,32 @@ public class Scene
     private static Camera mainCamera;
     private static ArrayList<Mesh> opaqueMeshes = new ArrayList<>();
     private static ArrayList<Mesh> transparentMeshes = new ArrayList<>();
+    private static ArrayList<Light> lights = new ArrayList<>();
     private static Material defaultMaterial = new Material();
+    private static ArrayList<Material> materials = new ArrayList<>();
     private static Cubemap skyboxCubemap = null;
     private static Cubemap skyboxIrradianceCubemap = null;
     private static Cubemap skyboxRadianceCubemap = null;
 
+    // View frustum culling data
+    private static BoundingVolumeHierarchy spatialIndex = new BoundingVolumeHierarchy();
+    private static ArrayList<Node> visibleNodes = new ArrayList<>();
+    private static Matrix4f viewProjectionMatrix = new Matrix4f();
+    private static Matrix4f viewMatrix = new Matrix4f();
+    private static FrustumIntersection frustum = new FrustumIntersection();
+    private static int drawnMeshes = 0;
+    private static int culledMeshes = 0;
+
+    // Visible meshes are sorted by state and drawn with instancing
+    private static RenderQueue renderQueue = new RenderQueue();
+    private static Vector3f cameraPosition = new Vector3f();
+    private static Vector3f boundsMin = new Vector3f();
+    private static Vector3f boundsMax = new Vector3f();
+
+    // Parallel update mode ("parallel_update", "update_threads" and "parallel_threshold" properties)
+    private static ForkJoinPool updatePool = null;
+    private static int parallelThreshold = 1024;
+
     static float rot = 0.0f;
 
     /**
@@ -33,27 +53,113 @@ public class Scene
     public static void update()
     {
         sceneTree.getChild(0).setRotation(0.0f, rot += Time.getDeltaTime() * 0.5f, 0.0f);
-        sceneTree.update();
+
+        // Both passes join all their tasks, so everything is updated before rendering
+        if (updatePool != null) {
+            sceneTree.update(updatePool, parallelThreshold);
+            TransformStore.update(updatePool, parallelThreshold);
+        } else {
+            sceneTree.update();
+            TransformStore.update();
+        }
+
+        spatialIndex.update();
     }
 
     /**
      * Draws opaque meshes (used for deferred pass)
+     *
+     * @param shader shader to draw meshes with
      */
-    public static void drawOpaque()
+    public static void drawOpaque(Shader shader)
     {
-        mainCamera.use();
-        for (Mesh m : opaqueMeshes)
-            m.draw();
+        drawMeshes(shader, true);
     }
 
     /**
      * Draws transparent meshes (used for forward pass)
+     *
+     * @param shader shader to draw meshes with
      */
-    public static void drawTransparent()
+    public static void drawTransparent(Shader shader)
     {
-        mainCamera.use();
-        for (Mesh m : transparentMeshes)
-            m.draw();
+        drawMeshes(shader, false);
+    }
+
+    /**
+     * Render queue used by the last draw call (draw calls and state changes statistics)
+     *
+     * @return render queue
+     */
+    public static RenderQueue getRenderQueue()
+    {
+        return renderQueue;
+    }
+
+    /**
+     * Spatial index of scene meshes
+     *
+     * @return bounding volume hierarchy
+     */
+    public static BoundingVolumeHierarchy getSpatialIndex()
+    {
+        return spatialIndex;
+    }
+
+    /**
+     * Finds nodes which bounds intersect view frustum
+     *
+     * @param frustum view frustum
+     * @param result  list to put found nodes into
+     */
+    public static void queryFrustum(FrustumIntersection frustum, List<Node> result)
+    {
+        spatialIndex.query(frustum, result);
+    }
+
+    /**
+     * Finds nodes which bounds intersect sphere
+     *
+     * @param center sphere center
+     * @param radius sphere radius
+     * @param result list to put found nodes into
+     */
+    public static void querySphere(Vector3f center, float radius, List<Node> result)
+    {
+        spatialIndex.query(center, radius, result);
+    }
+
+    /**
+     * Finds the closest node hit by ray
+     *
+     * @param origin      ray origin
+     * @param direction   ray direction
+     * @param maxDistance maximum hit distance (in direction vector lengths)
+     * @return closest node or null if nothing is hit
+     */
+    public static Node raycast(Vector3f origin, Vector3f direction, float maxDistance)
+    {
+        return spatialIndex.raycast(origin, direction, maxDistance);
+    }
+
+    /**
+     * Number of meshes drawn during the last draw call
+     *
+     * @return drawn meshes count
+     */
+    public static int getDrawnMeshes()
+    {
+        return drawnMeshes;
+    }
+
+    /**
+     * Number of meshes skipped by view frustum culling during the last draw call
+     *
+     * @return culled meshes count
+     */
+    public static int getCulledMeshes()
+    {
+        return culledMeshes;
     }
 
     /**
@@ -128,6 +234,16 @@ public class Scene
         return mainCamera;
     }
 
+    /**
+     * Scene lights getter
+     *
+     * @return point and spot lights of the scene
+     */
+    public static List<Light> getLights()
+    {
+        return lights;
+    }
+
     /**
      * Loads scene
      *
@@ -141,6 +257,13 @@ public class Scene
         mainCamera = null;
         opaqueMeshes.clear();
         transparentMeshes.clear();
+        lights.clear();
+        spatialIndex.clear();
+        renderQueue.clear();
+        for (Material material : materials)
+            material.remove();
+        materials.clear();
+        configureUpdate();
 
         try {
             SAXParser parser = SAXParserFactory.newInstance().newSAXParser();
@@ -152,14 +275,17 @@ public class Scene
                 Node node;
                 Material material;
                 boolean isMeshOpaque = true;
+                float[] lodThresholds = Mesh.DEFAULT_LOD_THRESHOLDS;
+                float lodHysteresis = Mesh.DEFAULT_LOD_HYSTERESIS;
 
                 String[] valuebleString =
                         {
                                 "path", "extension", "x", "y", "z", "r", "g", "b", "a",
                                 "metalness", "roughness",
                                 "albedo_map", "metalness_map", "roughness_map", "normal_map", "emission_map", "ambient_occlusion_map",
-                                "mesh_path", "transparent",
+                                "mesh_path", "transparent", "lod_thresholds", "lod_hysteresis",
                                 "near", "far", "fov",
+                                "intensity", "range", "inner_angle", "outer_angle",
                         };
 
                 @Override
@@ -176,8 +302,15 @@ public class Scene
                             node = new Camera(attr.getValue("name"), node);
                             if (mainCamera == null) mainCamera = (Camera) node;
                             break;
+                        case "light":
+                            node = new Light(attr.getValue("name"), node);
+                            if ("spot".equals(attr.getValue("type")))
+                                ((Light) node).setType(Light.Type.SPOT);
+                            lights.add((Light) node);
+                            break;
                         case "material":
                             material = new Material();
+                            materials.add(material);
                             break;
                     }
                 }
@@ -213,6 +346,7 @@ public class Scene
                             break;
                         case "node":
                         case "camera":
+                        case "light":
                             node = node.getParent();
                             break;
                         case "near":
@@ -227,6 +361,27 @@ public class Scene
                             ((Camera) node).setFOV(Float.parseFloat(characters.get(0)));
                             characters.clear();
                             break;
+                        case "color":
+                            ((Light) node).setColor(Float.parseFloat(characters.get(0)),
+                                    Float.parseFloat(characters.get(1)), Float.parseFloat(characters.get(2)));
+                            characters.clear();
+                            break;
+                        case "intensity":
+                            ((Light) node).setIntensity(Float.parseFloat(characters.get(0)));
+                            characters.clear();
+                            break;
+                        case "range":
+                            ((Light) node).setRange(Float.parseFloat(characters.get(0)));
+                            characters.clear();
+                            break;
+                        case "inner_angle":
+                            ((Light) node).setInnerAngle(Float.parseFloat(characters.get(0)));
+                            characters.clear();
+                            break;
+                        case "outer_angle":
+                            ((Light) node).setOuterAngle(Float.parseFloat(characters.get(0)));
+                            characters.clear();
+                            break;
                         case "position":
                             node.setPosition(Float.parseFloat(characters.get(0)), Float.parseFloat(characters.get(1)),
                                     Float.parseFloat(characters.get(2)));
@@ -262,27 +417,27 @@ public class Scene
                             characters.clear();
                             break;
                         case "albedo_map":
-                            material.setAlbedoMap(new Texture(characters.get(0), 4));
+                            material.setAlbedoMap(new Texture(characters.get(0), 4, 0x808080FF, true));
                             characters.clear();
                             break;
                         case "metalness_map":
-                            material.setMetalnessMap(new Texture(characters.get(0), 1));
+                            material.setMetalnessMap(new Texture(characters.get(0), 1, 0x808080FF, true));
                             characters.clear();
                             break;
                         case "roughness_map":
-                            material.setRoughnessMap(new Texture(characters.get(0), 1));
+                            material.setRoughnessMap(new Texture(characters.get(0), 1, 0x808080FF, true));
                             characters.clear();
                             break;
                         case "normal_map":
-                            material.setNormalMap(new Texture(characters.get(0), 3));
+                            material.setNormalMap(new Texture(characters.get(0), 3, 0x8080FFFF, true));
                             characters.clear();
                             break;
                         case "emission_map":
-                            material.setEmissionMap(new Texture(characters.get(0), 3));
+                            material.setEmissionMap(new Texture(characters.get(0), 3, 0x000000FF, true));
                             characters.clear();
                             break;
                         case "ambient_occlusion_map":
-                            material.setAmbientOcclusionMap(new Texture(characters.get(0), 1));
+                            material.setAmbientOcclusionMap(new Texture(characters.get(0), 1, 0xFFFFFFFF, true));
                             characters.clear();
                             break;
                         case "transparent":
@@ -290,65 +445,161 @@ public class Scene
                             characters.clear();
                             break;
                         case "mesh_path":
-                            AIScene aiScene = Assimp.aiImportFile(characters.get(0), Assimp.aiProcess_Triangulate
+                            ModelData model = MeshCache.load(characters.get(0), Assimp.aiProcess_Triangulate
                                     | Assimp.aiProcess_FlipUVs | Assimp.aiProcess_CalcTangentSpace);
 
-                            node.addChild(loadModel(aiScene.mRootNode(), aiScene, characters.get(0)));
+                            if (model != null)
+                                node.addChild(loadModel(model, characters.get(0)));
                             characters.clear();
                             isMeshOpaque = true;
                             material = null;
+                            lodThresholds = Mesh.DEFAULT_LOD_THRESHOLDS;
+                            lodHysteresis = Mesh.DEFAULT_LOD_HYSTERESIS;
+                            break;
+                        case "lod_thresholds":
+                            String[] thresholds = String.join(" ", characters).trim().split("\\s+");
+                            lodThresholds = new float[thresholds.length];
+                            for (int i = 0; i < thresholds.length; i++)
+                                lodThresholds[i] = Float.parseFloat(thresholds[i]);
+                            characters.clear();
+                            break;
+                        case "lod_hysteresis":
+                            lodHysteresis = Float.parseFloat(characters.get(0));
+                            characters.clear();
                             break;
                     }
                 }
 
-                private Node loadModel(AINode aiNode, AIScene aiScene, String scenePath)
+                private Node loadModel(ModelData model, String modelPath)
                 {
-                    Node node = new Node(aiNode.mName().dataString());
+                    // Model nodes are stored parent-before-child so parents are always created first
+                    Node[] nodes = new Node[model.getNodeCount()];
+                    Matrix4f matrix = new Matrix4f();
+                    Vector3f mediator = new Vector3f();
 
-                    Matrix4f matrix = new Matrix4f(
-                            aiNode.mTransformation().a1(), aiNode.mTransformation().b1(), aiNode.mTransformation().c1(), aiNode.mTransformation().d1(),
-                            aiNode.mTransformation().a2(), aiNode.mTransformation().b2(), aiNode.mTransformation().c2(), aiNode.mTransformation().d2(),
-                            aiNode.mTransformation().a3(), aiNode.mTransformation().b3(), aiNode.mTransformation().c3(), aiNode.mTransformation().d3(),
-                            aiNode.mTransformation().a4(), aiNode.mTransformation().b4(), aiNode.mTransformation().c4(), aiNode.mTransformation().d4()
-                    );
+                    for (int i = 0; i < nodes.length; i++) {
+                        Node node = new Node(model.getNodeName(i));
+                        if (model.getNodeParent(i) != -1)
+                            nodes[model.getNodeParent(i)].addChild(node);
+                        nodes[i] = node;
 
-                    Vector3f mediator = new Vector3f();
+                        model.getNodeMatrix(i, matrix);
 
-                    matrix.getTranslation(mediator);
-                    node.setPosition(mediator);
+                        matrix.getTranslation(mediator);
+                        node.setPosition(mediator);
 
-                    matrix.getEulerAnglesZYX(mediator);
-                    node.setRotation(mediator);
+                        matrix.getEulerAnglesZYX(mediator);
+                        node.setRotation(mediator);
 
-                    matrix.getScale(mediator);
-                    node.setScale(mediator);
+                        matrix.getScale(mediator);
+                        node.setScale(mediator);
 
-                    for (int i = 0; i < aiNode.mNumMeshes(); i++) {
-                        AIMesh aiMesh = AIMesh.create(aiScene.mMeshes().get(aiNode.mMeshes().get(i)));
-                        Mesh mesh = new Mesh(aiMesh.mName().dataString(), node);
-                        mesh.loadMesh(aiMesh, scenePath);
+                        for (int meshIndex : model.getNodeMeshes(i)) {
+                            MeshData data = model.getMeshes()[meshIndex];
+                            Mesh mesh = new Mesh(data.getName(), node);
+                            mesh.loadMesh(data, modelPath, meshIndex);
 
-                        if (isMeshOpaque)
-                            opaqueMeshes.add(mesh);
-                        else
-                            transparentMeshes.add(mesh);
+                            if (isMeshOpaque)
+                                opaqueMeshes.add(mesh);
+                            else
+                                transparentMeshes.add(mesh);
 
-                        if (material != null)
-                            mesh.setMaterial(material);
-                        else
-                            mesh.setMaterial(defaultMaterial);
-                    }
+                            mesh.setOpaque(isMeshOpaque);
+                            mesh.setLodThresholds(lodThresholds, lodHysteresis);
 
-                    for (int i = 0; i < aiNode.mNumChildren(); i++)
-                        node.addChild(loadModel(AINode.create(aiNode.mChildren().get(i)), aiScene, scenePath));
+                            if (material != null)
+                                mesh.setMaterial(material);
+                            else
+                                mesh.setMaterial(defaultMaterial);
+                        }
+                    }
 
-                    return node;
+                    return nodes[0];
                 }
             });
         } catch (Exception e) {
             System.err.println("Scene file loading failed");
             e.printStackTrace();
         }
+
+        // Meshes are indexed after all transforms are set so world matrices are calculated by a single pass
+        TransformStore.update();
+        for (Mesh m : opaqueMeshes)
+            spatialIndex.insert(m);
+        for (Mesh m : transparentMeshes)
+            spatialIndex.insert(m);
+        GpuCulling.setObjects(opaqueMeshes);
+    }
+
+    // Creates or releases parallel update pool according to configuration
+    private static void configureUpdate()
+    {
+        if (updatePool != null) {
+            updatePool.shutdown();
+            updatePool = null;
+        }
+
+        if (!"true".equals(Configuration.getProperty("parallel_update")))
+            return;
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        if (Configuration.getProperty("update_threads") != null)
+            threads = Integer.parseInt(Configuration.getProperty("update_threads"));
+        if (Configuration.getProperty("parallel_threshold") != null)
+            parallelThreshold = Integer.parseInt(Configuration.getProperty("parallel_threshold"));
+
+        updatePool = new ForkJoinPool(Math.max(threads, 1));
+    }
+
+    // Draws only meshes which bounding boxes intersect main camera frustum
+    private static void drawMeshes(Shader shader, boolean opaque)
+    {
+        mainCamera.use();
+
+        mainCamera.getProjectionMatrix(viewProjectionMatrix).mul(mainCamera.getViewMatrix(viewMatrix));
+        frustum.set(viewProjectionMatrix);
+        mainCamera.getWorldPosition(cameraPosition);
+
+        float projectionScale = 1.0f / (float) Math.tan(mainCamera.getFOV() * 0.5f);
+
+        // Opaque meshes are culled and drawn without per-mesh CPU work
+        if (opaque && GpuCulling.isEnabled()) {
+            GpuCulling.draw(shader, viewProjectionMatrix, cameraPosition, projectionScale);
+            drawnMeshes = GpuCulling.getDrawnMeshes();
+            culledMeshes = opaqueMeshes.size() - drawnMeshes;
+            return;
+        }
+
+        visibleNodes.clear();
+        spatialIndex.query(frustum, visibleNodes);
+
+        renderQueue.clear();
+
+        drawnMeshes = 0;
+        for (int i = 0; i < visibleNodes.size(); i++) {
+            Mesh m = (Mesh) visibleNodes.get(i);
+            if (m.isOpaque() != opaque || !m.isVisible(frustum))
+                continue;
+
+            // Normalized distance from camera to bounding box center
+            m.getWorldBounds(boundsMin, boundsMax);
+            float radius = boundsMin.distance(boundsMax) * 0.5f;
+            float distance = boundsMin.add(boundsMax).mul(0.5f).distance(cameraPosition);
+            float depth = (distance - mainCamera.getNear()) / (mainCamera.getFar() - mainCamera.getNear());
+
+            renderQueue.submit(m, shader, m.selectLod(cameraPosition, projectionScale), depth, !opaque);
+
+            // Texture resolution is requested by projected bounding sphere diameter
+            if (TextureStreamer.isEnabled() && m.getMaterial() != null)
+                TextureStreamer.request(m.getMaterial(), distance > radius ?
+                        radius * projectionScale / distance * Orchid.getRenderHeight() : Float.MAX_VALUE);
+            drawnMeshes++;
+        }
+
+        culledMeshes = (opaque ? opaqueMeshes.size() : transparentMeshes.size()) - drawnMeshes;
+
+        renderQueue.sort();
+        renderQueue.draw();
     }
 
     /**
@@ -359,5 +610,10 @@ public class Scene
         skyboxCubemap.remove();
         if (sceneTree != null)
             sceneTree.remove();
+
+        if (updatePool != null) {
+            updatePool.shutdown();
+            updatePool = null;
+        }
     }
 }
@@ -0,0 +1,109 @@
+package org.orchid;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Scene update benchmark - times serial and fork join update of a synthetic wide scene (no GL context is required)
+ * <p>
+ * Usage: "SceneUpdateBenchmark [branches] [nodes per branch] [frames] [threshold]". Every node rotates itself in
+ * its update logic, so all world matrices are recalculated every frame. Pooled update is measured for 1 to number of
+ * processors threads, speedup is relative to the serial update.
+ */
+public class SceneUpdateBenchmark
+{
+    // Node with some per-frame logic
+    private static class SpinningNode extends Node
+    {
+        private float angle;
+
+        SpinningNode(String name, Node parent, float angle)
+        {
+            super(name, parent);
+            this.angle = angle;
+        }
+
+        @Override
+        protected void onUpdate()
+        {
+            angle += 0.01f;
+            setRotation((float) Math.sin(angle) * 0.1f, angle, 0.0f);
+        }
+    }
+
+    public static void main(String[] args)
+    {
+        int branches = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        int branchNodes = args.length > 1 ? Integer.parseInt(args[1]) : 4096;
+        int frames = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+        int threshold = args.length > 3 ? Integer.parseInt(args[3]) : 1024;
+
+        Node root = buildScene(branches, branchNodes);
+        System.out.printf("Scene: %d branches, %d nodes, %d frames, threshold %d%n", branches,
+                TransformStore.getCount(), frames, threshold);
+
+        double serial = measure(root, null, threshold, frames);
+        System.out.printf("serial     %8.3f ms/frame%n", serial);
+
+        int processors = Runtime.getRuntime().availableProcessors();
+        for (int threads = 1; threads <= processors; threads *= 2) {
+            report(root, threads, threshold, frames, serial);
+            if (threads < processors && threads * 2 > processors)
+                report(root, processors, threshold, frames, serial);
+        }
+    }
+
+    // Wide hierarchy - branches of short chains with several children per node
+    private static Node buildScene(int branches, int branchNodes)
+    {
+        Node root = new Node("root");
+
+        for (int b = 0; b < branches; b++) {
+            Node branch = new SpinningNode("branch", root, b);
+
+            Node parent = branch;
+            for (int i = 1; i < branchNodes; i++) {
+                Node node = new SpinningNode("node", parent, i);
+                node.setPosition(1.0f, 0.0f, 0.0f);
+
+                // Chains of eight nodes hang from the branch root
+                parent = i % 8 == 0 ? branch : node;
+            }
+        }
+
+        return root;
+    }
+
+    private static void report(Node root, int threads, int threshold, int frames, double serial)
+    {
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        double pooled = measure(root, pool, threshold, frames);
+        pool.shutdown();
+
+        System.out.printf("%2d threads %8.3f ms/frame, speedup %.2f%n", threads, pooled, serial / pooled);
+    }
+
+    // Average frame time after warm up frames
+    private static double measure(Node root, ForkJoinPool pool, int threshold, int frames)
+    {
+        for (int i = 0; i < frames / 4; i++)
+            update(root, pool, threshold);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < frames; i++)
+            update(root, pool, threshold);
+
+        return (System.nanoTime() - start) / 1000000.0 / frames;
+    }
+
+    // Same passes as Scene.update
+    private static void update(Node root, ForkJoinPool pool, int threshold)
+    {
+        if (pool != null) {
+            root.update(pool, threshold);
+            TransformStore.update(pool, threshold);
+        } else {
+            root.update();
+            TransformStore.update();
+        }
+    }
+}
@@ -3,8 +3,11 @@ package org.orchid;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 
 import static org.lwjgl.opengl.GL20.*;
+import static org.lwjgl.opengl.GL43.GL_COMPUTE_SHADER;
 
 /**
  * Shader class - represents GLSL shader program
@@ -15,10 +18,23 @@ public class Shader
     public static final int    NORMAL_LOCATION = 1;
     public static final int BITANGENT_LOCATION = 2;
     public static final int       UVS_LOCATION = 3;
+    public static final int  INSTANCE_LOCATION = 4;
 
-    public static final int MODEL_BLOCK = 0;
+    public static final int INSTANCE_BLOCK = 0;
     public static final int CAMERA_BLOCK = 1;
     public static final int MATERIAL_BLOCK = 2;
+    public static final int OBJECT_BLOCK = 3;
+    public static final int TRANSFORM_BLOCK = 4;
+    public static final int COMMAND_BLOCK = 5;
+    public static final int COUNTER_BLOCK = 6;
+    public static final int CULLING_BLOCK = 7;
+    public static final int REJECTED_BLOCK = 8;
+    public static final int PYRAMID_BLOCK = 9;
+    public static final int LIGHT_BLOCK = 10;
+    public static final int CLUSTER_BLOCK = 11;
+    public static final int LIGHT_INDEX_BLOCK = 12;
+    public static final int CLUSTER_GRID_BLOCK = 13;
+    public static final int TARGET_BLOCK = 14;
 
     public static final int ALBEDO_MAP_BINDING = 4;
     public static final int METALNESS_MAP_BINDING = 5;
@@ -27,7 +43,17 @@ public class Shader
     public static final int EMISSION_MAP_BINDING = 8;
     public static final int AMBIENT_OCCLUSION_MAP_BINDING = 9;
 
+    public static final int DEPTH_PYRAMID_BINDING = 13;
+
+    public static final int TEXTURE_ARRAYS_BINDING = 16;
+
+    private static int shaderCount = 0;
+
+    // Macros defined in all shaders (inserted after version directive)
+    private static List<String> defines = new ArrayList<>();
+
     private int program;
+    private int id = shaderCount++;
 
     /**
      * Constructor - builds shader from vertex and fragment shader files
@@ -48,6 +74,9 @@ public class Shader
             e.printStackTrace();
         }
 
+        vertexSource = insertDefines(vertexSource);
+        fragmentSource = insertDefines(fragmentSource);
+
         int vertexShader = glCreateShader(GL_VERTEX_SHADER);
         glShaderSource(vertexShader, vertexSource);
         glCompileShader(vertexShader);
@@ -72,6 +101,59 @@ public class Shader
         glDeleteShader(fragmentShader);
     }
 
+    /**
+     * Constructor - builds compute shader from file
+     *
+     * @param computePath path to compute shader file
+     */
+    public Shader(String computePath)
+    {
+        String computeSource = "";
+
+        try {
+            computeSource = new String(Files.readAllBytes(Paths.get(computePath)));
+        } catch (IOException e) {
+            System.out.println("Shader reading failed");
+            e.printStackTrace();
+        }
+
+        int computeShader = glCreateShader(GL_COMPUTE_SHADER);
+        glShaderSource(computeShader, insertDefines(computeSource));
+        glCompileShader(computeShader);
+        if (!glGetShaderInfoLog(computeShader).equals(""))
+            System.err.println(computePath + ": " + glGetShaderInfoLog(computeShader));
+
+        program = glCreateProgram();
+        glAttachShader(program, computeShader);
+
+        glLinkProgram(program);
+        if (!glGetProgramInfoLog(program).equals(""))
+            System.err.println(glGetProgramInfoLog(program));
+
+        glDeleteShader(computeShader);
+    }
+
+    /**
+     * Defines macro in all shaders built after this call
+     *
+     * @param name macro name
+     */
+    public static void define(String name)
+    {
+        if (!defines.contains(name))
+            defines.add(name);
+    }
+
+    /**
+     * Unique shader identifier
+     *
+     * @return shader identifier
+     */
+    public int getId()
+    {
+        return id;
+    }
+
     /**
      * Binds this shader as current in OpenGL context
      */
@@ -80,6 +162,20 @@ public class Shader
         glUseProgram(program);
     }
 
+    // Defines have to follow version directive, which must be the first line
+    private static String insertDefines(String source)
+    {
+        if (defines.isEmpty())
+            return source;
+
+        StringBuilder builder = new StringBuilder();
+        for (String define : defines)
+            builder.append("#define ").append(define).append('\n');
+
+        int lineEnd = source.startsWith("#version") ? source.indexOf('\n') + 1 : 0;
+        return source.substring(0, lineEnd) + builder + source.substring(lineEnd);
+    }
+
     /**
      * Remove shader from VRAM
      */
@@ -1,92 +1,301 @@
 package org.orchid;
 
 import org.lwjgl.BufferUtils;
+import org.lwjgl.opengl.GL;
 
 import java.nio.ByteBuffer;
-import java.nio.IntBuffer;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
+import static org.lwjgl.opengl.ARBBindlessTexture.*;
 import static org.lwjgl.opengl.GL11.*;
 import static org.lwjgl.opengl.GL30.*;
-import static org.lwjgl.stb.STBImage.stbi_image_free;
-import static org.lwjgl.stb.STBImage.stbi_load;
 
 public class Texture
 {
+    /**
+     * Way material maps are accessed by shaders
+     */
+    public enum Binding
+    {
+        /**
+         * Maps are bound to fixed texture units per draw
+         */
+        SLOTS,
+        /**
+         * Maps are referenced by resident bindless handles (ARB_bindless_texture)
+         */
+        BINDLESS,
+        /**
+         * Maps are layers of texture arrays bound once per frame
+         */
+        ARRAYS
+    }
+
+    private static Binding binding = Binding.SLOTS;
+
     private static Map<String, Integer> loadedTextures = new HashMap<>();
-    private static Map<String, Integer> loadedInstances = new HashMap<>();
 
-    private int texture;
-    private String path;
+    // Texture state shared by all instances with the same path, indexed by texture identifier
+    private static Resource[] resources = new Resource[64];
+    private static int textureCount = 0;
+
+    private static class Resource
+    {
+        String key;
+        int instances;
+        boolean materialMap;
+
+        // Current GL name (not used by array layers), bindless handle or array location
+        int name;
+        long reference;
+    }
+
+    private int id;
 
     /**
-     * Constructor
+     * Selects material maps binding by "texture_binding" property (bindless, arrays or slots), bindless textures are
+     * used if supported by default (should be called after context creation, before shaders and scene loading)
+     */
+    static void init()
+    {
+        boolean bindlessSupported = GL.getCapabilities().GL_ARB_bindless_texture;
+        String property = Configuration.getProperty("texture_binding");
+
+        if (property == null)
+            binding = bindlessSupported ? Binding.BINDLESS : Binding.ARRAYS;
+        else
+            binding = Binding.valueOf(property.toUpperCase());
+
+        if (binding == Binding.BINDLESS && !bindlessSupported) {
+            System.err.println("Bindless textures are not supported, texture arrays are used");
+            binding = Binding.ARRAYS;
+        }
+
+        if (binding == Binding.BINDLESS)
+            Shader.define("BINDLESS_TEXTURES");
+        else if (binding == Binding.ARRAYS) {
+            Shader.define("TEXTURE_ARRAYS");
+            Shader.define("TEXTURE_ARRAY_COUNT " + TextureArrays.init());
+        }
+    }
+
+    /**
+     * Material maps binding getter
      *
-     * @param path path to texture image file
+     * @return binding
+     */
+    public static Binding getBinding()
+    {
+        return binding;
+    }
+
+    /**
+     * Constructor - texture is usable right away as a neutral gray placeholder, image is loaded asynchronously
+     *
+     * @param path     path to texture image file
+     * @param channels number of channels
      */
     public Texture(String path, int channels)
     {
-        this.path = path;
+        this(path, channels, 0x808080FF);
+    }
 
-        if(loadedTextures.containsKey(path))
+    /**
+     * Constructor - texture is usable right away as a placeholder of given color, image is loaded asynchronously
+     * <p>
+     * Cooked block compressed file (see {@link TextureCooker}) is loaded instead of the image if it exists.
+     *
+     * @param path        path to texture image file
+     * @param channels    number of channels
+     * @param placeholder placeholder color (RGBA, 8 bits per channel)
+     */
+    public Texture(String path, int channels, int placeholder)
+    {
+        this(path, channels, placeholder, false);
+    }
+
+    /**
+     * Constructor - material maps are accessed by shaders according to {@link #getBinding()}, other textures are
+     * always bound to texture units
+     *
+     * @param path        path to texture image file
+     * @param channels    number of channels
+     * @param placeholder placeholder color (RGBA, 8 bits per channel)
+     * @param materialMap true if texture is used as material map
+     */
+    public Texture(String path, int channels, int placeholder, boolean materialMap)
+    {
+        String key = (materialMap ? "map:" : "") + path;
+
+        if(loadedTextures.containsKey(key))
         {
-            texture = loadedTextures.get(path);
-            loadedInstances.put(path, loadedInstances.get(path) + 1);
+            id = loadedTextures.get(key);
+            resources[id].instances++;
             return;
         }
 
-        IntBuffer textureWidth = BufferUtils.createIntBuffer(1);
-        IntBuffer textureHeight = BufferUtils.createIntBuffer(1);
-        IntBuffer textureChannels = BufferUtils.createIntBuffer(1);
-        ByteBuffer textureData = null;
+        id = textureCount++;
+        if (id == resources.length)
+            resources = Arrays.copyOf(resources, resources.length * 2);
 
-        try {
-            textureData = stbi_load(path, textureWidth, textureHeight, textureChannels, channels);
-        } catch (Exception e) {
-            System.err.println("Texture \"" + path + "\" loading failed");
-            e.printStackTrace();
-        }
+        Resource resource = new Resource();
+        resource.key = key;
+        resource.instances = 1;
+        resource.materialMap = materialMap;
+        resource.reference = isLayer(resource) ? -1 : 0;
+        resources[id] = resource;
 
-        texture = glGenTextures();
+        int texture = createTexture();
         glBindTexture(GL_TEXTURE_2D, texture);
-        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_REPEAT);
-        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_REPEAT);
-        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR_MIPMAP_LINEAR);
-        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR_MIPMAP_LINEAR);
 
-        int format = 0;
-        int internal = 0;
+        ByteBuffer placeholderData = BufferUtils.createByteBuffer(4);
+        placeholderData.put((byte) (placeholder >>> 24)).put((byte) (placeholder >>> 16))
+                .put((byte) (placeholder >>> 8)).put((byte) placeholder).flip();
+
+        glTexImage2D(GL_TEXTURE_2D, 0, GL_RGBA8, 1, 1, 0, GL_RGBA, GL_UNSIGNED_BYTE, placeholderData);
+        glGenerateMipmap(GL_TEXTURE_2D);
+        glBindTexture(GL_TEXTURE_2D, 0);
+
+        endUpdate(id, texture, GL_RGBA8, 1, 1, 1);
+
+        // Texture identifier stays the same when the image arrives, so materials don't have to be updated
+        TextureLoader.load(id, path, channels);
+
+        loadedTextures.put(key, id);
+    }
+
+    /**
+     * GL texture to upload new contents of the texture into - bindless resident textures are immutable and array
+     * layers are copied from a temporary texture, so both get a new texture
+     *
+     * @param id texture identifier
+     * @return GL texture name
+     */
+    static int beginUpdate(int id)
+    {
+        Resource resource = resources[id];
+
+        if (binding == Binding.SLOTS || !resource.materialMap)
+            return resource.name;
+        return createTexture();
+    }
+
+    /**
+     * Makes uploaded contents current - replaces bindless texture or copies it into array layer
+     *
+     * @param id             texture identifier
+     * @param texture        GL texture returned by {@link #beginUpdate}
+     * @param internalFormat texture internal format
+     * @param width          texture width
+     * @param height         texture height
+     * @param levels         number of mip levels
+     */
+    static void endUpdate(int id, int texture, int internalFormat, int width, int height, int levels)
+    {
+        Resource resource = resources[id];
+
+        if (binding == Binding.SLOTS || !resource.materialMap) {
+            resource.name = texture;
+            return;
+        }
+
+        if (binding == Binding.BINDLESS) {
+            if (resource.reference != 0) {
+                glMakeTextureHandleNonResidentARB(resource.reference);
+                glDeleteTextures(resource.name);
+            }
+
+            resource.name = texture;
+            resource.reference = glGetTextureHandleARB(texture);
+            glMakeTextureHandleResidentARB(resource.reference);
+        } else {
+            TextureArrays.release(resource.reference);
+            resource.reference = TextureArrays.store(texture, internalFormat, width, height, levels);
+            glDeleteTextures(texture);
+        }
+    }
+
+    /**
+     * Path of the cooked (block compressed) version of the image - same path with ".dds" extension
+     *
+     * @param path path to texture image file
+     * @return path to cooked texture file
+     */
+    static String getCookedPath(String path)
+    {
+        int extension = path.lastIndexOf('.');
+        if (extension <= Math.max(path.lastIndexOf('/'), path.lastIndexOf('\\')))
+            extension = path.length();
+        return path.substring(0, extension) + ".dds";
+    }
+
+    /**
+     * Sized internal format for given channel count
+     *
+     * @param channels number of channels
+     * @return GL internal format
+     */
+    static int getInternalFormat(int channels)
+    {
         switch (channels) {
             case 1:
-                format = GL_R8;
-                internal = GL_RED;
-                break;
+                return GL_R8;
             case 2:
-                format = GL_RG8;
-                internal = GL_RG;
-                break;
+                return GL_RG8;
             case 3:
-                format = GL_RGB8;
-                internal = GL_RGB;
-                break;
+                return GL_RGB8;
             case 4:
-                format = GL_RGBA8;
-                internal = GL_RGBA;
-                break;
+                return GL_RGBA8;
             default:
                 throw new RuntimeException("Wrong texture channel count: " + channels);
         }
+    }
 
-        glTexImage2D(GL_TEXTURE_2D, 0, format, textureWidth.get(0), textureHeight.get(0), 0,
-                internal, GL_UNSIGNED_BYTE, textureData);
-        glGenerateMipmap(GL_TEXTURE_2D);
-        glBindTexture(GL_TEXTURE_2D, 0);
+    /**
+     * Pixel data format for given channel count
+     *
+     * @param channels number of channels
+     * @return GL pixel format
+     */
+    static int getFormat(int channels)
+    {
+        switch (channels) {
+            case 1:
+                return GL_RED;
+            case 2:
+                return GL_RG;
+            case 3:
+                return GL_RGB;
+            case 4:
+                return GL_RGBA;
+            default:
+                throw new RuntimeException("Wrong texture channel count: " + channels);
+        }
+    }
 
-        stbi_image_free(textureData);
+    /**
+     * Unique texture identifier (stays the same when GL texture is replaced)
+     *
+     * @return texture identifier
+     */
+    public int getId()
+    {
+        return id;
+    }
 
-        loadedTextures.put(path, texture);
-        loadedInstances.put(path, 1);
+    /**
+     * Shader reference of material map - bindless handle or texture array location (layer in the high half, array
+     * index in the low half)
+     *
+     * @return reference or -1 if texture is not available to shaders
+     */
+    public long getReference()
+    {
+        if (binding == Binding.SLOTS)
+            return 0;
+        return resources[id].reference;
     }
 
     /**
@@ -94,7 +303,7 @@ public class Texture
      */
     public void use()
     {
-        glBindTexture(GL_TEXTURE_2D, texture);
+        glBindTexture(GL_TEXTURE_2D, resources[id].name);
     }
 
     /**
@@ -102,10 +311,40 @@ public class Texture
      */
     public void remove()
     {
-        loadedInstances.put(path, loadedInstances.get(path) - 1);
-        if (loadedInstances.get(path) != 0)
+        Resource resource = resources[id];
+        if (--resource.instances != 0)
             return;
 
-        glDeleteTextures(texture);
+        TextureLoader.cancel(id);
+        TextureStreamer.remove(id);
+
+        if (binding == Binding.BINDLESS && resource.materialMap)
+            glMakeTextureHandleNonResidentARB(resource.reference);
+
+        if (isLayer(resource))
+            TextureArrays.release(resource.reference);
+        else
+            glDeleteTextures(resource.name);
+
+        loadedTextures.remove(resource.key);
+        resources[id] = null;
+    }
+
+    private static boolean isLayer(Resource resource)
+    {
+        return binding == Binding.ARRAYS && resource.materialMap;
+    }
+
+    // Texture with material maps sampling parameters
+    private static int createTexture()
+    {
+        int texture = glGenTextures();
+        glBindTexture(GL_TEXTURE_2D, texture);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_REPEAT);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_REPEAT);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR_MIPMAP_LINEAR);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
+        glBindTexture(GL_TEXTURE_2D, 0);
+        return texture;
     }
 }
@@ -0,0 +1,254 @@
+package org.orchid;
+
+import java.util.Arrays;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL12.GL_TEXTURE_MAX_LEVEL;
+import static org.lwjgl.opengl.GL13.GL_TEXTURE0;
+import static org.lwjgl.opengl.GL13.glActiveTexture;
+import static org.lwjgl.opengl.GL20.GL_MAX_TEXTURE_IMAGE_UNITS;
+import static org.lwjgl.opengl.GL30.GL_TEXTURE_2D_ARRAY;
+import static org.lwjgl.opengl.GL42.glTexStorage3D;
+import static org.lwjgl.opengl.GL43.glCopyImageSubData;
+
+/**
+ * Texture arrays - material maps are stored as layers of 2D texture arrays bucketed by format and size
+ * <p>
+ * Used when bindless textures are not supported. All arrays are bound once per frame to units starting from
+ * {@link Shader#TEXTURE_ARRAYS_BINDING} and maps are addressed by array and layer index, so draws don't bind
+ * textures. Arrays grow by doubling, their layers are copied to the new storage.
+ * <p>
+ * Arrays have full mip chains. When there are no free texture units left, texture goes to an array of the same
+ * format which size differs by a power of two - smaller texture is stored in the lower mip levels of a larger layer
+ * (its levels are clamped in shader), larger one loses its top levels. Streamed textures change size often, so
+ * they keep their maps with the limited number of arrays.
+ */
+public class TextureArrays
+{
+    /**
+     * Maximum number of arrays ("texture_arrays" size in shaders is passed as TEXTURE_ARRAY_COUNT macro)
+     */
+    public static final int MAX_ARRAYS = 16;
+
+    private static final int INITIAL_CAPACITY = 4;
+
+    // Location layout: layer in the high half, array index, first and last level of the texture and clamping flag
+    // in the low half
+    private static final int BASE_LEVEL_SHIFT = 8;
+    private static final int TOP_LEVEL_SHIFT = 16;
+    private static final long CLAMPED = 1L << 24;
+
+    private static Bucket[] buckets = new Bucket[MAX_ARRAYS];
+    private static int bucketCount = 0;
+    private static int maxArrays = MAX_ARRAYS;
+
+    private static class Bucket
+    {
+        int texture;
+        int format;
+        int width;
+        int height;
+        int levels;
+        int capacity;
+        int used;
+
+        int[] freeLayers = new int[0];
+        int freeCount = 0;
+    }
+
+    /**
+     * Limits number of arrays by available texture units (should be called after context creation, before shaders
+     * loading)
+     *
+     * @return number of arrays shaders should declare
+     */
+    static int init()
+    {
+        maxArrays = Math.min(MAX_ARRAYS, glGetInteger(GL_MAX_TEXTURE_IMAGE_UNITS) - Shader.TEXTURE_ARRAYS_BINDING);
+        if (maxArrays < 1)
+            throw new RuntimeException("Not enough texture units for texture arrays");
+        return maxArrays;
+    }
+
+    /**
+     * Copies mip levels of 2D texture into a free layer of the matching array (array of the same size or, if all
+     * arrays are taken, array of the closest power of two size)
+     *
+     * @param source   GL name of 2D texture
+     * @param format   internal format
+     * @param width    texture width
+     * @param height   texture height
+     * @param levels   number of mip levels
+     * @return location (layer in the high half, array index and levels in the low half) or -1 if there is no
+     * suitable array
+     */
+    static long store(int source, int format, int width, int height, int levels)
+    {
+        int index = 0;
+        while (index < bucketCount && !(buckets[index].format == format && buckets[index].width == width
+                && buckets[index].height == height))
+            index++;
+
+        if (index == bucketCount && bucketCount < maxArrays) {
+            Bucket bucket = new Bucket();
+            bucket.format = format;
+            bucket.width = width;
+            bucket.height = height;
+            bucket.levels = 32 - Integer.numberOfLeadingZeros(Math.max(width, height));
+            buckets[bucketCount++] = bucket;
+        }
+
+        // Array level of texture level 0 (negative if top texture levels are dropped)
+        int shift = 0;
+        if (index == bucketCount) {
+            index = findScaled(format, width, height, levels);
+            if (index == -1) {
+                System.err.println("All " + maxArrays + " texture arrays are taken and none fits " + width + "x"
+                        + height + " texture, material map is not stored");
+                return -1;
+            }
+            shift = getShift(buckets[index], width, height);
+        }
+
+        Bucket bucket = buckets[index];
+
+        int layer;
+        if (bucket.freeCount > 0) {
+            layer = bucket.freeLayers[--bucket.freeCount];
+        } else {
+            if (bucket.used == bucket.capacity)
+                grow(bucket);
+            layer = bucket.used++;
+        }
+
+        int first = Math.max(-shift, 0);
+        int last = Math.min(levels, bucket.levels - shift) - 1;
+        for (int level = first; level <= last; level++)
+            glCopyImageSubData(source, GL_TEXTURE_2D, level, 0, 0, 0, bucket.texture, GL_TEXTURE_2D_ARRAY,
+                    level + shift, 0, 0, layer, Math.max(1, width >> level), Math.max(1, height >> level), 1);
+
+        long location = (long) layer << 32 | index | (long) (first + shift) << BASE_LEVEL_SHIFT
+                | (long) (last + shift) << TOP_LEVEL_SHIFT;
+        if (first + shift > 0 || last + shift < bucket.levels - 1)
+            location |= CLAMPED;
+        return location;
+    }
+
+    /**
+     * Frees layer for reuse
+     *
+     * @param location location returned by {@link #store}
+     */
+    static void release(long location)
+    {
+        if (location == -1)
+            return;
+
+        Bucket bucket = buckets[(int) location & 0xFF];
+        if (bucket.freeCount == bucket.freeLayers.length)
+            bucket.freeLayers = Arrays.copyOf(bucket.freeLayers, Math.max(bucket.freeLayers.length * 2, 4));
+        bucket.freeLayers[bucket.freeCount++] = (int) (location >>> 32);
+    }
+
+    /**
+     * Binds all arrays to their texture units
+     */
+    static void bind()
+    {
+        for (int i = 0; i < bucketCount; i++) {
+            glActiveTexture(GL_TEXTURE0 + Shader.TEXTURE_ARRAYS_BINDING + i);
+            glBindTexture(GL_TEXTURE_2D_ARRAY, buckets[i].texture);
+        }
+        glActiveTexture(GL_TEXTURE0);
+    }
+
+    /**
+     * Number of arrays
+     *
+     * @return arrays count
+     */
+    public static int getCount()
+    {
+        return bucketCount;
+    }
+
+    /**
+     * Deletes all arrays
+     */
+    static void remove()
+    {
+        for (int i = 0; i < bucketCount; i++) {
+            glDeleteTextures(buckets[i].texture);
+            buckets[i] = null;
+        }
+        bucketCount = 0;
+    }
+
+    // Array of the same format with the closest size differing by a power of two (larger arrays win ties), -1 if
+    // there is none
+    private static int findScaled(int format, int width, int height, int levels)
+    {
+        int found = -1;
+        int foundShift = 0;
+
+        for (int i = 0; i < bucketCount; i++) {
+            if (buckets[i].format != format)
+                continue;
+
+            int shift = getShift(buckets[i], width, height);
+            if (shift == 0 || shift < 0 && -shift >= levels)
+                continue;
+
+            if (found == -1 || Math.abs(shift) < Math.abs(foundShift)
+                    || Math.abs(shift) == Math.abs(foundShift) && shift > foundShift) {
+                found = i;
+                foundShift = shift;
+            }
+        }
+
+        return found;
+    }
+
+    // Number of levels texture size has to be doubled to match the array (negative if halved), 0 if it can't match
+    private static int getShift(Bucket bucket, int width, int height)
+    {
+        int larger = Math.max(bucket.width, width);
+        int smaller = Math.min(bucket.width, width);
+        if (larger == smaller || larger % smaller != 0 || Integer.bitCount(larger / smaller) != 1)
+            return 0;
+
+        int shift = Integer.numberOfTrailingZeros(larger / smaller);
+        if (bucket.width > width)
+            return bucket.height == height << shift ? shift : 0;
+        return height == bucket.height << shift ? -shift : 0;
+    }
+
+    // Reallocates array with doubled capacity and copies used layers
+    private static void grow(Bucket bucket)
+    {
+        int capacity = Math.max(bucket.capacity * 2, INITIAL_CAPACITY);
+
+        int texture = glGenTextures();
+        glBindTexture(GL_TEXTURE_2D_ARRAY, texture);
+        glTexStorage3D(GL_TEXTURE_2D_ARRAY, bucket.levels, bucket.format, bucket.width, bucket.height, capacity);
+        glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_WRAP_S, GL_REPEAT);
+        glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_WRAP_T, GL_REPEAT);
+        glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_MIN_FILTER, GL_LINEAR_MIPMAP_LINEAR);
+        glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
+        glTexParameteri(GL_TEXTURE_2D_ARRAY, GL_TEXTURE_MAX_LEVEL, bucket.levels - 1);
+        glBindTexture(GL_TEXTURE_2D_ARRAY, 0);
+
+        if (bucket.used > 0) {
+            for (int level = 0; level < bucket.levels; level++)
+                glCopyImageSubData(bucket.texture, GL_TEXTURE_2D_ARRAY, level, 0, 0, 0, texture, GL_TEXTURE_2D_ARRAY,
+                        level, 0, 0, 0, Math.max(1, bucket.width >> level), Math.max(1, bucket.height >> level),
+                        bucket.used);
+        }
+
+        if (bucket.texture != 0)
+            glDeleteTextures(bucket.texture);
+
+        bucket.texture = texture;
+        bucket.capacity = capacity;
+    }
+}
@@ -0,0 +1,239 @@
+package org.orchid;
+
+import org.lwjgl.BufferUtils;
+import org.xml.sax.Attributes;
+import org.xml.sax.helpers.DefaultHandler;
+
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.lwjgl.stb.STBImage.stbi_failure_reason;
+import static org.lwjgl.stb.STBImage.stbi_image_free;
+import static org.lwjgl.stb.STBImage.stbi_load;
+
+/**
+ * Offline texture cooker - encodes source images into block compressed DDS files with full mip chain
+ * <p>
+ * Usage: "TextureCooker scene.xml..." cooks all material maps of the scenes, "TextureCooker image format" cooks
+ * single image (format is bc1, bc3, bc4 or bc5). Cooked file is written next to the source with ".dds" extension
+ * and is picked by {@link Texture} automatically.
+ * <p>
+ * Scene maps are encoded by their usage: albedo - BC1 (BC3 if it has transparency), normal - BC5 (XY only),
+ * metalness, roughness and ambient occlusion - BC4, emission - BC1.
+ */
+public class TextureCooker
+{
+    public static void main(String[] args)
+    {
+        if (args.length == 2 && !args[0].endsWith(".xml")) {
+            cook(args[0], DdsImage.Format.valueOf(args[1].toUpperCase()));
+            return;
+        }
+
+        if (args.length == 0) {
+            System.err.println("Usage: TextureCooker scene.xml... | TextureCooker image bc1|bc3|bc4|bc5");
+            return;
+        }
+
+        for (String scene : args)
+            for (Map.Entry<String, String> map : findMaps(scene).entrySet()) {
+                File source = new File(map.getKey());
+                File cooked = new File(Texture.getCookedPath(map.getKey()));
+
+                if (cooked.exists() && cooked.lastModified() >= source.lastModified())
+                    continue;
+
+                cook(map.getKey(), getFormat(map.getKey(), map.getValue()));
+            }
+    }
+
+    /**
+     * Encodes image with its mip chain and writes cooked DDS file
+     *
+     * @param path   path to source image
+     * @param format compression format
+     */
+    public static void cook(String path, DdsImage.Format format)
+    {
+        IntBuffer width = BufferUtils.createIntBuffer(1);
+        IntBuffer height = BufferUtils.createIntBuffer(1);
+        IntBuffer channels = BufferUtils.createIntBuffer(1);
+
+        ByteBuffer data = stbi_load(path, width, height, channels, 4);
+        if (data == null) {
+            System.err.println("Texture \"" + path + "\" loading failed: " + stbi_failure_reason());
+            return;
+        }
+
+        byte[] level = new byte[data.remaining()];
+        data.get(level);
+        stbi_image_free(data);
+
+        int levelWidth = width.get(0);
+        int levelHeight = height.get(0);
+        int levelCount = 32 - Integer.numberOfLeadingZeros(Math.max(levelWidth, levelHeight));
+        byte[][] levels = new byte[levelCount][];
+
+        long start = System.nanoTime();
+        for (int i = 0; i < levelCount; i++) {
+            levels[i] = BlockEncoder.encode(format, level, levelWidth, levelHeight);
+
+            if (i + 1 < levelCount) {
+                level = downsample(level, levelWidth, levelHeight, format == DdsImage.Format.BC5);
+                levelWidth = Math.max(1, levelWidth / 2);
+                levelHeight = Math.max(1, levelHeight / 2);
+            }
+        }
+
+        String cookedPath = Texture.getCookedPath(path);
+        try {
+            write(DdsImage.write(format, width.get(0), height.get(0), levels), new File(cookedPath));
+        } catch (IOException e) {
+            System.err.println("Cooked texture \"" + cookedPath + "\" writing failed");
+            e.printStackTrace();
+            return;
+        }
+
+        System.out.println("Texture \"" + path + "\" cooked to " + format + " (" + width.get(0) + "x" + height.get(0)
+                + ", " + levelCount + " levels) in " + (System.nanoTime() - start) / 1000000 + " ms");
+    }
+
+    // Collects material maps of the scene file (path to map element name)
+    private static Map<String, String> findMaps(String scene)
+    {
+        Map<String, String> maps = new LinkedHashMap<>();
+
+        try {
+            SAXParser parser = SAXParserFactory.newInstance().newSAXParser();
+            parser.parse(scene, new DefaultHandler()
+            {
+                private String element = "";
+
+                @Override
+                public void startElement(String namespace, String lName, String gName, Attributes attr)
+                {
+                    element = gName;
+                }
+
+                @Override
+                public void characters(char[] characters, int start, int length)
+                {
+                    String value = new String(characters, start, length).trim();
+                    if (!value.isEmpty() && element.endsWith("_map"))
+                        maps.put(value, element);
+                }
+
+                @Override
+                public void endElement(String namespace, String lName, String gName)
+                {
+                    element = "";
+                }
+            });
+        } catch (Exception e) {
+            System.err.println("Scene \"" + scene + "\" parsing failed");
+            e.printStackTrace();
+        }
+
+        return maps;
+    }
+
+    // Compression format by material map usage
+    private static DdsImage.Format getFormat(String path, String map)
+    {
+        switch (map) {
+            case "normal_map":
+                return DdsImage.Format.BC5;
+            case "metalness_map":
+            case "roughness_map":
+            case "ambient_occlusion_map":
+                return DdsImage.Format.BC4;
+            case "albedo_map":
+                return hasTransparency(path) ? DdsImage.Format.BC3 : DdsImage.Format.BC1;
+            default:
+                return DdsImage.Format.BC1;
+        }
+    }
+
+    private static boolean hasTransparency(String path)
+    {
+        IntBuffer width = BufferUtils.createIntBuffer(1);
+        IntBuffer height = BufferUtils.createIntBuffer(1);
+        IntBuffer channels = BufferUtils.createIntBuffer(1);
+
+        ByteBuffer data = stbi_load(path, width, height, channels, 4);
+        if (data == null)
+            return false;
+
+        boolean transparent = false;
+        for (int i = 3; i < data.remaining(); i += 4)
+            if (data.get(i) != (byte) 0xFF) {
+                transparent = true;
+                break;
+            }
+
+        stbi_image_free(data);
+        return transparent;
+    }
+
+    // 2x2 box filter, normal map vectors are renormalized
+    private static byte[] downsample(byte[] rgba, int width, int height, boolean normalMap)
+    {
+        int halfWidth = Math.max(1, width / 2);
+        int halfHeight = Math.max(1, height / 2);
+        byte[] result = new byte[halfWidth * halfHeight * 4];
+        float[] sum = new float[4];
+
+        for (int y = 0; y < halfHeight; y++)
+            for (int x = 0; x < halfWidth; x++) {
+                Arrays.fill(sum, 0.0f);
+
+                for (int dy = 0; dy < 2; dy++)
+                    for (int dx = 0; dx < 2; dx++) {
+                        int source = (Math.min(y * 2 + dy, height - 1) * width + Math.min(x * 2 + dx, width - 1)) * 4;
+                        for (int c = 0; c < 4; c++)
+                            sum[c] += (rgba[source + c] & 0xFF) / 4.0f;
+                    }
+
+                if (normalMap) {
+                    float nx = sum[0] / 127.5f - 1.0f, ny = sum[1] / 127.5f - 1.0f, nz = sum[2] / 127.5f - 1.0f;
+                    float length = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+                    if (length > 0.0f) {
+                        sum[0] = (nx / length + 1.0f) * 127.5f;
+                        sum[1] = (ny / length + 1.0f) * 127.5f;
+                        sum[2] = (nz / length + 1.0f) * 127.5f;
+                    }
+                }
+
+                for (int c = 0; c < 4; c++)
+                    result[(y * halfWidth + x) * 4 + c] = (byte) Math.min(Math.round(sum[c]), 255);
+            }
+
+        return result;
+    }
+
+    // Data is written to temporary file first, so interrupted cooking never leaves broken texture
+    private static void write(ByteBuffer data, File file) throws IOException
+    {
+        File temporary = new File(file.getPath() + ".tmp");
+
+        try (RandomAccessFile output = new RandomAccessFile(temporary, "rw");
+             FileChannel channel = output.getChannel()) {
+            output.setLength(0);
+            channel.write(data, 0);
+        }
+
+        if (!file.delete() && file.exists() || !temporary.renameTo(file)) {
+            temporary.delete();
+            throw new IOException("Can't rename \"" + temporary + "\"");
+        }
+    }
+}
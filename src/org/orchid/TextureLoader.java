@@ -0,0 +1,309 @@
+package org.orchid;
+
+import org.lwjgl.BufferUtils;
+import org.lwjgl.system.MemoryUtil;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.lwjgl.opengl.GL11.*;
+import static org.lwjgl.opengl.GL12.GL_TEXTURE_BASE_LEVEL;
+import static org.lwjgl.opengl.GL12.GL_TEXTURE_MAX_LEVEL;
+import static org.lwjgl.opengl.GL13.glCompressedTexImage2D;
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL21.GL_PIXEL_UNPACK_BUFFER;
+import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.stb.STBImage.stbi_failure_reason;
+import static org.lwjgl.stb.STBImage.stbi_image_free;
+import static org.lwjgl.stb.STBImage.stbi_load;
+
+/**
+ * Asynchronous texture loader - images are decoded by worker threads and uploaded by the GL thread
+ * <p>
+ * Decoded images are uploaded through a pixel unpack buffer, the number of uploads per frame is limited by
+ * "texture_upload_budget" configuration property (milliseconds). Worker count is set by "texture_loader_threads"
+ * property (number of processors by default).
+ * <p>
+ * Cooked block compressed files are memory mapped by workers and uploaded with their mip chains as they are.
+ */
+public class TextureLoader
+{
+    private static ExecutorService workers = null;
+    private static ConcurrentLinkedQueue<Request> decoded = new ConcurrentLinkedQueue<>();
+    private static AtomicInteger pending = new AtomicInteger();
+
+    // Textures deleted before their images arrived (by texture identifier)
+    private static Set<Integer> cancelled = new HashSet<>();
+
+    private static int pixelBuffer = 0;
+    private static long pixelBufferSize = 0;
+    private static long uploadBudget = 2000000L;
+
+    // Decoding job and its result
+    private static class Request
+    {
+        int texture;
+        String path;
+        int channels;
+
+        ByteBuffer data;
+        int width;
+        int height;
+
+        // Cooked image, data is not used then
+        DdsImage compressed;
+    }
+
+    /**
+     * Creates worker threads (should be called from GL thread after context creation)
+     */
+    static void init()
+    {
+        int threads = Runtime.getRuntime().availableProcessors();
+        if (Configuration.getProperty("texture_loader_threads") != null)
+            threads = Integer.parseInt(Configuration.getProperty("texture_loader_threads"));
+        if (Configuration.getProperty("texture_upload_budget") != null)
+            uploadBudget = (long) (Float.parseFloat(Configuration.getProperty("texture_upload_budget")) * 1000000L);
+
+        workers = Executors.newFixedThreadPool(Math.max(threads, 1), runnable -> {
+            Thread thread = new Thread(runnable, "Texture loader");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        pixelBuffer = glGenBuffers();
+    }
+
+    /**
+     * Queues image decoding, decoded image replaces contents of the texture during one of the next updates
+     *
+     * @param texture  texture identifier
+     * @param path     path to image file
+     * @param channels number of image channels
+     */
+    static void load(int texture, String path, int channels)
+    {
+        Request request = new Request();
+        request.texture = texture;
+        request.path = path;
+        request.channels = channels;
+
+        pending.incrementAndGet();
+        cancelled.remove(texture);
+        workers.execute(() -> decode(request));
+    }
+
+    /**
+     * Drops queued image of the texture (texture is going to be deleted)
+     *
+     * @param texture texture identifier
+     */
+    static void cancel(int texture)
+    {
+        cancelled.add(texture);
+    }
+
+    /**
+     * Number of textures which are not uploaded yet
+     *
+     * @return pending textures count
+     */
+    public static int getPendingCount()
+    {
+        return pending.get();
+    }
+
+    /**
+     * Uploads decoded images until frame upload budget is exceeded (should be called once per frame)
+     */
+    static void update()
+    {
+        long start = System.nanoTime();
+
+        // At least one image is uploaded per frame so large images can't block loading forever
+        Request request;
+        while ((request = decoded.poll()) != null) {
+            upload(request);
+            if (System.nanoTime() - start > uploadBudget)
+                break;
+        }
+    }
+
+    /**
+     * Blocks until all queued textures are uploaded
+     */
+    static void finish()
+    {
+        while (pending.get() > 0) {
+            Request request = decoded.poll();
+            if (request != null)
+                upload(request);
+            else
+                Thread.yield();
+        }
+    }
+
+    /**
+     * Stops worker threads and releases pixel buffer
+     */
+    static void remove()
+    {
+        workers.shutdownNow();
+        workers = null;
+
+        Request request;
+        while ((request = decoded.poll()) != null)
+            if (request.data != null)
+                stbi_image_free(request.data);
+
+        glDeleteBuffers(pixelBuffer);
+        pixelBuffer = 0;
+        pixelBufferSize = 0;
+        cancelled.clear();
+        pending.set(0);
+    }
+
+    // Worker thread part
+    private static void decode(Request request)
+    {
+        File cooked = new File(Texture.getCookedPath(request.path));
+        if (cooked.exists()) {
+            try (FileChannel channel = FileChannel.open(cooked.toPath())) {
+                request.compressed = new DdsImage(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+                decoded.add(request);
+                return;
+            } catch (Exception e) {
+                System.err.println("Cooked texture \"" + cooked + "\" loading failed, loading source image");
+                e.printStackTrace();
+            }
+        }
+
+        IntBuffer width = BufferUtils.createIntBuffer(1);
+        IntBuffer height = BufferUtils.createIntBuffer(1);
+        IntBuffer channels = BufferUtils.createIntBuffer(1);
+
+        try {
+            request.data = stbi_load(request.path, width, height, channels, request.channels);
+            if (request.data == null)
+                System.err.println("Texture \"" + request.path + "\" loading failed: " + stbi_failure_reason());
+        } catch (Exception e) {
+            System.err.println("Texture \"" + request.path + "\" loading failed");
+            e.printStackTrace();
+        }
+
+        request.width = width.get(0);
+        request.height = height.get(0);
+        decoded.add(request);
+    }
+
+    // GL thread part - copies image into pixel buffer and respecifies texture storage from it
+    private static void upload(Request request)
+    {
+        pending.decrementAndGet();
+
+        if (request.data == null && request.compressed == null)
+            return;
+
+        if (cancelled.remove(request.texture)) {
+            if (request.data != null)
+                stbi_image_free(request.data);
+            return;
+        }
+
+        if (request.compressed != null) {
+            // Streamed textures start with their small levels only
+            int firstLevel = TextureStreamer.isEnabled() ? TextureStreamer.add(request.texture, request.compressed) : 0;
+            uploadCompressed(request.texture, request.compressed, firstLevel, firstLevel);
+            return;
+        }
+
+        fillPixelBuffer(request.data);
+        stbi_image_free(request.data);
+        request.data = null;
+
+        int texture = Texture.beginUpdate(request.texture);
+        glBindTexture(GL_TEXTURE_2D, texture);
+        glPixelStorei(GL_UNPACK_ALIGNMENT, 1);
+        glTexImage2D(GL_TEXTURE_2D, 0, Texture.getInternalFormat(request.channels), request.width, request.height,
+                0, Texture.getFormat(request.channels), GL_UNSIGNED_BYTE, 0);
+        glPixelStorei(GL_UNPACK_ALIGNMENT, 4);
+        glGenerateMipmap(GL_TEXTURE_2D);
+        glBindTexture(GL_TEXTURE_2D, 0);
+
+        glBindBuffer(GL_PIXEL_UNPACK_BUFFER, 0);
+
+        int levels = 32 - Integer.numberOfLeadingZeros(Math.max(request.width, request.height));
+        Texture.endUpdate(request.texture, texture, Texture.getInternalFormat(request.channels), request.width,
+                request.height, levels);
+
+        // Full mip chain takes one third more than the top level
+        TextureStreamer.addFixed(request.texture, (long) request.width * request.height * request.channels * 4 / 3);
+    }
+
+    /**
+     * Uploads mip levels of cooked image starting from the given one, which becomes GL level 0 (should be called from
+     * GL thread)
+     *
+     * @param texture            texture identifier
+     * @param image              cooked image
+     * @param firstLevel         the first image level to upload
+     * @param previousFirstLevel the first image level of current texture contents (levels it leaves are released)
+     */
+    static void uploadCompressed(int texture, DdsImage image, int firstLevel, int previousFirstLevel)
+    {
+        ByteBuffer data = image.getData();
+        data.position(image.getLevelOffset(firstLevel));
+        fillPixelBuffer(data);
+
+        int levels = image.getLevelCount() - firstLevel;
+        int offset = image.getLevelOffset(firstLevel);
+
+        int name = Texture.beginUpdate(texture);
+        glBindTexture(GL_TEXTURE_2D, name);
+        for (int level = 0; level < levels; level++)
+            glCompressedTexImage2D(GL_TEXTURE_2D, level, image.getFormat().internalFormat,
+                    image.getLevelWidth(firstLevel + level), image.getLevelHeight(firstLevel + level), 0,
+                    image.getLevelSize(firstLevel + level), image.getLevelOffset(firstLevel + level) - offset);
+
+        // Incomplete mip chain would make texture incomplete, so sampling is limited to the uploaded levels
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_BASE_LEVEL, 0);
+        glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAX_LEVEL, levels - 1);
+
+        glBindBuffer(GL_PIXEL_UNPACK_BUFFER, 0);
+
+        // Levels left after dropping resolution are released by empty images
+        for (int level = levels; level < image.getLevelCount() - previousFirstLevel; level++)
+            glTexImage2D(GL_TEXTURE_2D, level, GL_RGBA8, 0, 0, 0, GL_RGBA, GL_UNSIGNED_BYTE, (ByteBuffer) null);
+
+        glBindTexture(GL_TEXTURE_2D, 0);
+
+        Texture.endUpdate(texture, name, image.getFormat().internalFormat, image.getLevelWidth(firstLevel),
+                image.getLevelHeight(firstLevel), levels);
+    }
+
+    // Copies data into pixel buffer and leaves it bound
+    private static void fillPixelBuffer(ByteBuffer data)
+    {
+        long size = data.remaining();
+
+        glBindBuffer(GL_PIXEL_UNPACK_BUFFER, pixelBuffer);
+
+        // Orphaning lets driver give new storage while previous upload may still be in progress
+        if (size > pixelBufferSize)
+            pixelBufferSize = size;
+        glBufferData(GL_PIXEL_UNPACK_BUFFER, pixelBufferSize, GL_STREAM_DRAW);
+
+        ByteBuffer mapped = glMapBufferRange(GL_PIXEL_UNPACK_BUFFER, 0, size,
+                GL_MAP_WRITE_BIT | GL_MAP_INVALIDATE_BUFFER_BIT);
+        MemoryUtil.memCopy(data, mapped);
+        glUnmapBuffer(GL_PIXEL_UNPACK_BUFFER);
+    }
+}
@@ -0,0 +1,284 @@
+package org.orchid;
+
+import java.util.Arrays;
+
+/**
+ * Texture mip streamer - keeps resident only the mip levels visible meshes need, within a memory budget
+ * <p>
+ * Cooked (block compressed) textures start with their small tail levels only. Every frame visible meshes request
+ * resolution of their material maps by projected size, the streamer raises resident level of requested textures and
+ * evicts mips of the least recently needed ones when "texture_budget" (megabytes) is exceeded. Levels not larger than
+ * "texture_stream_base_size" pixels are always resident. Uncompressed textures are not streamed, but their memory is
+ * taken from the budget. Streaming is disabled if budget is not set.
+ * <p>
+ * Resident top level is always GL level 0, so streaming is invisible for shaders and materials.
+ */
+public class TextureStreamer
+{
+    private static long budget = 0;
+    private static int baseSize = 64;
+    private static long uploadBudget = 2000000L;
+    private static int frame = 0;
+
+    // Streamed textures are indexed by texture identifier
+    private static Entry[] entries = new Entry[64];
+    private static Entry[] order = new Entry[0];
+    private static int entryCount = 0;
+
+    // Memory of textures which are not streamed (indexed by texture identifier)
+    private static long[] fixedSizes = new long[64];
+    private static long fixedMemory = 0;
+    private static long streamedMemory = 0;
+
+    private static class Entry
+    {
+        int id;
+        DdsImage image;
+        int tailLevel;
+
+        // Levels are DDS mip indices, smaller level is higher resolution
+        int resident;
+        int wanted;
+        int target;
+        int lastNeeded = -1;
+    }
+
+    /**
+     * Reads streaming configuration
+     */
+    static void init()
+    {
+        if (Configuration.getProperty("texture_budget") != null)
+            budget = (long) (Float.parseFloat(Configuration.getProperty("texture_budget")) * 1024 * 1024);
+        if (Configuration.getProperty("texture_stream_base_size") != null)
+            baseSize = Integer.parseInt(Configuration.getProperty("texture_stream_base_size"));
+        if (Configuration.getProperty("texture_upload_budget") != null)
+            uploadBudget = (long) (Float.parseFloat(Configuration.getProperty("texture_upload_budget")) * 1000000L);
+    }
+
+    /**
+     * Checks whether streaming is enabled
+     *
+     * @return true if budget is set
+     */
+    public static boolean isEnabled()
+    {
+        return budget > 0;
+    }
+
+    /**
+     * Starts streaming of cooked texture
+     *
+     * @param id    texture identifier
+     * @param image cooked image
+     * @return the first mip level to upload
+     */
+    static int add(int id, DdsImage image)
+    {
+        Entry entry = new Entry();
+        entry.id = id;
+        entry.image = image;
+
+        entry.tailLevel = image.getLevelCount() - 1;
+        while (entry.tailLevel > 0 && Math.max(image.getLevelWidth(entry.tailLevel - 1),
+                image.getLevelHeight(entry.tailLevel - 1)) <= baseSize)
+            entry.tailLevel--;
+
+        entry.resident = entry.wanted = entry.target = entry.tailLevel;
+        streamedMemory += getMemory(entry, entry.resident);
+
+        if (id >= entries.length)
+            entries = Arrays.copyOf(entries, Math.max(entries.length * 2, id + 1));
+        entries[id] = entry;
+        entryCount++;
+
+        return entry.resident;
+    }
+
+    /**
+     * Accounts memory of texture which is not streamed
+     *
+     * @param id   texture identifier
+     * @param size texture size in bytes
+     */
+    static void addFixed(int id, long size)
+    {
+        if (id >= fixedSizes.length)
+            fixedSizes = Arrays.copyOf(fixedSizes, Math.max(fixedSizes.length * 2, id + 1));
+
+        fixedMemory += size - fixedSizes[id];
+        fixedSizes[id] = size;
+    }
+
+    /**
+     * Stops streaming of the texture (texture is going to be deleted)
+     *
+     * @param id texture identifier
+     */
+    static void remove(int id)
+    {
+        if (id < fixedSizes.length) {
+            fixedMemory -= fixedSizes[id];
+            fixedSizes[id] = 0;
+        }
+
+        if (id < entries.length && entries[id] != null) {
+            streamedMemory -= getMemory(entries[id], entries[id].resident);
+            entries[id] = null;
+            entryCount--;
+        }
+    }
+
+    /**
+     * Requests resolution of material maps
+     *
+     * @param material material of visible mesh
+     * @param pixels   projected mesh size in pixels
+     */
+    static void request(Material material, float pixels)
+    {
+        request(material.getAlbedoMap(), pixels);
+        request(material.getMetalnessMap(), pixels);
+        request(material.getRoughnessMap(), pixels);
+        request(material.getNormalMap(), pixels);
+        request(material.getEmissionMap(), pixels);
+        request(material.getAmbientOcclusionMap(), pixels);
+    }
+
+    // Mesh UVs are assumed to cover texture once over mesh bounds, so texel density matches when texture size
+    // equals projected mesh size
+    private static void request(Texture texture, float pixels)
+    {
+        if (texture == null || texture.getId() >= entries.length || entries[texture.getId()] == null)
+            return;
+
+        Entry entry = entries[texture.getId()];
+        DdsImage image = entry.image;
+
+        int level = 0;
+        while (level < entry.tailLevel
+                && Math.max(image.getLevelWidth(level + 1), image.getLevelHeight(level + 1)) >= pixels)
+            level++;
+
+        if (entry.lastNeeded != frame)
+            entry.wanted = level;
+        else
+            entry.wanted = Math.min(entry.wanted, level);
+        entry.lastNeeded = frame;
+    }
+
+    /**
+     * Applies requests of the previous frame - evicts mips over budget and uploads wanted ones (should be called once
+     * per frame from GL thread)
+     */
+    static void update()
+    {
+        if (!isEnabled())
+            return;
+
+        if (order.length < entryCount)
+            order = new Entry[entries.length];
+
+        int count = 0;
+        long total = fixedMemory;
+        for (Entry entry : entries) {
+            if (entry == null)
+                continue;
+
+            // Resident mips of textures which are not needed are kept until memory is needed
+            entry.target = entry.lastNeeded == frame ? entry.wanted : entry.resident;
+            total += getMemory(entry, entry.target);
+            order[count++] = entry;
+        }
+
+        sortByLastNeeded(count);
+
+        if (total > budget) {
+            // Mips which are not wanted are evicted first, then wanted ones, one level per texture in a round
+            for (int pass = 0; pass < 2 && total > budget; pass++) {
+                boolean evicted = true;
+                while (total > budget && evicted) {
+                    evicted = false;
+                    for (int i = 0; i < count && total > budget; i++) {
+                        Entry entry = order[i];
+                        int limit = pass == 0 && entry.lastNeeded == frame ? entry.wanted : entry.tailLevel;
+                        if (entry.target >= limit)
+                            continue;
+
+                        total -= entry.image.getLevelSize(entry.target);
+                        entry.target++;
+                        evicted = true;
+                    }
+                }
+            }
+        }
+
+        // Evictions free memory and are cheap, so they are applied right away
+        for (int i = 0; i < count; i++)
+            if (order[i].target > order[i].resident)
+                setResident(order[i]);
+
+        // Most recently needed textures are raised first, at least one per frame
+        long start = System.nanoTime();
+        for (int i = count - 1; i >= 0; i--) {
+            if (order[i].target >= order[i].resident)
+                continue;
+
+            setResident(order[i]);
+            if (System.nanoTime() - start > uploadBudget)
+                break;
+        }
+
+        frame++;
+    }
+
+    /**
+     * Memory used by textures
+     *
+     * @return used memory in bytes
+     */
+    public static long getMemoryUsage()
+    {
+        return fixedMemory + streamedMemory;
+    }
+
+    /**
+     * Number of streamed textures
+     *
+     * @return streamed textures count
+     */
+    public static int getStreamedCount()
+    {
+        return entryCount;
+    }
+
+    private static void setResident(Entry entry)
+    {
+        streamedMemory += getMemory(entry, entry.target) - getMemory(entry, entry.resident);
+        TextureLoader.uploadCompressed(entry.id, entry.image, entry.target, entry.resident);
+        entry.resident = entry.target;
+    }
+
+    // Memory of mip levels from the given one to the smallest one
+    private static long getMemory(Entry entry, int level)
+    {
+        long memory = 0;
+        for (int i = level; i < entry.image.getLevelCount(); i++)
+            memory += entry.image.getLevelSize(i);
+        return memory;
+    }
+
+    // Insertion sort by last needed frame (count is small and array is almost sorted between frames)
+    private static void sortByLastNeeded(int count)
+    {
+        for (int i = 1; i < count; i++) {
+            Entry entry = order[i];
+            int j = i - 1;
+            while (j >= 0 && order[j].lastNeeded > entry.lastNeeded) {
+                order[j + 1] = order[j];
+                j--;
+            }
+            order[j + 1] = entry;
+        }
+    }
+}
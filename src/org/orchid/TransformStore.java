@@ -0,0 +1,539 @@
+package org.orchid;
+
+import org.joml.Matrix4f;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Transform store - data oriented storage of all node transforms
+ * <p>
+ * Local position/rotation/scale and world matrices are kept in flat float arrays ordered parent-before-child
+ * (depth first, so every subtree is a contiguous range). World matrices are updated by a single linear pass
+ * which only recalculates transforms whose local values or parents changed. Nodes are thin handles holding
+ * their index in the store.
+ */
+public class TransformStore
+{
+    private static final int LOCAL_STRIDE = 9;
+    private static final int WORLD_STRIDE = 16;
+
+    private static float[] local = new float[0];
+    private static float[] world = new float[0];
+    private static int[] parents = new int[0];
+    private static int[] subtreeSizes = new int[0];
+    private static int[] stamps = new int[0];
+    private static boolean[] dirty = new boolean[0];
+    private static boolean[] changed = new boolean[0];
+    private static Node[] handles = new Node[0];
+
+    private static int count = 0;
+    private static int capacity = 0;
+
+    // Whether some local values changed (can be set concurrently by parallel node update) and whether slots
+    // order has to be rebuilt
+    private static volatile boolean outdated = false;
+    private static boolean hierarchyDirty = false;
+
+    // Set while node logic runs on fork join workers, world matrices are not refreshed then
+    private static volatile boolean nodePass = false;
+
+    // Incremented by every update pass, world matrix stamp tells at which pass it changed last time
+    private static int pass = 0;
+
+    // Incremented by every order rebuild (transform indices of nodes change)
+    private static int orderVersion = 0;
+
+    private static int[] stack = new int[64];
+
+    /**
+     * Allocates transform for a new node (identity, without parent)
+     *
+     * @param node node handle
+     * @return transform index
+     */
+    static int allocate(Node node)
+    {
+        if (count == capacity)
+            grow(Math.max(capacity * 2, 64));
+
+        int index = count++;
+
+        Arrays.fill(local, index * LOCAL_STRIDE, index * LOCAL_STRIDE + LOCAL_STRIDE, 0.0f);
+        local[index * LOCAL_STRIDE + 6] = 1.0f;
+        local[index * LOCAL_STRIDE + 7] = 1.0f;
+        local[index * LOCAL_STRIDE + 8] = 1.0f;
+
+        parents[index] = -1;
+        subtreeSizes[index] = 1;
+        stamps[index] = pass;
+        changed[index] = false;
+        handles[index] = node;
+
+        markDirty(index);
+
+        // New transform is appended after all subtrees, so order stays valid
+        return index;
+    }
+
+    /**
+     * Releases node transform, the slot is reclaimed during next order rebuild
+     *
+     * @param index transform index
+     */
+    static void free(int index)
+    {
+        handles[index] = null;
+        parents[index] = -1;
+        hierarchyDirty = true;
+    }
+
+    /**
+     * Changes transform parent
+     *
+     * @param index  transform index
+     * @param parent parent transform index (-1 for roots)
+     */
+    static void setParent(int index, int parent)
+    {
+        parents[index] = parent;
+        hierarchyDirty = true;
+        markDirty(index);
+    }
+
+    /**
+     * Sets one of local transform components
+     *
+     * @param index     transform index
+     * @param component 0 for position, 1 for rotation, 2 for scale
+     * @param x         x value
+     * @param y         y value
+     * @param z         z value
+     */
+    static void setLocal(int index, int component, float x, float y, float z)
+    {
+        int offset = index * LOCAL_STRIDE + component * 3;
+        local[offset] = x;
+        local[offset + 1] = y;
+        local[offset + 2] = z;
+        markDirty(index);
+    }
+
+    /**
+     * Local transform component value
+     *
+     * @param index     transform index
+     * @param component 0 for position, 1 for rotation, 2 for scale
+     * @param axis      0 for x, 1 for y, 2 for z
+     * @return component value
+     */
+    static float getLocal(int index, int component, int axis)
+    {
+        return local[index * LOCAL_STRIDE + component * 3 + axis];
+    }
+
+    /**
+     * Copies world matrix of the transform (store should be updated)
+     *
+     * @param index transform index
+     * @param dest  destination matrix
+     * @return destination matrix
+     */
+    static Matrix4f getWorld(int index, Matrix4f dest)
+    {
+        return dest.set(world, index * WORLD_STRIDE);
+    }
+
+    /**
+     * World matrix element (store should be updated)
+     *
+     * @param index   transform index
+     * @param element column-major element index
+     * @return element value
+     */
+    static float getWorld(int index, int element)
+    {
+        return world[index * WORLD_STRIDE + element];
+    }
+
+    /**
+     * Number of the update pass during which world matrix of the transform changed last time
+     *
+     * @param index transform index
+     * @return update stamp
+     */
+    static int getStamp(int index)
+    {
+        return stamps[index];
+    }
+
+    /**
+     * Number of transforms in the subtree rooted at the transform (order should be valid)
+     *
+     * @param index transform index
+     * @return subtree size including the transform itself
+     */
+    static int getSubtreeSize(int index)
+    {
+        return subtreeSizes[index];
+    }
+
+    /**
+     * Rebuilds transforms order if hierarchy changed, so subtree sizes are valid
+     */
+    static void validateOrder()
+    {
+        if (hierarchyDirty)
+            rebuildOrder();
+    }
+
+    /**
+     * Whether some transforms have to be recalculated
+     *
+     * @return true if update is required
+     */
+    public static boolean isOutdated()
+    {
+        return outdated || hierarchyDirty;
+    }
+
+    /**
+     * Update pass counter (changes whenever some world matrices could change)
+     *
+     * @return update pass
+     */
+    static int getPass()
+    {
+        return pass;
+    }
+
+    /**
+     * Order rebuild counter (changes whenever transform indices of nodes change)
+     *
+     * @return order version
+     */
+    static int getOrderVersion()
+    {
+        return orderVersion;
+    }
+
+    /**
+     * World matrices of all transforms (column major, 16 floats per transform, array is replaced when the store
+     * grows or is reordered)
+     *
+     * @return world matrices array
+     */
+    static float[] getWorldData()
+    {
+        return world;
+    }
+
+    /**
+     * Number of stored transforms
+     *
+     * @return transforms count
+     */
+    public static int getCount()
+    {
+        return count;
+    }
+
+    /**
+     * Marks start or end of the parallel node pass - while it runs, world matrices keep values of the last completed
+     * update, so world getters called from node logic don't update shared arrays concurrently
+     *
+     * @param running whether parallel node pass runs
+     */
+    static void setNodePass(boolean running)
+    {
+        nodePass = running;
+    }
+
+    /**
+     * Recalculates world matrices of all changed transforms and their descendants in a single linear pass (does
+     * nothing during the parallel node pass)
+     */
+    public static void update()
+    {
+        if (nodePass || !isOutdated())
+            return;
+
+        validateOrder();
+
+        outdated = false;
+        pass++;
+        updateRange(0, count, true);
+    }
+
+    /**
+     * Recalculates world matrices like update(), but subtrees larger than the threshold are processed by
+     * separate fork join tasks (results are identical to the serial pass)
+     *
+     * @param pool      fork join pool
+     * @param threshold minimal subtree size processed by a separate task
+     */
+    public static void update(ForkJoinPool pool, int threshold)
+    {
+        if (!isOutdated())
+            return;
+
+        validateOrder();
+
+        outdated = false;
+        pass++;
+
+        if (count < threshold) {
+            updateRange(0, count, true);
+            return;
+        }
+
+        pool.invoke(new RangeTask(0, count, Math.max(threshold, 1)));
+
+        // Spatial index is not thread safe so changed nodes are reported after the join
+        for (int i = 0; i < count; i++) {
+            Node handle = handles[i];
+            if (changed[i] && handle != null && handle.spatialIndex != null)
+                handle.spatialIndex.touch(handle);
+        }
+    }
+
+    // Updates contiguous range of transforms, parents of the range transforms should be already updated
+    static void updateRange(int begin, int end, boolean touch)
+    {
+        for (int i = begin; i < end; i++) {
+            if (!updateTransform(i) || !touch)
+                continue;
+
+            Node handle = handles[i];
+            if (handle != null && handle.spatialIndex != null)
+                handle.spatialIndex.touch(handle);
+        }
+    }
+
+    // Recalculates single world matrix if needed, returns true if it changed
+    private static boolean updateTransform(int index)
+    {
+        int parent = parents[index];
+
+        if (!dirty[index] && (parent == -1 || !changed[parent])) {
+            changed[index] = false;
+            return false;
+        }
+
+        compose(index, parent);
+
+        dirty[index] = false;
+        changed[index] = true;
+        stamps[index] = pass;
+        return true;
+    }
+
+    // Updates sequence of sibling subtrees - large subtrees are forked after their root is updated, small
+    // ones are updated in place
+    private static class RangeTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final int begin;
+        private final int end;
+        private final int threshold;
+
+        RangeTask(int begin, int end, int threshold)
+        {
+            this.begin = begin;
+            this.end = end;
+            this.threshold = threshold;
+        }
+
+        @Override
+        protected void compute()
+        {
+            List<RangeTask> tasks = null;
+
+            for (int root = begin; root < end; root += subtreeSizes[root]) {
+                int size = subtreeSizes[root];
+
+                if (size < threshold) {
+                    updateRange(root, root + size, false);
+                    continue;
+                }
+
+                updateTransform(root);
+
+                if (tasks == null)
+                    tasks = new ArrayList<>();
+                tasks.add(new RangeTask(root + 1, root + size, threshold));
+            }
+
+            if (tasks != null)
+                invokeAll(tasks);
+        }
+    }
+
+    // World = parent world * translation * rotation (XYZ euler) * scale, all matrices are affine
+    private static void compose(int index, int parent)
+    {
+        int l = index * LOCAL_STRIDE;
+
+        float sx = (float) Math.sin(local[l + 3]), cx = (float) Math.cos(local[l + 3]);
+        float sy = (float) Math.sin(local[l + 4]), cy = (float) Math.cos(local[l + 4]);
+        float sz = (float) Math.sin(local[l + 5]), cz = (float) Math.cos(local[l + 5]);
+
+        float scaleX = local[l + 6], scaleY = local[l + 7], scaleZ = local[l + 8];
+
+        // Local matrix columns
+        float m00 = cy * cz * scaleX;
+        float m01 = (sx * sy * cz + cx * sz) * scaleX;
+        float m02 = (sx * sz - cx * sy * cz) * scaleX;
+        float m10 = -cy * sz * scaleY;
+        float m11 = (cx * cz - sx * sy * sz) * scaleY;
+        float m12 = (cx * sy * sz + sx * cz) * scaleY;
+        float m20 = sy * scaleZ;
+        float m21 = -sx * cy * scaleZ;
+        float m22 = cx * cy * scaleZ;
+        float m30 = local[l], m31 = local[l + 1], m32 = local[l + 2];
+
+        int w = index * WORLD_STRIDE;
+
+        if (parent == -1) {
+            world[w] = m00;
+            world[w + 1] = m01;
+            world[w + 2] = m02;
+            world[w + 3] = 0.0f;
+            world[w + 4] = m10;
+            world[w + 5] = m11;
+            world[w + 6] = m12;
+            world[w + 7] = 0.0f;
+            world[w + 8] = m20;
+            world[w + 9] = m21;
+            world[w + 10] = m22;
+            world[w + 11] = 0.0f;
+            world[w + 12] = m30;
+            world[w + 13] = m31;
+            world[w + 14] = m32;
+            world[w + 15] = 1.0f;
+            return;
+        }
+
+        int p = parent * WORLD_STRIDE;
+        float p00 = world[p], p01 = world[p + 1], p02 = world[p + 2];
+        float p10 = world[p + 4], p11 = world[p + 5], p12 = world[p + 6];
+        float p20 = world[p + 8], p21 = world[p + 9], p22 = world[p + 10];
+        float p30 = world[p + 12], p31 = world[p + 13], p32 = world[p + 14];
+
+        world[w] = p00 * m00 + p10 * m01 + p20 * m02;
+        world[w + 1] = p01 * m00 + p11 * m01 + p21 * m02;
+        world[w + 2] = p02 * m00 + p12 * m01 + p22 * m02;
+        world[w + 3] = 0.0f;
+        world[w + 4] = p00 * m10 + p10 * m11 + p20 * m12;
+        world[w + 5] = p01 * m10 + p11 * m11 + p21 * m12;
+        world[w + 6] = p02 * m10 + p12 * m11 + p22 * m12;
+        world[w + 7] = 0.0f;
+        world[w + 8] = p00 * m20 + p10 * m21 + p20 * m22;
+        world[w + 9] = p01 * m20 + p11 * m21 + p21 * m22;
+        world[w + 10] = p02 * m20 + p12 * m21 + p22 * m22;
+        world[w + 11] = 0.0f;
+        world[w + 12] = p00 * m30 + p10 * m31 + p20 * m32 + p30;
+        world[w + 13] = p01 * m30 + p11 * m31 + p21 * m32 + p31;
+        world[w + 14] = p02 * m30 + p12 * m31 + p22 * m32 + p32;
+        world[w + 15] = 1.0f;
+    }
+
+    private static void markDirty(int index)
+    {
+        dirty[index] = true;
+        outdated = true;
+    }
+
+    // Reorders transforms depth first (parent-before-child) and drops freed slots
+    private static void rebuildOrder()
+    {
+        float[] newLocal = new float[capacity * LOCAL_STRIDE];
+        float[] newWorld = new float[capacity * WORLD_STRIDE];
+        int[] newParents = new int[capacity];
+        int[] newSubtreeSizes = new int[capacity];
+        int[] newStamps = new int[capacity];
+        boolean[] newDirty = new boolean[capacity];
+        Node[] newHandles = new Node[capacity];
+
+        int newCount = 0;
+
+        for (int root = 0; root < count; root++) {
+            Node rootHandle = handles[root];
+            if (rootHandle == null || rootHandle.getParent() != null)
+                continue;
+
+            // Iterative depth first traversal of the root subtree
+            int top = 0;
+            stack[top++] = root;
+
+            while (top > 0) {
+                int old = stack[--top];
+
+                // Negative entries close subtrees and calculate their sizes
+                if (old < 0) {
+                    int first = -old - 1;
+                    newSubtreeSizes[first] = newCount - first;
+                    continue;
+                }
+
+                Node handle = handles[old];
+                int index = newCount++;
+
+                System.arraycopy(local, old * LOCAL_STRIDE, newLocal, index * LOCAL_STRIDE, LOCAL_STRIDE);
+                System.arraycopy(world, old * WORLD_STRIDE, newWorld, index * WORLD_STRIDE, WORLD_STRIDE);
+                newStamps[index] = stamps[old];
+                newDirty[index] = dirty[old];
+                newHandles[index] = handle;
+                newParents[index] = handle.getParent() == null ? -1 : handle.getParent().transform;
+
+                // Parent was already moved so its index is the new one
+                handle.transform = index;
+
+                if (top + handle.getNumChild() + 1 > stack.length)
+                    stack = Arrays.copyOf(stack, Math.max(stack.length * 2, top + handle.getNumChild() + 1));
+
+                stack[top++] = -index - 1;
+                for (int i = handle.getNumChild() - 1; i >= 0; i--)
+                    stack[top++] = handle.getChild(i).transform;
+            }
+        }
+
+        // Node unreachable from its root (parent which doesn't list it as a child) would keep a stale index
+        int live = 0;
+        for (int i = 0; i < count; i++)
+            if (handles[i] != null)
+                live++;
+        if (live != newCount)
+            System.err.println("Transform order lost " + (live - newCount) + " nodes unreachable from their roots");
+
+        local = newLocal;
+        world = newWorld;
+        parents = newParents;
+        subtreeSizes = newSubtreeSizes;
+        stamps = newStamps;
+        dirty = newDirty;
+        handles = newHandles;
+        changed = new boolean[capacity];
+
+        count = newCount;
+        hierarchyDirty = false;
+        orderVersion++;
+    }
+
+    private static void grow(int newCapacity)
+    {
+        local = Arrays.copyOf(local, newCapacity * LOCAL_STRIDE);
+        world = Arrays.copyOf(world, newCapacity * WORLD_STRIDE);
+        parents = Arrays.copyOf(parents, newCapacity);
+        subtreeSizes = Arrays.copyOf(subtreeSizes, newCapacity);
+        stamps = Arrays.copyOf(stamps, newCapacity);
+        dirty = Arrays.copyOf(dirty, newCapacity);
+        changed = Arrays.copyOf(changed, newCapacity);
+        handles = Arrays.copyOf(handles, newCapacity);
+        capacity = newCapacity;
+    }
+}
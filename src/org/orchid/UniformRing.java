@@ -0,0 +1,224 @@
+package org.orchid;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.lwjgl.opengl.GL11.glGetInteger;
+import static org.lwjgl.opengl.GL15.*;
+import static org.lwjgl.opengl.GL30.*;
+import static org.lwjgl.opengl.GL31.GL_UNIFORM_BUFFER;
+import static org.lwjgl.opengl.GL31.GL_UNIFORM_BUFFER_OFFSET_ALIGNMENT;
+import static org.lwjgl.opengl.GL32.*;
+import static org.lwjgl.opengl.GL43.GL_SHADER_STORAGE_BUFFER_OFFSET_ALIGNMENT;
+import static org.lwjgl.opengl.GL44.*;
+
+/**
+ * Persistently mapped ring buffer for per-frame uniform and storage data
+ * <p>
+ * Buffer is split into partitions (one per frame in flight), each partition is guarded by a fence so CPU never
+ * overwrites data GPU is still reading. Data is written directly into mapped memory and bound with
+ * glBindBufferRange.
+ * <p>
+ * When partition overflows the storage is replaced by a larger buffer, so a region is valid only until the next
+ * allocation - it should be bound before anything else is allocated. Data which is bound together should be
+ * allocated as one region and bound in slices (like {@link RenderQueue} instances and commands). Regions of
+ * the replaced storage never share offsets with the new ones, so binding them throws.
+ */
+public class UniformRing
+{
+    private static final int FRAMES = 3;
+    private static final int DEFAULT_PARTITION_SIZE = 4 * 1024 * 1024;
+    private static final long FENCE_TIMEOUT = 1000000000L;
+
+    private static int buffer = 0;
+    private static ByteBuffer mapped;
+    private static int partitionSize;
+    private static int alignment;
+
+    private static long[] fences = new long[FRAMES];
+    private static int frame = 0;
+    private static int head;
+    private static int tail;
+
+    // Offset of the first region allocated in current storage during this frame (earlier offsets are invalid)
+    private static int validFrom;
+
+    // Grown buffers can still be in use by frames in flight so they are deleted later
+    private static List<int[]> retiredBuffers = new ArrayList<>();
+    private static int frameCounter = 0;
+
+    /**
+     * Allocates ring buffer storage (GL context should be created)
+     */
+    static void init()
+    {
+        alignment = Math.max(glGetInteger(GL_UNIFORM_BUFFER_OFFSET_ALIGNMENT),
+                glGetInteger(GL_SHADER_STORAGE_BUFFER_OFFSET_ALIGNMENT));
+        allocateStorage(DEFAULT_PARTITION_SIZE);
+    }
+
+    /**
+     * Starts new frame - waits until GPU finishes reading the partition which is going to be reused
+     */
+    static void beginFrame()
+    {
+        frame = (frame + 1) % FRAMES;
+        frameCounter++;
+
+        if (fences[frame] != 0) {
+            while (true) {
+                int status = glClientWaitSync(fences[frame], GL_SYNC_FLUSH_COMMANDS_BIT, FENCE_TIMEOUT);
+                if (status == GL_ALREADY_SIGNALED || status == GL_CONDITION_SATISFIED)
+                    break;
+                if (status == GL_WAIT_FAILED) {
+                    System.err.println("Uniform ring fence wait failed");
+                    break;
+                }
+            }
+
+            glDeleteSync(fences[frame]);
+            fences[frame] = 0;
+        }
+
+        for (int i = retiredBuffers.size() - 1; i >= 0; i--) {
+            if (frameCounter - retiredBuffers.get(i)[1] > FRAMES) {
+                glDeleteBuffers(retiredBuffers.get(i)[0]);
+                retiredBuffers.remove(i);
+            }
+        }
+
+        head = frame * partitionSize;
+        tail = head + partitionSize;
+        validFrom = head;
+    }
+
+    /**
+     * Finishes frame - fences all commands which read current partition
+     */
+    static void endFrame()
+    {
+        fences[frame] = glFenceSync(GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+    }
+
+    /**
+     * Allocates aligned region of current frame partition (partition overflow replaces the buffer, so regions
+     * allocated earlier but not bound yet are lost - bind region before the next allocation, {@link #bind} throws
+     * otherwise)
+     *
+     * @param size region size in bytes
+     * @return byte offset of the region in the mapped buffer
+     */
+    public static int allocate(int size)
+    {
+        int offset = (head + alignment - 1) / alignment * alignment;
+
+        if (offset + size > tail) {
+            // Partition overflow - storage is reallocated with larger partitions. Space used by the frame so far is
+            // skipped, so regions of the old storage can't be mistaken for new ones
+            int used = head - frame * partitionSize;
+            int newSize = partitionSize * 2;
+            while (newSize < used + size + alignment)
+                newSize *= 2;
+
+            allocateStorage(newSize);
+            offset = (head + used + alignment - 1) / alignment * alignment;
+            validFrom = offset;
+        }
+
+        head = offset + size;
+        return offset;
+    }
+
+    /**
+     * Offset alignment of bound regions (slices of one region should start at its multiples)
+     *
+     * @return alignment in bytes
+     */
+    public static int getAlignment()
+    {
+        return alignment;
+    }
+
+    /**
+     * Mapped buffer memory (should be written with absolute puts at allocated offsets)
+     *
+     * @return mapped buffer
+     */
+    public static ByteBuffer getMapped()
+    {
+        return mapped;
+    }
+
+    /**
+     * GL buffer object name
+     *
+     * @return buffer name
+     */
+    public static int getBuffer()
+    {
+        return buffer;
+    }
+
+    /**
+     * Binds region of the ring buffer to indexed binding point (region should be allocated during current frame
+     * after the last buffer replacement, see {@link #allocate})
+     *
+     * @param target  GL_UNIFORM_BUFFER or GL_SHADER_STORAGE_BUFFER
+     * @param binding binding point index
+     * @param offset  region offset returned by allocate
+     * @param size    region size in bytes
+     */
+    public static void bind(int target, int binding, int offset, int size)
+    {
+        if (offset < validFrom || offset + size > head)
+            throw new RuntimeException("Uniform ring region was allocated before the buffer grew or in other frame");
+
+        glBindBufferRange(target, binding, buffer, offset, size);
+    }
+
+    /**
+     * Releases ring buffer storage
+     */
+    static void remove()
+    {
+        for (int i = 0; i < FRAMES; i++)
+            if (fences[i] != 0) {
+                glDeleteSync(fences[i]);
+                fences[i] = 0;
+            }
+
+        for (int[] retired : retiredBuffers)
+            glDeleteBuffers(retired[0]);
+        retiredBuffers.clear();
+
+        glDeleteBuffers(buffer);
+        buffer = 0;
+        mapped = null;
+    }
+
+    private static void allocateStorage(int newPartitionSize)
+    {
+        if (buffer != 0)
+            retiredBuffers.add(new int[]{buffer, frameCounter});
+
+        for (int i = 0; i < FRAMES; i++)
+            if (fences[i] != 0) {
+                glDeleteSync(fences[i]);
+                fences[i] = 0;
+            }
+
+        partitionSize = newPartitionSize;
+
+        int flags = GL_MAP_WRITE_BIT | GL_MAP_PERSISTENT_BIT | GL_MAP_COHERENT_BIT;
+
+        buffer = glGenBuffers();
+        glBindBuffer(GL_UNIFORM_BUFFER, buffer);
+        glBufferStorage(GL_UNIFORM_BUFFER, (long) partitionSize * FRAMES, flags);
+        mapped = glMapBufferRange(GL_UNIFORM_BUFFER, 0, (long) partitionSize * FRAMES, flags);
+        glBindBuffer(GL_UNIFORM_BUFFER, 0);
+
+        head = frame * partitionSize;
+        tail = head + partitionSize;
+    }
+}